@@ -0,0 +1,173 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.benchmarks;
+
+import net.shibboleth.idp.oidc.client.ShibbolethOAuth2ClientRepository;
+import org.mitre.oauth2.model.ClientDetailsEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares client lookups through {@link ShibbolethOAuth2ClientRepository}
+ * against a linear scan over the registered client set, which is how
+ * the repository used to resolve clients.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientRepositoryBenchmark {
+
+    /**
+     * Number of lookup keys cycled through by each benchmark.
+     */
+    private static final int LOOKUPS = 1024;
+
+    /**
+     * Number of registered clients.
+     */
+    @Param({"10", "1000", "50000"})
+    public int clientCount;
+
+    /**
+     * The registered clients.
+     */
+    private Set<ClientDetailsEntity> clients;
+
+    /**
+     * The repository under test.
+     */
+    private ShibbolethOAuth2ClientRepository repository;
+
+    /**
+     * Client ids to look up.
+     */
+    private String[] clientIds;
+
+    /**
+     * Numeric ids to look up.
+     */
+    private Long[] ids;
+
+    /**
+     * The lookup cursor.
+     */
+    private int cursor;
+
+    /**
+     * Registers the clients and picks random lookup keys.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        clients = new HashSet<>(clientCount * 2);
+        for (int i = 0; i < clientCount; i++) {
+            final ClientDetailsEntity client = new ClientDetailsEntity();
+            client.setId((long) i);
+            client.setClientId("client-" + i);
+            clients.add(client);
+        }
+        repository = new ShibbolethOAuth2ClientRepository(clients);
+
+        final Random random = new Random(clientCount);
+        clientIds = new String[LOOKUPS];
+        ids = new Long[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            final int n = random.nextInt(clientCount);
+            clientIds[i] = "client-" + n;
+            ids[i] = Long.valueOf(n);
+        }
+    }
+
+    /**
+     * Linear scan by client id.
+     *
+     * @return the client
+     */
+    @Benchmark
+    public ClientDetailsEntity scanByClientId() {
+        final String clientId = clientIds[next()];
+        for (final ClientDetailsEntity client : clients) {
+            if (client.getClientId().equals(clientId)) {
+                return client;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Indexed lookup by client id.
+     *
+     * @return the client
+     */
+    @Benchmark
+    public ClientDetailsEntity indexByClientId() {
+        return repository.getClientByClientId(clientIds[next()]);
+    }
+
+    /**
+     * Linear scan by numeric id.
+     *
+     * @return the client
+     */
+    @Benchmark
+    public ClientDetailsEntity scanById() {
+        final Long id = ids[next()];
+        for (final ClientDetailsEntity client : clients) {
+            if (client.getId().equals(id)) {
+                return client;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Indexed lookup by numeric id.
+     *
+     * @return the client
+     */
+    @Benchmark
+    public ClientDetailsEntity indexById() {
+        return repository.getById(ids[next()]);
+    }
+
+    /**
+     * Advances the lookup cursor.
+     *
+     * @return the next lookup position
+     */
+    private int next() {
+        cursor = (cursor + 1) & (LOOKUPS - 1);
+        return cursor;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.benchmarks;
+
+import com.google.common.collect.Sets;
+import com.nimbusds.jose.EncryptionMethod;
+import com.nimbusds.jose.JWEAlgorithm;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.jwk.ECKey;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.PlainJWT;
+import net.shibboleth.idp.oidc.client.userinfo.authn.AuthenticationClassRefAuthority;
+import net.shibboleth.idp.oidc.client.userinfo.authn.AuthenticationMethodRefAuthority;
+import net.shibboleth.idp.oidc.client.userinfo.authn.AuthenticationRefCache;
+import net.shibboleth.idp.oidc.client.userinfo.authn.JWSSignerCache;
+import net.shibboleth.idp.oidc.client.userinfo.authn.ShibbolethAcrAwareTokenService;
+import net.shibboleth.idp.oidc.config.OIDCConstants;
+import org.mitre.jose.keystore.JWKSetKeyStore;
+import org.mitre.jwt.signer.service.impl.ClientKeyCacheService;
+import org.mitre.jwt.signer.service.impl.DefaultJWTSigningAndValidationService;
+import org.mitre.jwt.signer.service.impl.SymmetricKeyJWTValidatorCacheService;
+import org.mitre.oauth2.model.AuthenticationHolderEntity;
+import org.mitre.oauth2.model.ClientDetailsEntity;
+import org.mitre.oauth2.model.OAuth2AccessTokenEntity;
+import org.mitre.openid.connect.config.ConfigurationPropertiesBean;
+import org.mitre.openid.connect.request.ConnectRequestParameters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+
+import java.io.Serializable;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link ShibbolethAcrAwareTokenService#createIdToken} for
+ * each kind of ID token the IdP hands out, with and without the
+ * {@code at_hash} claim. Persistence is replaced by in-memory stand-ins,
+ * so the figures cover claim assembly, signing or encryption and
+ * serialization only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdTokenBenchmark {
+
+    /**
+     * Token type for an encrypted id token.
+     */
+    private static final String ENCRYPTED = "RSA-OAEP+A128GCM";
+
+    /**
+     * Token type for an unsigned id token.
+     */
+    private static final String NONE = "none";
+
+    /**
+     * The client secret used for HMAC signatures.
+     */
+    private static final String CLIENT_SECRET = "b3f1c7e2a9d84f6e8c0b5a7d2e4f6a8c1d3e5f7a9b0c2d4e6f8a0b1c3d5e7f9a";
+
+    /**
+     * The authentication context class reference carried by the authentication.
+     */
+    private static final String ACR = "urn:oasis:names:tc:SAML:2.0:ac:classes:PasswordProtectedTransport";
+
+    /**
+     * The kind of id token minted.
+     */
+    @Param({"RS256", "ES256", "HS256", ENCRYPTED, NONE})
+    public String tokenType;
+
+    /**
+     * Whether the request asks for an access token, which adds {@code at_hash}.
+     */
+    @Param({"false", "true"})
+    public boolean atHash;
+
+    /**
+     * The service under test.
+     */
+    private ShibbolethAcrAwareTokenService tokenService;
+
+    /**
+     * The client.
+     */
+    private ClientDetailsEntity client;
+
+    /**
+     * The authorization request.
+     */
+    private OAuth2Request request;
+
+    /**
+     * The access token the id token accompanies.
+     */
+    private OAuth2AccessTokenEntity accessToken;
+
+    /**
+     * Builds keys, client, request and the token service.
+     *
+     * @throws Exception if keys cannot be generated
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        final KeyPairGenerator rsaGenerator = KeyPairGenerator.getInstance("RSA");
+        rsaGenerator.initialize(2048);
+        final KeyPair rsaPair = rsaGenerator.generateKeyPair();
+        final RSAKey rsaKey = new RSAKey.Builder((RSAPublicKey) rsaPair.getPublic())
+                .privateKey((RSAPrivateKey) rsaPair.getPrivate())
+                .keyID("rsa1")
+                .build();
+
+        final KeyPairGenerator ecGenerator = KeyPairGenerator.getInstance("EC");
+        ecGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+        final KeyPair ecPair = ecGenerator.generateKeyPair();
+        final ECKey ecKey = new ECKey.Builder(ECKey.Curve.P_256, (ECPublicKey) ecPair.getPublic())
+                .privateKey((ECPrivateKey) ecPair.getPrivate())
+                .keyID("ec1")
+                .build();
+
+        final JWKSetKeyStore keyStore = new JWKSetKeyStore(new JWKSet(Arrays.<JWK>asList(rsaKey, ecKey)));
+        final DefaultJWTSigningAndValidationService jwtService = new DefaultJWTSigningAndValidationService(keyStore);
+        final boolean ec = "ES256".equals(tokenType);
+        jwtService.setDefaultSignerKeyId(ec ? "ec1" : "rsa1");
+        jwtService.setDefaultSigningAlgorithmName(ec ? "ES256" : "RS256");
+
+        final ConfigurationPropertiesBean configBean = new ConfigurationPropertiesBean();
+        configBean.setIssuer("https://idp.example.org/idp/");
+
+        final JWSSignerCache signerCache = new JWSSignerCache();
+        signerCache.setKeyStore(keyStore);
+        signerCache.setClientCacheSize(100);
+        signerCache.initialize();
+
+        final AuthenticationRefCache refCache = new AuthenticationRefCache();
+        refCache.setCacheSize(100);
+        refCache.initialize();
+
+        final InMemoryAuthenticationHolderRepository holderRepository = new InMemoryAuthenticationHolderRepository();
+
+        tokenService = new ShibbolethAcrAwareTokenService();
+        tokenService.setJwtService(jwtService);
+        tokenService.setConfigBean(configBean);
+        tokenService.setAuthenticationHolderRepository(holderRepository);
+        tokenService.setTokenService(new InMemoryOAuth2TokenEntityService());
+        tokenService.setEncrypters(new ClientKeyCacheService());
+        tokenService.setSymmetricCacheService(new SymmetricKeyJWTValidatorCacheService());
+        tokenService.setSignerCache(signerCache);
+        tokenService.setAuthenticationRefCache(refCache);
+
+        client = new ClientDetailsEntity();
+        client.setClientId("benchmark-client");
+        client.setClientSecret(CLIENT_SECRET);
+        client.setIdTokenValiditySeconds(300);
+        if (ENCRYPTED.equals(tokenType)) {
+            client.setIdTokenSignedResponseAlg(JWSAlgorithm.RS256);
+            client.setJwks(new JWKSet(rsaKey.toPublicJWK()));
+            client.setIdTokenEncryptedResponseAlg(JWEAlgorithm.RSA_OAEP);
+            client.setIdTokenEncryptedResponseEnc(EncryptionMethod.A128GCM);
+        } else {
+            client.setIdTokenSignedResponseAlg(new JWSAlgorithm(tokenType));
+        }
+
+        final Map<String, Serializable> extensions = new HashMap<>();
+        extensions.put(OIDCConstants.AUTH_TIME, String.valueOf(System.currentTimeMillis()));
+        extensions.put(ConnectRequestParameters.NONCE, "n-0S6_WzA2Mj");
+        final Set<String> responseTypes = atHash
+                ? Sets.newHashSet(OIDCConstants.ID_TOKEN, OIDCConstants.TOKEN)
+                : Collections.singleton(OIDCConstants.ID_TOKEN);
+        final Set<GrantedAuthority> authorities = Sets.<GrantedAuthority>newHashSet(
+                new SimpleGrantedAuthority(OIDCConstants.ROLE_USER),
+                new AuthenticationClassRefAuthority(ACR),
+                new AuthenticationMethodRefAuthority("pwd"));
+        request = new OAuth2Request(new HashMap<String, String>(), client.getClientId(), authorities, true,
+                Sets.newHashSet("openid", "profile", "email"), null, "https://rp.example.org/callback",
+                responseTypes, extensions);
+
+        final AuthenticationHolderEntity holder = new AuthenticationHolderEntity();
+        holder.setAuthentication(new OAuth2Authentication(request, null));
+
+        accessToken = new OAuth2AccessTokenEntity();
+        accessToken.setClient(client);
+        accessToken.setAuthenticationHolder(holderRepository.save(holder));
+        accessToken.setJwt(new PlainJWT(new JWTClaimsSet.Builder()
+                .subject("jdoe")
+                .issuer(configBean.getIssuer())
+                .jwtID("access-token")
+                .build()));
+    }
+
+    /**
+     * Mint and serialize an id token.
+     *
+     * @return the serialized id token
+     */
+    @Benchmark
+    public String createIdToken() {
+        return tokenService.createIdToken(client, request, new Date(), "jdoe", accessToken).getValue();
+    }
+}
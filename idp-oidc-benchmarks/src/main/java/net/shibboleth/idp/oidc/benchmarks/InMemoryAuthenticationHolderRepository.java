@@ -0,0 +1,74 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.benchmarks;
+
+import org.mitre.oauth2.model.AuthenticationHolderEntity;
+import org.mitre.oauth2.repository.AuthenticationHolderRepository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Authentication holder repository kept in memory, standing in
+ * for the JPA repository so benchmarks measure no database time.
+ */
+public final class InMemoryAuthenticationHolderRepository implements AuthenticationHolderRepository {
+
+    /**
+     * The holders, keyed by id.
+     */
+    private final ConcurrentMap<Long, AuthenticationHolderEntity> holders = new ConcurrentHashMap<>();
+
+    /**
+     * The id sequence.
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    @Override
+    public List<AuthenticationHolderEntity> getAll() {
+        return new ArrayList<>(holders.values());
+    }
+
+    @Override
+    public AuthenticationHolderEntity getById(final Long id) {
+        return holders.get(id);
+    }
+
+    @Override
+    public void remove(final AuthenticationHolderEntity holder) {
+        if (holder.getId() != null) {
+            holders.remove(holder.getId());
+        }
+    }
+
+    @Override
+    public AuthenticationHolderEntity save(final AuthenticationHolderEntity holder) {
+        if (holder.getId() == null) {
+            holder.setId(sequence.incrementAndGet());
+        }
+        holders.put(holder.getId(), holder);
+        return holder;
+    }
+
+    @Override
+    public List<AuthenticationHolderEntity> getOrphanedAuthenticationHolders() {
+        return new ArrayList<>();
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.benchmarks;
+
+import org.mitre.oauth2.model.ClientDetailsEntity;
+import org.mitre.oauth2.model.OAuth2AccessTokenEntity;
+import org.mitre.oauth2.model.OAuth2RefreshTokenEntity;
+import org.mitre.oauth2.service.OAuth2TokenEntityService;
+import org.mitre.oauth2.service.SystemScopeService;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.TokenRequest;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token service kept in memory, standing in for the JPA backed
+ * token service so benchmarks measure no database time. Only the
+ * lookups used while minting tokens are meaningful; token grants
+ * are not supported.
+ */
+public final class InMemoryOAuth2TokenEntityService implements OAuth2TokenEntityService {
+
+    /**
+     * Access tokens keyed by value.
+     */
+    private final ConcurrentMap<String, OAuth2AccessTokenEntity> accessTokens = new ConcurrentHashMap<>();
+
+    /**
+     * Refresh tokens keyed by value.
+     */
+    private final ConcurrentMap<String, OAuth2RefreshTokenEntity> refreshTokens = new ConcurrentHashMap<>();
+
+    /**
+     * The id sequence.
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    @Override
+    public OAuth2AccessTokenEntity readAccessToken(final String value) {
+        final OAuth2AccessTokenEntity token = accessTokens.get(value);
+        if (token == null) {
+            throw new InvalidTokenException("Access token not found: " + value);
+        }
+        return token;
+    }
+
+    @Override
+    public OAuth2RefreshTokenEntity getRefreshToken(final String value) {
+        final OAuth2RefreshTokenEntity token = refreshTokens.get(value);
+        if (token == null) {
+            throw new InvalidTokenException("Refresh token not found: " + value);
+        }
+        return token;
+    }
+
+    @Override
+    public void revokeRefreshToken(final OAuth2RefreshTokenEntity token) {
+        refreshTokens.remove(token.getValue());
+    }
+
+    @Override
+    public void revokeAccessToken(final OAuth2AccessTokenEntity token) {
+        accessTokens.remove(token.getValue());
+    }
+
+    @Override
+    public List<OAuth2AccessTokenEntity> getAccessTokensForClient(final ClientDetailsEntity client) {
+        final List<OAuth2AccessTokenEntity> tokens = new ArrayList<>();
+        for (final OAuth2AccessTokenEntity token : accessTokens.values()) {
+            if (isIssuedTo(token.getClient(), client)) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    @Override
+    public List<OAuth2RefreshTokenEntity> getRefreshTokensForClient(final ClientDetailsEntity client) {
+        final List<OAuth2RefreshTokenEntity> tokens = new ArrayList<>();
+        for (final OAuth2RefreshTokenEntity token : refreshTokens.values()) {
+            if (isIssuedTo(token.getClient(), client)) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    @Override
+    public void clearExpiredTokens() {
+        for (final OAuth2AccessTokenEntity token : accessTokens.values()) {
+            if (token.isExpired()) {
+                accessTokens.remove(token.getValue());
+            }
+        }
+        for (final OAuth2RefreshTokenEntity token : refreshTokens.values()) {
+            if (token.isExpired()) {
+                refreshTokens.remove(token.getValue());
+            }
+        }
+    }
+
+    @Override
+    public OAuth2AccessTokenEntity saveAccessToken(final OAuth2AccessTokenEntity token) {
+        if (token.getId() == null) {
+            token.setId(sequence.incrementAndGet());
+        }
+        accessTokens.put(token.getValue(), token);
+        return token;
+    }
+
+    @Override
+    public OAuth2RefreshTokenEntity saveRefreshToken(final OAuth2RefreshTokenEntity token) {
+        if (token.getId() == null) {
+            token.setId(sequence.incrementAndGet());
+        }
+        refreshTokens.put(token.getValue(), token);
+        return token;
+    }
+
+    @Override
+    public OAuth2AccessTokenEntity getAccessToken(final OAuth2Authentication authentication) {
+        throw new UnsupportedOperationException("Token grants are not supported");
+    }
+
+    @Override
+    public OAuth2AccessTokenEntity createAccessToken(final OAuth2Authentication authentication)
+            throws AuthenticationException {
+        throw new UnsupportedOperationException("Token grants are not supported");
+    }
+
+    @Override
+    public OAuth2AccessTokenEntity refreshAccessToken(final String refreshTokenValue, final TokenRequest request)
+            throws AuthenticationException {
+        throw new UnsupportedOperationException("Token grants are not supported");
+    }
+
+    @Override
+    public OAuth2Authentication loadAuthentication(final String value) throws AuthenticationException {
+        return readAccessToken(value).getAuthenticationHolder().getAuthentication();
+    }
+
+    @Override
+    public OAuth2AccessTokenEntity getAccessTokenForIdToken(final OAuth2AccessTokenEntity idToken) {
+        for (final OAuth2AccessTokenEntity token : accessTokens.values()) {
+            if (idToken.equals(token.getIdToken())) {
+                return token;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public OAuth2AccessTokenEntity getAccessTokenById(final Long id) {
+        for (final OAuth2AccessTokenEntity token : accessTokens.values()) {
+            if (id.equals(token.getId())) {
+                return token;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public OAuth2RefreshTokenEntity getRefreshTokenById(final Long id) {
+        for (final OAuth2RefreshTokenEntity token : refreshTokens.values()) {
+            if (id.equals(token.getId())) {
+                return token;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Set<OAuth2AccessTokenEntity> getAllAccessTokensForUser(final String name) {
+        final Set<OAuth2AccessTokenEntity> tokens = new HashSet<>();
+        for (final OAuth2AccessTokenEntity token : accessTokens.values()) {
+            if (token.getAuthenticationHolder() != null
+                    && name.equals(token.getAuthenticationHolder().getAuthentication().getName())) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    @Override
+    public Set<OAuth2RefreshTokenEntity> getAllRefreshTokensForUser(final String name) {
+        final Set<OAuth2RefreshTokenEntity> tokens = new HashSet<>();
+        for (final OAuth2RefreshTokenEntity token : refreshTokens.values()) {
+            if (token.getAuthenticationHolder() != null
+                    && name.equals(token.getAuthenticationHolder().getAuthentication().getName())) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    @Override
+    public OAuth2AccessTokenEntity getRegistrationAccessTokenForClient(final ClientDetailsEntity client) {
+        for (final OAuth2AccessTokenEntity token : getAccessTokensForClient(client)) {
+            if (token.getScope() != null && token.getScope().contains(SystemScopeService.REGISTRATION_TOKEN_SCOPE)) {
+                return token;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether the token client is the given client.
+     *
+     * @param tokenClient the token client
+     * @param client      the client
+     * @return true if both share the client id
+     */
+    private static boolean isIssuedTo(final ClientDetailsEntity tokenClient, final ClientDetailsEntity client) {
+        return tokenClient != null && Objects.equals(tokenClient.getClientId(), client.getClientId());
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.benchmarks;
+
+import com.google.common.hash.HashCode;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.PlainJWT;
+import net.shibboleth.idp.oidc.client.userinfo.authn.RevokedTokenFilter;
+import net.shibboleth.idp.oidc.client.userinfo.authn.TokenHashing;
+import org.mitre.oauth2.model.OAuth2AccessTokenEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures asking the {@link RevokedTokenFilter} about a token that was
+ * not revoked, the common case on every bearer token request, and about
+ * one that was.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RevokedTokenFilterBenchmark {
+
+    /**
+     * Number of revoked tokens.
+     */
+    @Param({"1000", "100000"})
+    private int revocations;
+
+    /**
+     * The filter.
+     */
+    private RevokedTokenFilter filter;
+
+    /**
+     * Hash of a token that was not revoked.
+     */
+    private HashCode liveToken;
+
+    /**
+     * Hash of a token that was revoked.
+     */
+    private HashCode revokedToken;
+
+    /**
+     * Revokes the tokens.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        filter = new RevokedTokenFilter();
+        filter.setExpectedRevocations(revocations);
+        filter.setPurgeInterval(TimeUnit.DAYS.toSeconds(1));
+        filter.initialize();
+
+        final Date expiration = new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1));
+        String value = null;
+        for (int i = 0; i < revocations; i++) {
+            final OAuth2AccessTokenEntity token = new OAuth2AccessTokenEntity();
+            token.setJwt(new PlainJWT(new JWTClaimsSet.Builder().jwtID("revoked-" + i).build()));
+            token.setExpiration(expiration);
+            filter.accessTokenRevoked(token);
+            value = token.getValue();
+        }
+        revokedToken = TokenHashing.hash(value);
+        liveToken = TokenHashing.hash(new PlainJWT(new JWTClaimsSet.Builder().jwtID("live").build()).serialize());
+    }
+
+    /**
+     * Asks about a token that was not revoked.
+     *
+     * @return whether the token was revoked
+     */
+    @Benchmark
+    public boolean notRevoked() {
+        return filter.isRevoked(liveToken);
+    }
+
+    /**
+     * Asks about a token that was revoked.
+     *
+     * @return whether the token was revoked
+     */
+    @Benchmark
+    public boolean revoked() {
+        return filter.isRevoked(revokedToken);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.benchmarks;
+
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.StringAttributeValue;
+import net.shibboleth.idp.authn.context.SubjectContext;
+import net.shibboleth.idp.consent.context.impl.AttributeReleaseContext;
+import net.shibboleth.idp.oidc.client.userinfo.ShibbolethUserInfoRepository;
+import net.shibboleth.idp.oidc.client.userinfo.UserInfoClaimMapper;
+import org.mitre.openid.connect.model.UserInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensaml.profile.context.ProfileRequestContext;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolves user info on every available core at once, each thread
+ * working on its own login. The run fails as soon as a thread sees
+ * attributes that belong to another thread's user, so it doubles as
+ * a stress test for the shared {@link ShibbolethUserInfoRepository}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Threads(Threads.MAX)
+@Fork(1)
+public class UserInfoResolutionBenchmark {
+
+    /**
+     * The repository shared by all threads.
+     */
+    private final ShibbolethUserInfoRepository repository = new ShibbolethUserInfoRepository();
+
+    /**
+     * Wires the claim mapper into the repository.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        repository.setClaimMapper(new UserInfoClaimMapper());
+        repository.setReleasedCacheSize(100000);
+        repository.setReleasedCacheTtl(28800);
+        repository.initialize();
+    }
+
+    /**
+     * Hands out a distinct user per thread.
+     */
+    private final AtomicInteger users = new AtomicInteger();
+
+    /**
+     * A login owned by one benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Login {
+
+        /**
+         * The username.
+         */
+        private String username;
+
+        /**
+         * The profile request context of the login.
+         */
+        private ProfileRequestContext profileRequestContext;
+
+        /**
+         * Builds a login with released attributes unique to the thread.
+         *
+         * @param benchmark the benchmark
+         */
+        @Setup(Level.Trial)
+        public void setUp(final UserInfoResolutionBenchmark benchmark) {
+            username = "user" + benchmark.users.incrementAndGet();
+            profileRequestContext = new ProfileRequestContext();
+            profileRequestContext.getSubcontext(SubjectContext.class, true).setPrincipalName(username);
+
+            final AttributeReleaseContext releaseContext =
+                    profileRequestContext.getSubcontext(AttributeReleaseContext.class, true);
+            releaseContext.getConsentableAttributes().put("email", attribute("email", username + "@example.org"));
+            releaseContext.getConsentableAttributes().put("name", attribute("name", "Name of " + username));
+            releaseContext.getConsentableAttributes().put("family_name", attribute("family_name", username));
+        }
+
+        /**
+         * Builds a single-valued attribute.
+         *
+         * @param id    the id
+         * @param value the value
+         * @return the attribute
+         */
+        private static IdPAttribute attribute(final String id, final String value) {
+            final IdPAttribute attribute = new IdPAttribute(id);
+            attribute.setValues(Collections.singletonList(new StringAttributeValue(value)));
+            return attribute;
+        }
+    }
+
+    /**
+     * Resolve the user info of the thread's login and check it belongs to that login.
+     *
+     * @param login the login
+     * @return the user info
+     */
+    @Benchmark
+    public UserInfo resolve(final Login login) {
+        final UserInfo userInfo = repository.getByProfileRequestContext(login.profileRequestContext);
+        if (!login.username.equals(userInfo.getSub())
+                || !login.username.equals(userInfo.getFamilyName())
+                || !(login.username + "@example.org").equals(userInfo.getEmail())) {
+            throw new IllegalStateException("Thread of " + login.username + " resolved user info of "
+                    + userInfo.getSub() + " / " + userInfo.getEmail());
+        }
+        return userInfo;
+    }
+}
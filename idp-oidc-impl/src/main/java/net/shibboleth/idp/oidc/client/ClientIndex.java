@@ -0,0 +1,421 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import org.mitre.oauth2.model.ClientDetailsEntity;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable snapshot of registered clients, indexed by client id
+ * and by numeric id. Updates never modify an existing index; they
+ * produce a new one so that readers can use a published snapshot
+ * without any locking.
+ * <p>
+ * The index may be backed by a {@link ClientRegistrationFile}, whose clients
+ * are found behind the ones registered with the index itself. A file client
+ * that is replaced or removed is hidden by its client id from then on. The
+ * number of file clients still visible is carried from one index to the next,
+ * adjusted for the client ids an update touches, and listing all clients
+ * materializes file clients only as they are iterated.
+ * </p>
+ */
+final class ClientIndex {
+
+    /**
+     * The empty index.
+     */
+    static final ClientIndex EMPTY = new ClientIndex(new ArrayList<ClientDetailsEntity>(), null,
+            Collections.<String>emptySet(), null, Collections.<String>emptySet());
+
+    /**
+     * Clients in registration order.
+     */
+    private final List<ClientDetailsEntity> clients;
+
+    /**
+     * Clients keyed by client id.
+     */
+    private final Map<String, ClientDetailsEntity> byClientId;
+
+    /**
+     * Clients keyed by numeric id.
+     */
+    private final Map<Long, ClientDetailsEntity> byId;
+
+    /**
+     * The file backing the index, or null.
+     */
+    private final ClientRegistrationFile file;
+
+    /**
+     * Client ids of the file clients that were replaced or removed.
+     */
+    private final Set<String> hidden;
+
+    /**
+     * Number of file clients that are neither hidden nor registered with the index itself.
+     */
+    private final int fileCount;
+
+    /**
+     * Instantiates a new client index. The list and set are owned by the index from now on.
+     * The number of visible file clients is that of the previous index, adjusted for the
+     * client ids whose registration or hiding changed, or counted from the registered
+     * clients if there is no previous index.
+     *
+     * @param entries       the clients to index
+     * @param registrations the file backing the index, or null
+     * @param hiddenIds     client ids of the file clients that were replaced or removed
+     * @param previous      the index this one was derived from, or null
+     * @param changedIds    client ids whose registration or hiding may differ from the previous index
+     */
+    private ClientIndex(final List<ClientDetailsEntity> entries, final ClientRegistrationFile registrations,
+                        final Set<String> hiddenIds, final ClientIndex previous, final Set<String> changedIds) {
+        this.clients = Collections.unmodifiableList(entries);
+        this.file = registrations;
+        this.hidden = hiddenIds;
+
+        final Map<String, ClientDetailsEntity> clientIds = new HashMap<>(entries.size() * 2);
+        final Map<Long, ClientDetailsEntity> ids = new HashMap<>(entries.size() * 2);
+        for (final ClientDetailsEntity client : entries) {
+            if (client.getClientId() != null) {
+                clientIds.put(client.getClientId(), client);
+            }
+            if (client.getId() != null) {
+                ids.put(client.getId(), client);
+            }
+        }
+        this.byClientId = clientIds;
+        this.byId = ids;
+
+        if (file == null) {
+            this.fileCount = 0;
+        } else if (previous == null) {
+            int count = file.size();
+            for (final String clientId : byClientId.keySet()) {
+                if (file.contains(clientId)) {
+                    count--;
+                }
+            }
+            this.fileCount = count;
+        } else {
+            int count = previous.fileCount;
+            for (final String clientId : changedIds) {
+                if (previous.isFileVisible(clientId)) {
+                    count--;
+                }
+                if (isFileVisible(clientId)) {
+                    count++;
+                }
+            }
+            this.fileCount = count;
+        }
+    }
+
+    /**
+     * Builds an index from the given clients. A client whose client id
+     * was already seen replaces the earlier registration.
+     *
+     * @param entries the clients
+     * @return the client index
+     */
+    static ClientIndex of(final Collection<ClientDetailsEntity> entries) {
+        return of(entries, null);
+    }
+
+    /**
+     * Builds an index from the given clients, backed by the file. A client
+     * whose client id was already seen replaces the earlier registration,
+     * including one in the file. A client whose numeric id is taken by
+     * a different client in the file is rejected.
+     *
+     * @param entries       the clients
+     * @param registrations the file, or null
+     * @return the client index
+     */
+    static ClientIndex of(final Collection<ClientDetailsEntity> entries, final ClientRegistrationFile registrations) {
+        if (entries != null && registrations != null) {
+            for (final ClientDetailsEntity client : entries) {
+                final String fileClientId = client.getId() != null ? registrations.getClientId(client.getId()) : null;
+                if (fileClientId != null && !fileClientId.equals(client.getClientId())) {
+                    throw new IllegalStateException("Clients " + client.getClientId() + " and " + fileClientId
+                            + " have the same id " + client.getId());
+                }
+            }
+        }
+        if ((entries == null || entries.isEmpty()) && registrations == null) {
+            return EMPTY;
+        }
+        if (entries == null || entries.isEmpty()) {
+            return new ClientIndex(new ArrayList<ClientDetailsEntity>(), registrations,
+                    Collections.<String>emptySet(), null, Collections.<String>emptySet());
+        }
+        final List<ClientDetailsEntity> list = new ArrayList<>(entries.size());
+        final Map<String, Integer> positions = new HashMap<>(entries.size() * 2);
+        for (final ClientDetailsEntity client : entries) {
+            final Integer pos = client.getClientId() != null ? positions.get(client.getClientId()) : null;
+            if (pos != null) {
+                list.set(pos, client);
+            } else {
+                if (client.getClientId() != null) {
+                    positions.put(client.getClientId(), list.size());
+                }
+                list.add(client);
+            }
+        }
+        return new ClientIndex(list, registrations, Collections.<String>emptySet(), null,
+                Collections.<String>emptySet());
+    }
+
+    /**
+     * Gets client by client id.
+     *
+     * @param clientId the client id
+     * @return the client, or null
+     */
+    ClientDetailsEntity getByClientId(final String clientId) {
+        if (clientId == null) {
+            return null;
+        }
+        final ClientDetailsEntity client = byClientId.get(clientId);
+        if (client != null || file == null || hidden.contains(clientId)) {
+            return client;
+        }
+        return file.getByClientId(clientId);
+    }
+
+    /**
+     * Gets client by numeric id.
+     *
+     * @param id the id
+     * @return the client, or null
+     */
+    ClientDetailsEntity getById(final Long id) {
+        if (id == null) {
+            return null;
+        }
+        final ClientDetailsEntity client = byId.get(id);
+        if (client != null || file == null) {
+            return client;
+        }
+        final String clientId = file.getClientId(id);
+        if (clientId == null || hidden.contains(clientId) || byClientId.containsKey(clientId)) {
+            return null;
+        }
+        return file.getById(id);
+    }
+
+    /**
+     * Gets all clients, as a view over the registered clients followed by the
+     * visible file clients. File clients are materialized as they are iterated;
+     * a file line that turns out not to be a valid client is skipped, though
+     * it is still counted by the size of the view.
+     *
+     * @return the unmodifiable collection of clients
+     */
+    Collection<ClientDetailsEntity> getAll() {
+        if (file == null) {
+            return clients;
+        }
+        return new AbstractCollection<ClientDetailsEntity>() {
+            @Override
+            public Iterator<ClientDetailsEntity> iterator() {
+                return Iterators.concat(clients.iterator(), fileClients());
+            }
+
+            @Override
+            public int size() {
+                return ClientIndex.this.size();
+            }
+        };
+    }
+
+    /**
+     * Size of the index, counting the file clients that are not hidden.
+     *
+     * @return the number of clients
+     */
+    int size() {
+        return clients.size() + fileCount;
+    }
+
+    /**
+     * Iterate over the visible file clients, materializing each as it is reached.
+     *
+     * @return the iterator
+     */
+    private Iterator<ClientDetailsEntity> fileClients() {
+        final Iterator<String> clientIds = file.getClientIds().iterator();
+        return new AbstractIterator<ClientDetailsEntity>() {
+            @Override
+            protected ClientDetailsEntity computeNext() {
+                while (clientIds.hasNext()) {
+                    final String clientId = clientIds.next();
+                    if (isFileVisible(clientId)) {
+                        final ClientDetailsEntity client = file.getByClientId(clientId);
+                        if (client != null) {
+                            return client;
+                        }
+                    }
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    /**
+     * Whether the file client with the client id is found behind the registered clients.
+     *
+     * @param clientId the client id, or null
+     * @return true if the file registers it and it is neither hidden nor registered with the index
+     */
+    private boolean isFileVisible(final String clientId) {
+        return clientId != null && file != null && file.contains(clientId) && !hidden.contains(clientId)
+                && !byClientId.containsKey(clientId);
+    }
+
+    /**
+     * Gets the clients registered with the index itself, leaving out the file.
+     *
+     * @return the unmodifiable collection of clients
+     */
+    Collection<ClientDetailsEntity> getRegistered() {
+        return clients;
+    }
+
+    /**
+     * Gets the file backing the index.
+     *
+     * @return the file, or null
+     */
+    ClientRegistrationFile getFile() {
+        return file;
+    }
+
+    /**
+     * Returns a new index that contains the given client, replacing any
+     * client registered under the same client id or numeric id.
+     *
+     * @param client the client
+     * @return the new client index
+     */
+    ClientIndex with(final ClientDetailsEntity client) {
+        final ClientDetailsEntity byClient = getByClientId(client.getClientId());
+        final ClientDetailsEntity byNumber = getById(client.getId());
+
+        final List<ClientDetailsEntity> list = new ArrayList<>(clients.size() + 1);
+        boolean replaced = false;
+        for (final ClientDetailsEntity existing : clients) {
+            if (existing == client || existing == byClient || existing == byNumber) {
+                if (!replaced) {
+                    list.add(client);
+                    replaced = true;
+                }
+            } else {
+                list.add(existing);
+            }
+        }
+        if (!replaced) {
+            list.add(client);
+        }
+        return new ClientIndex(list, file, hide(byClient, byNumber), this, clientIds(client, byClient, byNumber));
+    }
+
+    /**
+     * Returns a new index without the client registered under the numeric id
+     * of the given client or, if none is, under its client id. The given client
+     * need not be the instance held by the index.
+     *
+     * @param client the client
+     * @return the new client index
+     */
+    ClientIndex without(final ClientDetailsEntity client) {
+        ClientDetailsEntity target = getById(client.getId());
+        if (target == null) {
+            target = getByClientId(client.getClientId());
+        }
+        if (target == null) {
+            return this;
+        }
+        final List<ClientDetailsEntity> list = new ArrayList<>(clients.size());
+        for (final ClientDetailsEntity existing : clients) {
+            if (existing != target) {
+                list.add(existing);
+            }
+        }
+        if (list.size() == clients.size()) {
+            if (file != null && file.isLoaded(target) && !hidden.contains(target.getClientId())) {
+                return new ClientIndex(list, file, hide(target, null), this, clientIds(target));
+            }
+            return this;
+        }
+        return new ClientIndex(list, file, hidden, this, clientIds(target));
+    }
+
+    /**
+     * Gets the client ids of the clients.
+     *
+     * @param entries the clients, any of which may be null
+     * @return the client ids
+     */
+    private static Set<String> clientIds(final ClientDetailsEntity... entries) {
+        final Set<String> ids = new LinkedHashSet<>(entries.length * 2);
+        for (final ClientDetailsEntity client : entries) {
+            if (client != null && client.getClientId() != null) {
+                ids.add(client.getClientId());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the hidden client ids, extended by those of the given clients
+     * if they came from the file.
+     *
+     * @param first  a client, or null
+     * @param second another client, or null
+     * @return the hidden client ids
+     */
+    private Set<String> hide(final ClientDetailsEntity first, final ClientDetailsEntity second) {
+        if (file == null) {
+            return hidden;
+        }
+        Set<String> ids = hidden;
+        for (final ClientDetailsEntity client : new ClientDetailsEntity[]{first, second}) {
+            if (client != null && file.isLoaded(client) && !ids.contains(client.getClientId())) {
+                if (ids == hidden) {
+                    ids = new HashSet<>(hidden);
+                }
+                ids.add(client.getClientId());
+            }
+        }
+        return ids == hidden ? hidden : Collections.unmodifiableSet(ids);
+    }
+}
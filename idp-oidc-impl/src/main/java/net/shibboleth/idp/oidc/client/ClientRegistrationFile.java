@@ -0,0 +1,399 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.mitre.oauth2.model.ClientDetailsEntity;
+import org.mitre.openid.connect.ClientDetailsEntityJsonProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Clients read from a file that holds one client registration document
+ * per line, in the JSON format of dynamic client registration. Besides
+ * the registration metadata, each line carries the numeric {@code id} of
+ * the client, and may carry the {@code access_token_validity_seconds},
+ * {@code refresh_token_validity_seconds}, {@code id_token_validity_seconds}
+ * and {@code allow_introspection} settings. Blank lines and lines starting
+ * with {@code #} are skipped, as are lines without a client id or numeric id.
+ * Two clients with the same numeric id fail the load.
+ * <p>
+ * Every line is parsed when the file is loaded, to index it by client id and
+ * numeric id; only the raw bytes of the file and the offsets of its lines are
+ * kept. What is deferred, unless the file is loaded eagerly, is building the
+ * client entity from its line, which happens the first time the client is
+ * looked up. Listing all clients builds every one of them.
+ * </p>
+ */
+final class ClientRegistrationFile {
+
+    /**
+     * Approximate size of a hash map entry, with its boxed value, in bytes.
+     */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(ClientRegistrationFile.class);
+
+    /**
+     * The file.
+     */
+    private final File file;
+
+    /**
+     * The contents of the file.
+     */
+    private final byte[] data;
+
+    /**
+     * Offset of each client's line.
+     */
+    private final int[] offsets;
+
+    /**
+     * Length of each client's line.
+     */
+    private final int[] lengths;
+
+    /**
+     * Numeric id of each client.
+     */
+    private final long[] ids;
+
+    /**
+     * Client ids of the clients.
+     */
+    private final String[] clientIds;
+
+    /**
+     * Positions keyed by client id.
+     */
+    private final Map<String, Integer> byClientId;
+
+    /**
+     * Positions keyed by numeric id.
+     */
+    private final Map<Long, Integer> byId;
+
+    /**
+     * The clients materialized so far.
+     */
+    private final AtomicReferenceArray<ClientDetailsEntity> entities;
+
+    /**
+     * How long loading took, in milliseconds.
+     */
+    private final long loadTime;
+
+    /**
+     * Read and index the file.
+     *
+     * @param registrations the file
+     * @param lazy          whether clients are materialized on first lookup rather than now
+     * @throws IOException if the file cannot be read
+     */
+    ClientRegistrationFile(final File registrations, final boolean lazy) throws IOException {
+        final long start = System.currentTimeMillis();
+        this.file = registrations;
+        this.data = Files.readAllBytes(registrations.toPath());
+
+        final List<int[]> lines = new ArrayList<>();
+        final List<String> names = new ArrayList<>();
+        final List<Long> numbers = new ArrayList<>();
+        final Map<String, Integer> clientPositions = new HashMap<>();
+        final JsonParser parser = new JsonParser();
+        int lineStart = 0;
+        int lineNumber = 0;
+        while (lineStart < data.length) {
+            int lineEnd = lineStart;
+            while (lineEnd < data.length && data[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            lineNumber++;
+            final String line = new String(data, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8).trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                final JsonObject json = parseLine(parser, line, lineNumber);
+                final String clientId = getString(json, "client_id");
+                final String number = getString(json, "id");
+                if (clientId == null) {
+                    log.warn("Skipping line {} of {}: not a client registration with a client_id", lineNumber, file);
+                } else if (number == null || !number.matches("\\d+")) {
+                    log.warn("Skipping line {} of {}: client {} has no numeric id", lineNumber, file, clientId);
+                } else {
+                    final long id = Long.parseLong(number);
+                    final Integer existing = clientPositions.get(clientId);
+                    final int[] location = new int[]{lineStart, lineEnd - lineStart};
+                    if (existing != null) {
+                        log.warn("Line {} of {} registers client {} again; replacing the earlier registration",
+                                lineNumber, file, clientId);
+                        lines.set(existing, location);
+                        numbers.set(existing, id);
+                    } else {
+                        clientPositions.put(clientId, lines.size());
+                        lines.add(location);
+                        names.add(clientId);
+                        numbers.add(id);
+                    }
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+
+        final int count = lines.size();
+        this.offsets = new int[count];
+        this.lengths = new int[count];
+        this.ids = new long[count];
+        this.clientIds = names.toArray(new String[count]);
+        this.byClientId = clientPositions;
+        this.byId = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            offsets[i] = lines.get(i)[0];
+            lengths[i] = lines.get(i)[1];
+            ids[i] = numbers.get(i);
+            final Integer duplicate = byId.put(ids[i], i);
+            if (duplicate != null) {
+                throw new IOException("Clients " + clientIds[duplicate] + " and " + clientIds[i] + " in " + file
+                        + " have the same id " + ids[i]);
+            }
+        }
+        this.entities = new AtomicReferenceArray<>(count);
+        if (!lazy) {
+            for (int i = 0; i < count; i++) {
+                get(i);
+            }
+        }
+        this.loadTime = System.currentTimeMillis() - start;
+        log.info("Loaded {} clients from {} in {} ms, using about {} KB", count, file, loadTime,
+                getFootprint() / 1024);
+    }
+
+    /**
+     * Parse a line.
+     *
+     * @param parser     the parser
+     * @param line       the line
+     * @param lineNumber the line number
+     * @return the json object, or null if the line is not one
+     */
+    private JsonObject parseLine(final JsonParser parser, final String line, final int lineNumber) {
+        try {
+            final JsonElement json = parser.parse(line);
+            return json.isJsonObject() ? json.getAsJsonObject() : null;
+        } catch (final JsonParseException e) {
+            log.warn("Unable to parse line {} of {}: {}", lineNumber, file, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Gets a string or number member.
+     *
+     * @param json   the json object, or null
+     * @param member the member
+     * @return the value, or null if absent or not a string or number
+     */
+    private static String getString(final JsonObject json, final String member) {
+        if (json == null || !json.has(member) || !json.get(member).isJsonPrimitive()) {
+            return null;
+        }
+        return json.get(member).getAsString();
+    }
+
+    /**
+     * Gets client by client id.
+     *
+     * @param clientId the client id
+     * @return the client, or null
+     */
+    ClientDetailsEntity getByClientId(final String clientId) {
+        final Integer position = byClientId.get(clientId);
+        return position != null ? get(position) : null;
+    }
+
+    /**
+     * Gets client by numeric id.
+     *
+     * @param id the id
+     * @return the client, or null
+     */
+    ClientDetailsEntity getById(final Long id) {
+        final Integer position = byId.get(id);
+        return position != null ? get(position) : null;
+    }
+
+    /**
+     * Gets the client id registered under the numeric id, without materializing the client.
+     *
+     * @param id the id
+     * @return the client id, or null
+     */
+    String getClientId(final Long id) {
+        final Integer position = byId.get(id);
+        return position != null ? clientIds[position] : null;
+    }
+
+    /**
+     * Gets all client ids, without materializing the clients.
+     *
+     * @return the client ids, in file order
+     */
+    List<String> getClientIds() {
+        return Collections.unmodifiableList(Arrays.asList(clientIds));
+    }
+
+    /**
+     * Whether the file registers the client id, without materializing the client.
+     *
+     * @param clientId the client id
+     * @return true if so
+     */
+    boolean contains(final String clientId) {
+        return byClientId.containsKey(clientId);
+    }
+
+    /**
+     * Whether the entity was materialized from this file.
+     *
+     * @param client the client
+     * @return true if so
+     */
+    boolean isLoaded(final ClientDetailsEntity client) {
+        final Integer position = client.getClientId() != null ? byClientId.get(client.getClientId()) : null;
+        return position != null && entities.get(position) == client;
+    }
+
+    /**
+     * Size of the file.
+     *
+     * @return the number of clients
+     */
+    int size() {
+        return clientIds.length;
+    }
+
+    /**
+     * Gets the client at the position, materializing it on first use.
+     *
+     * @param position the position
+     * @return the client, or null if the line does not describe a valid client
+     */
+    private ClientDetailsEntity get(final int position) {
+        final ClientDetailsEntity existing = entities.get(position);
+        if (existing != null) {
+            return existing;
+        }
+        final ClientDetailsEntity client = materialize(position);
+        if (client == null || entities.compareAndSet(position, null, client)) {
+            return client;
+        }
+        return entities.get(position);
+    }
+
+    /**
+     * Turn the line at the position into a client.
+     *
+     * @param position the position
+     * @return the client, or null if the line does not describe a valid client
+     */
+    private ClientDetailsEntity materialize(final int position) {
+        final JsonObject json = new JsonParser().parse(new String(data, offsets[position], lengths[position],
+                StandardCharsets.UTF_8)).getAsJsonObject();
+        final ClientDetailsEntity client = ClientDetailsEntityJsonProcessor.parse(json);
+        if (client == null) {
+            log.warn("Client {} in {} is not a valid client registration", clientIds[position], file);
+            return null;
+        }
+        client.setId(ids[position]);
+        if (json.has("access_token_validity_seconds")) {
+            client.setAccessTokenValiditySeconds(json.get("access_token_validity_seconds").getAsInt());
+        }
+        if (json.has("refresh_token_validity_seconds")) {
+            client.setRefreshTokenValiditySeconds(json.get("refresh_token_validity_seconds").getAsInt());
+        }
+        if (json.has("id_token_validity_seconds")) {
+            client.setIdTokenValiditySeconds(json.get("id_token_validity_seconds").getAsInt());
+        }
+        if (json.has("allow_introspection")) {
+            client.setAllowIntrospection(json.get("allow_introspection").getAsBoolean());
+        }
+        return client;
+    }
+
+    /**
+     * Gets the file.
+     *
+     * @return the file
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Gets how long loading took.
+     *
+     * @return the load time, in milliseconds
+     */
+    long getLoadTime() {
+        return loadTime;
+    }
+
+    /**
+     * Gets the number of clients materialized so far.
+     *
+     * @return the count
+     */
+    int getMaterializedCount() {
+        int count = 0;
+        for (int i = 0; i < entities.length(); i++) {
+            if (entities.get(i) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Gets the approximate memory held by the file contents and indexes,
+     * not counting materialized clients.
+     *
+     * @return the footprint, in bytes
+     */
+    long getFootprint() {
+        long bytes = data.length + (long) clientIds.length * (4 + 4 + 8 + 8 + 8);
+        for (final String clientId : clientIds) {
+            bytes += 40 + clientId.length() * 2;
+        }
+        return bytes + (long) (byClientId.size() + byId.size()) * ENTRY_OVERHEAD;
+    }
+}
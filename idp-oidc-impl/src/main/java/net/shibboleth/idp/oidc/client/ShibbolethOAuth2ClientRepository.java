@@ -16,28 +16,48 @@
  */
 package net.shibboleth.idp.oidc.client;
 
+import com.google.common.base.Strings;
 import org.mitre.oauth2.model.ClientDetailsEntity;
 import org.mitre.oauth2.repository.OAuth2ClientRepository;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Primary;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.Set;
 
 /**
  * The type Shibboleth o auth 2 client repository.
+ * Registered clients are held in an immutable index keyed by client id
+ * and numeric id. Lookups read the currently published index without locking;
+ * updates are serialized and publish a fresh copy of the index.
+ * Clients may also be read from a {@link ClientRegistrationFile}, which
+ * keeps them in compact form until they are first looked up.
  */
 @Component("shibbolethOAuth2ClientRepository")
 @Primary
 public class ShibbolethOAuth2ClientRepository implements OAuth2ClientRepository {
 
     /**
-     * The Clients.
+     * The currently published client index.
      */
-    @Resource(name="oidcClients")
-    private Set<ClientDetailsEntity> clients = new HashSet<>();
+    private volatile ClientIndex index = ClientIndex.EMPTY;
+
+    /**
+     * File with one client registration per line, if any.
+     */
+    @Value("%{oidc.clients.file:}")
+    private String clientsFile;
+
+    /**
+     * Whether clients read from the file are materialized on first lookup.
+     */
+    @Value("%{oidc.clients.file.lazy:true}")
+    private boolean lazy;
 
     /**
      * Instantiates a new Shibboleth o auth 2 client repository.
@@ -50,47 +70,115 @@ public class ShibbolethOAuth2ClientRepository implements OAuth2ClientRepository
      * @param registeredClients the registered clients
      */
     public ShibbolethOAuth2ClientRepository(final Set<ClientDetailsEntity> registeredClients) {
-        this.clients = registeredClients;
+        setClients(registeredClients);
+    }
+
+    /**
+     * Sets the registered clients, replacing any existing registrations.
+     *
+     * @param registeredClients the registered clients
+     */
+    @Resource(name="oidcClients")
+    public synchronized void setClients(final Set<ClientDetailsEntity> registeredClients) {
+        this.index = ClientIndex.of(registeredClients, index.getFile());
+    }
+
+    /**
+     * Read the clients file, if one is configured.
+     *
+     * @throws IOException if the file cannot be read
+     */
+    @PostConstruct
+    public synchronized void initialize() throws IOException {
+        if (Strings.isNullOrEmpty(clientsFile)) {
+            return;
+        }
+        final ClientRegistrationFile file = new ClientRegistrationFile(new File(clientsFile), lazy);
+        this.index = ClientIndex.of(index.getRegistered(), file);
+    }
+
+    /**
+     * Sets the file with one client registration per line.
+     *
+     * @param file the file
+     */
+    public void setClientsFile(final String file) {
+        this.clientsFile = file;
+    }
+
+    /**
+     * Sets whether clients read from the file are materialized on first lookup.
+     *
+     * @param flag the flag
+     */
+    public void setLazy(final boolean flag) {
+        this.lazy = flag;
+    }
+
+    /**
+     * Gets how long reading the clients file took.
+     *
+     * @return the load time in milliseconds, or -1 if there is no file
+     */
+    public long getClientsFileLoadTime() {
+        final ClientRegistrationFile file = index.getFile();
+        return file != null ? file.getLoadTime() : -1;
+    }
+
+    /**
+     * Gets the approximate memory held by the clients file and its indexes,
+     * not counting clients materialized from it.
+     *
+     * @return the footprint in bytes, or 0 if there is no file
+     */
+    public long getClientsFileFootprint() {
+        final ClientRegistrationFile file = index.getFile();
+        return file != null ? file.getFootprint() : 0;
+    }
+
+    /**
+     * Gets the number of clients materialized from the clients file so far.
+     *
+     * @return the count
+     */
+    public int getMaterializedClientCount() {
+        final ClientRegistrationFile file = index.getFile();
+        return file != null ? file.getMaterializedCount() : 0;
     }
 
     @Override
     public ClientDetailsEntity getById(final Long aLong) {
-        for (final ClientDetailsEntity client : clients) {
-            if (client.getId().equals(aLong)) {
-                return client;
-            }
-        }
-        return null;
+        return index.getById(aLong);
     }
 
     @Override
     public ClientDetailsEntity getClientByClientId(final String s) {
-        for (final ClientDetailsEntity client : clients) {
-            if (client.getClientId().equals(s)) {
-                return client;
-            }
-        }
-        return null;
+        return index.getByClientId(s);
     }
 
     @Override
-    public ClientDetailsEntity saveClient(final ClientDetailsEntity clientDetailsEntity) {
-        clients.add(clientDetailsEntity);
+    public synchronized ClientDetailsEntity saveClient(final ClientDetailsEntity clientDetailsEntity) {
+        this.index = index.with(clientDetailsEntity);
         return clientDetailsEntity;
     }
 
     @Override
-    public void deleteClient(final ClientDetailsEntity clientDetailsEntity) {
-        clients.remove(clientDetailsEntity);
+    public synchronized void deleteClient(final ClientDetailsEntity clientDetailsEntity) {
+        this.index = index.without(clientDetailsEntity);
     }
 
     @Override
-    public ClientDetailsEntity updateClient(final Long aLong, final ClientDetailsEntity clientDetailsEntity) {
+    public synchronized ClientDetailsEntity updateClient(final Long aLong, 
+                                                         final ClientDetailsEntity clientDetailsEntity) {
+        final ClientDetailsEntity existing = index.getById(aLong);
+        if (existing != null && existing != clientDetailsEntity) {
+            this.index = index.without(existing);
+        }
         return saveClient(clientDetailsEntity);
     }
 
     @Override
     public Collection<ClientDetailsEntity> getAllClients() {
-        return clients;
+        return index.getAll();
     }
 }
@@ -0,0 +1,278 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.site;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.springframework.beans.factory.annotation.Value;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Base for repositories of read-mostly site entities that EclipseLink keeps
+ * in its shared cache. Queries always reach the database, so the results of
+ * the frequent ones are remembered here as entity ids and the entities are
+ * then loaded by id, which the shared cache serves. Remembered results are
+ * dropped on writes through the repository. Both caches are cleared every
+ * time-to-live seconds, which bounds how long changes made by other nodes
+ * go unnoticed.
+ *
+ * @param <T> the entity type
+ */
+public abstract class AbstractCachingSiteRepository<T> {
+
+    /**
+     * The entity manager factory whose shared cache holds the entities.
+     */
+    @PersistenceUnit(unitName = "defaultPersistenceUnit")
+    private EntityManagerFactory entityManagerFactory;
+
+    /**
+     * Whether results are cached.
+     */
+    @Value("%{oidc.db.cache.sites.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * Maximum number of results cached.
+     */
+    @Value("%{oidc.db.cache.sites.size:1000}")
+    private int cacheSize;
+
+    /**
+     * How long results and entities are cached, in seconds.
+     */
+    @Value("%{oidc.db.cache.sites.ttl:60}")
+    private long timeToLive;
+
+    /**
+     * Bumped on every write that invalidates results, so that a query
+     * that raced with the write does not cache what it read.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Loads by id served from the shared cache.
+     */
+    private final AtomicLong entityHits = new AtomicLong();
+
+    /**
+     * Loads by id that went to the database.
+     */
+    private final AtomicLong entityMisses = new AtomicLong();
+
+    /**
+     * When both caches are next cleared, in milliseconds.
+     */
+    private volatile long nextEvictionAt;
+
+    /**
+     * Sets entity manager factory.
+     *
+     * @param factory the factory
+     */
+    public void setEntityManagerFactory(final EntityManagerFactory factory) {
+        this.entityManagerFactory = factory;
+    }
+
+    /**
+     * Sets whether results are cached.
+     *
+     * @param enable the enable
+     */
+    public void setEnabled(final boolean enable) {
+        this.enabled = enable;
+    }
+
+    /**
+     * Sets the maximum number of results cached.
+     *
+     * @param size the size
+     */
+    public void setCacheSize(final int size) {
+        this.cacheSize = size;
+    }
+
+    /**
+     * Sets how long results and entities are cached, in seconds.
+     *
+     * @param seconds the seconds
+     */
+    public void setTimeToLive(final long seconds) {
+        this.timeToLive = seconds;
+    }
+
+    /**
+     * Whether results are cached.
+     *
+     * @return true if enabled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Gets the share of loads by id served from the shared cache.
+     *
+     * @return the hit ratio, or 1.0 if nothing was loaded yet
+     */
+    public double getEntityHitRatio() {
+        final long hits = entityHits.get();
+        final long total = hits + entityMisses.get();
+        return total == 0 ? 1.0 : (double) hits / total;
+    }
+
+    /**
+     * Gets the share of queries answered from cached results.
+     *
+     * @return the hit ratio, or 1.0 if nothing was queried yet
+     */
+    public double getQueryHitRatio() {
+        return getQueryStats().hitRate();
+    }
+
+    /**
+     * Gets the statistics of the cached results.
+     *
+     * @return the stats
+     */
+    public abstract CacheStats getQueryStats();
+
+    /**
+     * Gets the entity type.
+     *
+     * @return the type
+     */
+    protected abstract Class<T> getEntityType();
+
+    /**
+     * Load the entity from the underlying repository.
+     *
+     * @param id the id
+     * @return the entity, or null
+     */
+    protected abstract T find(Long id);
+
+    /**
+     * Drop all cached results.
+     */
+    protected abstract void invalidateQueries();
+
+    /**
+     * Build a cache for query results, bounded by size and time to live.
+     *
+     * @param <K> the key type
+     * @param <V> the value type
+     * @return the cache
+     */
+    protected <K, V> Cache<K, V> newQueryCache() {
+        this.nextEvictionAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeToLive);
+        return CacheBuilder.newBuilder()
+                .maximumSize(cacheSize)
+                .expireAfterWrite(timeToLive, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Gets the current generation, to be read before running a query whose result is cached.
+     *
+     * @return the generation
+     */
+    protected long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Whether no write invalidated results since the given generation was read.
+     *
+     * @param readGeneration the generation read before the query
+     * @return true if the result can be cached
+     */
+    protected boolean isCurrent(final long readGeneration) {
+        return generation.get() == readGeneration;
+    }
+
+    /**
+     * Record a write that invalidates results, evicting the entity from the shared cache.
+     *
+     * @param id the id of the entity written, or null
+     */
+    protected void written(final Long id) {
+        generation.incrementAndGet();
+        if (id != null && entityManagerFactory != null) {
+            entityManagerFactory.getCache().evict(getEntityType(), id);
+        }
+    }
+
+    /**
+     * Clear both caches if the time to live has passed since they were last cleared.
+     */
+    protected void expireIfDue() {
+        final long now = System.currentTimeMillis();
+        if (now >= nextEvictionAt) {
+            nextEvictionAt = now + TimeUnit.SECONDS.toMillis(timeToLive);
+            generation.incrementAndGet();
+            invalidateQueries();
+            if (entityManagerFactory != null) {
+                entityManagerFactory.getCache().evict(getEntityType());
+            }
+        }
+    }
+
+    /**
+     * Load the entity by id, counting whether the shared cache had it.
+     *
+     * @param id the id
+     * @return the entity, or null
+     */
+    protected T load(final Long id) {
+        if (id == null) {
+            return null;
+        }
+        if (entityManagerFactory != null && entityManagerFactory.getCache().contains(getEntityType(), id)) {
+            entityHits.incrementAndGet();
+        } else {
+            entityMisses.incrementAndGet();
+        }
+        return find(id);
+    }
+
+    /**
+     * Load the entities by id.
+     *
+     * @param ids the ids
+     * @return the entities, or null if any of them no longer exists
+     */
+    protected List<T> loadAll(final List<Long> ids) {
+        final List<T> entities = new ArrayList<>(ids.size());
+        for (final Long id : ids) {
+            final T entity = load(id);
+            if (entity == null) {
+                return null;
+            }
+            entities.add(entity);
+        }
+        return entities;
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.site;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheStats;
+import net.shibboleth.idp.oidc.client.userinfo.authn.MappedTokenRepository;
+import net.shibboleth.idp.oidc.client.userinfo.authn.WriteBehindTokenRepository;
+import org.mitre.openid.connect.model.ApprovedSite;
+import org.mitre.openid.connect.repository.ApprovedSiteRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Approved site repository that caches which sites a user approved for a
+ * client, the lookup made on every authorization. Saving a site that already
+ * exists, which happens on every authorization to record its access date,
+ * leaves the cached ids in place; the shared cache picks up the new state.
+ * <p>
+ * Removing a site also removes the tokens issued under it that are kept in
+ * the {@link MappedTokenRepository}, which the site itself does not list, and
+ * those the {@link WriteBehindTokenRepository} linked to it after it was loaded.
+ */
+@Component("cachingApprovedSiteRepository")
+@Primary
+public class CachingApprovedSiteRepository extends AbstractCachingSiteRepository<ApprovedSite>
+        implements ApprovedSiteRepository {
+
+    /**
+     * The repository that reads and writes the sites.
+     */
+    @Resource(name = "jpaApprovedSiteRepository")
+    private ApprovedSiteRepository approvedSiteRepository;
+
+    /**
+     * The repository that keeps tokens in the mapped token store.
+     */
+    @Autowired(required = false)
+    private MappedTokenRepository mappedTokenRepository;
+
+    /**
+     * The repository that writes tokens behind.
+     */
+    @Autowired(required = false)
+    private WriteBehindTokenRepository writeBehindTokenRepository;
+
+    /**
+     * Ids of the sites, keyed by client id and user id.
+     */
+    private Cache<List<String>, List<Long>> sitesByClientAndUser;
+
+    /**
+     * Initialize the cache.
+     */
+    @PostConstruct
+    public void initialize() {
+        this.sitesByClientAndUser = newQueryCache();
+    }
+
+    /**
+     * Sets approved site repository.
+     *
+     * @param repository the repository
+     */
+    public void setApprovedSiteRepository(final ApprovedSiteRepository repository) {
+        this.approvedSiteRepository = repository;
+    }
+
+    /**
+     * Sets mapped token repository.
+     *
+     * @param repository the repository
+     */
+    public void setMappedTokenRepository(final MappedTokenRepository repository) {
+        this.mappedTokenRepository = repository;
+    }
+
+    /**
+     * Sets write behind token repository.
+     *
+     * @param repository the repository
+     */
+    public void setWriteBehindTokenRepository(final WriteBehindTokenRepository repository) {
+        this.writeBehindTokenRepository = repository;
+    }
+
+    @Override
+    public ApprovedSite getById(final Long id) {
+        if (!isEnabled()) {
+            return approvedSiteRepository.getById(id);
+        }
+        expireIfDue();
+        return load(id);
+    }
+
+    @Override
+    public Collection<ApprovedSite> getByClientIdAndUserId(final String clientId, final String userId) {
+        if (!isEnabled()) {
+            return approvedSiteRepository.getByClientIdAndUserId(clientId, userId);
+        }
+        expireIfDue();
+
+        final List<String> key = Arrays.asList(clientId, userId);
+        final List<Long> ids = sitesByClientAndUser.getIfPresent(key);
+        if (ids != null) {
+            final List<ApprovedSite> sites = loadAll(ids);
+            if (sites != null) {
+                return sites;
+            }
+            sitesByClientAndUser.invalidate(key);
+        }
+
+        final long generation = getGeneration();
+        final Collection<ApprovedSite> sites = approvedSiteRepository.getByClientIdAndUserId(clientId, userId);
+        final List<Long> found = new ArrayList<>(sites.size());
+        for (final ApprovedSite site : sites) {
+            found.add(site.getId());
+        }
+        if (!found.contains(null) && isCurrent(generation)) {
+            sitesByClientAndUser.put(key, found);
+        }
+        return sites;
+    }
+
+    @Override
+    public ApprovedSite save(final ApprovedSite site) {
+        final boolean created = site.getId() == null;
+        final ApprovedSite saved = approvedSiteRepository.save(site);
+        if (created) {
+            written(null);
+            sitesByClientAndUser.invalidate(Arrays.asList(saved.getClientId(), saved.getUserId()));
+        }
+        return saved;
+    }
+
+    @Override
+    public void remove(final ApprovedSite site) {
+        if (mappedTokenRepository != null && mappedTokenRepository.isEnabled() && site.getId() != null) {
+            mappedTokenRepository.removeTokensForApprovedSite(site.getId());
+        }
+        if (writeBehindTokenRepository != null && site.getId() != null) {
+            writeBehindTokenRepository.removeTokensForApprovedSite(site.getId());
+        }
+        approvedSiteRepository.remove(site);
+        written(site.getId());
+        sitesByClientAndUser.invalidate(Arrays.asList(site.getClientId(), site.getUserId()));
+    }
+
+    @Override
+    public Collection<ApprovedSite> getAll() {
+        return approvedSiteRepository.getAll();
+    }
+
+    @Override
+    public Collection<ApprovedSite> getByUserId(final String userId) {
+        return approvedSiteRepository.getByUserId(userId);
+    }
+
+    @Override
+    public Collection<ApprovedSite> getByClientId(final String clientId) {
+        return approvedSiteRepository.getByClientId(clientId);
+    }
+
+    @Override
+    public CacheStats getQueryStats() {
+        return sitesByClientAndUser.stats();
+    }
+
+    @Override
+    protected Class<ApprovedSite> getEntityType() {
+        return ApprovedSite.class;
+    }
+
+    @Override
+    protected ApprovedSite find(final Long id) {
+        return approvedSiteRepository.getById(id);
+    }
+
+    @Override
+    protected void invalidateQueries() {
+        sitesByClientAndUser.invalidateAll();
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.site;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheStats;
+import org.mitre.openid.connect.model.BlacklistedSite;
+import org.mitre.openid.connect.repository.BlacklistedSiteRepository;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Blacklisted site repository that caches the ids of all sites, which are
+ * read in full each time a redirect uri is checked against the blacklist.
+ * The list is usually short, and often empty.
+ */
+@Component("cachingBlacklistedSiteRepository")
+@Primary
+public class CachingBlacklistedSiteRepository extends AbstractCachingSiteRepository<BlacklistedSite>
+        implements BlacklistedSiteRepository {
+
+    /**
+     * The key the ids of all sites are cached under.
+     */
+    private static final String ALL = "all";
+
+    /**
+     * The repository that reads and writes the sites.
+     */
+    @Resource(name = "jpaBlacklistedSiteRepository")
+    private BlacklistedSiteRepository blacklistedSiteRepository;
+
+    /**
+     * Ids of all sites.
+     */
+    private Cache<String, List<Long>> allSites;
+
+    /**
+     * Initialize the cache.
+     */
+    @PostConstruct
+    public void initialize() {
+        this.allSites = newQueryCache();
+    }
+
+    /**
+     * Sets blacklisted site repository.
+     *
+     * @param repository the repository
+     */
+    public void setBlacklistedSiteRepository(final BlacklistedSiteRepository repository) {
+        this.blacklistedSiteRepository = repository;
+    }
+
+    @Override
+    public Collection<BlacklistedSite> getAll() {
+        if (!isEnabled()) {
+            return blacklistedSiteRepository.getAll();
+        }
+        expireIfDue();
+
+        final List<Long> ids = allSites.getIfPresent(ALL);
+        if (ids != null) {
+            final List<BlacklistedSite> sites = loadAll(ids);
+            if (sites != null) {
+                return sites;
+            }
+            allSites.invalidate(ALL);
+        }
+
+        final long generation = getGeneration();
+        final Collection<BlacklistedSite> sites = blacklistedSiteRepository.getAll();
+        final List<Long> found = new ArrayList<>(sites.size());
+        for (final BlacklistedSite site : sites) {
+            found.add(site.getId());
+        }
+        if (!found.contains(null) && isCurrent(generation)) {
+            allSites.put(ALL, found);
+        }
+        return sites;
+    }
+
+    @Override
+    public BlacklistedSite getById(final Long id) {
+        if (!isEnabled()) {
+            return blacklistedSiteRepository.getById(id);
+        }
+        expireIfDue();
+        return load(id);
+    }
+
+    @Override
+    public BlacklistedSite save(final BlacklistedSite site) {
+        final BlacklistedSite saved = blacklistedSiteRepository.save(site);
+        written(saved.getId());
+        allSites.invalidateAll();
+        return saved;
+    }
+
+    @Override
+    public BlacklistedSite update(final BlacklistedSite oldSite, final BlacklistedSite site) {
+        final BlacklistedSite saved = blacklistedSiteRepository.update(oldSite, site);
+        written(oldSite.getId());
+        allSites.invalidateAll();
+        return saved;
+    }
+
+    @Override
+    public void remove(final BlacklistedSite site) {
+        blacklistedSiteRepository.remove(site);
+        written(site.getId());
+        allSites.invalidateAll();
+    }
+
+    @Override
+    public CacheStats getQueryStats() {
+        return allSites.stats();
+    }
+
+    @Override
+    protected Class<BlacklistedSite> getEntityType() {
+        return BlacklistedSite.class;
+    }
+
+    @Override
+    protected BlacklistedSite find(final Long id) {
+        return blacklistedSiteRepository.getById(id);
+    }
+
+    @Override
+    protected void invalidateQueries() {
+        allSites.invalidateAll();
+    }
+}
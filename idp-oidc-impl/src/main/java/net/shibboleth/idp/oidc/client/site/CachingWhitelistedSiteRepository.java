@@ -0,0 +1,169 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.site;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheStats;
+import org.mitre.openid.connect.model.WhitelistedSite;
+import org.mitre.openid.connect.repository.WhitelistedSiteRepository;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Collection;
+
+/**
+ * Whitelisted site repository that caches the site of each client, looked
+ * up on every authorization that is not already approved. Most clients have
+ * no whitelisted site, so the absence of one is cached as well.
+ */
+@Component("cachingWhitelistedSiteRepository")
+@Primary
+public class CachingWhitelistedSiteRepository extends AbstractCachingSiteRepository<WhitelistedSite>
+        implements WhitelistedSiteRepository {
+
+    /**
+     * The repository that reads and writes the sites.
+     */
+    @Resource(name = "jpaWhitelistedSiteRepository")
+    private WhitelistedSiteRepository whitelistedSiteRepository;
+
+    /**
+     * Id of the site, if any, keyed by client id.
+     */
+    private Cache<String, Optional<Long>> sitesByClientId;
+
+    /**
+     * Initialize the cache.
+     */
+    @PostConstruct
+    public void initialize() {
+        this.sitesByClientId = newQueryCache();
+    }
+
+    /**
+     * Sets whitelisted site repository.
+     *
+     * @param repository the repository
+     */
+    public void setWhitelistedSiteRepository(final WhitelistedSiteRepository repository) {
+        this.whitelistedSiteRepository = repository;
+    }
+
+    @Override
+    public WhitelistedSite getById(final Long id) {
+        if (!isEnabled()) {
+            return whitelistedSiteRepository.getById(id);
+        }
+        expireIfDue();
+        return load(id);
+    }
+
+    @Override
+    public WhitelistedSite getByClientId(final String clientId) {
+        if (!isEnabled() || clientId == null) {
+            return whitelistedSiteRepository.getByClientId(clientId);
+        }
+        expireIfDue();
+
+        final Optional<Long> id = sitesByClientId.getIfPresent(clientId);
+        if (id != null) {
+            if (!id.isPresent()) {
+                return null;
+            }
+            final WhitelistedSite site = load(id.get());
+            if (site != null) {
+                return site;
+            }
+            sitesByClientId.invalidate(clientId);
+        }
+
+        final long generation = getGeneration();
+        final WhitelistedSite site = whitelistedSiteRepository.getByClientId(clientId);
+        if ((site == null || site.getId() != null) && isCurrent(generation)) {
+            sitesByClientId.put(clientId, Optional.fromNullable(site != null ? site.getId() : null));
+        }
+        return site;
+    }
+
+    @Override
+    public Collection<WhitelistedSite> getAll() {
+        return whitelistedSiteRepository.getAll();
+    }
+
+    @Override
+    public Collection<WhitelistedSite> getByCreator(final String creatorId) {
+        return whitelistedSiteRepository.getByCreator(creatorId);
+    }
+
+    @Override
+    public WhitelistedSite save(final WhitelistedSite site) {
+        final WhitelistedSite saved = whitelistedSiteRepository.save(site);
+        written(saved.getId());
+        invalidate(saved.getClientId());
+        return saved;
+    }
+
+    @Override
+    public WhitelistedSite update(final WhitelistedSite oldSite, final WhitelistedSite site) {
+        final WhitelistedSite saved = whitelistedSiteRepository.update(oldSite, site);
+        written(oldSite.getId());
+        invalidate(oldSite.getClientId());
+        invalidate(saved.getClientId());
+        return saved;
+    }
+
+    @Override
+    public void remove(final WhitelistedSite site) {
+        whitelistedSiteRepository.remove(site);
+        written(site.getId());
+        invalidate(site.getClientId());
+    }
+
+    @Override
+    public CacheStats getQueryStats() {
+        return sitesByClientId.stats();
+    }
+
+    @Override
+    protected Class<WhitelistedSite> getEntityType() {
+        return WhitelistedSite.class;
+    }
+
+    @Override
+    protected WhitelistedSite find(final Long id) {
+        return whitelistedSiteRepository.getById(id);
+    }
+
+    @Override
+    protected void invalidateQueries() {
+        sitesByClientId.invalidateAll();
+    }
+
+    /**
+     * Drop the cached site of the client.
+     *
+     * @param clientId the client id
+     */
+    private void invalidate(final String clientId) {
+        if (clientId != null) {
+            sitesByClientId.invalidate(clientId);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo;
+
+import net.shibboleth.idp.attribute.IdPAttribute;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * The attributes released for one request, computed once from the
+ * attribute release and consent contexts. Mapped attributes are held
+ * as a bit set over the ordinals of the claim mapping table the decision
+ * was made against, so building claims is a walk over the set bits.
+ */
+public final class AttributeReleaseDecision {
+
+    /**
+     * The claim mapping table.
+     */
+    private final UserInfoClaimMapper.ClaimTable table;
+
+    /**
+     * Ordinals of the released, mapped attributes.
+     */
+    private final BitSet released;
+
+    /**
+     * Released attributes by ordinal.
+     */
+    private final IdPAttribute[] attributes;
+
+    /**
+     * Released attributes that have no mapping and are passed through.
+     */
+    private final List<IdPAttribute> unmapped;
+
+    /**
+     * Instantiates a new attribute release decision.
+     *
+     * @param claimTable         the claim mapping table
+     * @param releasedOrdinals   the ordinals of the released attributes
+     * @param releasedAttributes the released attributes by ordinal
+     * @param unmappedAttributes the unmapped attributes to pass through
+     */
+    AttributeReleaseDecision(final UserInfoClaimMapper.ClaimTable claimTable, final BitSet releasedOrdinals,
+                             final IdPAttribute[] releasedAttributes, final List<IdPAttribute> unmappedAttributes) {
+        this.table = claimTable;
+        this.released = releasedOrdinals;
+        this.attributes = releasedAttributes;
+        this.unmapped = unmappedAttributes;
+    }
+
+    /**
+     * Number of released attributes.
+     *
+     * @return the number of released attributes
+     */
+    public int size() {
+        return released.cardinality() + unmapped.size();
+    }
+
+    /**
+     * Gets the claim mapping table.
+     *
+     * @return the table
+     */
+    UserInfoClaimMapper.ClaimTable getTable() {
+        return table;
+    }
+
+    /**
+     * Gets the ordinals of the released, mapped attributes.
+     *
+     * @return the bit set
+     */
+    BitSet getReleased() {
+        return released;
+    }
+
+    /**
+     * Gets the released attribute of the given ordinal.
+     *
+     * @param ordinal the ordinal
+     * @return the attribute
+     */
+    IdPAttribute getAttribute(final int ordinal) {
+        return attributes[ordinal];
+    }
+
+    /**
+     * Gets the unmapped attributes to pass through.
+     *
+     * @return the unmapped attributes
+     */
+    List<IdPAttribute> getUnmapped() {
+        return unmapped;
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Iterables;
+import com.google.common.io.BaseEncoding;
+import org.mitre.oauth2.model.ClientDetailsEntity;
+import org.mitre.openid.connect.model.PairwiseIdentifier;
+import org.mitre.openid.connect.model.UserInfo;
+import org.mitre.openid.connect.repository.PairwiseIdentifierRepository;
+import org.mitre.openid.connect.service.PairwiseIdentiferService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Service;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Pairwise identifier service that derives the identifier from a secret
+ * key, the sector identifier and the subject, as the base64url encoded
+ * HMAC-SHA256 of the two. No identifiers are stored, so calculating one
+ * needs no database access; recently calculated identifiers are memoized
+ * in a bounded cache.
+ *
+ * <p>When migrating, identifiers already issued from the <code>pairwise_identifier</code>
+ * table are kept. The sectors that have rows in the table are read once, on
+ * first use, and only subjects of those sectors are looked up in the table
+ * before an identifier is derived; the memo spares the lookup for recent
+ * subjects. Migration is off by default. When no secret key is configured,
+ * identifiers are handled by the table-backed MITREid service as before.</p>
+ */
+@Primary
+@Service("hmacPairwiseIdentifierService")
+public class HmacPairwiseIdentifierService implements PairwiseIdentiferService {
+
+    /**
+     * The HMAC algorithm.
+     */
+    private static final String ALGORITHM = "HmacSHA256";
+
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(HmacPairwiseIdentifierService.class);
+
+    /**
+     * The table-backed service used when no secret key is configured.
+     */
+    @Autowired
+    @Qualifier("uuidPairwiseIdentiferService")
+    private PairwiseIdentiferService tableService;
+
+    /**
+     * The repository of identifiers issued from the table.
+     */
+    @Autowired
+    private PairwiseIdentifierRepository pairwiseIdentifierRepository;
+
+    /**
+     * The entity manager.
+     */
+    @PersistenceContext(unitName = "defaultPersistenceUnit")
+    private EntityManager entityManager;
+
+    /**
+     * The secret key.
+     */
+    @Value("%{oidc.pairwise.secret:}")
+    private String secret;
+
+    /**
+     * Whether identifiers already issued from the table are kept.
+     */
+    @Value("%{oidc.pairwise.migrate:false}")
+    private boolean migrate;
+
+    /**
+     * Maximum number of memoized identifiers.
+     */
+    @Value("%{oidc.pairwise.cache.size:10000}")
+    private int cacheSize;
+
+    /**
+     * Memoized identifiers, keyed by sector identifier and subject.
+     */
+    private Cache<String, String> identifiers;
+
+    /**
+     * The key spec.
+     */
+    private SecretKeySpec keySpec;
+
+    /**
+     * Initialized MACs, one per thread.
+     */
+    private ThreadLocal<Mac> macs;
+
+    /**
+     * Sectors with identifiers issued from the table, read on first use.
+     */
+    private volatile Set<String> migratedSectors;
+
+    /**
+     * Initialize the memo and the key.
+     */
+    @PostConstruct
+    public void initialize() {
+        this.identifiers = CacheBuilder.newBuilder().maximumSize(cacheSize).build();
+        if (Strings.isNullOrEmpty(secret)) {
+            log.debug("No pairwise secret is configured; pairwise identifiers are stored in the database");
+            this.keySpec = null;
+            return;
+        }
+        this.keySpec = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        this.macs = new ThreadLocal<Mac>() {
+            @Override
+            protected Mac initialValue() {
+                try {
+                    final Mac mac = Mac.getInstance(ALGORITHM);
+                    mac.init(keySpec);
+                    return mac;
+                } catch (final GeneralSecurityException e) {
+                    throw new IllegalStateException("Unable to initialize " + ALGORITHM, e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Sets table service.
+     *
+     * @param service the service
+     */
+    public void setTableService(final PairwiseIdentiferService service) {
+        this.tableService = service;
+    }
+
+    /**
+     * Sets pairwise identifier repository.
+     *
+     * @param repository the repository
+     */
+    public void setPairwiseIdentifierRepository(final PairwiseIdentifierRepository repository) {
+        this.pairwiseIdentifierRepository = repository;
+    }
+
+    /**
+     * Sets entity manager.
+     *
+     * @param manager the manager
+     */
+    public void setEntityManager(final EntityManager manager) {
+        this.entityManager = manager;
+    }
+
+    /**
+     * Sets the secret key.
+     *
+     * @param key the key
+     */
+    public void setSecret(final String key) {
+        this.secret = key;
+    }
+
+    /**
+     * Sets whether identifiers already issued from the table are kept.
+     *
+     * @param flag the flag
+     */
+    public void setMigrate(final boolean flag) {
+        this.migrate = flag;
+    }
+
+    /**
+     * Sets the maximum number of memoized identifiers.
+     *
+     * @param size the size
+     */
+    public void setCacheSize(final int size) {
+        this.cacheSize = size;
+    }
+
+    @Override
+    public String getIdentifier(final UserInfo userInfo, final ClientDetailsEntity client) {
+        if (keySpec == null) {
+            return tableService.getIdentifier(userInfo, client);
+        }
+
+        final String sectorIdentifier = getSectorIdentifier(client);
+        final String key = sectorIdentifier + '\n' + userInfo.getSub();
+        String identifier = identifiers.getIfPresent(key);
+        if (identifier == null) {
+            identifier = migrate ? getIssuedIdentifier(sectorIdentifier, userInfo.getSub()) : null;
+            if (identifier == null) {
+                identifier = derive(sectorIdentifier, userInfo.getSub());
+            }
+            identifiers.put(key, identifier);
+        }
+        return identifier;
+    }
+
+    /**
+     * Gets the sector identifier of the client: the host of its sector
+     * identifier uri, or else of its only redirect uri.
+     *
+     * @param client the client
+     * @return the sector identifier
+     */
+    private static String getSectorIdentifier(final ClientDetailsEntity client) {
+        final String uri = !Strings.isNullOrEmpty(client.getSectorIdentifierUri())
+                ? client.getSectorIdentifierUri() : Iterables.getOnlyElement(client.getRedirectUris());
+        return UriComponentsBuilder.fromUriString(uri).build().getHost();
+    }
+
+    /**
+     * Derive the identifier.
+     *
+     * @param sectorIdentifier the sector identifier
+     * @param sub              the subject
+     * @return the identifier
+     */
+    private String derive(final String sectorIdentifier, final String sub) {
+        final Mac mac = macs.get();
+        mac.update(Strings.nullToEmpty(sectorIdentifier).getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 0);
+        return BaseEncoding.base64Url().omitPadding().encode(mac.doFinal(sub.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Gets the identifier issued from the table for the subject.
+     *
+     * @param sectorIdentifier the sector identifier
+     * @param sub              the subject
+     * @return the identifier, or null if none was issued
+     */
+    private String getIssuedIdentifier(final String sectorIdentifier, final String sub) {
+        if (!getMigratedSectors().contains(Strings.nullToEmpty(sectorIdentifier))) {
+            return null;
+        }
+        final PairwiseIdentifier row = pairwiseIdentifierRepository.getBySectorIdentifier(sub, sectorIdentifier);
+        return row != null ? row.getIdentifier() : null;
+    }
+
+    /**
+     * Gets the sectors with identifiers issued from the table, reading them on first use.
+     *
+     * @return the sector identifiers
+     */
+    private Set<String> getMigratedSectors() {
+        Set<String> sectors = this.migratedSectors;
+        if (sectors == null) {
+            synchronized (this) {
+                sectors = this.migratedSectors;
+                if (sectors == null) {
+                    final List<String> rows = entityManager.createQuery(
+                            "select distinct p.sectorIdentifier from PairwiseIdentifier p", String.class)
+                            .getResultList();
+                    sectors = new HashSet<>(rows.size() * 2);
+                    for (final String row : rows) {
+                        sectors.add(Strings.nullToEmpty(row));
+                    }
+                    log.info("{} sectors have pairwise identifiers issued from the table", sectors.size());
+                    this.migratedSectors = sectors;
+                }
+            }
+        }
+        return sectors;
+    }
+}
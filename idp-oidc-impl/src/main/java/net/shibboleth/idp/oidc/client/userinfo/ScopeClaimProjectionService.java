@@ -0,0 +1,226 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import org.mitre.oauth2.model.SystemScope;
+import org.mitre.openid.connect.model.UserInfo;
+import org.mitre.openid.connect.service.ScopeClaimTranslationService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Projects user info claims onto the scopes they are released under,
+ * as shown on the consent screen. For every combination of requested
+ * scopes a projection plan is compiled once, resolving the claims of
+ * each scope to readers of the user info model, and cached keyed by
+ * the sorted scope values. Projecting then reads claim values straight
+ * from the user info, without serializing it.
+ */
+@Service("scopeClaimProjectionService")
+public class ScopeClaimProjectionService {
+
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(ScopeClaimProjectionService.class);
+
+    /**
+     * The scope claim translation service.
+     */
+    @Autowired
+    private ScopeClaimTranslationService scopeClaimTranslationService;
+
+    /**
+     * Maximum number of projection plans kept.
+     */
+    @Value("%{oidc.consent.projection.cache.size:256}")
+    private int cacheSize;
+
+    /**
+     * Projection plans keyed by sorted scope values.
+     */
+    private Cache<List<String>, ProjectionPlan> plans;
+
+    /**
+     * Initialize the plan cache.
+     */
+    @PostConstruct
+    public void initialize() {
+        this.plans = CacheBuilder.newBuilder().maximumSize(cacheSize).build();
+    }
+
+    /**
+     * Sets scope claim translation service.
+     *
+     * @param service the service
+     */
+    public void setScopeClaimTranslationService(final ScopeClaimTranslationService service) {
+        this.scopeClaimTranslationService = service;
+    }
+
+    /**
+     * Sets the maximum number of projection plans kept.
+     *
+     * @param size the size
+     */
+    public void setCacheSize(final int size) {
+        this.cacheSize = size;
+    }
+
+    /**
+     * Gets the claim values of the user info, keyed by scope and claim.
+     * Claims that have no simple value are left out.
+     *
+     * @param userInfo the user info
+     * @param scopes   the scopes
+     * @return the claims for scopes
+     */
+    public Map<String, Map<String, String>> getClaimsForScopes(final UserInfo userInfo,
+                                                               final Set<SystemScope> scopes) {
+        final ProjectionPlan plan = getPlan(scopes);
+        final Map<String, Map<String, String>> claimsForScopes = new HashMap<>(plan.scopes.length * 2);
+        for (int i = 0; i < plan.scopes.length; i++) {
+            final String[] claims = plan.claims[i];
+            final StandardClaim[] standardClaims = plan.standardClaims[i];
+
+            final Map<String, String> claimValues = new HashMap<>(claims.length * 2);
+            for (int j = 0; j < claims.length; j++) {
+                final String value = read(userInfo, claims[j], standardClaims[j]);
+                if (value != null) {
+                    claimValues.put(claims[j], value);
+                }
+            }
+            claimsForScopes.put(plan.scopes[i], claimValues);
+        }
+        return claimsForScopes;
+    }
+
+    /**
+     * Gets the projection plan for the scopes, compiling it if needed.
+     *
+     * @param scopes the scopes
+     * @return the projection plan
+     */
+    private ProjectionPlan getPlan(final Set<SystemScope> scopes) {
+        final TreeSet<String> values = new TreeSet<>();
+        for (final SystemScope scope : scopes) {
+            values.add(scope.getValue());
+        }
+        final List<String> key = ImmutableList.copyOf(values);
+        try {
+            return plans.get(key, new Callable<ProjectionPlan>() {
+                @Override
+                public ProjectionPlan call() {
+                    return compile(key);
+                }
+            });
+        } catch (final ExecutionException e) {
+            throw new IllegalStateException("Unable to compile claim projection for scopes " + key, e.getCause());
+        }
+    }
+
+    /**
+     * Compile the projection plan of the scopes.
+     *
+     * @param scopes the sorted scope values
+     * @return the projection plan
+     */
+    private ProjectionPlan compile(final List<String> scopes) {
+        final String[][] claims = new String[scopes.size()][];
+        final StandardClaim[][] standardClaims = new StandardClaim[scopes.size()][];
+        for (int i = 0; i < scopes.size(); i++) {
+            final Set<String> scopeClaims = scopeClaimTranslationService.getClaimsForScope(scopes.get(i));
+            claims[i] = scopeClaims.toArray(new String[scopeClaims.size()]);
+            standardClaims[i] = new StandardClaim[claims[i].length];
+            for (int j = 0; j < claims[i].length; j++) {
+                standardClaims[i][j] = StandardClaim.forName(claims[i][j]);
+            }
+        }
+        log.debug("Compiled claim projection for scopes {}", scopes);
+        return new ProjectionPlan(scopes.toArray(new String[scopes.size()]), claims, standardClaims);
+    }
+
+    /**
+     * Read the simple value of a claim. A custom claim of the same name
+     * takes precedence over the standard claim, as it does in the
+     * JSON form of the user info.
+     *
+     * @param userInfo      the user info
+     * @param claim         the claim name
+     * @param standardClaim the standard claim, or null
+     * @return the value, or null
+     */
+    private static String read(final UserInfo userInfo, final String claim, final StandardClaim standardClaim) {
+        if (userInfo instanceof ShibbolethUserInfo) {
+            final Object value = ((ShibbolethUserInfo) userInfo).getCustomClaims().get(claim);
+            if (value != null) {
+                return value instanceof List ? null : value.toString();
+            }
+        }
+        return standardClaim != null ? standardClaim.read(userInfo) : null;
+    }
+
+    /**
+     * The claims of each scope in a combination of scopes.
+     */
+    private static final class ProjectionPlan {
+        /**
+         * The scope values.
+         */
+        private final String[] scopes;
+
+        /**
+         * The claims of each scope.
+         */
+        private final String[][] claims;
+
+        /**
+         * The standard claim of each claim, or null for custom claims.
+         */
+        private final StandardClaim[][] standardClaims;
+
+        /**
+         * Instantiates a new projection plan.
+         *
+         * @param scopeValues         the scope values
+         * @param scopeClaims         the claims of each scope
+         * @param scopeStandardClaims the standard claims of each scope
+         */
+        ProjectionPlan(final String[] scopeValues, final String[][] scopeClaims,
+                       final StandardClaim[][] scopeStandardClaims) {
+            this.scopes = scopeValues;
+            this.claims = scopeClaims;
+            this.standardClaims = scopeStandardClaims;
+        }
+    }
+}
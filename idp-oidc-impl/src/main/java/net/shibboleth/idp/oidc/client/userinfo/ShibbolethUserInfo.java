@@ -0,0 +1,120 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import org.mitre.openid.connect.model.DefaultUserInfo;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * User info that, besides the standard claims, carries custom claims
+ * mapped from released attributes. Custom claim values are strings,
+ * booleans, numbers or lists of strings.
+ */
+public class ShibbolethUserInfo extends DefaultUserInfo {
+
+    /**
+     * The constant serialVersionUID.
+     */
+    private static final long serialVersionUID = 4562374828215313386L;
+
+    /**
+     * Custom claims, in mapping order.
+     */
+    private final LinkedHashMap<String, Object> customClaims = new LinkedHashMap<>();
+
+    /**
+     * Sets a custom claim.
+     *
+     * @param name  the claim name
+     * @param value the value
+     */
+    public void setCustomClaim(final String name, final Object value) {
+        customClaims.put(name, value);
+    }
+
+    /**
+     * Gets custom claims.
+     *
+     * @return the unmodifiable custom claims
+     */
+    public Map<String, Object> getCustomClaims() {
+        return Collections.unmodifiableMap(customClaims);
+    }
+
+    @Override
+    public JsonObject toJson() {
+        final JsonObject obj = super.toJson();
+        for (final Map.Entry<String, Object> claim : customClaims.entrySet()) {
+            final Object value = claim.getValue();
+            if (value instanceof List) {
+                final JsonArray array = new JsonArray();
+                for (final Object element : (List<?>) value) {
+                    array.add(new JsonPrimitive(element.toString()));
+                }
+                obj.add(claim.getKey(), array);
+            } else if (value instanceof Boolean) {
+                obj.addProperty(claim.getKey(), (Boolean) value);
+            } else if (value instanceof Number) {
+                obj.addProperty(claim.getKey(), (Number) value);
+            } else if (value != null) {
+                obj.addProperty(claim.getKey(), value.toString());
+            }
+        }
+        return obj;
+    }
+
+    /**
+     * Copy the user info, so that a copy handed out can be changed
+     * without affecting the original.
+     *
+     * @return the copy
+     */
+    public ShibbolethUserInfo copy() {
+        final ShibbolethUserInfo copy = new ShibbolethUserInfo();
+        copy.setId(getId());
+        copy.setSub(getSub());
+        copy.setPreferredUsername(getPreferredUsername());
+        copy.setName(getName());
+        copy.setGivenName(getGivenName());
+        copy.setFamilyName(getFamilyName());
+        copy.setMiddleName(getMiddleName());
+        copy.setNickname(getNickname());
+        copy.setProfile(getProfile());
+        copy.setPicture(getPicture());
+        copy.setWebsite(getWebsite());
+        copy.setEmail(getEmail());
+        copy.setEmailVerified(getEmailVerified());
+        copy.setGender(getGender());
+        copy.setZoneinfo(getZoneinfo());
+        copy.setLocale(getLocale());
+        copy.setPhoneNumber(getPhoneNumber());
+        copy.setPhoneNumberVerified(getPhoneNumberVerified());
+        copy.setAddress(getAddress());
+        copy.setUpdatedTime(getUpdatedTime());
+        copy.setBirthdate(getBirthdate());
+        copy.setSource(getSource());
+        copy.customClaims.putAll(customClaims);
+        return copy;
+    }
+}
@@ -17,28 +17,49 @@
 package net.shibboleth.idp.oidc.client.userinfo;
 
 import com.google.common.base.Strings;
-import net.shibboleth.idp.attribute.EmptyAttributeValue;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import net.shibboleth.idp.attribute.IdPAttribute;
-import net.shibboleth.idp.attribute.IdPAttributeValue;
 import net.shibboleth.idp.authn.context.SubjectContext;
 import net.shibboleth.idp.consent.context.impl.AttributeReleaseContext;
 import net.shibboleth.idp.consent.context.impl.ConsentContext;
 import net.shibboleth.idp.consent.impl.Consent;
 import net.shibboleth.idp.oidc.OIDCException;
-import org.mitre.openid.connect.model.DefaultAddress;
-import org.mitre.openid.connect.model.DefaultUserInfo;
+import net.shibboleth.idp.oidc.client.userinfo.authn.SpringSecurityAuthenticationToken;
+import net.shibboleth.idp.profile.context.RelyingPartyContext;
 import org.mitre.openid.connect.model.UserInfo;
 import org.mitre.openid.connect.repository.UserInfoRepository;
 import org.opensaml.profile.context.ProfileRequestContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Primary;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
 import org.springframework.stereotype.Repository;
 
+import javax.annotation.PostConstruct;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The type Shibboleth user info repository.
+ * The repository keeps no per-request state. User info is built from the
+ * profile request context handed to {@link #getByProfileRequestContext(ProfileRequestContext)}.
+ * Lookups by username resolve the context bound to the current thread's
+ * Spring security authentication, and only when it belongs to that username.
+ * <p>
+ * Outside the login flow, at the token, userinfo and introspection endpoints,
+ * no context is bound. The user info released to a relying party is therefore
+ * kept, per user and relying party, for a bounded time once the login is
+ * approved and a code or token is issued for it, and lookups naming that
+ * relying party are answered from it. User info built while the consent page
+ * is rendered is not kept, and lookups that name no relying party, or another
+ * one, get nothing.
  */
 @Repository("shibbolethUserInfoRepository")
 @Primary
@@ -49,54 +70,146 @@ public class ShibbolethUserInfoRepository implements UserInfoRepository {
     private final Logger log = LoggerFactory.getLogger(this.getClass());
 
     /**
-     * The Profile request context.
+     * The Claim mapper.
      */
-    private ProfileRequestContext profileRequestContext;
+    @Autowired
+    private UserInfoClaimMapper claimMapper;
+
+    /**
+     * Maximum number of logins whose user info is kept.
+     */
+    @Value("%{oidc.userinfo.released.cache.size:100000}")
+    private long releasedCacheSize;
+
+    /**
+     * Seconds the user info of a login is kept.
+     */
+    @Value("%{oidc.userinfo.released.cache.ttl:28800}")
+    private long releasedCacheTtl;
+
+    /**
+     * The user info released at recent logins, by username and relying party.
+     */
+    private Cache<List<String>, ShibbolethUserInfo> released;
 
     /**
      * Initialize.
+     */
+    @PostConstruct
+    public void initialize() {
+        this.released = CacheBuilder.newBuilder()
+                .maximumSize(releasedCacheSize)
+                .expireAfterWrite(releasedCacheTtl, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * Sets claim mapper.
      *
-     * @param prc the prc
+     * @param mapper the mapper
      */
-    public void initialize(final ProfileRequestContext prc) {
-        this.profileRequestContext = prc;
+    public void setClaimMapper(final UserInfoClaimMapper mapper) {
+        this.claimMapper = mapper;
+    }
+
+    /**
+     * Sets the maximum number of logins whose user info is kept.
+     *
+     * @param size the size
+     */
+    public void setReleasedCacheSize(final long size) {
+        this.releasedCacheSize = size;
+    }
+
+    /**
+     * Sets the seconds the user info of a login is kept.
+     *
+     * @param ttl the ttl
+     */
+    public void setReleasedCacheTtl(final long ttl) {
+        this.releasedCacheTtl = ttl;
     }
 
     /**
      * Gets subject context.
      *
+     * @param prc the prc
      * @return the subject context
      */
-    public SubjectContext getSubjectContext() {
-        return profileRequestContext.getSubcontext(SubjectContext.class);
+    public SubjectContext getSubjectContext(final ProfileRequestContext prc) {
+        return prc.getSubcontext(SubjectContext.class);
     }
 
     /**
      * Gets consent context.
      *
+     * @param prc the prc
      * @return the consent context
      */
-    public ConsentContext getConsentContext() {
-        return profileRequestContext.getSubcontext(ConsentContext.class);
+    public ConsentContext getConsentContext(final ProfileRequestContext prc) {
+        return prc.getSubcontext(ConsentContext.class);
     }
 
     /**
      * Gets attribute release context.
      *
+     * @param prc the prc
      * @return the attribute release context
      */
-    public AttributeReleaseContext getAttributeReleaseContext() {
-        return profileRequestContext.getSubcontext(AttributeReleaseContext.class);
+    public AttributeReleaseContext getAttributeReleaseContext(final ProfileRequestContext prc) {
+        return prc.getSubcontext(AttributeReleaseContext.class);
     }
 
     @Override
     public UserInfo getByUsername(final String s) {
-        final SubjectContext principal = getSubjectContext();
+        final ProfileRequestContext prc = getBoundProfileRequestContext(s);
+        if (prc == null) {
+            log.debug("No profile request context is bound to the current request for {}", s);
+            return null;
+        }
+        return getByProfileRequestContext(prc);
+    }
+
+    /**
+     * Gets user info for a user as released to a relying party. The context bound
+     * to the current request is used if it belongs to both; otherwise, the user info
+     * of the user's last login to the relying party, if it is still kept.
+     *
+     * @param username the username
+     * @param clientId the client id of the relying party
+     * @return the user info, or null
+     */
+    public UserInfo getByUsernameAndClientId(final String username, final String clientId) {
+        final ProfileRequestContext prc = getBoundProfileRequestContext(username);
+        if (prc != null && clientId != null && clientId.equals(getRelyingPartyId(prc))) {
+            return getByProfileRequestContext(prc);
+        }
+        return getReleased(username, clientId);
+    }
+
+    /**
+     * Gets user info from the attributes released in the given profile request context.
+     *
+     * @param prc the prc
+     * @return the user info
+     */
+    public UserInfo getByProfileRequestContext(final ProfileRequestContext prc) {
+        return build(prc);
+    }
+
+    /**
+     * Build user info from the attributes released in the given profile request context.
+     *
+     * @param prc the prc
+     * @return the user info
+     */
+    private ShibbolethUserInfo build(final ProfileRequestContext prc) {
+        final SubjectContext principal = getSubjectContext(prc);
 
         if (principal == null || principal.getPrincipalName() == null) {
             throw new OIDCException("No SubjectContext found in the profile request context");
         }
-        final DefaultUserInfo userInfo = new DefaultUserInfo();
+        final ShibbolethUserInfo userInfo = new ShibbolethUserInfo();
         log.debug("Set userinfo preferred username to {}", principal.getPrincipalName());
         userInfo.setPreferredUsername(principal.getPrincipalName());
 
@@ -105,135 +218,111 @@ public class ShibbolethUserInfoRepository implements UserInfoRepository {
 
         log.debug("Setting preferred username to {}", principal.getPrincipalName());
 
-        if (getAttributeReleaseContext() != null) {
+        final AttributeReleaseContext releaseContext = getAttributeReleaseContext(prc);
+        if (releaseContext != null) {
             log.debug("Found attribute release context. Locating consentable attributes...");
-
-            final Map<String, IdPAttribute> consentableAttributes = getAttributeReleaseContext().getConsentableAttributes();
-            log.debug("Consentable attributes are {}", consentableAttributes.keySet());
-
-            for (final String attributeKey : consentableAttributes.keySet()) {
-                final IdPAttribute attribute = consentableAttributes.get(attributeKey);
-                log.debug("Processing userinfo claim for attribute {}", attributeKey);
-
-                final boolean releaseAttribute = getConsentContext() == null || consentedToAttributeRelease(attribute);
-                if (releaseAttribute) {
-                    log.debug("Attribute {} is authorized for release. Mapping...", attribute.getId());
-                    setUserInfoClaimByAttribute(principal, userInfo, attribute);
-                }
-            }
+            final AttributeReleaseDecision decision = decideAttributeRelease(releaseContext, getConsentContext(prc));
+            log.debug("{} attribute(s) are authorized for release. Mapping...", decision.size());
+            claimMapper.apply(decision, userInfo);
         }
 
         if (Strings.isNullOrEmpty(userInfo.getSub())) {
             log.warn("userinfo sub claim cannot be null/empty. Reset claim value to {}", principal.getPrincipalName());
             userInfo.setSub(principal.getPrincipalName());
         }
-        log.debug("Final userinfo object constructed from attributes is\n {}", userInfo.toJson());
+        if (log.isDebugEnabled()) {
+            log.debug("Final userinfo object constructed from attributes is\n {}", userInfo.toJson());
+        }
         return userInfo;
     }
 
     /**
-     * Sets user info claim by attribute.
+     * Keep the user info released to the relying party of an approved login, for
+     * lookups made outside the login flow. Called when a code or token is issued
+     * for the login; authentications that do not carry the profile request context
+     * of a login, such as those restored from a saved holder, are ignored.
      *
-     * @param principal the principal
-     * @param userInfo  the user info
-     * @param attribute the attribute
-     */
-    private void setUserInfoClaimByAttribute(final SubjectContext principal,
-                                             final DefaultUserInfo userInfo,
-                                             final IdPAttribute attribute) {
-        switch (attribute.getId()) {
-            case "sub":
-                userInfo.setSub(getAttributeValue(attribute).getValue().toString());
-                log.debug("Overriding existing sub value {} to {}", principal.getPrincipalName(), userInfo.getSub());
-                break;
-            case "name":
-                userInfo.setName(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "given_name":
-                userInfo.setGivenName(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "family_name":
-                userInfo.setFamilyName(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "middle_name":
-                userInfo.setMiddleName(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "nickname":
-                userInfo.setNickname(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "preferred_username":
-                userInfo.setPreferredUsername(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "profile":
-                userInfo.setProfile(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "picture":
-                userInfo.setPicture(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "website":
-                userInfo.setWebsite(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "email":
-                userInfo.setEmail(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "email_verified":
-                userInfo.setEmailVerified(Boolean.valueOf(getAttributeValue(attribute).getValue().toString()));
-                break;
-            case "gender":
-                userInfo.setGender(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "birthdate":
-                userInfo.setBirthdate(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "zoneinfo":
-                userInfo.setZoneinfo(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "locale":
-                userInfo.setLocale(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "phone_number":
-                userInfo.setPhoneNumber(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "phone_number_verified":
-                userInfo.setPhoneNumberVerified(
-                        Boolean.valueOf(getAttributeValue(attribute).getValue().toString()));
-                break;
-            case "updated_at":
-                userInfo.setUpdatedTime(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "address":
-                final DefaultAddress address = new DefaultAddress();
-                address.setFormatted(getAttributeValue(attribute).getValue().toString());
-                userInfo.setAddress(address);
-                break;
-            default:
-                log.warn("Unrecognized claim {} ignored.", attribute.getId());
+     * @param authentication the authentication the code or token is issued for
+     */
+    public void rememberIssued(final OAuth2Authentication authentication) {
+        if (released == null || authentication == null
+                || !(authentication.getUserAuthentication() instanceof SpringSecurityAuthenticationToken)) {
+            return;
+        }
+        final SpringSecurityAuthenticationToken user =
+                (SpringSecurityAuthenticationToken) authentication.getUserAuthentication();
+        final ProfileRequestContext prc = user.getProfileRequestContext();
+        final String clientId = authentication.getOAuth2Request().getClientId();
+        if (prc == null || clientId == null) {
+            return;
+        }
+        final String relyingPartyId = getRelyingPartyId(prc);
+        if (relyingPartyId != null && !relyingPartyId.equals(clientId)) {
+            log.warn("Not keeping user info: the login was for {}, not for {}", relyingPartyId, clientId);
+            return;
+        }
+        released.put(Arrays.asList(user.getName(), clientId), build(prc));
+    }
+
+    /**
+     * Gets a copy of the user info kept for a login to the relying party.
+     *
+     * @param username the username
+     * @param clientId the client id of the relying party
+     * @return the user info, or null
+     */
+    private UserInfo getReleased(final String username, final String clientId) {
+        if (released == null || username == null || clientId == null) {
+            return null;
+        }
+        final ShibbolethUserInfo userInfo = released.getIfPresent(Arrays.asList(username, clientId));
+        if (userInfo == null) {
+            log.debug("No user info is kept for {} and relying party {}", username, clientId);
+            return null;
         }
+        return userInfo.copy();
+    }
+
+    /**
+     * Gets the relying party of the profile request context.
+     *
+     * @param prc the prc
+     * @return the relying party id, or null
+     */
+    private static String getRelyingPartyId(final ProfileRequestContext prc) {
+        final RelyingPartyContext rpc = prc.getSubcontext(RelyingPartyContext.class);
+        return rpc != null ? rpc.getRelyingPartyId() : null;
     }
 
     /**
-     * Gets attribute value.
+     * Gets the profile request context carried by the Spring security
+     * authentication of the current thread, if it was produced for the given username.
      *
-     * @param attribute the attribute
-     * @return the attribute value
+     * @param username the username
+     * @return the profile request context, or null
      */
-    protected IdPAttributeValue<?> getAttributeValue(final IdPAttribute attribute) {
-        if (!attribute.getValues().isEmpty()) {
-            return attribute.getValues().get(0);
+    private ProfileRequestContext getBoundProfileRequestContext(final String username) {
+        final Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (authentication instanceof SpringSecurityAuthenticationToken
+                && username != null && username.equals(authentication.getName())) {
+            return ((SpringSecurityAuthenticationToken) authentication).getProfileRequestContext();
         }
-        return new EmptyAttributeValue(EmptyAttributeValue.EmptyType.NULL_VALUE);
+        return null;
     }
 
     /**
-     * Consented to attribute release boolean.
+     * Decide which consentable attributes are released.
      *
-     * @param attribute the attribute
-     * @return the boolean
+     * @param releaseContext the attribute release context
+     * @param consentContext the consent context, or null
+     * @return the attribute release decision
      */
-    private boolean consentedToAttributeRelease(final IdPAttribute attribute) {
-        final Map<String, Consent> consents = getConsentContext().getCurrentConsents();
-        return consents.containsKey(attribute.getId()) &&
-                consents.get(attribute.getId()).isApproved();
+    private AttributeReleaseDecision decideAttributeRelease(final AttributeReleaseContext releaseContext,
+                                                            final ConsentContext consentContext) {
+        final Map<String, IdPAttribute> consentableAttributes = releaseContext.getConsentableAttributes();
+        log.debug("Consentable attributes are {}", consentableAttributes.keySet());
+        final Map<String, Consent> consents = consentContext != null ? consentContext.getCurrentConsents() : null;
+        return claimMapper.decide(consentableAttributes, consents);
     }
 
     @Override
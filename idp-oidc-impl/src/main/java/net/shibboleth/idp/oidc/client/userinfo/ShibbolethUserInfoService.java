@@ -66,12 +66,13 @@ public class ShibbolethUserInfoService implements UserInfoService {
     }
 
     /**
-     * Initialize.
+     * Gets user info from the attributes released in the given profile request context.
      *
      * @param prc the prc
+     * @return the user info
      */
-    public void initialize(final ProfileRequestContext prc) {
-        this.userInfoRepository.initialize(prc);
+    public UserInfo getByProfileRequestContext(final ProfileRequestContext prc) {
+        return userInfoRepository.getByProfileRequestContext(prc);
     }
 
     @Override
@@ -80,7 +81,7 @@ public class ShibbolethUserInfoService implements UserInfoService {
         log.debug("Locating client {} for username {}", clientId, username);
 
         final ClientDetailsEntity client = clientService.loadClientByClientId(clientId);
-        final UserInfo userInfo = getByUsername(username);
+        final UserInfo userInfo = userInfoRepository.getByUsernameAndClientId(username, clientId);
 
         if (client == null || userInfo == null) {
             log.debug("No client or userinfo found for {} and {}", clientId, username);
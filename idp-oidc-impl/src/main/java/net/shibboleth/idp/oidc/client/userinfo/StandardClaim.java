@@ -0,0 +1,401 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo;
+
+import org.mitre.openid.connect.model.Address;
+import org.mitre.openid.connect.model.DefaultAddress;
+import org.mitre.openid.connect.model.DefaultUserInfo;
+import org.mitre.openid.connect.model.UserInfo;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The standard OpenID Connect claims, each bound to the user info
+ * setter that receives it and, for simple values, the getter that
+ * reads it. Claims are single-valued; the first attribute value is
+ * used. Members of the structured address claim are addressed as
+ * {@code address.<member>}; the plain {@code address} claim sets the
+ * formatted address.
+ */
+enum StandardClaim {
+
+    /** The sub claim. */
+    SUB("sub") {
+        @Override
+        void write(final DefaultUserInfo userInfo, final String value) {
+            userInfo.setSub(value);
+        }
+
+        @Override
+        String read(final UserInfo userInfo) {
+            return userInfo.getSub();
+        }
+    },
+    /** The name claim. */
+    NAME("name") {
+        @Override
+        void write(final DefaultUserInfo userInfo, final String value) {
+            userInfo.setName(value);
+        }
+
+        @Override
+        String read(final UserInfo userInfo) {
+            return userInfo.getName();
+        }
+    },
+    /** The given name claim. */
+    GIVEN_NAME("given_name") {
+        @Override
+        void write(final DefaultUserInfo userInfo, final String value) {
+            userInfo.setGivenName(value);
+        }
+
+        @Override
+        String read(final UserInfo userInfo) {
+            return userInfo.getGivenName();
+        }
+    },
+    /** The family name claim. */
+    FAMILY_NAME("family_name") {
+        @Override
+        void write(final DefaultUserInfo userInfo, final String value) {
+            userInfo.setFamilyName(value);
+        }
+
+        @Override
+        String read(final UserInfo userInfo) {
+            return userInfo.getFamilyName();
+        }
+    },
+    /** The middle name claim. */
+    MIDDLE_NAME("middle_name") {
+        @Override
+        void write(final DefaultUserInfo userInfo, final String value) {
+            userInfo.setMiddleName(value);
+        }
+
+        @Override
+        String read(final UserInfo userInfo) {
+            return userInfo.getMiddleName();
+        }
+    },
+    /** The nickname claim. */
+    NICKNAME("nickname") {
+        @Override
+        void write(final DefaultUserInfo userInfo, final String value) {
+            userInfo.setNickname(value);
+        }
+
+        @Override
+        String read(final UserInfo userInfo) {
+            return userInfo.getNickname();
+        }
+    },
+    /** The preferred username claim. */
+    PREFERRED_USERNAME("preferred_username") {
+        @Override
+        void write(final DefaultUserInfo userInfo, final String value) {
+            userInfo.setPreferredUsername(value);
+        }
+
+        @Override
+        String read(final UserInfo userInfo) {
+            return userInfo.getPreferredUsername();
+        }
+    },
+    /** The profile claim. */
+    PROFILE("profile") {
+        @Override
+        void write(final DefaultUserInfo userInfo, final String value) {
+            userInfo.setProfile(value);
+        }
+
+        @Override
+        String read(final UserInfo userInfo) {
+            return userInfo.getProfile();
+        }
+    },
+    /** The picture claim. */
+    PICTURE("picture") {
+        @Override
+        void write(final DefaultUserInfo userInfo, final String value) {
+            userInfo.setPicture(value);
+        }
+
+        @Override
+        String read(final UserInfo userInfo) {
+            return userInfo.getPicture();
+        }
+    },
+    /** The website claim. */
+    WEBSITE("website") {
+        @Override
+        void write(final DefaultUserInfo userInfo, final String value) {
+            userInfo.setWebsite(value);
+        }
+
+        @Override
+        String read(final UserInfo userInfo) {
+            return userInfo.getWebsite();
+        }
+    },
+    /** The email claim. */
+    EMAIL("email") {
+        @Override
+        void write(final DefaultUserInfo userInfo, final String value) {
+            userInfo.setEmail(value);
+        }
+
+        @Override
+        String read(final UserInfo userInfo) {
+            return userInfo.getEmail();
+        }
+    },
+    /** The email verified claim. */
+    EMAIL_VERIFIED("email_verified") {
+        @Override
+        void write(final DefaultUserInfo userInfo, final String value) {
+            userInfo.setEmailVerified(Boolean.valueOf(value));
+        }
+
+        @Override
+        String read(final UserInfo userInfo) {
+            return asString(userInfo.getEmailVerified());
+        }
+    },
+    /** The gender claim. */
+    GENDER("gender") {
+        @Override
+        void write(final DefaultUserInfo userInfo, final String value) {
+            userInfo.setGender(value);
+        }
+
+        @Override
+        String read(final UserInfo userInfo) {
+            return userInfo.getGender();
+        }
+    },
+    /** The birthdate claim. */
+    BIRTHDATE("birthdate") {
+        @Override
+        void write(final DefaultUserInfo userInfo, final String value) {
+            userInfo.setBirthdate(value);
+        }
+
+        @Override
+        String read(final UserInfo userInfo) {
+            return userInfo.getBirthdate();
+        }
+    },
+    /** The zoneinfo claim. */
+    ZONEINFO("zoneinfo") {
+        @Override
+        void write(final DefaultUserInfo userInfo, final String value) {
+            userInfo.setZoneinfo(value);
+        }
+
+        @Override
+        String read(final UserInfo userInfo) {
+            return userInfo.getZoneinfo();
+        }
+    },
+    /** The locale claim. */
+    LOCALE("locale") {
+        @Override
+        void write(final DefaultUserInfo userInfo, final String value) {
+            userInfo.setLocale(value);
+        }
+
+        @Override
+        String read(final UserInfo userInfo) {
+            return userInfo.getLocale();
+        }
+    },
+    /** The phone number claim. */
+    PHONE_NUMBER("phone_number") {
+        @Override
+        void write(final DefaultUserInfo userInfo, final String value) {
+            userInfo.setPhoneNumber(value);
+        }
+
+        @Override
+        String read(final UserInfo userInfo) {
+            return userInfo.getPhoneNumber();
+        }
+    },
+    /** The phone number verified claim. */
+    PHONE_NUMBER_VERIFIED("phone_number_verified") {
+        @Override
+        void write(final DefaultUserInfo userInfo, final String value) {
+            userInfo.setPhoneNumberVerified(Boolean.valueOf(value));
+        }
+
+        @Override
+        String read(final UserInfo userInfo) {
+            return asString(userInfo.getPhoneNumberVerified());
+        }
+    },
+    /** The updated at claim. */
+    UPDATED_AT("updated_at") {
+        @Override
+        void write(final DefaultUserInfo userInfo, final String value) {
+            userInfo.setUpdatedTime(value);
+        }
+
+        @Override
+        String read(final UserInfo userInfo) {
+            return userInfo.getUpdatedTime();
+        }
+    },
+    /** The formatted address. */
+    ADDRESS("address") {
+        @Override
+        void write(final DefaultUserInfo userInfo, final String value) {
+            address(userInfo).setFormatted(value);
+        }
+    },
+    /** The formatted address member. */
+    ADDRESS_FORMATTED("address.formatted") {
+        @Override
+        void write(final DefaultUserInfo userInfo, final String value) {
+            address(userInfo).setFormatted(value);
+        }
+    },
+    /** The street address member. */
+    ADDRESS_STREET_ADDRESS("address.street_address") {
+        @Override
+        void write(final DefaultUserInfo userInfo, final String value) {
+            address(userInfo).setStreetAddress(value);
+        }
+    },
+    /** The locality member. */
+    ADDRESS_LOCALITY("address.locality") {
+        @Override
+        void write(final DefaultUserInfo userInfo, final String value) {
+            address(userInfo).setLocality(value);
+        }
+    },
+    /** The region member. */
+    ADDRESS_REGION("address.region") {
+        @Override
+        void write(final DefaultUserInfo userInfo, final String value) {
+            address(userInfo).setRegion(value);
+        }
+    },
+    /** The postal code member. */
+    ADDRESS_POSTAL_CODE("address.postal_code") {
+        @Override
+        void write(final DefaultUserInfo userInfo, final String value) {
+            address(userInfo).setPostalCode(value);
+        }
+    },
+    /** The country member. */
+    ADDRESS_COUNTRY("address.country") {
+        @Override
+        void write(final DefaultUserInfo userInfo, final String value) {
+            address(userInfo).setCountry(value);
+        }
+    };
+
+    /**
+     * Claims keyed by name.
+     */
+    private static final Map<String, StandardClaim> BY_NAME = new HashMap<>();
+
+    static {
+        for (final StandardClaim claim : values()) {
+            BY_NAME.put(claim.claimName, claim);
+        }
+    }
+
+    /**
+     * The claim name.
+     */
+    private final String claimName;
+
+    /**
+     * Instantiates a new standard claim.
+     *
+     * @param name the claim name
+     */
+    StandardClaim(final String name) {
+        this.claimName = name;
+    }
+
+    /**
+     * Gets claim name.
+     *
+     * @return the claim name
+     */
+    String getClaimName() {
+        return claimName;
+    }
+
+    /**
+     * Write the value into the user info.
+     *
+     * @param userInfo the user info
+     * @param value    the value
+     */
+    abstract void write(DefaultUserInfo userInfo, String value);
+
+    /**
+     * Read the value from the user info. Only claims that are simple
+     * values of the user info can be read; the address and its members
+     * read as null.
+     *
+     * @param userInfo the user info
+     * @return the value, or null
+     */
+    String read(final UserInfo userInfo) {
+        return null;
+    }
+
+    /**
+     * Gets the standard claim of the given name.
+     *
+     * @param name the name
+     * @return the claim, or null if the name is not a standard claim
+     */
+    static StandardClaim forName(final String name) {
+        return BY_NAME.get(name);
+    }
+
+    /**
+     * Gets the string form of a flag.
+     *
+     * @param flag the flag
+     * @return the string, or null
+     */
+    private static String asString(final Boolean flag) {
+        return flag != null ? flag.toString() : null;
+    }
+
+    /**
+     * Gets the address of the user info, creating it first if needed.
+     *
+     * @param userInfo the user info
+     * @return the address
+     */
+    private static Address address(final DefaultUserInfo userInfo) {
+        if (userInfo.getAddress() == null) {
+            userInfo.setAddress(new DefaultAddress());
+        }
+        return userInfo.getAddress();
+    }
+}
@@ -0,0 +1,434 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo;
+
+import com.google.common.base.Strings;
+import net.shibboleth.idp.attribute.EmptyAttributeValue;
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.IdPAttributeValue;
+import net.shibboleth.idp.consent.impl.Consent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps released attributes onto user info claims through a table that
+ * is compiled once from configuration. Each entry binds an attribute id
+ * to a claim, written either through the matching user info setter for
+ * standard claims or as a custom claim. A custom claim may name its type
+ * with a suffix, as in {@code claim:boolean}; supported types are
+ * {@code string} (the default, which becomes an array when the attribute
+ * has more than one value), {@code array}, {@code boolean} and {@code number}.
+ * Attributes named after a standard claim are mapped to it unless the
+ * configuration says otherwise; an empty claim name removes a mapping.
+ */
+@Component("userInfoClaimMapper")
+public class UserInfoClaimMapper {
+
+    /**
+     * What to do with attributes that have no mapping.
+     */
+    public enum UnmappedAttributePolicy {
+        /** Unmapped attributes are not released as claims. */
+        IGNORE,
+        /** Unmapped attributes are released as custom claims named after the attribute. */
+        PASS_THROUGH
+    }
+
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(UserInfoClaimMapper.class);
+
+    /**
+     * The mapping table.
+     */
+    private volatile ClaimTable table = compile(Collections.<String, String>emptyMap());
+
+    /**
+     * The policy for unmapped attributes.
+     */
+    @Value("%{oidc.claims.unmapped:IGNORE}")
+    private UnmappedAttributePolicy unmappedAttributePolicy = UnmappedAttributePolicy.IGNORE;
+
+    /**
+     * Sets claim mappings, keyed by attribute id.
+     *
+     * @param mappings the mappings
+     */
+    @Resource(name = "oidcClaimMappings")
+    public void setClaimMappings(final Map<String, String> mappings) {
+        this.table = compile(mappings);
+        log.debug("Compiled claim mapping table for attributes {}", table.ordinals.keySet());
+    }
+
+    /**
+     * Sets the policy for unmapped attributes.
+     *
+     * @param policy the policy
+     */
+    public void setUnmappedAttributePolicy(final UnmappedAttributePolicy policy) {
+        this.unmappedAttributePolicy = policy;
+    }
+
+    /**
+     * Decide, once per request, which attributes are released. Mapped attributes
+     * are recorded by their ordinal in the mapping table; unmapped attributes are
+     * kept only if they are to be passed through.
+     *
+     * @param consentableAttributes the consentable attributes, keyed by id
+     * @param consents              the current consents, or null if consent does not apply
+     * @return the release decision
+     */
+    public AttributeReleaseDecision decide(final Map<String, IdPAttribute> consentableAttributes,
+                                           final Map<String, Consent> consents) {
+        final ClaimTable claimTable = this.table;
+        final boolean passThrough = unmappedAttributePolicy == UnmappedAttributePolicy.PASS_THROUGH;
+
+        final BitSet released = new BitSet(claimTable.size());
+        final IdPAttribute[] attributes = new IdPAttribute[claimTable.size()];
+        final List<IdPAttribute> unmapped = passThrough
+                ? new ArrayList<IdPAttribute>() : Collections.<IdPAttribute>emptyList();
+
+        for (final Map.Entry<String, IdPAttribute> entry : consentableAttributes.entrySet()) {
+            if (consents != null) {
+                final Consent consent = consents.get(entry.getKey());
+                if (consent == null || !consent.isApproved()) {
+                    continue;
+                }
+            }
+            final Integer ordinal = claimTable.getOrdinal(entry.getKey());
+            if (ordinal != null) {
+                released.set(ordinal);
+                attributes[ordinal] = entry.getValue();
+            } else if (passThrough) {
+                unmapped.add(entry.getValue());
+            } else {
+                log.debug("No claim is mapped to attribute {}; ignored", entry.getKey());
+            }
+        }
+        return new AttributeReleaseDecision(claimTable, released, attributes, unmapped);
+    }
+
+    /**
+     * Write the claims of the released attributes into the user info.
+     *
+     * @param decision the release decision
+     * @param userInfo the user info
+     */
+    public void apply(final AttributeReleaseDecision decision, final ShibbolethUserInfo userInfo) {
+        final ClaimTable claimTable = decision.getTable();
+        final BitSet released = decision.getReleased();
+        for (int i = released.nextSetBit(0); i >= 0; i = released.nextSetBit(i + 1)) {
+            write(claimTable.writers[i], decision.getAttribute(i), userInfo);
+        }
+        for (final IdPAttribute attribute : decision.getUnmapped()) {
+            write(new CustomClaimWriter(attribute.getId(), ClaimType.STRING), attribute, userInfo);
+        }
+    }
+
+    /**
+     * Write the values of the attribute.
+     *
+     * @param writer    the writer
+     * @param attribute the attribute
+     * @param userInfo  the user info
+     */
+    private void write(final ClaimWriter writer, final IdPAttribute attribute, final ShibbolethUserInfo userInfo) {
+        final List<String> values = getValues(attribute);
+        if (values.isEmpty()) {
+            log.debug("Attribute {} has no values to map", attribute.getId());
+        } else {
+            writer.write(userInfo, values);
+        }
+    }
+
+    /**
+     * Gets the non-empty values of the attribute as strings.
+     *
+     * @param attribute the attribute
+     * @return the values
+     */
+    private static List<String> getValues(final IdPAttribute attribute) {
+        final List<IdPAttributeValue<?>> attributeValues = attribute.getValues();
+        if (attributeValues.size() == 1) {
+            final String value = toString(attributeValues.get(0));
+            return value != null ? Collections.singletonList(value) : Collections.<String>emptyList();
+        }
+        final List<String> values = new ArrayList<>(attributeValues.size());
+        for (final IdPAttributeValue<?> attributeValue : attributeValues) {
+            final String value = toString(attributeValue);
+            if (value != null) {
+                values.add(value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Convert the attribute value to a string.
+     *
+     * @param attributeValue the attribute value
+     * @return the string, or null for empty values
+     */
+    private static String toString(final IdPAttributeValue<?> attributeValue) {
+        if (attributeValue == null || attributeValue instanceof EmptyAttributeValue
+                || attributeValue.getValue() == null) {
+            return null;
+        }
+        return attributeValue.getValue().toString();
+    }
+
+    /**
+     * Compile the mapping table. Standard claims are mapped from the
+     * attribute of the same name, then the given mappings are applied.
+     *
+     * @param mappings the mappings
+     * @return the table
+     */
+    private ClaimTable compile(final Map<String, String> mappings) {
+        final Map<String, ClaimWriter> compiled = new LinkedHashMap<>();
+        for (final StandardClaim claim : StandardClaim.values()) {
+            compiled.put(claim.getClaimName(), new StandardClaimWriter(claim));
+        }
+        if (mappings != null) {
+            for (final Map.Entry<String, String> mapping : mappings.entrySet()) {
+                final String spec = Strings.nullToEmpty(mapping.getValue()).trim();
+                if (spec.isEmpty()) {
+                    compiled.remove(mapping.getKey());
+                } else {
+                    compiled.put(mapping.getKey(), compile(mapping.getKey(), spec));
+                }
+            }
+        }
+        return new ClaimTable(compiled);
+    }
+
+    /**
+     * Compile a single mapping.
+     *
+     * @param attributeId the attribute id
+     * @param spec        the claim name, with an optional type suffix
+     * @return the claim writer
+     */
+    private ClaimWriter compile(final String attributeId, final String spec) {
+        final int separator = spec.lastIndexOf(':');
+        final String claimName = separator > 0 ? spec.substring(0, separator) : spec;
+        final ClaimType type = separator > 0 ? ClaimType.forName(spec.substring(separator + 1)) : ClaimType.STRING;
+        if (type == null) {
+            throw new IllegalArgumentException("Unknown type in claim mapping " + spec + " for " + attributeId);
+        }
+
+        final StandardClaim standardClaim = StandardClaim.forName(claimName);
+        if (standardClaim != null) {
+            if (separator > 0) {
+                log.warn("Type of standard claim {} mapped from {} is fixed; {} is ignored",
+                        claimName, attributeId, spec);
+            }
+            return new StandardClaimWriter(standardClaim);
+        }
+        return new CustomClaimWriter(claimName, type);
+    }
+
+    /**
+     * The compiled mapping table. Each mapped attribute id has a fixed
+     * ordinal that indexes its claim writer.
+     */
+    static final class ClaimTable {
+        /**
+         * Ordinals keyed by attribute id.
+         */
+        private final Map<String, Integer> ordinals;
+
+        /**
+         * Claim writers by ordinal.
+         */
+        private final ClaimWriter[] writers;
+
+        /**
+         * Instantiates a new claim table.
+         *
+         * @param compiled the claim writers keyed by attribute id, in ordinal order
+         */
+        ClaimTable(final Map<String, ClaimWriter> compiled) {
+            final Map<String, Integer> ids = new HashMap<>(compiled.size() * 2);
+            this.writers = new ClaimWriter[compiled.size()];
+            int ordinal = 0;
+            for (final Map.Entry<String, ClaimWriter> entry : compiled.entrySet()) {
+                ids.put(entry.getKey(), ordinal);
+                writers[ordinal++] = entry.getValue();
+            }
+            this.ordinals = ids;
+        }
+
+        /**
+         * Gets the ordinal of the attribute.
+         *
+         * @param attributeId the attribute id
+         * @return the ordinal, or null if the attribute is not mapped
+         */
+        Integer getOrdinal(final String attributeId) {
+            return ordinals.get(attributeId);
+        }
+
+        /**
+         * Number of mapped attributes.
+         *
+         * @return the size
+         */
+        int size() {
+            return writers.length;
+        }
+    }
+
+    /**
+     * The type a custom claim value is coerced to.
+     */
+    enum ClaimType {
+        /** A string, or an array of strings for multi-valued attributes. */
+        STRING,
+        /** Always an array of strings. */
+        ARRAY,
+        /** A boolean. */
+        BOOLEAN,
+        /** A number. */
+        NUMBER;
+
+        /**
+         * Gets the type of the given name.
+         *
+         * @param name the name
+         * @return the type, or null
+         */
+        static ClaimType forName(final String name) {
+            for (final ClaimType type : values()) {
+                if (type.name().equalsIgnoreCase(name.trim())) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Writes attribute values into the user info.
+     */
+    interface ClaimWriter {
+        /**
+         * Write the values.
+         *
+         * @param userInfo the user info
+         * @param values   the non-empty values
+         */
+        void write(ShibbolethUserInfo userInfo, List<String> values);
+    }
+
+    /**
+     * Writes a standard claim through its user info setter.
+     */
+    private static final class StandardClaimWriter implements ClaimWriter {
+        /**
+         * The claim.
+         */
+        private final StandardClaim claim;
+
+        /**
+         * Instantiates a new standard claim writer.
+         *
+         * @param standardClaim the standard claim
+         */
+        StandardClaimWriter(final StandardClaim standardClaim) {
+            this.claim = standardClaim;
+        }
+
+        @Override
+        public void write(final ShibbolethUserInfo userInfo, final List<String> values) {
+            claim.write(userInfo, values.get(0));
+        }
+    }
+
+    /**
+     * Writes a custom claim, coercing the values to the claim type.
+     */
+    private static final class CustomClaimWriter implements ClaimWriter {
+        /**
+         * The claim name.
+         */
+        private final String claimName;
+
+        /**
+         * The claim type.
+         */
+        private final ClaimType type;
+
+        /**
+         * Instantiates a new custom claim writer.
+         *
+         * @param name      the claim name
+         * @param claimType the claim type
+         */
+        CustomClaimWriter(final String name, final ClaimType claimType) {
+            this.claimName = name;
+            this.type = claimType;
+        }
+
+        @Override
+        public void write(final ShibbolethUserInfo userInfo, final List<String> values) {
+            switch (type) {
+                case BOOLEAN:
+                    userInfo.setCustomClaim(claimName, Boolean.valueOf(values.get(0)));
+                    break;
+                case NUMBER:
+                    userInfo.setCustomClaim(claimName, toNumber(values.get(0)));
+                    break;
+                case ARRAY:
+                    userInfo.setCustomClaim(claimName, new ArrayList<>(values));
+                    break;
+                default:
+                    userInfo.setCustomClaim(claimName, values.size() == 1 ? values.get(0) : new ArrayList<>(values));
+            }
+        }
+
+        /**
+         * Convert the value to a number, keeping the string if it is not numeric.
+         *
+         * @param value the value
+         * @return the number
+         */
+        private static Object toNumber(final String value) {
+            try {
+                return Long.valueOf(value);
+            } catch (final NumberFormatException e) {
+                try {
+                    return Double.valueOf(value);
+                } catch (final NumberFormatException ex) {
+                    return value;
+                }
+            }
+        }
+    }
+}
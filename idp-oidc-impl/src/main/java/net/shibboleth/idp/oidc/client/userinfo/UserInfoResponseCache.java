@@ -0,0 +1,380 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import net.shibboleth.idp.oidc.client.userinfo.authn.CacheKeyIndex;
+import net.shibboleth.idp.oidc.client.userinfo.authn.TokenHashing;
+import net.shibboleth.idp.oidc.client.userinfo.authn.TokenRevocationListener;
+import org.mitre.oauth2.model.OAuth2AccessTokenEntity;
+import org.mitre.oauth2.model.OAuth2RefreshTokenEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opt-in cache of rendered userinfo responses, keyed by the hash of
+ * the access token and the requested variant of the response. Entries
+ * live for a short, configured time but never past the expiration of
+ * the token, and are evicted when the token is revoked. The cache is
+ * bounded by the total size of the cached responses. Responses are
+ * indexed by token and by refresh token, so that revoking either
+ * evicts its responses without scanning the cache.
+ */
+@Component("userInfoResponseCache")
+public class UserInfoResponseCache implements TokenRevocationListener {
+
+    /**
+     * Approximate overhead of an entry, in bytes.
+     */
+    private static final int ENTRY_OVERHEAD = 256;
+
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(UserInfoResponseCache.class);
+
+    /**
+     * Whether responses are cached.
+     */
+    @Value("%{oidc.userinfo.cache.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * How long a response is cached, in seconds.
+     */
+    @Value("%{oidc.userinfo.cache.ttl:60}")
+    private long timeToLive;
+
+    /**
+     * Maximum total size of the cached responses, in bytes.
+     */
+    @Value("%{oidc.userinfo.cache.maxbytes:16777216}")
+    private long maximumBytes;
+
+    /**
+     * The cached responses.
+     */
+    private Cache<CacheKey, CachedResponse> responses;
+
+    /**
+     * The keys of the cached responses, by token hash.
+     */
+    private final CacheKeyIndex<String, CacheKey> keysByToken = new CacheKeyIndex<>();
+
+    /**
+     * The keys of the cached responses, by the id of the refresh token the access token was issued from.
+     */
+    private final CacheKeyIndex<Long, CacheKey> keysByRefreshToken = new CacheKeyIndex<>();
+
+    /**
+     * Number of requests answered from the cache.
+     */
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /**
+     * Number of requests not answered from the cache.
+     */
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Initialize the cache.
+     */
+    @PostConstruct
+    public void initialize() {
+        this.responses = CacheBuilder.newBuilder()
+                .maximumWeight(maximumBytes)
+                .weigher(new Weigher<CacheKey, CachedResponse>() {
+                    @Override
+                    public int weigh(final CacheKey key, final CachedResponse value) {
+                        return ENTRY_OVERHEAD + key.variant.length() + value.content.length;
+                    }
+                })
+                .expireAfterWrite(timeToLive, TimeUnit.SECONDS)
+                .removalListener(new RemovalListener<CacheKey, CachedResponse>() {
+                    @Override
+                    public void onRemoval(final RemovalNotification<CacheKey, CachedResponse> notification) {
+                        if (notification.getCause() != RemovalCause.REPLACED) {
+                            keysByToken.remove(notification.getKey().tokenHash, notification.getKey());
+                            keysByRefreshToken.remove(notification.getValue().refreshTokenId, notification.getKey());
+                        }
+                    }
+                })
+                .recordStats()
+                .build();
+        log.debug("Userinfo response cache is {}", enabled ? "enabled" : "disabled");
+    }
+
+    /**
+     * Sets whether responses are cached.
+     *
+     * @param flag the flag
+     */
+    public void setEnabled(final boolean flag) {
+        this.enabled = flag;
+    }
+
+    /**
+     * Sets how long a response is cached, in seconds.
+     *
+     * @param seconds the seconds
+     */
+    public void setTimeToLive(final long seconds) {
+        this.timeToLive = seconds;
+    }
+
+    /**
+     * Sets the maximum total size of the cached responses, in bytes.
+     *
+     * @param bytes the bytes
+     */
+    public void setMaximumBytes(final long bytes) {
+        this.maximumBytes = bytes;
+    }
+
+    /**
+     * Whether responses are cached.
+     *
+     * @return true if enabled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Builds the cache key of a userinfo request.
+     *
+     * @param tokenValue the access token value
+     * @param accept     the accept header, or null
+     * @param claims     the claims request parameter, or null
+     * @return the cache key
+     */
+    public CacheKey newKey(final String tokenValue, final String accept, final String claims) {
+        return new CacheKey(TokenHashing.hash(tokenValue).toString(),
+                Strings.nullToEmpty(accept) + '\n' + Strings.nullToEmpty(claims));
+    }
+
+    /**
+     * Gets the cached response.
+     *
+     * @param key the key
+     * @return the response, or null if none is cached or the token has expired since
+     */
+    public CachedResponse get(final CacheKey key) {
+        final CachedResponse response = responses.getIfPresent(key);
+        if (response == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        if (response.expiresAt <= System.currentTimeMillis()) {
+            responses.invalidate(key);
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        return response;
+    }
+
+    /**
+     * Caches the response rendered for the token.
+     *
+     * @param key         the key
+     * @param token       the access token the response was rendered for
+     * @param content     the content
+     * @param contentType the content type
+     */
+    public void put(final CacheKey key, final OAuth2AccessTokenEntity token,
+                    final byte[] content, final String contentType) {
+        long expiresAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeToLive);
+        if (token.getExpiration() != null) {
+            expiresAt = Math.min(expiresAt, token.getExpiration().getTime());
+        }
+        final Long refreshTokenId = token.getRefreshToken() != null ? token.getRefreshToken().getId() : null;
+        if (token.getRefreshToken() != null && refreshTokenId == null) {
+            // the refresh token is still being written behind; its id is not known yet
+            return;
+        }
+        keysByToken.put(key.tokenHash, key);
+        keysByRefreshToken.put(refreshTokenId, key);
+        responses.put(key, new CachedResponse(content, contentType, expiresAt, refreshTokenId));
+    }
+
+    @Override
+    public void accessTokenRevoked(final OAuth2AccessTokenEntity token) {
+        responses.invalidateAll(keysByToken.removeAll(TokenHashing.hash(token.getValue()).toString()));
+    }
+
+    @Override
+    public void accessTokensRevoked(final OAuth2RefreshTokenEntity refreshToken) {
+        if (refreshToken.getId() != null) {
+            responses.invalidateAll(keysByRefreshToken.removeAll(refreshToken.getId()));
+        }
+    }
+
+    @Override
+    public void refreshTokenRevoked(final OAuth2RefreshTokenEntity refreshToken) {
+        // the access tokens issued from it are reported separately
+    }
+
+    /**
+     * Number of requests answered from the cache.
+     *
+     * @return the hit count
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Number of requests not answered from the cache.
+     *
+     * @return the miss count
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Number of responses evicted to stay within the size budget or because they expired.
+     *
+     * @return the eviction count
+     */
+    public long getEvictionCount() {
+        return responses.stats().evictionCount();
+    }
+
+    /**
+     * Number of cached responses.
+     *
+     * @return the size
+     */
+    public long getSize() {
+        return responses.size();
+    }
+
+    /**
+     * Identifies a cached response.
+     */
+    public static final class CacheKey {
+        /**
+         * The hash of the access token.
+         */
+        private final String tokenHash;
+
+        /**
+         * The requested variant of the response.
+         */
+        private final String variant;
+
+        /**
+         * Instantiates a new cache key.
+         *
+         * @param hash           the token hash
+         * @param requestVariant the requested variant
+         */
+        CacheKey(final String hash, final String requestVariant) {
+            this.tokenHash = hash;
+            this.variant = requestVariant;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            final CacheKey that = (CacheKey) o;
+            return tokenHash.equals(that.tokenHash) && variant.equals(that.variant);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * tokenHash.hashCode() + variant.hashCode();
+        }
+    }
+
+    /**
+     * A rendered userinfo response.
+     */
+    public static final class CachedResponse {
+        /**
+         * The Content.
+         */
+        private final byte[] content;
+
+        /**
+         * The Content type.
+         */
+        private final String contentType;
+
+        /**
+         * When the response expires, in milliseconds.
+         */
+        private final long expiresAt;
+
+        /**
+         * Id of the refresh token the access token was issued from, or null.
+         */
+        private final Long refreshTokenId;
+
+        /**
+         * Instantiates a new cached response.
+         *
+         * @param body      the body
+         * @param type      the content type
+         * @param expiry    the expiry
+         * @param refreshId the refresh token id
+         */
+        CachedResponse(final byte[] body, final String type, final long expiry, final Long refreshId) {
+            this.content = body;
+            this.contentType = type;
+            this.expiresAt = expiry;
+            this.refreshTokenId = refreshId;
+        }
+
+        /**
+         * Gets content.
+         *
+         * @return the content
+         */
+        public byte[] getContent() {
+            return content;
+        }
+
+        /**
+         * Gets content type.
+         *
+         * @return the content type
+         */
+        public String getContentType() {
+            return contentType;
+        }
+    }
+}
@@ -17,11 +17,17 @@
 package net.shibboleth.idp.oidc.client.userinfo.authn;
 
 import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
 
 /**
  * The type Authentication class ref authority.
  */
 public class AuthenticationClassRefAuthority implements GrantedAuthority {
+    /**
+     * Prefix of the persisted form of this authority.
+     */
+    public static final String PREFIX = AuthenticationClassRefAuthority.class.getSimpleName() + ',';
+
     /**
      * The Authority.
      */
@@ -43,7 +49,34 @@ public class AuthenticationClassRefAuthority implements GrantedAuthority {
 
     @Override
     public String toString() {
-        return getClass().getSimpleName() + ',' + this.authority;
+        return PREFIX + this.authority;
+    }
+
+    /**
+     * Converts this authority into the form MitreID persists.
+     *
+     * @return the simple granted authority
+     */
+    public SimpleGrantedAuthority toSimpleGrantedAuthority() {
+        return new SimpleGrantedAuthority(toString());
+    }
+
+    /**
+     * Gets the authentication class ref carried by the authority, in memory
+     * or in its persisted form.
+     *
+     * @param authority the authority
+     * @return the authentication class ref, or null if the authority does not carry one
+     */
+    public static String getValue(final GrantedAuthority authority) {
+        if (authority instanceof AuthenticationClassRefAuthority) {
+            return ((AuthenticationClassRefAuthority) authority).getAuthority();
+        }
+        final String typeAndValue = authority.getAuthority();
+        if (typeAndValue == null || !typeAndValue.startsWith(PREFIX)) {
+            return null;
+        }
+        return typeAndValue.substring(PREFIX.length());
     }
 
     /**
@@ -53,12 +86,8 @@ public class AuthenticationClassRefAuthority implements GrantedAuthority {
      * @return the authentication class ref authority
      */
     public static AuthenticationClassRefAuthority getAuthenticationClassRefAuthority(final GrantedAuthority authority) {
-        final String typeAndRole = authority.toString();
-        if (typeAndRole.contains(AuthenticationClassRefAuthority.class.getSimpleName())) {
-            final String role = typeAndRole.split(",")[1];
-            return new AuthenticationClassRefAuthority(role);
-        }
-        return null;
+        final String role = getValue(authority);
+        return role != null ? new AuthenticationClassRefAuthority(role) : null;
     }
 
 }
@@ -17,11 +17,17 @@
 package net.shibboleth.idp.oidc.client.userinfo.authn;
 
 import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
 
 /**
  * The type Authentication method ref authority.
  */
 public class AuthenticationMethodRefAuthority implements GrantedAuthority {
+    /**
+     * Prefix of the persisted form of this authority.
+     */
+    public static final String PREFIX = AuthenticationMethodRefAuthority.class.getSimpleName() + ',';
+
     /**
      * The Authority.
      */
@@ -43,7 +49,34 @@ public class AuthenticationMethodRefAuthority implements GrantedAuthority {
 
     @Override
     public String toString() {
-        return getClass().getSimpleName() + ',' + this.authority;
+        return PREFIX + this.authority;
+    }
+
+    /**
+     * Converts this authority into the form MitreID persists.
+     *
+     * @return the simple granted authority
+     */
+    public SimpleGrantedAuthority toSimpleGrantedAuthority() {
+        return new SimpleGrantedAuthority(toString());
+    }
+
+    /**
+     * Gets the authentication method ref carried by the authority, in memory
+     * or in its persisted form.
+     *
+     * @param authority the authority
+     * @return the authentication method ref, or null if the authority does not carry one
+     */
+    public static String getValue(final GrantedAuthority authority) {
+        if (authority instanceof AuthenticationMethodRefAuthority) {
+            return ((AuthenticationMethodRefAuthority) authority).getAuthority();
+        }
+        final String typeAndValue = authority.getAuthority();
+        if (typeAndValue == null || !typeAndValue.startsWith(PREFIX)) {
+            return null;
+        }
+        return typeAndValue.substring(PREFIX.length());
     }
 
     /**
@@ -54,11 +87,7 @@ public class AuthenticationMethodRefAuthority implements GrantedAuthority {
      */
     public static AuthenticationMethodRefAuthority getAuthenticationClassRefAuthority(
             final GrantedAuthority authority) {
-        final String typeAndRole = authority.toString();
-        if (typeAndRole.contains(AuthenticationMethodRefAuthority.class.getSimpleName())) {
-            final String role = typeAndRole.split(",")[1];
-            return new AuthenticationMethodRefAuthority(role);
-        }
-        return null;
+        final String role = getValue(authority);
+        return role != null ? new AuthenticationMethodRefAuthority(role) : null;
     }
 }
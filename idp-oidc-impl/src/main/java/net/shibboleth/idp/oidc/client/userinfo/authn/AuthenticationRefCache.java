@@ -0,0 +1,164 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.mitre.oauth2.model.AuthenticationHolderEntity;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Collection;
+
+/**
+ * Keeps the acr and amr values of saved authentication holders, keyed by
+ * holder id. MITREid persists authorities as plain strings, so the values
+ * of a holder are read out of its authorities once, when its first id token
+ * is issued, and every later token issued under the same holder, such as on
+ * refresh, reads them from here. A holder that is not saved yet is read
+ * directly.
+ */
+@Component("authenticationRefCache")
+public class AuthenticationRefCache {
+
+    /**
+     * Values of a holder without acr and amr authorities.
+     */
+    private static final AuthenticationRefs NONE = new AuthenticationRefs(null, null);
+
+    /**
+     * Maximum number of holders kept.
+     */
+    @Value("%{oidc.tokens.authn.refs.cache.size:10000}")
+    private int cacheSize;
+
+    /**
+     * Values keyed by holder id.
+     */
+    private Cache<Long, AuthenticationRefs> refs;
+
+    /**
+     * Initialize the cache.
+     */
+    @PostConstruct
+    public void initialize() {
+        this.refs = CacheBuilder.newBuilder().maximumSize(cacheSize).build();
+    }
+
+    /**
+     * Sets the maximum number of holders kept.
+     *
+     * @param size the size
+     */
+    public void setCacheSize(final int size) {
+        this.cacheSize = size;
+    }
+
+    /**
+     * Gets the acr and amr values of the holder.
+     *
+     * @param holder the holder
+     * @return the values
+     */
+    public AuthenticationRefs get(final AuthenticationHolderEntity holder) {
+        if (holder.getId() == null) {
+            return read(holder);
+        }
+        AuthenticationRefs values = refs.getIfPresent(holder.getId());
+        if (values == null) {
+            values = read(holder);
+            refs.put(holder.getId(), values);
+        }
+        return values;
+    }
+
+    /**
+     * Read the values out of the authorities of the holder's user authentication,
+     * or of its request if it has none. The last value of each kind wins.
+     *
+     * @param holder the holder
+     * @return the values
+     */
+    private static AuthenticationRefs read(final AuthenticationHolderEntity holder) {
+        final Collection<? extends GrantedAuthority> authorities = holder.getUserAuth() != null
+                ? holder.getUserAuth().getAuthorities() : holder.getAuthorities();
+        if (authorities == null) {
+            return NONE;
+        }
+        String acr = null;
+        String amr = null;
+        for (final GrantedAuthority authority : authorities) {
+            final String classRef = AuthenticationClassRefAuthority.getValue(authority);
+            if (classRef != null) {
+                acr = classRef;
+                continue;
+            }
+            final String methodRef = AuthenticationMethodRefAuthority.getValue(authority);
+            if (methodRef != null) {
+                amr = methodRef;
+            }
+        }
+        return acr == null && amr == null ? NONE : new AuthenticationRefs(acr, amr);
+    }
+
+    /**
+     * The acr and amr values of a holder.
+     */
+    public static final class AuthenticationRefs {
+
+        /**
+         * The authentication class ref.
+         */
+        private final String acr;
+
+        /**
+         * The authentication method ref.
+         */
+        private final String amr;
+
+        /**
+         * Instantiates new authentication refs.
+         *
+         * @param classRef  the authentication class ref, or null
+         * @param methodRef the authentication method ref, or null
+         */
+        AuthenticationRefs(final String classRef, final String methodRef) {
+            this.acr = classRef;
+            this.amr = methodRef;
+        }
+
+        /**
+         * Gets the authentication class ref.
+         *
+         * @return the acr, or null
+         */
+        public String getAcr() {
+            return acr;
+        }
+
+        /**
+         * Gets the authentication method ref.
+         *
+         * @return the amr, or null
+         */
+        public String getAmr() {
+            return amr;
+        }
+    }
+}
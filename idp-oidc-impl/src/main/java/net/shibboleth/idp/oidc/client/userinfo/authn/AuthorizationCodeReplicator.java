@@ -0,0 +1,44 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import org.mitre.oauth2.model.AuthorizationCodeEntity;
+
+/**
+ * Shares authorization codes kept in memory between the nodes of a cluster,
+ * so that a code issued by one node can be redeemed at another. Since a code
+ * must be redeemable exactly once across the cluster, every redemption goes
+ * through {@link #take(String)}, which has to remove the code atomically;
+ * the copy a node keeps locally never decides a redemption on its own.
+ */
+public interface AuthorizationCodeReplicator {
+
+    /**
+     * A code was issued by this node.
+     *
+     * @param code the code
+     */
+    void replicate(AuthorizationCodeEntity code);
+
+    /**
+     * Take the code from the cluster, so that no other node can redeem it.
+     *
+     * @param code the code value
+     * @return the code, or null if no node has it or it was taken already
+     */
+    AuthorizationCodeEntity take(String code);
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multimaps;
+import com.google.common.collect.SetMultimap;
+
+import java.util.Set;
+
+/**
+ * Index of the keys of a cache by something the cached entries depend on,
+ * such as the token or the refresh token they were derived from, so that
+ * the entries can be evicted without scanning the cache. The cache removes
+ * keys from the index as it drops their entries; a key left behind by a
+ * race is harmless, as invalidating a key that is no longer cached does nothing.
+ *
+ * @param <G> the type of what the entries depend on
+ * @param <K> the key type
+ */
+public final class CacheKeyIndex<G, K> {
+
+    /**
+     * The keys.
+     */
+    private final SetMultimap<G, K> keys = Multimaps.synchronizedSetMultimap(HashMultimap.<G, K>create());
+
+    /**
+     * Index the key.
+     *
+     * @param group what the entry depends on, or null if nothing
+     * @param key   the key
+     */
+    public void put(final G group, final K key) {
+        if (group != null) {
+            keys.put(group, key);
+        }
+    }
+
+    /**
+     * Remove the key from the index.
+     *
+     * @param group what the entry depended on, or null if nothing
+     * @param key   the key
+     */
+    public void remove(final G group, final K key) {
+        if (group != null) {
+            keys.remove(group, key);
+        }
+    }
+
+    /**
+     * Remove the keys of the entries that depend on the group.
+     *
+     * @param group the group
+     * @return the keys
+     */
+    public Set<K> removeAll(final G group) {
+        return ImmutableSet.copyOf(keys.removeAll(group));
+    }
+
+    /**
+     * Number of keys indexed.
+     *
+     * @return the size
+     */
+    public int size() {
+        return keys.size();
+    }
+}
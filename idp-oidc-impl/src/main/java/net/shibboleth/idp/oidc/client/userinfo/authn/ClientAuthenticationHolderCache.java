@@ -0,0 +1,264 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import net.shibboleth.idp.oidc.config.OIDCConstants;
+import org.mitre.oauth2.model.AuthenticationHolderEntity;
+import org.mitre.oauth2.model.ClientDetailsEntity;
+import org.mitre.oauth2.repository.AuthenticationHolderRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the authentication holders of client-level tokens, such as
+ * registration and resource tokens, so that one holder per client and
+ * scope is saved and then shared by every token issued to that client
+ * with that scope. The holders kept here are leased in the
+ * {@code shared_authentication_holder} table, and the
+ * {@link ExpiredTokenPurgeService} of every node leaves a leased holder
+ * alone even while no token refers to it, which is the case for a moment
+ * whenever a token is rotated. A lease is renewed once half of it has
+ * passed and the holder is still in use. Holders of clients that are no
+ * longer registered are evicted by size, their leases run out, and they
+ * are then purged like any other orphaned holder.
+ */
+@Component("clientAuthenticationHolderCache")
+public class ClientAuthenticationHolderCache {
+
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(ClientAuthenticationHolderCache.class);
+
+    /**
+     * The Authentication holder repository.
+     */
+    @Autowired
+    private AuthenticationHolderRepository authenticationHolderRepository;
+
+    /**
+     * The data source.
+     */
+    @Resource(name = "dataSource")
+    private DataSource dataSource;
+
+    /**
+     * Maximum number of holders kept.
+     */
+    @Value("%{oidc.tokens.client.holder.cache.size:10000}")
+    private int cacheSize;
+
+    /**
+     * Seconds a holder is leased for.
+     */
+    @Value("%{oidc.tokens.client.holder.lease:86400}")
+    private long lease;
+
+    /**
+     * Holder ids keyed by client id and scope.
+     */
+    private Cache<List<Object>, Long> holders;
+
+    /**
+     * When the lease of each kept holder runs out, keyed by holder id.
+     */
+    private final ConcurrentMap<Long, Long> leases = new ConcurrentHashMap<>();
+
+    /**
+     * Holders saved.
+     */
+    private final AtomicLong createdCount = new AtomicLong();
+
+    /**
+     * Holders reused.
+     */
+    private final AtomicLong reusedCount = new AtomicLong();
+
+    /**
+     * Initialize the cache.
+     */
+    @PostConstruct
+    public void initialize() {
+        this.holders = CacheBuilder.newBuilder()
+                .maximumSize(cacheSize)
+                .removalListener(new RemovalListener<List<Object>, Long>() {
+                    @Override
+                    public void onRemoval(final RemovalNotification<List<Object>, Long> notification) {
+                        final Long id = notification.getValue();
+                        if (id != null && !holders.asMap().containsValue(id)) {
+                            leases.remove(id);
+                        }
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Sets authentication holder repository.
+     *
+     * @param repo the repo
+     */
+    public void setAuthenticationHolderRepository(final AuthenticationHolderRepository repo) {
+        this.authenticationHolderRepository = repo;
+    }
+
+    /**
+     * Sets data source.
+     *
+     * @param source the source
+     */
+    public void setDataSource(final DataSource source) {
+        this.dataSource = source;
+    }
+
+    /**
+     * Sets the maximum number of holders kept.
+     *
+     * @param size the size
+     */
+    public void setCacheSize(final int size) {
+        this.cacheSize = size;
+    }
+
+    /**
+     * Sets the seconds a holder is leased for.
+     *
+     * @param seconds the seconds
+     */
+    public void setLease(final long seconds) {
+        this.lease = seconds;
+    }
+
+    /**
+     * Gets the holder of the client's tokens with the given scope, saving
+     * a new one if none is kept or the one kept no longer exists. The
+     * holder's lease is taken or renewed as needed.
+     *
+     * @param client the client
+     * @param scope  the scope
+     * @return the holder
+     */
+    public AuthenticationHolderEntity getHolder(final ClientDetailsEntity client, final Set<String> scope) {
+        final List<Object> key = Arrays.<Object>asList(client.getClientId(), ImmutableSortedSet.copyOf(scope));
+        final Long id = holders.getIfPresent(key);
+        if (id != null) {
+            final AuthenticationHolderEntity holder = authenticationHolderRepository.getById(id);
+            if (holder != null) {
+                final Long leasedUntil = leases.get(id);
+                if (leasedUntil == null
+                        || leasedUntil - System.currentTimeMillis() < TimeUnit.SECONDS.toMillis(lease) / 2) {
+                    renewLease(id);
+                }
+                reusedCount.incrementAndGet();
+                return holder;
+            }
+            log.debug("Authentication holder {} of client {} no longer exists", id, client.getClientId());
+            holders.invalidate(key);
+        }
+
+        final OAuth2Request clientAuth = new OAuth2Request(Maps.<String, String>newHashMap(), client.getClientId(),
+                Sets.newHashSet(new SimpleGrantedAuthority(OIDCConstants.ROLE_CLIENT)), true,
+                scope, null, null, null, null);
+        AuthenticationHolderEntity holder = new AuthenticationHolderEntity();
+        holder.setAuthentication(new OAuth2Authentication(clientAuth, null));
+        holder = authenticationHolderRepository.save(holder);
+        createdCount.incrementAndGet();
+        if (holder.getId() != null) {
+            renewLease(holder.getId());
+            holders.put(key, holder.getId());
+        }
+        return holder;
+    }
+
+    /**
+     * Lease the holder for another period, in a transaction of its own so
+     * that every node sees the lease at once. A lease that could not be
+     * written is tried again the next time the holder is used.
+     *
+     * @param id the holder id
+     */
+    private void renewLease(final Long id) {
+        final long leasedUntil = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(lease);
+        try (final Connection connection = dataSource.getConnection()) {
+            int rows;
+            try (final PreparedStatement update = connection.prepareStatement(
+                    "UPDATE shared_authentication_holder SET leased_until = ? WHERE holder_id = ?")) {
+                update.setTimestamp(1, new Timestamp(leasedUntil));
+                update.setLong(2, id);
+                rows = update.executeUpdate();
+            }
+            if (rows == 0) {
+                try (final PreparedStatement insert = connection.prepareStatement(
+                        "INSERT INTO shared_authentication_holder (holder_id, leased_until) VALUES (?, ?)")) {
+                    insert.setLong(1, id);
+                    insert.setTimestamp(2, new Timestamp(leasedUntil));
+                    insert.executeUpdate();
+                }
+            }
+            leases.put(id, leasedUntil);
+        } catch (final SQLException e) {
+            leases.remove(id);
+            log.warn("Unable to lease authentication holder {}", id, e);
+        }
+    }
+
+    /**
+     * Gets the number of holders saved.
+     *
+     * @return the count
+     */
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    /**
+     * Gets the number of times a holder was reused.
+     *
+     * @return the count
+     */
+    public long getReusedCount() {
+        return reusedCount.get();
+    }
+}
@@ -0,0 +1,493 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes expired tokens and authorization codes, and authentication
+ * holders nothing refers to any more, straight from the database.
+ * Rows are found by walking the primary key in bounded chunks, each of
+ * which is deleted along with its collection rows in a short transaction
+ * of its own, with a pause between chunks. Neither locks nor memory are
+ * held for longer than a chunk, so purging can run on a node serving traffic.
+ * <p>
+ * An orphaned authentication holder is only deleted once it was already
+ * present on the previous run, as holders may be saved a moment before
+ * the token that refers to them. Holders leased by the
+ * {@link ClientAuthenticationHolderCache} of any node are not deleted
+ * until their lease runs out.
+ */
+@Component("expiredTokenPurgeService")
+public class ExpiredTokenPurgeService {
+
+    /**
+     * Expired access tokens.
+     */
+    private static final Purge ACCESS_TOKENS = new Purge("access_token",
+            "SELECT id FROM access_token WHERE id > ? AND expiration < ? ORDER BY id",
+            "DELETE FROM token_scope WHERE owner_id IN (%s)",
+            "DELETE FROM access_token_permissions WHERE access_token_id IN (%s)",
+            "DELETE FROM access_token WHERE id IN (%s)");
+
+    /**
+     * Expired refresh tokens.
+     */
+    private static final Purge REFRESH_TOKENS = new Purge("refresh_token",
+            "SELECT id FROM refresh_token WHERE id > ? AND expiration < ? ORDER BY id",
+            "DELETE FROM refresh_token WHERE id IN (%s)");
+
+    /**
+     * Expired authorization codes.
+     */
+    private static final Purge AUTHORIZATION_CODES = new Purge("authorization_code",
+            "SELECT id FROM authorization_code WHERE id > ? AND expiration < ? ORDER BY id",
+            "DELETE FROM authorization_code WHERE id IN (%s)");
+
+    /**
+     * Authentication holders no token or code refers to and no lease keeps, up to a given id.
+     */
+    private static final Purge AUTHENTICATION_HOLDERS = new Purge("authentication_holder",
+            "SELECT h.id FROM authentication_holder h WHERE h.id > ? AND h.id <= ?"
+                    + " AND NOT EXISTS (SELECT 1 FROM access_token t WHERE t.auth_holder_id = h.id)"
+                    + " AND NOT EXISTS (SELECT 1 FROM refresh_token r WHERE r.auth_holder_id = h.id)"
+                    + " AND NOT EXISTS (SELECT 1 FROM authorization_code c WHERE c.auth_holder_id = h.id)"
+                    + " AND NOT EXISTS (SELECT 1 FROM shared_authentication_holder s"
+                    + " WHERE s.holder_id = h.id AND s.leased_until > CURRENT_TIMESTAMP)"
+                    + " ORDER BY h.id",
+            "DELETE FROM saved_user_auth_authority WHERE owner_id IN"
+                    + " (SELECT user_auth_id FROM authentication_holder WHERE id IN (%s))",
+            "DELETE FROM saved_user_auth WHERE id IN"
+                    + " (SELECT user_auth_id FROM authentication_holder WHERE id IN (%s))",
+            "DELETE FROM authentication_holder_authority WHERE owner_id IN (%s)",
+            "DELETE FROM authentication_holder_resource_id WHERE owner_id IN (%s)",
+            "DELETE FROM authentication_holder_response_type WHERE owner_id IN (%s)",
+            "DELETE FROM authentication_holder_extension WHERE owner_id IN (%s)",
+            "DELETE FROM authentication_holder_scope WHERE owner_id IN (%s)",
+            "DELETE FROM authentication_holder_request_parameter WHERE owner_id IN (%s)",
+            "DELETE FROM shared_authentication_holder WHERE holder_id IN (%s)",
+            "DELETE FROM authentication_holder WHERE id IN (%s)");
+
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(ExpiredTokenPurgeService.class);
+
+    /**
+     * The data source.
+     */
+    @Resource(name = "dataSource")
+    private DataSource dataSource;
+
+    /**
+     * Whether purging is scheduled.
+     */
+    @Value("%{oidc.purge.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * Seconds between purge runs.
+     */
+    @Value("%{oidc.purge.interval:300}")
+    private long interval;
+
+    /**
+     * Maximum number of rows of a table deleted per transaction.
+     */
+    @Value("%{oidc.purge.chunk.size:500}")
+    private int chunkSize;
+
+    /**
+     * Pause between chunks, in milliseconds.
+     */
+    @Value("%{oidc.purge.chunk.pause:200}")
+    private long chunkPause;
+
+    /**
+     * Statistics, keyed by table.
+     */
+    private final Map<String, PurgeStatistics> statistics;
+
+    /**
+     * Highest authentication holder id seen on the previous run, or zero.
+     */
+    private long holderWatermark;
+
+    /**
+     * The scheduler.
+     */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Instantiates a new expired token purge service.
+     */
+    public ExpiredTokenPurgeService() {
+        final Map<String, PurgeStatistics> stats = new LinkedHashMap<>();
+        for (final Purge purge : ImmutableList.of(ACCESS_TOKENS, REFRESH_TOKENS,
+                AUTHORIZATION_CODES, AUTHENTICATION_HOLDERS)) {
+            stats.put(purge.table, new PurgeStatistics());
+        }
+        this.statistics = Collections.unmodifiableMap(stats);
+    }
+
+    /**
+     * Schedule purging, if enabled.
+     */
+    @PostConstruct
+    public void initialize() {
+        if (!enabled) {
+            return;
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "oidc-token-purge");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    purge();
+                } catch (final RuntimeException e) {
+                    log.warn("Purging expired tokens failed", e);
+                }
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop the scheduler.
+     */
+    @PreDestroy
+    public void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Sets data source.
+     *
+     * @param source the source
+     */
+    public void setDataSource(final DataSource source) {
+        this.dataSource = source;
+    }
+
+    /**
+     * Sets whether purging is scheduled.
+     *
+     * @param purge the purge
+     */
+    public void setEnabled(final boolean purge) {
+        this.enabled = purge;
+    }
+
+    /**
+     * Sets the seconds between purge runs.
+     *
+     * @param seconds the seconds
+     */
+    public void setInterval(final long seconds) {
+        this.interval = seconds;
+    }
+
+    /**
+     * Sets the maximum number of rows deleted per transaction.
+     *
+     * @param size the size
+     */
+    public void setChunkSize(final int size) {
+        this.chunkSize = size;
+    }
+
+    /**
+     * Sets the pause between chunks, in milliseconds.
+     *
+     * @param millis the millis
+     */
+    public void setChunkPause(final long millis) {
+        this.chunkPause = millis;
+    }
+
+    /**
+     * Gets the statistics, keyed by table.
+     *
+     * @return the statistics
+     */
+    public Map<String, PurgeStatistics> getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Purge expired tokens and codes, then orphaned authentication holders.
+     */
+    public synchronized void purge() {
+        final Timestamp now = new Timestamp(System.currentTimeMillis());
+        purge(ACCESS_TOKENS, now);
+        purge(REFRESH_TOKENS, now);
+        purge(AUTHORIZATION_CODES, now);
+
+        final long watermark = holderWatermark;
+        try {
+            this.holderWatermark = selectMaxHolderId();
+        } catch (final SQLException e) {
+            log.warn("Unable to read the highest authentication holder id", e);
+            return;
+        }
+        if (watermark > 0) {
+            purge(AUTHENTICATION_HOLDERS, watermark);
+        }
+    }
+
+    /**
+     * Delete the rows the purge selects, chunk by chunk.
+     *
+     * @param purge the purge
+     * @param bound the second parameter of the select
+     */
+    private void purge(final Purge purge, final Object bound) {
+        final PurgeStatistics stats = statistics.get(purge.table);
+        final long start = System.currentTimeMillis();
+        long lastId = 0;
+        long deleted = 0;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                final List<Long> ids = deleteChunk(purge, lastId, bound);
+                if (ids.isEmpty()) {
+                    break;
+                }
+                deleted += ids.size();
+                stats.chunks.incrementAndGet();
+                stats.rows.addAndGet(ids.size());
+                lastId = ids.get(ids.size() - 1);
+                if (ids.size() < chunkSize) {
+                    break;
+                }
+                Thread.sleep(chunkPause);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final SQLException e) {
+            stats.failures.incrementAndGet();
+            log.warn("Unable to purge {} after id {}", purge.table, lastId, e);
+        }
+        stats.lastDuration.set(System.currentTimeMillis() - start);
+        stats.lastRun.set(start);
+        if (deleted > 0) {
+            log.info("Purged {} rows of {} in {} ms", deleted, purge.table, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Select the next chunk of ids after the given one and delete them in one transaction.
+     *
+     * @param purge  the purge
+     * @param lastId the last id deleted so far
+     * @param bound  the second parameter of the select
+     * @return the ids deleted, in order
+     * @throws SQLException the sql exception
+     */
+    private List<Long> deleteChunk(final Purge purge, final long lastId, final Object bound) throws SQLException {
+        try (final Connection connection = dataSource.getConnection()) {
+            final boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                final List<Long> ids = new ArrayList<>(chunkSize);
+                try (final PreparedStatement select = connection.prepareStatement(purge.select)) {
+                    select.setMaxRows(chunkSize);
+                    select.setLong(1, lastId);
+                    select.setObject(2, bound);
+                    try (final ResultSet rs = select.executeQuery()) {
+                        while (rs.next()) {
+                            ids.add(rs.getLong(1));
+                        }
+                    }
+                }
+                if (!ids.isEmpty()) {
+                    final String idList = Joiner.on(',').join(ids);
+                    try (final Statement delete = connection.createStatement()) {
+                        for (final String statement : purge.deletes) {
+                            delete.executeUpdate(String.format(statement, idList));
+                        }
+                    }
+                }
+                connection.commit();
+                return ids;
+            } catch (final SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
+    /**
+     * Select the highest authentication holder id.
+     *
+     * @return the id, or zero if there are no holders
+     * @throws SQLException the sql exception
+     */
+    private long selectMaxHolderId() throws SQLException {
+        try (final Connection connection = dataSource.getConnection();
+             final Statement statement = connection.createStatement();
+             final ResultSet rs = statement.executeQuery("SELECT MAX(id) FROM authentication_holder")) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * Counters of a table's purges.
+     */
+    public static final class PurgeStatistics {
+
+        /**
+         * Number of rows deleted.
+         */
+        private final AtomicLong rows = new AtomicLong();
+
+        /**
+         * Number of chunks deleted.
+         */
+        private final AtomicLong chunks = new AtomicLong();
+
+        /**
+         * Number of runs that failed.
+         */
+        private final AtomicLong failures = new AtomicLong();
+
+        /**
+         * When the last run started.
+         */
+        private final AtomicLong lastRun = new AtomicLong();
+
+        /**
+         * How long the last run took, in milliseconds.
+         */
+        private final AtomicLong lastDuration = new AtomicLong();
+
+        /**
+         * Gets the number of rows deleted.
+         *
+         * @return the rows
+         */
+        public long getRows() {
+            return rows.get();
+        }
+
+        /**
+         * Gets the number of chunks deleted.
+         *
+         * @return the chunks
+         */
+        public long getChunks() {
+            return chunks.get();
+        }
+
+        /**
+         * Gets the number of runs that failed.
+         *
+         * @return the failures
+         */
+        public long getFailures() {
+            return failures.get();
+        }
+
+        /**
+         * Gets when the last run started.
+         *
+         * @return the last run, in milliseconds since the epoch
+         */
+        public long getLastRun() {
+            return lastRun.get();
+        }
+
+        /**
+         * Gets how long the last run took.
+         *
+         * @return the last duration, in milliseconds
+         */
+        public long getLastDuration() {
+            return lastDuration.get();
+        }
+    }
+
+    /**
+     * The statements that select and delete a table's rows.
+     */
+    private static final class Purge {
+
+        /**
+         * The table.
+         */
+        private final String table;
+
+        /**
+         * The select of the next ids, taking the last id and a bound.
+         */
+        private final String select;
+
+        /**
+         * The deletes, in order, each taking the list of ids.
+         */
+        private final List<String> deletes;
+
+        /**
+         * Instantiates a new purge.
+         *
+         * @param tableName  the table name
+         * @param selectIds  the select
+         * @param deleteRows the deletes
+         */
+        Purge(final String tableName, final String selectIds, final String... deleteRows) {
+            this.table = tableName;
+            this.select = selectIds;
+            this.deletes = ImmutableList.copyOf(deleteRows);
+        }
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import org.mitre.oauth2.model.OAuth2AccessTokenEntity;
+import org.mitre.oauth2.model.OAuth2RefreshTokenEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of token introspection results, keyed by the hash of the token
+ * and the client asking. Results for active tokens are kept for a short,
+ * configured time but never past the expiration of the token; results
+ * for inactive or unknown tokens are kept for a shorter time still, so that
+ * repeated requests for them do not reach the database. Results are
+ * dropped as soon as their token is revoked, found by the token and
+ * refresh token indexes rather than by scanning the cache.
+ */
+@Component("introspectionResultCache")
+public class IntrospectionResultCache implements TokenRevocationListener {
+
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(IntrospectionResultCache.class);
+
+    /**
+     * Whether results are cached.
+     */
+    @Value("%{oidc.introspection.cache.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * How long the result for an active token is cached, in seconds.
+     */
+    @Value("%{oidc.introspection.cache.ttl:60}")
+    private long timeToLive;
+
+    /**
+     * How long the result for an inactive token is cached, in seconds.
+     */
+    @Value("%{oidc.introspection.cache.inactive.ttl:5}")
+    private long inactiveTimeToLive;
+
+    /**
+     * Maximum number of cached results.
+     */
+    @Value("%{oidc.introspection.cache.size:10000}")
+    private int cacheSize;
+
+    /**
+     * The cached results.
+     */
+    private Cache<CacheKey, CachedResult> results;
+
+    /**
+     * The keys of the cached results, by token hash.
+     */
+    private final CacheKeyIndex<String, CacheKey> keysByToken = new CacheKeyIndex<>();
+
+    /**
+     * The keys of the cached results, by the id of the refresh token they depend on.
+     */
+    private final CacheKeyIndex<Long, CacheKey> keysByRefreshToken = new CacheKeyIndex<>();
+
+    /**
+     * Number of requests answered from the cache.
+     */
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /**
+     * Number of requests not answered from the cache.
+     */
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Initialize the cache.
+     */
+    @PostConstruct
+    public void initialize() {
+        this.results = CacheBuilder.newBuilder()
+                .maximumSize(cacheSize)
+                .expireAfterWrite(Math.max(timeToLive, inactiveTimeToLive), TimeUnit.SECONDS)
+                .removalListener(new RemovalListener<CacheKey, CachedResult>() {
+                    @Override
+                    public void onRemoval(final RemovalNotification<CacheKey, CachedResult> notification) {
+                        if (notification.getCause() != RemovalCause.REPLACED) {
+                            keysByToken.remove(notification.getKey().tokenHash, notification.getKey());
+                            keysByRefreshToken.remove(notification.getValue().refreshTokenId, notification.getKey());
+                        }
+                    }
+                })
+                .build();
+        log.debug("Introspection result cache is {}", enabled ? "enabled" : "disabled");
+    }
+
+    /**
+     * Sets whether results are cached.
+     *
+     * @param flag the flag
+     */
+    public void setEnabled(final boolean flag) {
+        this.enabled = flag;
+    }
+
+    /**
+     * Sets how long the result for an active token is cached, in seconds.
+     *
+     * @param seconds the seconds
+     */
+    public void setTimeToLive(final long seconds) {
+        this.timeToLive = seconds;
+    }
+
+    /**
+     * Sets how long the result for an inactive token is cached, in seconds.
+     *
+     * @param seconds the seconds
+     */
+    public void setInactiveTimeToLive(final long seconds) {
+        this.inactiveTimeToLive = seconds;
+    }
+
+    /**
+     * Sets the maximum number of cached results.
+     *
+     * @param size the size
+     */
+    public void setCacheSize(final int size) {
+        this.cacheSize = size;
+    }
+
+    /**
+     * Whether results are cached.
+     *
+     * @return true if enabled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Builds the cache key of an introspection request.
+     *
+     * @param tokenValue the token value
+     * @param clientId   the id of the client asking
+     * @return the cache key
+     */
+    public CacheKey newKey(final String tokenValue, final String clientId) {
+        return new CacheKey(TokenHashing.hash(tokenValue).toString(), clientId);
+    }
+
+    /**
+     * Gets the cached result.
+     *
+     * @param key the key
+     * @return the result, or null if none is cached or it has expired
+     */
+    public Map<String, Object> get(final CacheKey key) {
+        final CachedResult result = results.getIfPresent(key);
+        if (result == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        if (result.expiresAt <= System.currentTimeMillis()) {
+            results.invalidate(key);
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        return result.result;
+    }
+
+    /**
+     * Caches the result for an access token. Nothing is cached while the
+     * refresh token it was issued from waits to be written behind.
+     *
+     * @param key    the key
+     * @param token  the access token
+     * @param result the result
+     */
+    public void putActive(final CacheKey key, final OAuth2AccessTokenEntity token, final Map<String, Object> result) {
+        final Long refreshTokenId = token.getRefreshToken() != null ? token.getRefreshToken().getId() : null;
+        if (token.getRefreshToken() != null && refreshTokenId == null) {
+            return;
+        }
+        put(key, result, expiresAt(timeToLive, token.getExpiration()), refreshTokenId);
+    }
+
+    /**
+     * Caches the result for a refresh token, unless it waits to be written behind.
+     *
+     * @param key          the key
+     * @param refreshToken the refresh token
+     * @param result       the result
+     */
+    public void putActive(final CacheKey key, final OAuth2RefreshTokenEntity refreshToken,
+                          final Map<String, Object> result) {
+        if (refreshToken.getId() != null) {
+            put(key, result, expiresAt(timeToLive, refreshToken.getExpiration()), refreshToken.getId());
+        }
+    }
+
+    /**
+     * Caches the result for an inactive or unknown token.
+     *
+     * @param key    the key
+     * @param result the result
+     */
+    public void putInactive(final CacheKey key, final Map<String, Object> result) {
+        put(key, result, expiresAt(inactiveTimeToLive, null), null);
+    }
+
+    @Override
+    public void accessTokenRevoked(final OAuth2AccessTokenEntity token) {
+        results.invalidateAll(keysByToken.removeAll(TokenHashing.hash(token.getValue()).toString()));
+    }
+
+    @Override
+    public void accessTokensRevoked(final OAuth2RefreshTokenEntity refreshToken) {
+        if (refreshToken.getId() != null) {
+            results.invalidateAll(keysByRefreshToken.removeAll(refreshToken.getId()));
+        }
+    }
+
+    @Override
+    public void refreshTokenRevoked(final OAuth2RefreshTokenEntity refreshToken) {
+        // results that depend on the refresh token are dropped by accessTokensRevoked
+    }
+
+    /**
+     * Number of requests answered from the cache.
+     *
+     * @return the hit count
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Number of requests not answered from the cache.
+     *
+     * @return the miss count
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Number of cached results.
+     *
+     * @return the size
+     */
+    public long getSize() {
+        return results.size();
+    }
+
+    /**
+     * Cache the result.
+     *
+     * @param key            the key
+     * @param result         the result
+     * @param expiresAt      when the result expires
+     * @param refreshTokenId the id of the refresh token the result depends on, or null
+     */
+    private void put(final CacheKey key, final Map<String, Object> result, final long expiresAt,
+                     final Long refreshTokenId) {
+        keysByToken.put(key.tokenHash, key);
+        keysByRefreshToken.put(refreshTokenId, key);
+        results.put(key, new CachedResult(Collections.unmodifiableMap(result), expiresAt, refreshTokenId));
+    }
+
+    /**
+     * Calculate when a result expires.
+     *
+     * @param seconds    how long the result may be cached
+     * @param expiration the expiration of the token, or null
+     * @return the instant, in milliseconds
+     */
+    private static long expiresAt(final long seconds, final Date expiration) {
+        final long expiresAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(seconds);
+        return expiration != null ? Math.min(expiresAt, expiration.getTime()) : expiresAt;
+    }
+
+    /**
+     * Identifies a cached result.
+     */
+    public static final class CacheKey {
+        /**
+         * The hash of the token.
+         */
+        private final String tokenHash;
+
+        /**
+         * The id of the client asking.
+         */
+        private final String clientId;
+
+        /**
+         * Instantiates a new cache key.
+         *
+         * @param hash   the token hash
+         * @param client the client id
+         */
+        CacheKey(final String hash, final String client) {
+            this.tokenHash = hash;
+            this.clientId = client;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            final CacheKey that = (CacheKey) o;
+            return tokenHash.equals(that.tokenHash) && Objects.equals(clientId, that.clientId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * tokenHash.hashCode() + Objects.hashCode(clientId);
+        }
+    }
+
+    /**
+     * A cached introspection result.
+     */
+    private static final class CachedResult {
+        /**
+         * The result.
+         */
+        private final Map<String, Object> result;
+
+        /**
+         * When the result expires, in milliseconds.
+         */
+        private final long expiresAt;
+
+        /**
+         * Id of the refresh token the result depends on, or null.
+         */
+        private final Long refreshTokenId;
+
+        /**
+         * Instantiates a new cached result.
+         *
+         * @param introspection the result
+         * @param expiry        the expiry
+         * @param refreshId     the refresh token id
+         */
+        CachedResult(final Map<String, Object> introspection, final long expiry, final Long refreshId) {
+            this.result = introspection;
+            this.expiresAt = expiry;
+            this.refreshTokenId = refreshId;
+        }
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.JWSSigner;
+import com.nimbusds.jose.crypto.ECDSASigner;
+import com.nimbusds.jose.crypto.MACSigner;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.ECKey;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.OctetSequenceKey;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import org.mitre.jose.keystore.JWKSetKeyStore;
+import org.mitre.oauth2.model.ClientDetailsEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps ready-to-use signers and pre-serialized JWS headers, so that
+ * tokens can be signed without resolving keys or encoding the header
+ * again. Templates for server keys are keyed by key id and algorithm
+ * and are dropped whenever the key store publishes a different key set.
+ * Templates for client secrets are keyed by client id, a hash of the
+ * secret and algorithm, and are kept in a bounded cache.
+ */
+@Component("jwsSignerCache")
+public class JWSSignerCache {
+
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(JWSSignerCache.class);
+
+    /**
+     * The key store backing the jwt service.
+     */
+    @Autowired
+    private JWKSetKeyStore keyStore;
+
+    /**
+     * Maximum number of client secret templates kept.
+     */
+    @Value("%{oidc.signing.client.cache.size:1000}")
+    private int clientCacheSize;
+
+    /**
+     * Templates for server keys.
+     */
+    private final ConcurrentMap<TemplateKey, SigningTemplate> serverTemplates = new ConcurrentHashMap<>();
+
+    /**
+     * Templates for client secrets.
+     */
+    private Cache<TemplateKey, SigningTemplate> clientTemplates;
+
+    /**
+     * The key set the server templates were built from.
+     */
+    private volatile JWKSet cachedKeySet;
+
+    /**
+     * Initialize the client secret cache.
+     */
+    @PostConstruct
+    public void initialize() {
+        this.clientTemplates = CacheBuilder.newBuilder()
+                .maximumSize(clientCacheSize)
+                .expireAfterAccess(24, TimeUnit.HOURS)
+                .build();
+    }
+
+    /**
+     * Sets key store.
+     *
+     * @param store the store
+     */
+    public void setKeyStore(final JWKSetKeyStore store) {
+        this.keyStore = store;
+    }
+
+    /**
+     * Sets the maximum number of client secret templates kept.
+     *
+     * @param size the size
+     */
+    public void setClientCacheSize(final int size) {
+        this.clientCacheSize = size;
+    }
+
+    /**
+     * Signs the claims with the server key of the given id.
+     *
+     * @param keyId  the key id
+     * @param alg    the signing alg
+     * @param claims the claims
+     * @return the signed jwt, or null if the key cannot sign with the given algorithm
+     */
+    public SignedJWT signWithServerKey(final String keyId, final JWSAlgorithm alg, final JWTClaimsSet claims) {
+        final SigningTemplate template = getServerTemplate(keyId, alg);
+        return template != null ? sign(template, claims) : null;
+    }
+
+    /**
+     * Signs the claims with the client secret. The header carries the given key id.
+     *
+     * @param client the client
+     * @param keyId  the key id
+     * @param alg    the signing alg
+     * @param claims the claims
+     * @return the signed jwt, or null if the secret cannot sign with the given algorithm
+     */
+    public SignedJWT signWithClientSecret(final ClientDetailsEntity client, final String keyId,
+                                          final JWSAlgorithm alg, final JWTClaimsSet claims) {
+        final String secret = client.getClientSecret();
+        if (secret == null) {
+            return null;
+        }
+        final TemplateKey key = new TemplateKey(keyId, alg, client.getClientId(), TokenHashing.hash(secret));
+        SigningTemplate template = clientTemplates.getIfPresent(key);
+        if (template == null) {
+            template = buildTemplate(keyId, alg, createMacSigner(secret.getBytes(StandardCharsets.UTF_8), alg));
+            if (template == null) {
+                return null;
+            }
+            clientTemplates.put(key, template);
+        }
+        return sign(template, claims);
+    }
+
+    /**
+     * Sign the claims with the template.
+     *
+     * @param template the template
+     * @param claims   the claims
+     * @return the signed jwt, or null if signing failed
+     */
+    private SignedJWT sign(final SigningTemplate template, final JWTClaimsSet claims) {
+        final SignedJWT jwt = new SignedJWT(template.getHeader(), claims);
+        try {
+            jwt.sign(template.getSigner());
+            return jwt;
+        } catch (final JOSEException e) {
+            log.error("Unable to sign jwt with {}", template.getHeader().getAlgorithm(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Drops all cached templates.
+     */
+    public void invalidate() {
+        serverTemplates.clear();
+        clientTemplates.invalidateAll();
+    }
+
+    /**
+     * Gets the template for a server key, dropping all server
+     * templates first if the key store has loaded a different key set.
+     *
+     * @param keyId the key id
+     * @param alg   the alg
+     * @return the template, or null
+     */
+    private SigningTemplate getServerTemplate(final String keyId, final JWSAlgorithm alg) {
+        final JWKSet keySet = keyStore.getJwkSet();
+        if (keySet != cachedKeySet) {
+            synchronized (this) {
+                if (keySet != cachedKeySet) {
+                    log.debug("Key set has changed; dropping {} cached signers", serverTemplates.size());
+                    serverTemplates.clear();
+                    cachedKeySet = keySet;
+                }
+            }
+        }
+
+        final TemplateKey key = new TemplateKey(keyId, alg, null, null);
+        SigningTemplate template = serverTemplates.get(key);
+        if (template == null && keySet != null) {
+            final JWK jwk = keySet.getKeyByKeyId(keyId);
+            template = buildTemplate(keyId, alg, createSigner(jwk, alg));
+            if (template != null) {
+                final SigningTemplate existing = serverTemplates.putIfAbsent(key, template);
+                if (existing != null) {
+                    template = existing;
+                }
+            }
+        }
+        return template;
+    }
+
+    /**
+     * Create a signer for the given server key.
+     *
+     * @param jwk the jwk
+     * @param alg the alg
+     * @return the signer, or null if the key cannot sign with the given algorithm
+     */
+    private JWSSigner createSigner(final JWK jwk, final JWSAlgorithm alg) {
+        try {
+            if (jwk instanceof RSAKey && ((RSAKey) jwk).isPrivate()) {
+                return new RSASSASigner((RSAKey) jwk);
+            }
+            if (jwk instanceof ECKey && ((ECKey) jwk).isPrivate()) {
+                return new ECDSASigner((ECKey) jwk);
+            }
+            if (jwk instanceof OctetSequenceKey) {
+                return createMacSigner(((OctetSequenceKey) jwk).toByteArray(), alg);
+            }
+        } catch (final JOSEException e) {
+            log.warn("Unable to create a signer for key {}", jwk.getKeyID(), e);
+        }
+        return null;
+    }
+
+    /**
+     * Create a mac signer for the given secret.
+     *
+     * @param secret the secret
+     * @param alg    the alg
+     * @return the signer, or null if the secret is too short for the algorithm
+     */
+    private JWSSigner createMacSigner(final byte[] secret, final JWSAlgorithm alg) {
+        try {
+            return new MACSigner(secret);
+        } catch (final JOSEException e) {
+            log.debug("Secret cannot be used to sign with {}: {}", alg, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Build a template for the signer, if it supports the algorithm.
+     *
+     * @param keyId  the key id
+     * @param alg    the alg
+     * @param signer the signer
+     * @return the template, or null
+     */
+    private SigningTemplate buildTemplate(final String keyId, final JWSAlgorithm alg, final JWSSigner signer) {
+        if (signer == null || !signer.supportedJWSAlgorithms().contains(alg)) {
+            return null;
+        }
+        try {
+            final JWSHeader header = new JWSHeader.Builder(alg).keyID(keyId).build();
+            return new SigningTemplate(JWSHeader.parse(header.toBase64URL()), signer);
+        } catch (final ParseException e) {
+            log.warn("Unable to pre-serialize the {} header for key {}", alg, keyId, e);
+            return null;
+        }
+    }
+
+    /**
+     * A signer along with the header it signs under. The header
+     * keeps its parsed encoding so it is not serialized again.
+     */
+    private static final class SigningTemplate {
+
+        /**
+         * The Header.
+         */
+        private final JWSHeader header;
+
+        /**
+         * The Signer.
+         */
+        private final JWSSigner signer;
+
+        /**
+         * Instantiates a new signing template.
+         *
+         * @param jwsHeader the header
+         * @param jwsSigner the signer
+         */
+        SigningTemplate(final JWSHeader jwsHeader, final JWSSigner jwsSigner) {
+            this.header = jwsHeader;
+            this.signer = jwsSigner;
+        }
+
+        /**
+         * Gets header.
+         *
+         * @return the header
+         */
+        JWSHeader getHeader() {
+            return header;
+        }
+
+        /**
+         * Gets signer.
+         *
+         * @return the signer
+         */
+        JWSSigner getSigner() {
+            return signer;
+        }
+    }
+
+    /**
+     * Cache key made of key id, algorithm and, for client secrets, the client id
+     * and a hash of the secret, so that no secret is kept in the key.
+     */
+    private static final class TemplateKey {
+
+        /**
+         * The Key id.
+         */
+        private final String keyId;
+
+        /**
+         * The Alg.
+         */
+        private final JWSAlgorithm alg;
+
+        /**
+         * The Client id.
+         */
+        private final String clientId;
+
+        /**
+         * The hash of the secret.
+         */
+        private final HashCode secretHash;
+
+        /**
+         * Instantiates a new template key.
+         *
+         * @param kid        the key id
+         * @param algorithm  the alg
+         * @param client     the client id
+         * @param hash       the hash of the secret
+         */
+        TemplateKey(final String kid, final JWSAlgorithm algorithm, final String client, final HashCode hash) {
+            this.keyId = kid;
+            this.alg = algorithm;
+            this.clientId = client;
+            this.secretHash = hash;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof TemplateKey)) {
+                return false;
+            }
+            final TemplateKey other = (TemplateKey) o;
+            return Objects.equals(keyId, other.keyId)
+                    && Objects.equals(alg, other.alg)
+                    && Objects.equals(clientId, other.clientId)
+                    && Objects.equals(secretHash, other.secretHash);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(keyId, alg, clientId, secretHash);
+        }
+    }
+}
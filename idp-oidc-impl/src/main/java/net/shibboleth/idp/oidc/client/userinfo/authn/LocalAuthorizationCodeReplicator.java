@@ -0,0 +1,87 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import org.mitre.oauth2.model.AuthorizationCodeEntity;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stand-in for a replicated code store that keeps the shared copies in
+ * this JVM. Repositories given the same instance behave like the nodes of
+ * a cluster, which allows a clustered configuration to be run on a single
+ * node. Expired copies are dropped when they are taken, and in passing
+ * every {@link #PRUNE_INTERVAL} replications.
+ */
+public class LocalAuthorizationCodeReplicator implements AuthorizationCodeReplicator {
+
+    /**
+     * Number of replications between scans for expired copies.
+     */
+    public static final int PRUNE_INTERVAL = 256;
+
+    /**
+     * The shared copies keyed by code value.
+     */
+    private final ConcurrentMap<String, AuthorizationCodeEntity> codes = new ConcurrentHashMap<>();
+
+    /**
+     * Replications since the last scan.
+     */
+    private final AtomicInteger replications = new AtomicInteger();
+
+    @Override
+    public void replicate(final AuthorizationCodeEntity code) {
+        codes.put(code.getCode(), code);
+        if (replications.incrementAndGet() % PRUNE_INTERVAL == 0) {
+            final long now = System.currentTimeMillis();
+            for (final AuthorizationCodeEntity entity : codes.values()) {
+                if (isExpired(entity, now)) {
+                    codes.remove(entity.getCode(), entity);
+                }
+            }
+        }
+    }
+
+    @Override
+    public AuthorizationCodeEntity take(final String code) {
+        final AuthorizationCodeEntity entity = codes.remove(code);
+        return entity != null && !isExpired(entity, System.currentTimeMillis()) ? entity : null;
+    }
+
+    /**
+     * Whether the code has expired.
+     *
+     * @param entity the code
+     * @param now    the current time
+     * @return true if expired
+     */
+    private static boolean isExpired(final AuthorizationCodeEntity entity, final long now) {
+        return entity.getExpiration() != null && entity.getExpiration().getTime() <= now;
+    }
+
+    /**
+     * Gets the number of shared copies.
+     *
+     * @return the count
+     */
+    public int size() {
+        return codes.size();
+    }
+}
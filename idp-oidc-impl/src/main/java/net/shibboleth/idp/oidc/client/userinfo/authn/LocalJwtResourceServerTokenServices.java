@@ -0,0 +1,393 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.hash.HashCode;
+import com.nimbusds.jwt.JWT;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.JWTParser;
+import com.nimbusds.jwt.SignedJWT;
+import org.mitre.jwt.signer.service.JWTSigningAndValidationService;
+import org.mitre.oauth2.model.OAuth2AccessTokenEntity;
+import org.mitre.oauth2.model.OAuth2RefreshTokenEntity;
+import org.mitre.oauth2.service.OAuth2TokenEntityService;
+import org.mitre.openid.connect.config.ConfigurationPropertiesBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.text.ParseException;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token services for the resource server filter that verify signed access
+ * tokens locally, against the signature, expiration, issuer and audience of
+ * the token, and against the client it was issued to. The token enhancer names
+ * that client in the azp claim. The audience is only present when the client
+ * asked for a particular resource; when it is, it must name this resource
+ * server, and tokens without one are accepted only if configured to be.
+ * Tokens known to the
+ * {@link RevokedTokenFilter} are refused outright. Otherwise the database is
+ * consulted only to check that the token still exists and to obtain its
+ * authentication; the outcome is cached for a short time and dropped as soon
+ * as the token, or the refresh token it was issued from, is revoked.
+ * Tokens that are not signed JWTs are loaded from the database as before.
+ */
+@Component("localJwtResourceServerTokenServices")
+public class LocalJwtResourceServerTokenServices implements ResourceServerTokenServices, TokenRevocationListener {
+
+    /**
+     * The claim naming the client the token was issued to.
+     */
+    private static final String AUTHORIZED_PARTY = "azp";
+
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(LocalJwtResourceServerTokenServices.class);
+
+    /**
+     * The token service.
+     */
+    @Autowired
+    private OAuth2TokenEntityService tokenService;
+
+    /**
+     * The Jwt service.
+     */
+    @Autowired
+    private JWTSigningAndValidationService jwtService;
+
+    /**
+     * The Config bean.
+     */
+    @Autowired
+    private ConfigurationPropertiesBean configBean;
+
+    /**
+     * The revoked token filter.
+     */
+    @Autowired
+    private RevokedTokenFilter revokedTokenFilter;
+
+    /**
+     * Whether signed access tokens are verified locally.
+     */
+    @Value("%{oidc.resource.local.validation:true}")
+    private boolean localValidation;
+
+    /**
+     * The audience this resource server expects; the issuer if empty.
+     */
+    @Value("%{oidc.resource.id:}")
+    private String resourceId;
+
+    /**
+     * Whether tokens that name no audience are accepted.
+     */
+    @Value("%{oidc.resource.audience.optional:false}")
+    private boolean audienceOptional;
+
+    /**
+     * How long a revocation check holds, in seconds.
+     */
+    @Value("%{oidc.resource.revocation.cache.ttl:30}")
+    private long revocationCheckTimeToLive;
+
+    /**
+     * Maximum number of tokens whose revocation check is cached.
+     */
+    @Value("%{oidc.resource.revocation.cache.size:10000}")
+    private int cacheSize;
+
+    /**
+     * Checked tokens, keyed by token hash.
+     */
+    private Cache<HashCode, CheckedToken> checkedTokens;
+
+    /**
+     * The hashes of the checked tokens, by the id of the refresh token they were issued from.
+     */
+    private final CacheKeyIndex<Long, HashCode> tokensByRefreshToken = new CacheKeyIndex<>();
+
+    /**
+     * Initialize the cache.
+     */
+    @PostConstruct
+    public void initialize() {
+        this.checkedTokens = CacheBuilder.newBuilder()
+                .maximumSize(cacheSize)
+                .expireAfterWrite(revocationCheckTimeToLive, TimeUnit.SECONDS)
+                .removalListener(new RemovalListener<HashCode, CheckedToken>() {
+                    @Override
+                    public void onRemoval(final RemovalNotification<HashCode, CheckedToken> notification) {
+                        if (notification.getCause() != RemovalCause.REPLACED) {
+                            tokensByRefreshToken.remove(notification.getValue().refreshTokenId, notification.getKey());
+                        }
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Sets token service.
+     *
+     * @param service the service
+     */
+    public void setTokenService(final OAuth2TokenEntityService service) {
+        this.tokenService = service;
+    }
+
+    /**
+     * Sets jwt service.
+     *
+     * @param service the service
+     */
+    public void setJwtService(final JWTSigningAndValidationService service) {
+        this.jwtService = service;
+    }
+
+    /**
+     * Sets config bean.
+     *
+     * @param config the config
+     */
+    public void setConfigBean(final ConfigurationPropertiesBean config) {
+        this.configBean = config;
+    }
+
+    /**
+     * Sets revoked token filter.
+     *
+     * @param filter the filter
+     */
+    public void setRevokedTokenFilter(final RevokedTokenFilter filter) {
+        this.revokedTokenFilter = filter;
+    }
+
+    /**
+     * Sets whether signed access tokens are verified locally.
+     *
+     * @param flag the flag
+     */
+    public void setLocalValidation(final boolean flag) {
+        this.localValidation = flag;
+    }
+
+    /**
+     * Sets the audience this resource server expects.
+     *
+     * @param id the id
+     */
+    public void setResourceId(final String id) {
+        this.resourceId = id;
+    }
+
+    /**
+     * Sets whether tokens that name no audience are accepted.
+     *
+     * @param flag the flag
+     */
+    public void setAudienceOptional(final boolean flag) {
+        this.audienceOptional = flag;
+    }
+
+    /**
+     * Sets how long a revocation check holds, in seconds.
+     *
+     * @param seconds the seconds
+     */
+    public void setRevocationCheckTimeToLive(final long seconds) {
+        this.revocationCheckTimeToLive = seconds;
+    }
+
+    /**
+     * Sets the maximum number of tokens whose revocation check is cached.
+     *
+     * @param size the size
+     */
+    public void setCacheSize(final int size) {
+        this.cacheSize = size;
+    }
+
+    @Override
+    public OAuth2Authentication loadAuthentication(final String accessTokenValue)
+            throws AuthenticationException, InvalidTokenException {
+        final SignedJWT jwt = localValidation ? parseSigned(accessTokenValue) : null;
+        if (jwt == null) {
+            return tokenService.loadAuthentication(accessTokenValue);
+        }
+
+        final JWTClaimsSet claims = getClaims(jwt);
+        if (!jwtService.validateSignature(jwt)) {
+            throw new InvalidTokenException("Invalid access token signature");
+        }
+        final long now = System.currentTimeMillis();
+        if (claims.getExpirationTime() != null && claims.getExpirationTime().getTime() <= now) {
+            throw new InvalidTokenException("Expired access token");
+        }
+        if (!Objects.equals(configBean.getIssuer(), claims.getIssuer())) {
+            throw new InvalidTokenException("Access token was not issued by " + configBean.getIssuer());
+        }
+        checkAudience(claims);
+
+        final HashCode tokenHash = TokenHashing.hash(accessTokenValue);
+        if (revokedTokenFilter.isRevoked(tokenHash)) {
+            throw new InvalidTokenException("Access token was revoked");
+        }
+        CheckedToken checked = checkedTokens.getIfPresent(tokenHash);
+        if (checked == null || checked.checkedUntil <= now) {
+            log.debug("Checking access token against the token repository");
+            final OAuth2AccessTokenEntity token = tokenService.readAccessToken(accessTokenValue);
+            final Long refreshTokenId = token.getRefreshToken() != null ? token.getRefreshToken().getId() : null;
+            checked = new CheckedToken(token.getAuthenticationHolder().getAuthentication(),
+                    now + TimeUnit.SECONDS.toMillis(revocationCheckTimeToLive), refreshTokenId);
+            // a refresh token waiting to be written behind has no id to evict by yet
+            if (token.getRefreshToken() == null || refreshTokenId != null) {
+                tokensByRefreshToken.put(refreshTokenId, tokenHash);
+                checkedTokens.put(tokenHash, checked);
+            }
+        }
+
+        final String clientId = checked.authentication.getOAuth2Request().getClientId();
+        final Object authorizedParty = claims.getClaim(AUTHORIZED_PARTY);
+        if (authorizedParty != null && !authorizedParty.equals(clientId)) {
+            throw new InvalidTokenException("Access token was not issued to client " + clientId);
+        }
+        return checked.authentication;
+    }
+
+    @Override
+    public OAuth2AccessToken readAccessToken(final String accessToken) {
+        return tokenService.readAccessToken(accessToken);
+    }
+
+    @Override
+    public void accessTokenRevoked(final OAuth2AccessTokenEntity token) {
+        checkedTokens.invalidate(TokenHashing.hash(token.getValue()));
+    }
+
+    @Override
+    public void accessTokensRevoked(final OAuth2RefreshTokenEntity refreshToken) {
+        if (refreshToken.getId() != null) {
+            checkedTokens.invalidateAll(tokensByRefreshToken.removeAll(refreshToken.getId()));
+        }
+    }
+
+    @Override
+    public void refreshTokenRevoked(final OAuth2RefreshTokenEntity refreshToken) {
+        // the access tokens issued from it are reported separately
+    }
+
+    /**
+     * Check that the token names this resource server as its audience.
+     *
+     * @param claims the claims
+     */
+    private void checkAudience(final JWTClaimsSet claims) {
+        final List<String> audience = claims.getAudience();
+        if (audience == null || audience.isEmpty()) {
+            if (!audienceOptional) {
+                throw new InvalidTokenException("Access token names no audience");
+            }
+            return;
+        }
+        final String expected = Strings.isNullOrEmpty(resourceId) ? configBean.getIssuer() : resourceId;
+        if (!audience.contains(expected)) {
+            throw new InvalidTokenException("Access token was not issued for " + expected);
+        }
+    }
+
+    /**
+     * Parse the token value as a signed JWT.
+     *
+     * @param value the value
+     * @return the signed jwt, or null if the value is not one
+     */
+    private SignedJWT parseSigned(final String value) {
+        try {
+            final JWT jwt = JWTParser.parse(value);
+            return jwt instanceof SignedJWT ? (SignedJWT) jwt : null;
+        } catch (final ParseException e) {
+            log.debug("Access token is not a JWT", e);
+            return null;
+        }
+    }
+
+    /**
+     * Gets the claims of the jwt.
+     *
+     * @param jwt the jwt
+     * @return the claims
+     */
+    private static JWTClaimsSet getClaims(final SignedJWT jwt) {
+        try {
+            return jwt.getJWTClaimsSet();
+        } catch (final ParseException e) {
+            throw new InvalidTokenException("Invalid access token claims");
+        }
+    }
+
+    /**
+     * A token found in the token repository, and its authentication.
+     */
+    private static final class CheckedToken {
+        /**
+         * The authentication.
+         */
+        private final OAuth2Authentication authentication;
+
+        /**
+         * Until when the check holds, in milliseconds.
+         */
+        private final long checkedUntil;
+
+        /**
+         * Id of the refresh token the access token was issued from, or null.
+         */
+        private final Long refreshTokenId;
+
+        /**
+         * Instantiates a new checked token.
+         *
+         * @param auth      the authentication
+         * @param until     until when the check holds
+         * @param refreshId the refresh token id
+         */
+        CheckedToken(final OAuth2Authentication auth, final long until, final Long refreshId) {
+            this.authentication = auth;
+            this.checkedUntil = until;
+            this.refreshTokenId = refreshId;
+        }
+    }
+}
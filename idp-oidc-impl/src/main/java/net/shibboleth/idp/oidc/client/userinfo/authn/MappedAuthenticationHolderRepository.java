@@ -0,0 +1,238 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import org.mitre.oauth2.model.AuthenticationHolderEntity;
+import org.mitre.oauth2.model.SavedUserAuthentication;
+import org.mitre.oauth2.repository.AuthenticationHolderRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.stereotype.Component;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Authentication holder repository backed by the {@link MappedTokenStore}.
+ * Holders are stored the way the JPA repository stores them: authorities
+ * as their string form, and request extensions as strings, dropping those
+ * that are not strings, numbers or dates.
+ */
+@Component("mappedAuthenticationHolderRepository")
+public class MappedAuthenticationHolderRepository implements AuthenticationHolderRepository {
+
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(MappedAuthenticationHolderRepository.class);
+
+    /**
+     * The store.
+     */
+    @Autowired
+    private MappedTokenStore store;
+
+    /**
+     * Sets store.
+     *
+     * @param tokenStore the store
+     */
+    public void setStore(final MappedTokenStore tokenStore) {
+        this.store = tokenStore;
+    }
+
+    /**
+     * Whether holders are kept in the store.
+     *
+     * @return true if enabled
+     */
+    public boolean isEnabled() {
+        return store.isEnabled();
+    }
+
+    @Override
+    public List<AuthenticationHolderEntity> getAll() {
+        final List<AuthenticationHolderEntity> holders = new ArrayList<>();
+        for (final MappedTokenStore.Record record : store.findAll(MappedTokenStore.AUTHENTICATION_HOLDER)) {
+            holders.add(toHolder(record));
+        }
+        return holders;
+    }
+
+    @Override
+    public AuthenticationHolderEntity getById(final Long id) {
+        if (id == null) {
+            return null;
+        }
+        final MappedTokenStore.Record record = store.get(MappedTokenStore.AUTHENTICATION_HOLDER, id);
+        return record != null ? toHolder(record) : null;
+    }
+
+    @Override
+    public void remove(final AuthenticationHolderEntity holder) {
+        if (holder.getId() == null || !store.remove(holder.getId())) {
+            throw new IllegalArgumentException("Authentication holder not found: " + holder);
+        }
+    }
+
+    @Override
+    public AuthenticationHolderEntity save(final AuthenticationHolderEntity holder) {
+        if (holder.getId() == null) {
+            holder.setId(store.nextId());
+        }
+        store.put(new MappedTokenStore.Record(MappedTokenStore.AUTHENTICATION_HOLDER, holder.getId(), 0, 0,
+                null, null, new long[0], toBody(holder)));
+        return holder;
+    }
+
+    @Override
+    public List<AuthenticationHolderEntity> getOrphanedAuthenticationHolders() {
+        final List<AuthenticationHolderEntity> orphans = new ArrayList<>();
+        for (final MappedTokenStore.Record record : store.findAll(MappedTokenStore.AUTHENTICATION_HOLDER)) {
+            if (!store.isReferenced(record.getId())) {
+                orphans.add(toHolder(record));
+            }
+        }
+        return orphans;
+    }
+
+    /**
+     * Encode the holder.
+     *
+     * @param holder the holder
+     * @return the body
+     */
+    private byte[] toBody(final AuthenticationHolderEntity holder) {
+        final RecordCodec.Writer writer = new RecordCodec.Writer()
+                .writeString(holder.getClientId())
+                .writeBoolean(holder.isApproved())
+                .writeString(holder.getRedirectUri())
+                .writeStrings(holder.getResponseTypes())
+                .writeStrings(holder.getResourceIds())
+                .writeStrings(holder.getScope())
+                .writeStrings(toStrings(holder.getAuthorities()))
+                .writeMap(toExtensionStrings(holder.getExtensions()))
+                .writeMap(holder.getRequestParameters());
+
+        final SavedUserAuthentication userAuth = holder.getUserAuth();
+        writer.writeBoolean(userAuth != null);
+        if (userAuth != null) {
+            writer.writeString(userAuth.getName())
+                    .writeBoolean(userAuth.isAuthenticated())
+                    .writeString(userAuth.getSourceClass())
+                    .writeStrings(toStrings(userAuth.getAuthorities()));
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * Decode the holder.
+     *
+     * @param record the record
+     * @return the holder
+     */
+    private AuthenticationHolderEntity toHolder(final MappedTokenStore.Record record) {
+        final RecordCodec.Reader reader = new RecordCodec.Reader(record.getBody());
+        final AuthenticationHolderEntity holder = new AuthenticationHolderEntity();
+        holder.setId(record.getId());
+        holder.setClientId(reader.readString());
+        holder.setApproved(reader.readBoolean());
+        holder.setRedirectUri(reader.readString());
+        holder.setResponseTypes(reader.readStrings());
+        holder.setResourceIds(reader.readStrings());
+        holder.setScope(reader.readStrings());
+        holder.setAuthorities(toAuthorities(reader.readStrings()));
+        holder.setExtensions(new LinkedHashMap<String, Serializable>(reader.readMap()));
+        holder.setRequestParameters(reader.readMap());
+
+        if (reader.readBoolean()) {
+            final SavedUserAuthentication userAuth = new SavedUserAuthentication();
+            userAuth.setName(reader.readString());
+            userAuth.setAuthenticated(reader.readBoolean());
+            userAuth.setSourceClass(reader.readString());
+            userAuth.setAuthorities(toAuthorities(reader.readStrings()));
+            holder.setUserAuth(userAuth);
+        }
+        return holder;
+    }
+
+    /**
+     * Gets the string form of the authorities.
+     *
+     * @param authorities the authorities, or null
+     * @return the strings, or null
+     */
+    private static Set<String> toStrings(final Collection<? extends GrantedAuthority> authorities) {
+        if (authorities == null) {
+            return null;
+        }
+        final Set<String> values = new LinkedHashSet<>();
+        for (final GrantedAuthority authority : authorities) {
+            values.add(authority.getAuthority());
+        }
+        return values;
+    }
+
+    /**
+     * Gets the string form of the extensions, as the JPA converter stores them.
+     *
+     * @param extensions the extensions, or null
+     * @return the strings, or null
+     */
+    private Map<String, String> toExtensionStrings(final Map<String, Serializable> extensions) {
+        if (extensions == null) {
+            return null;
+        }
+        final Map<String, String> values = new LinkedHashMap<>();
+        for (final Map.Entry<String, Serializable> entry : extensions.entrySet()) {
+            final Serializable value = entry.getValue();
+            if (value instanceof String || value instanceof Long) {
+                values.put(entry.getKey(), value.toString());
+            } else if (value instanceof Date) {
+                values.put(entry.getKey(), Long.toString(((Date) value).getTime()));
+            } else if (value != null) {
+                log.warn("Dropping extension {} of type {} from the authentication holder",
+                        entry.getKey(), value.getClass());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Build authorities from their string form.
+     *
+     * @param values the strings
+     * @return the authorities
+     */
+    private static List<GrantedAuthority> toAuthorities(final Set<String> values) {
+        final List<GrantedAuthority> authorities = new ArrayList<>(values.size());
+        for (final String value : values) {
+            authorities.add(new SimpleGrantedAuthority(value));
+        }
+        return authorities;
+    }
+}
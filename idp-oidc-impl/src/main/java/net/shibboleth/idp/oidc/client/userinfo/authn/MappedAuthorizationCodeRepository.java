@@ -0,0 +1,154 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import org.mitre.oauth2.model.AuthenticationHolderEntity;
+import org.mitre.oauth2.model.AuthorizationCodeEntity;
+import org.mitre.oauth2.repository.AuthorizationCodeRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Authorization code repository that keeps codes in the {@link MappedTokenStore}
+ * when it is enabled, and in the database otherwise. Used by the
+ * {@link SingleUseAuthorizationCodeRepository} unless codes are kept in memory.
+ */
+@Component("mappedAuthorizationCodeRepository")
+public class MappedAuthorizationCodeRepository implements AuthorizationCodeRepository {
+
+    /**
+     * The repository that persists codes in the database.
+     */
+    @Resource(name = "jpaAuthorizationCodeRepository")
+    private AuthorizationCodeRepository authorizationCodeRepository;
+
+    /**
+     * The store.
+     */
+    @Autowired
+    private MappedTokenStore store;
+
+    /**
+     * The authentication holder repository.
+     */
+    @Autowired
+    private MappedAuthenticationHolderRepository authenticationHolderRepository;
+
+    /**
+     * Sets authorization code repository.
+     *
+     * @param repository the repository
+     */
+    public void setAuthorizationCodeRepository(final AuthorizationCodeRepository repository) {
+        this.authorizationCodeRepository = repository;
+    }
+
+    /**
+     * Sets store.
+     *
+     * @param tokenStore the store
+     */
+    public void setStore(final MappedTokenStore tokenStore) {
+        this.store = tokenStore;
+    }
+
+    /**
+     * Sets authentication holder repository.
+     *
+     * @param repository the repository
+     */
+    public void setAuthenticationHolderRepository(final MappedAuthenticationHolderRepository repository) {
+        this.authenticationHolderRepository = repository;
+    }
+
+    @Override
+    public AuthorizationCodeEntity save(final AuthorizationCodeEntity authorizationCode) {
+        if (!store.isEnabled()) {
+            return authorizationCodeRepository.save(authorizationCode);
+        }
+        final AuthenticationHolderEntity holder = authorizationCode.getAuthenticationHolder();
+        if (holder != null && holder.getId() == null) {
+            authenticationHolderRepository.save(holder);
+        }
+        if (authorizationCode.getId() == null) {
+            authorizationCode.setId(store.nextId());
+        }
+
+        final String code = authorizationCode.getCode();
+        store.put(new MappedTokenStore.Record(MappedTokenStore.AUTHORIZATION_CODE, authorizationCode.getId(),
+                MappedTokenRepository.toMillis(authorizationCode.getExpiration()),
+                holder != null && holder.getId() != null ? holder.getId() : 0, TokenHashing.hash(code).asBytes(), null,
+                new long[0], new RecordCodec.Writer().writeString(code).toByteArray()));
+        return authorizationCode;
+    }
+
+    @Override
+    public AuthorizationCodeEntity getByCode(final String code) {
+        if (!store.isEnabled()) {
+            return authorizationCodeRepository.getByCode(code);
+        }
+        return toCode(store.findByHash(MappedTokenStore.AUTHORIZATION_CODE, TokenHashing.hash(code).asBytes()));
+    }
+
+    @Override
+    public void remove(final AuthorizationCodeEntity authorizationCode) {
+        if (!store.isEnabled()) {
+            authorizationCodeRepository.remove(authorizationCode);
+            return;
+        }
+        if (authorizationCode.getId() != null) {
+            store.remove(authorizationCode.getId());
+        }
+    }
+
+    @Override
+    public Collection<AuthorizationCodeEntity> getExpiredCodes() {
+        if (!store.isEnabled()) {
+            return authorizationCodeRepository.getExpiredCodes();
+        }
+        final List<AuthorizationCodeEntity> codes = new ArrayList<>();
+        for (final MappedTokenStore.Record record : store.findExpired(MappedTokenStore.AUTHORIZATION_CODE,
+                System.currentTimeMillis(), Integer.MAX_VALUE)) {
+            codes.add(toCode(record));
+        }
+        return codes;
+    }
+
+    /**
+     * Decode the code.
+     *
+     * @param record the record, or null
+     * @return the code, or null
+     */
+    private AuthorizationCodeEntity toCode(final MappedTokenStore.Record record) {
+        if (record == null) {
+            return null;
+        }
+        final AuthorizationCodeEntity code = new AuthorizationCodeEntity();
+        code.setId(record.getId());
+        code.setCode(new RecordCodec.Reader(record.getBody()).readString());
+        code.setExpiration(MappedTokenRepository.toDate(record.getExpiration()));
+        code.setAuthenticationHolder(record.getHolder() != 0
+                ? authenticationHolderRepository.getById(record.getHolder()) : null);
+        return code;
+    }
+}
@@ -0,0 +1,557 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import com.google.common.io.BaseEncoding;
+import com.nimbusds.jwt.JWT;
+import com.nimbusds.jwt.JWTParser;
+import org.mitre.oauth2.model.AuthenticationHolderEntity;
+import org.mitre.oauth2.model.ClientDetailsEntity;
+import org.mitre.oauth2.model.OAuth2AccessTokenEntity;
+import org.mitre.oauth2.model.OAuth2RefreshTokenEntity;
+import org.mitre.oauth2.repository.OAuth2ClientRepository;
+import org.mitre.oauth2.repository.OAuth2TokenRepository;
+import org.mitre.uma.model.ResourceSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Token repository backed by the {@link MappedTokenStore}, for deployments
+ * that keep tokens out of the database. Tokens refer to their client by
+ * client id and to their authentication holder, refresh token and id token
+ * by id; these are resolved again when a token is read. As with the JPA
+ * repository, removing an access token removes its id token as well.
+ * <p>
+ * The approved site an access token was issued under is kept as a negated
+ * link, so that it cannot be mistaken for the id of a stored record, and
+ * the tokens of a site are revoked when the site is removed.
+ * <p>
+ * UMA permissions are not stored, so no token is ever found for a resource set.
+ */
+@Component("mappedTokenRepository")
+public class MappedTokenRepository implements OAuth2TokenRepository {
+
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(MappedTokenRepository.class);
+
+    /**
+     * The store.
+     */
+    @Autowired
+    private MappedTokenStore store;
+
+    /**
+     * The authentication holder repository.
+     */
+    @Autowired
+    private MappedAuthenticationHolderRepository authenticationHolderRepository;
+
+    /**
+     * The client repository.
+     */
+    @Autowired
+    private OAuth2ClientRepository clientRepository;
+
+    /**
+     * Sets store.
+     *
+     * @param tokenStore the store
+     */
+    public void setStore(final MappedTokenStore tokenStore) {
+        this.store = tokenStore;
+    }
+
+    /**
+     * Sets authentication holder repository.
+     *
+     * @param repository the repository
+     */
+    public void setAuthenticationHolderRepository(final MappedAuthenticationHolderRepository repository) {
+        this.authenticationHolderRepository = repository;
+    }
+
+    /**
+     * Sets client repository.
+     *
+     * @param repository the repository
+     */
+    public void setClientRepository(final OAuth2ClientRepository repository) {
+        this.clientRepository = repository;
+    }
+
+    /**
+     * Whether tokens are kept in the store.
+     *
+     * @return true if enabled
+     */
+    public boolean isEnabled() {
+        return store.isEnabled();
+    }
+
+    @Override
+    public OAuth2AccessTokenEntity saveAccessToken(final OAuth2AccessTokenEntity token) {
+        saveHolder(token.getAuthenticationHolder());
+        final OAuth2RefreshTokenEntity refreshToken = token.getRefreshToken();
+        if (refreshToken != null && refreshToken.getId() == null) {
+            saveRefreshToken(refreshToken);
+        }
+        final OAuth2AccessTokenEntity idToken = token.getIdToken();
+        if (idToken != null && idToken.getId() == null) {
+            saveAccessToken(idToken);
+        }
+        long site = 0;
+        if (token.getId() == null) {
+            token.setId(store.nextId());
+        } else {
+            final MappedTokenStore.Record existing = store.get(MappedTokenStore.ACCESS_TOKEN, token.getId());
+            if (existing != null && existing.getLinks().length > 2) {
+                site = existing.getLinks()[2];
+            }
+        }
+
+        final String value = token.getValue();
+        final byte[] body = new RecordCodec.Writer()
+                .writeString(value)
+                .writeString(token.getTokenType())
+                .writeStrings(token.getScope())
+                .toByteArray();
+        store.put(new MappedTokenStore.Record(MappedTokenStore.ACCESS_TOKEN, token.getId(),
+                toMillis(token.getExpiration()), idOf(token.getAuthenticationHolder()),
+                TokenHashing.hash(value).asBytes(), clientIdOf(token.getClient()),
+                new long[] {idOf(refreshToken), idOf(idToken), site}, body));
+        return token;
+    }
+
+    /**
+     * Record the approved site the access token was issued under.
+     *
+     * @param token  the saved access token
+     * @param siteId the id of the approved site
+     */
+    public void linkApprovedSite(final OAuth2AccessTokenEntity token, final long siteId) {
+        final MappedTokenStore.Record record = store.get(MappedTokenStore.ACCESS_TOKEN, token.getId());
+        if (record == null) {
+            throw new IllegalArgumentException("Access token not found: " + token);
+        }
+        final long[] links = record.getLinks();
+        store.put(new MappedTokenStore.Record(record.getType(), record.getId(), record.getExpiration(),
+                record.getHolder(), record.getHash(), record.getClientId(),
+                new long[] {links[0], links[1], -siteId}, record.getBody()));
+    }
+
+    /**
+     * Remove the access tokens issued under the approved site, along with
+     * their refresh tokens, as removing the site does for the database.
+     *
+     * @param siteId the id of the approved site
+     */
+    public void removeTokensForApprovedSite(final long siteId) {
+        for (final MappedTokenStore.Record record : store.findByLink(MappedTokenStore.ACCESS_TOKEN, -siteId)) {
+            if (record.getLinks().length > 2 && record.getLinks()[2] == -siteId) {
+                final long refreshToken = record.getLinks()[0];
+                if (refreshToken != 0) {
+                    store.remove(refreshToken);
+                }
+                removeAccessToken(record);
+            }
+        }
+    }
+
+    @Override
+    public OAuth2RefreshTokenEntity saveRefreshToken(final OAuth2RefreshTokenEntity refreshToken) {
+        saveHolder(refreshToken.getAuthenticationHolder());
+        if (refreshToken.getId() == null) {
+            refreshToken.setId(store.nextId());
+        }
+
+        final String value = refreshToken.getValue();
+        final byte[] body = new RecordCodec.Writer().writeString(value).toByteArray();
+        store.put(new MappedTokenStore.Record(MappedTokenStore.REFRESH_TOKEN, refreshToken.getId(),
+                toMillis(refreshToken.getExpiration()), idOf(refreshToken.getAuthenticationHolder()),
+                TokenHashing.hash(value).asBytes(), clientIdOf(refreshToken.getClient()), new long[0], body));
+        return refreshToken;
+    }
+
+    @Override
+    public OAuth2AccessTokenEntity getAccessTokenByValue(final String accessTokenValue) {
+        return toAccessToken(store.findByHash(MappedTokenStore.ACCESS_TOKEN,
+                TokenHashing.hash(accessTokenValue).asBytes()));
+    }
+
+    @Override
+    public OAuth2RefreshTokenEntity getRefreshTokenByValue(final String refreshTokenValue) {
+        return toRefreshToken(store.findByHash(MappedTokenStore.REFRESH_TOKEN,
+                TokenHashing.hash(refreshTokenValue).asBytes()));
+    }
+
+    @Override
+    public OAuth2AccessTokenEntity getAccessTokenById(final Long id) {
+        return id != null ? toAccessToken(store.get(MappedTokenStore.ACCESS_TOKEN, id)) : null;
+    }
+
+    @Override
+    public OAuth2RefreshTokenEntity getRefreshTokenById(final Long id) {
+        return id != null ? toRefreshToken(store.get(MappedTokenStore.REFRESH_TOKEN, id)) : null;
+    }
+
+    @Override
+    public void clearAccessTokensForRefreshToken(final OAuth2RefreshTokenEntity refreshToken) {
+        if (refreshToken.getId() == null) {
+            return;
+        }
+        for (final MappedTokenStore.Record record
+                : store.findByLink(MappedTokenStore.ACCESS_TOKEN, refreshToken.getId())) {
+            if (record.getLinks()[0] == refreshToken.getId()) {
+                removeAccessToken(record);
+            }
+        }
+    }
+
+    @Override
+    public void removeRefreshToken(final OAuth2RefreshTokenEntity refreshToken) {
+        final MappedTokenStore.Record record = refreshToken.getId() != null
+                ? store.get(MappedTokenStore.REFRESH_TOKEN, refreshToken.getId())
+                : store.findByHash(MappedTokenStore.REFRESH_TOKEN,
+                        TokenHashing.hash(refreshToken.getValue()).asBytes());
+        if (record == null) {
+            throw new IllegalArgumentException("Refresh token not found: " + refreshToken);
+        }
+        store.remove(record.getId());
+    }
+
+    @Override
+    public void removeAccessToken(final OAuth2AccessTokenEntity accessToken) {
+        final MappedTokenStore.Record record = accessToken.getId() != null
+                ? store.get(MappedTokenStore.ACCESS_TOKEN, accessToken.getId())
+                : store.findByHash(MappedTokenStore.ACCESS_TOKEN,
+                        TokenHashing.hash(accessToken.getValue()).asBytes());
+        if (record == null) {
+            throw new IllegalArgumentException("Access token not found: " + accessToken);
+        }
+        removeAccessToken(record);
+    }
+
+    @Override
+    public void clearTokensForClient(final ClientDetailsEntity client) {
+        for (final MappedTokenStore.Record record
+                : store.findByClient(MappedTokenStore.ACCESS_TOKEN, client.getClientId())) {
+            removeAccessToken(record);
+        }
+        for (final MappedTokenStore.Record record
+                : store.findByClient(MappedTokenStore.REFRESH_TOKEN, client.getClientId())) {
+            store.remove(record.getId());
+        }
+    }
+
+    @Override
+    public List<OAuth2AccessTokenEntity> getAccessTokensForClient(final ClientDetailsEntity client) {
+        final List<OAuth2AccessTokenEntity> tokens = new ArrayList<>();
+        for (final MappedTokenStore.Record record
+                : store.findByClient(MappedTokenStore.ACCESS_TOKEN, client.getClientId())) {
+            tokens.add(toAccessToken(record));
+        }
+        return tokens;
+    }
+
+    @Override
+    public List<OAuth2RefreshTokenEntity> getRefreshTokensForClient(final ClientDetailsEntity client) {
+        final List<OAuth2RefreshTokenEntity> tokens = new ArrayList<>();
+        for (final MappedTokenStore.Record record
+                : store.findByClient(MappedTokenStore.REFRESH_TOKEN, client.getClientId())) {
+            tokens.add(toRefreshToken(record));
+        }
+        return tokens;
+    }
+
+    @Override
+    public OAuth2AccessTokenEntity getAccessTokenForIdToken(final OAuth2AccessTokenEntity idToken) {
+        if (idToken.getId() == null) {
+            return null;
+        }
+        for (final MappedTokenStore.Record record
+                : store.findByLink(MappedTokenStore.ACCESS_TOKEN, idToken.getId())) {
+            if (record.getLinks()[1] == idToken.getId()) {
+                return toAccessToken(record);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Set<OAuth2AccessTokenEntity> getAllAccessTokens() {
+        return toAccessTokens(store.findAll(MappedTokenStore.ACCESS_TOKEN));
+    }
+
+    @Override
+    public Set<OAuth2RefreshTokenEntity> getAllRefreshTokens() {
+        return toRefreshTokens(store.findAll(MappedTokenStore.REFRESH_TOKEN));
+    }
+
+    @Override
+    public Set<OAuth2AccessTokenEntity> getAllExpiredAccessTokens() {
+        return toAccessTokens(store.findExpired(MappedTokenStore.ACCESS_TOKEN,
+                System.currentTimeMillis(), Integer.MAX_VALUE));
+    }
+
+    @Override
+    public Set<OAuth2RefreshTokenEntity> getAllExpiredRefreshTokens() {
+        return toRefreshTokens(store.findExpired(MappedTokenStore.REFRESH_TOKEN,
+                System.currentTimeMillis(), Integer.MAX_VALUE));
+    }
+
+    @Override
+    public Set<OAuth2AccessTokenEntity> getAccessTokensForResourceSet(final ResourceSet rs) {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public void clearDuplicateAccessTokens() {
+        clearDuplicates(MappedTokenStore.ACCESS_TOKEN);
+    }
+
+    @Override
+    public void clearDuplicateRefreshTokens() {
+        clearDuplicates(MappedTokenStore.REFRESH_TOKEN);
+    }
+
+    /**
+     * Remove all but the first of the records of the type that share a value.
+     *
+     * @param type the type
+     */
+    private void clearDuplicates(final byte type) {
+        final Set<String> seen = new HashSet<>();
+        for (final MappedTokenStore.Record record : store.findAll(type)) {
+            if (!seen.add(BaseEncoding.base16().encode(record.getHash()))) {
+                log.warn("Removing duplicate token {}", record.getId());
+                if (type == MappedTokenStore.ACCESS_TOKEN) {
+                    removeAccessToken(record);
+                } else {
+                    store.remove(record.getId());
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove the access token along with its id token.
+     *
+     * @param record the access token record
+     */
+    private void removeAccessToken(final MappedTokenStore.Record record) {
+        store.remove(record.getId());
+        final long idToken = record.getLinks()[1];
+        if (idToken != 0) {
+            store.remove(idToken);
+        }
+    }
+
+    /**
+     * Save the authentication holder if it is new.
+     *
+     * @param holder the holder, or null
+     */
+    private void saveHolder(final AuthenticationHolderEntity holder) {
+        if (holder != null && holder.getId() == null) {
+            authenticationHolderRepository.save(holder);
+        }
+    }
+
+    /**
+     * Decode the access token.
+     *
+     * @param record the record, or null
+     * @return the token, or null
+     */
+    private OAuth2AccessTokenEntity toAccessToken(final MappedTokenStore.Record record) {
+        if (record == null) {
+            return null;
+        }
+        final RecordCodec.Reader reader = new RecordCodec.Reader(record.getBody());
+        final OAuth2AccessTokenEntity token = new OAuth2AccessTokenEntity();
+        token.setId(record.getId());
+        token.setJwt(parse(reader.readString(), record));
+        token.setTokenType(reader.readString());
+        token.setScope(reader.readStrings());
+        token.setExpiration(toDate(record.getExpiration()));
+        token.setClient(clientOf(record));
+        token.setAuthenticationHolder(authenticationHolderRepository.getById(toId(record.getHolder())));
+        token.setRefreshToken(getRefreshTokenById(toId(record.getLinks()[0])));
+        token.setIdToken(getAccessTokenById(toId(record.getLinks()[1])));
+        return token;
+    }
+
+    /**
+     * Decode the refresh token.
+     *
+     * @param record the record, or null
+     * @return the token, or null
+     */
+    private OAuth2RefreshTokenEntity toRefreshToken(final MappedTokenStore.Record record) {
+        if (record == null) {
+            return null;
+        }
+        final RecordCodec.Reader reader = new RecordCodec.Reader(record.getBody());
+        final OAuth2RefreshTokenEntity token = new OAuth2RefreshTokenEntity();
+        token.setId(record.getId());
+        token.setJwt(parse(reader.readString(), record));
+        token.setExpiration(toDate(record.getExpiration()));
+        token.setClient(clientOf(record));
+        token.setAuthenticationHolder(authenticationHolderRepository.getById(toId(record.getHolder())));
+        return token;
+    }
+
+    /**
+     * Decode the access tokens.
+     *
+     * @param records the records
+     * @return the tokens
+     */
+    private Set<OAuth2AccessTokenEntity> toAccessTokens(final List<MappedTokenStore.Record> records) {
+        final Set<OAuth2AccessTokenEntity> tokens = new LinkedHashSet<>();
+        for (final MappedTokenStore.Record record : records) {
+            tokens.add(toAccessToken(record));
+        }
+        return tokens;
+    }
+
+    /**
+     * Decode the refresh tokens.
+     *
+     * @param records the records
+     * @return the tokens
+     */
+    private Set<OAuth2RefreshTokenEntity> toRefreshTokens(final List<MappedTokenStore.Record> records) {
+        final Set<OAuth2RefreshTokenEntity> tokens = new LinkedHashSet<>();
+        for (final MappedTokenStore.Record record : records) {
+            tokens.add(toRefreshToken(record));
+        }
+        return tokens;
+    }
+
+    /**
+     * Parse the token value.
+     *
+     * @param value  the value
+     * @param record the record it was read from
+     * @return the jwt, or null if the value cannot be parsed
+     */
+    private JWT parse(final String value, final MappedTokenStore.Record record) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return JWTParser.parse(value);
+        } catch (final ParseException e) {
+            log.error("Unable to parse the value of stored token {}", record.getId(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Resolve the client of the record.
+     *
+     * @param record the record
+     * @return the client, or null
+     */
+    private ClientDetailsEntity clientOf(final MappedTokenStore.Record record) {
+        return record.getClientId() != null ? clientRepository.getClientByClientId(record.getClientId()) : null;
+    }
+
+    /**
+     * Gets the client id of the client.
+     *
+     * @param client the client, or null
+     * @return the client id, or null
+     */
+    private static String clientIdOf(final ClientDetailsEntity client) {
+        return client != null ? client.getClientId() : null;
+    }
+
+    /**
+     * Gets the id of the holder.
+     *
+     * @param holder the holder, or null
+     * @return the id, or zero
+     */
+    private static long idOf(final AuthenticationHolderEntity holder) {
+        return holder != null && holder.getId() != null ? holder.getId() : 0;
+    }
+
+    /**
+     * Gets the id of the refresh token.
+     *
+     * @param token the token, or null
+     * @return the id, or zero
+     */
+    private static long idOf(final OAuth2RefreshTokenEntity token) {
+        return token != null && token.getId() != null ? token.getId() : 0;
+    }
+
+    /**
+     * Gets the id of the access token.
+     *
+     * @param token the token, or null
+     * @return the id, or zero
+     */
+    private static long idOf(final OAuth2AccessTokenEntity token) {
+        return token != null && token.getId() != null ? token.getId() : 0;
+    }
+
+    /**
+     * Gets the id stored in a record field.
+     *
+     * @param id the stored id
+     * @return the id, or null if zero
+     */
+    private static Long toId(final long id) {
+        return id != 0 ? id : null;
+    }
+
+    /**
+     * Gets the milliseconds of the date.
+     *
+     * @param date the date, or null
+     * @return the milliseconds, or zero
+     */
+    static long toMillis(final Date date) {
+        return date != null ? date.getTime() : 0;
+    }
+
+    /**
+     * Gets the date of the milliseconds.
+     *
+     * @param millis the milliseconds, or zero
+     * @return the date, or null
+     */
+    static Date toDate(final long millis) {
+        return millis != 0 ? new Date(millis) : null;
+    }
+}
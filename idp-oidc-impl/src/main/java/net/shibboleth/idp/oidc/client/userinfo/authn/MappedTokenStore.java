@@ -0,0 +1,1484 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Longs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Record store for tokens, authorization codes and authentication holders,
+ * kept in memory-mapped segment files rather than in the database.
+ * <p>
+ * Records are appended to the active segment in a compact binary layout:
+ * a fixed header carrying the id, expiration, authentication holder, value
+ * hash and the ids of linked records, followed by the client id and an opaque
+ * body. A record is marked live only once it is fully written. Replacing or
+ * removing a record marks the old copy dead in place. Lookups go through
+ * off-heap hash indexes on id, value hash, client, expiration minute and
+ * linked id, none of which create objects for the garbage collector to
+ * trace; they are rebuilt from the segments on startup, so a restart
+ * recovers every live record. Where a crash left two live copies of a
+ * record, the later one wins.
+ * <p>
+ * A background sweep removes expired records and the authentication holders
+ * they leave unreferenced. It then compacts sealed segments that are mostly
+ * dead, by copying their live records to the active segment and deleting the
+ * segment file.
+ */
+@Component("mappedTokenStore")
+public class MappedTokenStore {
+
+    /**
+     * Record type of access and id tokens.
+     */
+    static final byte ACCESS_TOKEN = 1;
+
+    /**
+     * Record type of refresh tokens.
+     */
+    static final byte REFRESH_TOKEN = 2;
+
+    /**
+     * Record type of authorization codes.
+     */
+    static final byte AUTHORIZATION_CODE = 3;
+
+    /**
+     * Record type of authentication holders.
+     */
+    static final byte AUTHENTICATION_HOLDER = 4;
+
+    /**
+     * Segment file magic number.
+     */
+    private static final int SEGMENT_MAGIC = 0x4f494443;
+
+    /**
+     * Segment file format version.
+     */
+    private static final int SEGMENT_VERSION = 1;
+
+    /**
+     * Segment state of a segment whose records were all moved elsewhere.
+     */
+    private static final int SEGMENT_RETIRED = 1;
+
+    /**
+     * Bytes reserved for the segment header.
+     */
+    private static final int SEGMENT_HEADER = 64;
+
+    /**
+     * Bytes of the fixed record header, up to the links.
+     */
+    private static final int RECORD_HEADER = 64;
+
+    /**
+     * Record state of a record that is fully written and current.
+     */
+    private static final byte LIVE = 1;
+
+    /**
+     * Record state of a record that was replaced or removed.
+     */
+    private static final byte DEAD = 2;
+
+    /**
+     * Bytes of a value hash.
+     */
+    private static final int HASH_SIZE = 32;
+
+    /**
+     * Milliseconds per expiration bucket.
+     */
+    private static final long EXPIRY_BUCKET = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(MappedTokenStore.class);
+
+    /**
+     * Whether tokens are kept in this store rather than the database.
+     */
+    @Value("%{oidc.tokens.mapped.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * Directory holding the segment files.
+     */
+    @Value("%{oidc.tokens.mapped.directory:%{idp.home}/db/oidc-tokens}")
+    private String directory;
+
+    /**
+     * Size of a segment file, in bytes.
+     */
+    @Value("%{oidc.tokens.mapped.segment.size:67108864}")
+    private int segmentSize;
+
+    /**
+     * Initial number of slots of each index.
+     */
+    @Value("%{oidc.tokens.mapped.index.capacity:65536}")
+    private int indexCapacity;
+
+    /**
+     * How often expired records are removed, in seconds.
+     */
+    @Value("%{oidc.tokens.mapped.sweep.interval:60}")
+    private long sweepInterval;
+
+    /**
+     * Maximum number of records removed per lock acquisition.
+     */
+    @Value("%{oidc.tokens.mapped.sweep.chunk.size:500}")
+    private int chunkSize;
+
+    /**
+     * Share of live bytes below which a sealed segment is compacted.
+     */
+    @Value("%{oidc.tokens.mapped.compact.threshold:0.25}")
+    private double compactThreshold;
+
+    /**
+     * Guards the segments and indexes.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Segments keyed by number.
+     */
+    private final NavigableMap<Integer, Segment> segments = new TreeMap<>();
+
+    /**
+     * The last id handed out.
+     */
+    private final AtomicLong lastId = new AtomicLong();
+
+    /**
+     * Number of expired records removed by the sweep.
+     */
+    private final AtomicLong sweptCount = new AtomicLong();
+
+    /**
+     * Number of segments compacted.
+     */
+    private final AtomicLong compactionCount = new AtomicLong();
+
+    /**
+     * Record locations by id.
+     */
+    private OffHeapLongMultimap ids;
+
+    /**
+     * Record locations by the leading bytes of the value hash.
+     */
+    private OffHeapLongMultimap hashes;
+
+    /**
+     * Record locations by client id hash.
+     */
+    private OffHeapLongMultimap clients;
+
+    /**
+     * Record locations by expiration minute.
+     */
+    private OffHeapLongMultimap expirations;
+
+    /**
+     * Record locations by the ids of the holder and records they link to.
+     */
+    private OffHeapLongMultimap links;
+
+    /**
+     * The segment records are appended to.
+     */
+    private Segment active;
+
+    /**
+     * Earliest expiration minute that may still have records.
+     */
+    private volatile long lowestExpiryMinute = Long.MAX_VALUE;
+
+    /**
+     * Runs the sweep.
+     */
+    private ScheduledExecutorService sweeper;
+
+    /**
+     * Recover the segments and start the sweep, if the store is enabled.
+     *
+     * @throws IOException if the segments cannot be opened
+     */
+    @PostConstruct
+    public void initialize() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        final File dir = new File(directory);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create token store directory " + dir);
+        }
+
+        this.ids = new OffHeapLongMultimap(indexCapacity);
+        this.hashes = new OffHeapLongMultimap(indexCapacity);
+        this.clients = new OffHeapLongMultimap(indexCapacity);
+        this.expirations = new OffHeapLongMultimap(indexCapacity);
+        this.links = new OffHeapLongMultimap(indexCapacity);
+
+        final long start = System.currentTimeMillis();
+        recover(dir);
+        log.info("Recovered {} live records from {} segments in {} ms", ids.size(), segments.size(),
+                System.currentTimeMillis() - start);
+
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "oidc-token-store-sweep");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sweep();
+                } catch (final RuntimeException e) {
+                    log.error("Token store sweep failed", e);
+                }
+            }
+        }, sweepInterval, sweepInterval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop the sweep and write the segments out.
+     */
+    @PreDestroy
+    public void destroy() {
+        if (sweeper != null) {
+            sweeper.shutdown();
+            try {
+                sweeper.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            for (final Segment segment : segments.values()) {
+                segment.close();
+            }
+            segments.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Sets whether tokens are kept in this store.
+     *
+     * @param enable the enable
+     */
+    public void setEnabled(final boolean enable) {
+        this.enabled = enable;
+    }
+
+    /**
+     * Sets the directory holding the segment files.
+     *
+     * @param dir the directory
+     */
+    public void setDirectory(final String dir) {
+        this.directory = dir;
+    }
+
+    /**
+     * Sets the size of a segment file, in bytes.
+     *
+     * @param size the size
+     */
+    public void setSegmentSize(final int size) {
+        this.segmentSize = size;
+    }
+
+    /**
+     * Sets the initial number of slots of each index.
+     *
+     * @param capacity the capacity
+     */
+    public void setIndexCapacity(final int capacity) {
+        this.indexCapacity = capacity;
+    }
+
+    /**
+     * Sets how often expired records are removed, in seconds.
+     *
+     * @param seconds the seconds
+     */
+    public void setSweepInterval(final long seconds) {
+        this.sweepInterval = seconds;
+    }
+
+    /**
+     * Sets the maximum number of records removed per lock acquisition.
+     *
+     * @param size the size
+     */
+    public void setChunkSize(final int size) {
+        this.chunkSize = size;
+    }
+
+    /**
+     * Sets the share of live bytes below which a sealed segment is compacted.
+     *
+     * @param threshold the threshold
+     */
+    public void setCompactThreshold(final double threshold) {
+        this.compactThreshold = threshold;
+    }
+
+    /**
+     * Whether tokens are kept in this store.
+     *
+     * @return true if enabled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Gets the number of live records.
+     *
+     * @return the count
+     */
+    public int getRecordCount() {
+        lock.readLock().lock();
+        try {
+            return ids != null ? ids.size() : 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of segment files.
+     *
+     * @return the count
+     */
+    public int getSegmentCount() {
+        lock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the bytes taken by live records.
+     *
+     * @return the bytes
+     */
+    public long getLiveBytes() {
+        lock.readLock().lock();
+        try {
+            long bytes = 0;
+            for (final Segment segment : segments.values()) {
+                bytes += segment.liveBytes;
+            }
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the bytes held off-heap by the indexes.
+     *
+     * @return the bytes
+     */
+    public long getIndexBytes() {
+        lock.readLock().lock();
+        try {
+            if (ids == null) {
+                return 0;
+            }
+            return ids.getAllocatedBytes() + hashes.getAllocatedBytes() + clients.getAllocatedBytes()
+                    + expirations.getAllocatedBytes() + links.getAllocatedBytes();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of expired records removed by the sweep.
+     *
+     * @return the count
+     */
+    public long getSweptCount() {
+        return sweptCount.get();
+    }
+
+    /**
+     * Gets the number of segments compacted.
+     *
+     * @return the count
+     */
+    public long getCompactionCount() {
+        return compactionCount.get();
+    }
+
+    /**
+     * Hand out an id for a new record.
+     *
+     * @return the id
+     */
+    long nextId() {
+        return lastId.incrementAndGet();
+    }
+
+    /**
+     * Store the record, replacing any record with the same id.
+     *
+     * @param record the record
+     */
+    void put(final Record record) {
+        lock.writeLock().lock();
+        try {
+            final long existing = ids.getFirst(record.getId());
+            final long location = append(record);
+            if (existing != 0) {
+                unindex(existing);
+                markDead(existing);
+            }
+            index(location);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove the record with the given id.
+     *
+     * @param id the id
+     * @return true if the record existed
+     */
+    boolean remove(final long id) {
+        lock.writeLock().lock();
+        try {
+            final long location = ids.getFirst(id);
+            if (location == 0) {
+                return false;
+            }
+            unindex(location);
+            markDead(location);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the record with the given id.
+     *
+     * @param type the expected type
+     * @param id   the id
+     * @return the record, or null if there is none of the type
+     */
+    Record get(final byte type, final long id) {
+        lock.readLock().lock();
+        try {
+            final long location = ids.getFirst(id);
+            if (location == 0 || typeAt(location) != type) {
+                return null;
+            }
+            return read(location);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the record of the type with the given value hash.
+     *
+     * @param type the type
+     * @param hash the hash
+     * @return the record, or null
+     */
+    Record findByHash(final byte type, final byte[] hash) {
+        lock.readLock().lock();
+        try {
+            for (final long location : hashes.get(Longs.fromByteArray(hash))) {
+                if (typeAt(location) == type && hashEquals(location, hash)) {
+                    return read(location);
+                }
+            }
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the records of the type issued to the client.
+     *
+     * @param type     the type
+     * @param clientId the client id
+     * @return the records
+     */
+    List<Record> findByClient(final byte type, final String clientId) {
+        lock.readLock().lock();
+        try {
+            final List<Record> records = new ArrayList<>();
+            for (final long location : clients.get(clientKey(clientId))) {
+                if (typeAt(location) == type) {
+                    final Record record = read(location);
+                    if (clientId.equals(record.getClientId())) {
+                        records.add(record);
+                    }
+                }
+            }
+            return records;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the records of the type that link to, or are held by, the given id.
+     *
+     * @param type     the type
+     * @param linkedId the linked id
+     * @return the records
+     */
+    List<Record> findByLink(final byte type, final long linkedId) {
+        lock.readLock().lock();
+        try {
+            final List<Record> records = new ArrayList<>();
+            for (final long location : links.get(linkedId)) {
+                if (typeAt(location) == type) {
+                    records.add(read(location));
+                }
+            }
+            return records;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Whether any record links to, or is held by, the given id.
+     *
+     * @param id the id
+     * @return true if referenced
+     */
+    boolean isReferenced(final long id) {
+        lock.readLock().lock();
+        try {
+            return links.containsKey(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the records of the type that expired at or before the given time.
+     *
+     * @param type the type
+     * @param now  the time, in milliseconds
+     * @param max  the maximum number of records returned
+     * @return the records
+     */
+    List<Record> findExpired(final byte type, final long now, final int max) {
+        lock.readLock().lock();
+        try {
+            final List<Record> records = new ArrayList<>();
+            for (final long location : expiredLocations(type, now, max)) {
+                records.add(read(location));
+            }
+            return records;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets all records of the type.
+     *
+     * @param type the type
+     * @return the records
+     */
+    List<Record> findAll(final byte type) {
+        lock.readLock().lock();
+        try {
+            final List<Record> records = new ArrayList<>();
+            for (final long location : ids.values()) {
+                if (typeAt(location) == type) {
+                    records.add(read(location));
+                }
+            }
+            return records;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Remove expired tokens and codes along with the authentication holders
+     * that no longer hold anything, then compact mostly dead segments.
+     */
+    void sweep() {
+        final long now = System.currentTimeMillis();
+        long removed = 0;
+        for (final byte type : new byte[] {ACCESS_TOKEN, REFRESH_TOKEN, AUTHORIZATION_CODE}) {
+            int count;
+            do {
+                lock.writeLock().lock();
+                try {
+                    final long[] expired = expiredLocations(type, now, Math.max(1, chunkSize));
+                    count = expired.length;
+                    for (final long location : expired) {
+                        final long holder = holderAt(location);
+                        unindex(location);
+                        markDead(location);
+                        if (holder != 0 && !links.containsKey(holder)) {
+                            final long holderLocation = ids.getFirst(holder);
+                            if (holderLocation != 0 && typeAt(holderLocation) == AUTHENTICATION_HOLDER) {
+                                unindex(holderLocation);
+                                markDead(holderLocation);
+                            }
+                        }
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                removed += count;
+            } while (count >= chunkSize);
+        }
+        if (removed > 0) {
+            sweptCount.addAndGet(removed);
+            log.debug("Removed {} expired records from the token store", removed);
+        }
+
+        Segment candidate = nextCompactionCandidate();
+        while (candidate != null) {
+            compact(candidate);
+            candidate = nextCompactionCandidate();
+        }
+    }
+
+    /**
+     * Gets the locations of records of the type that expired at or before the given time.
+     * Advances the lowest expiration minute past buckets found empty.
+     * Must be called under the lock.
+     *
+     * @param type the type
+     * @param now  the time, in milliseconds
+     * @param max  the maximum number of locations returned
+     * @return the locations
+     */
+    private long[] expiredLocations(final byte type, final long now, final int max) {
+        long[] found = new long[Math.min(max, 64)];
+        int count = 0;
+        final long lastMinute = now / EXPIRY_BUCKET;
+        boolean empty = true;
+        for (long minute = lowestExpiryMinute; minute <= lastMinute && count < max; minute++) {
+            final long[] bucket = expirations.get(minute);
+            if (empty && bucket.length == 0 && minute == lowestExpiryMinute) {
+                lowestExpiryMinute = minute + 1;
+                continue;
+            }
+            empty = false;
+            for (int i = 0; i < bucket.length && count < max; i++) {
+                if (typeAt(bucket[i]) == type && expirationAt(bucket[i]) <= now) {
+                    if (count == found.length) {
+                        found = Arrays.copyOf(found, Math.min(max, count * 2));
+                    }
+                    found[count++] = bucket[i];
+                }
+            }
+        }
+        return count == found.length ? found : Arrays.copyOf(found, count);
+    }
+
+    /**
+     * Gets the next sealed segment whose share of live bytes is below the threshold.
+     *
+     * @return the segment, or null
+     */
+    private Segment nextCompactionCandidate() {
+        lock.readLock().lock();
+        try {
+            for (final Segment segment : segments.values()) {
+                if (segment != active && (segment.liveRecords == 0
+                        || segment.liveBytes < compactThreshold * (segment.position - SEGMENT_HEADER))) {
+                    return segment;
+                }
+            }
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copy the live records of the segment to the active segment, then delete it.
+     *
+     * @param segment the segment
+     */
+    private void compact(final Segment segment) {
+        lock.writeLock().lock();
+        try {
+            if (!segments.containsKey(segment.number)) {
+                return;
+            }
+            int moved = 0;
+            int position = SEGMENT_HEADER;
+            while (position < segment.position) {
+                final int length = segment.buffer.getInt(position + 4);
+                if (segment.buffer.get(position) == LIVE) {
+                    final long from = location(segment, position);
+                    final long to = appendCopy(segment, position, length);
+                    unindex(from);
+                    index(to);
+                    moved++;
+                }
+                position += length;
+            }
+            segment.buffer.putInt(8, SEGMENT_RETIRED);
+            segments.remove(segment.number);
+            segment.close();
+            if (!segment.file.delete()) {
+                log.warn("Unable to delete compacted token store segment {}", segment.file);
+            }
+            compactionCount.incrementAndGet();
+            log.debug("Compacted token store segment {}, moving {} live records", segment.number, moved);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Open the segment files in the directory and index their live records.
+     *
+     * @param dir the directory
+     * @throws IOException if a segment cannot be opened
+     */
+    private void recover(final File dir) throws IOException {
+        final File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File parent, final String name) {
+                return name.matches("segment-\\d+\\.dat");
+            }
+        });
+        final Map<Integer, File> ordered = new TreeMap<>();
+        if (files != null) {
+            for (final File file : files) {
+                final String name = file.getName();
+                ordered.put(Integer.valueOf(name.substring(8, name.length() - 4)), file);
+            }
+        }
+
+        for (final Map.Entry<Integer, File> entry : ordered.entrySet()) {
+            final File file = entry.getValue();
+            final Segment segment = Segment.open(entry.getKey(), file, (int) file.length());
+            if (segment.buffer.getInt(0) != SEGMENT_MAGIC || segment.buffer.getInt(4) != SEGMENT_VERSION) {
+                segment.close();
+                throw new IOException("Token store segment " + file + " is not in a supported format");
+            }
+            if (segment.buffer.getInt(8) == SEGMENT_RETIRED) {
+                segment.close();
+                if (!file.delete()) {
+                    log.warn("Unable to delete compacted token store segment {}", file);
+                }
+                continue;
+            }
+            segments.put(segment.number, segment);
+            scan(segment);
+            this.active = segment;
+        }
+
+        if (active == null || active.position + RECORD_HEADER > active.capacity) {
+            roll();
+        } else {
+            clearTail(active);
+        }
+    }
+
+    /**
+     * Index the live records of a recovered segment.
+     *
+     * @param segment the segment
+     */
+    private void scan(final Segment segment) {
+        int position = SEGMENT_HEADER;
+        while (position + RECORD_HEADER <= segment.capacity) {
+            final byte state = segment.buffer.get(position);
+            final int length = segment.buffer.getInt(position + 4);
+            if (state == 0) {
+                break;
+            }
+            if (length < RECORD_HEADER || length % 8 != 0 || position + length > segment.capacity) {
+                log.warn("Token store segment {} is truncated at {}", segment.number, position);
+                break;
+            }
+            if (state == LIVE) {
+                final long location = location(segment, position);
+                final long id = segment.buffer.getLong(position + 8);
+                final long existing = ids.getFirst(id);
+                segment.liveBytes += length;
+                segment.liveRecords++;
+                if (existing != 0) {
+                    unindex(existing);
+                    markDead(existing);
+                }
+                index(location);
+                if (id > lastId.get()) {
+                    lastId.set(id);
+                }
+            }
+            position += length;
+        }
+        segment.position = position;
+    }
+
+    /**
+     * Clear whatever follows the last complete record of the segment, so
+     * that a record torn by a crash is not mistaken for the tail of a
+     * record appended over it.
+     *
+     * @param segment the segment
+     */
+    private static void clearTail(final Segment segment) {
+        int i = segment.position;
+        for (; i + 8 <= segment.capacity; i += 8) {
+            if (segment.buffer.getLong(i) != 0) {
+                segment.buffer.putLong(i, 0);
+            }
+        }
+        for (; i < segment.capacity; i++) {
+            segment.buffer.put(i, (byte) 0);
+        }
+    }
+
+    /**
+     * Seal the active segment and start a new one.
+     */
+    private void roll() {
+        final int number = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        final File file = new File(directory, String.format("segment-%08d.dat", number));
+        try {
+            final Segment segment = Segment.open(number, file, segmentSize);
+            segment.buffer.putInt(0, SEGMENT_MAGIC);
+            segment.buffer.putInt(4, SEGMENT_VERSION);
+            segment.buffer.putInt(8, 0);
+            segment.position = SEGMENT_HEADER;
+            segments.put(number, segment);
+            if (active != null) {
+                active.buffer.force();
+            }
+            this.active = segment;
+        } catch (final IOException e) {
+            throw new IllegalStateException("Unable to create token store segment " + file, e);
+        }
+    }
+
+    /**
+     * Append the record to the active segment.
+     *
+     * @param record the record
+     * @return the location of the record
+     */
+    private long append(final Record record) {
+        final byte[] client = record.getClientId() != null
+                ? record.getClientId().getBytes(StandardCharsets.UTF_8) : new byte[0];
+        if (client.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Client id of " + client.length + " bytes is too long to store");
+        }
+        final long[] linked = record.getLinks();
+        final int length = align(RECORD_HEADER + 8 * linked.length + 2 + client.length + 4 + record.getBody().length);
+        ensureRoom(length);
+
+        final int position = active.position;
+        final ByteBuffer buffer = active.buffer.duplicate();
+        buffer.position(position + 1);
+        buffer.put(record.getType());
+        buffer.putShort((short) linked.length);
+        buffer.putInt(length);
+        buffer.putLong(record.getId());
+        buffer.putLong(record.getExpiration());
+        buffer.putLong(record.getHolder());
+        buffer.put(record.getHash() != null ? record.getHash() : new byte[HASH_SIZE]);
+        for (final long link : linked) {
+            buffer.putLong(link);
+        }
+        buffer.putShort((short) client.length);
+        buffer.put(client);
+        buffer.putInt(record.getBody().length);
+        buffer.put(record.getBody());
+        active.buffer.put(position, LIVE);
+
+        active.position += length;
+        active.liveBytes += length;
+        active.liveRecords++;
+        return location(active, position);
+    }
+
+    /**
+     * Append a copy of a live record of another segment to the active segment.
+     *
+     * @param source   the segment holding the record
+     * @param position the position of the record
+     * @param length   the length of the record
+     * @return the location of the copy
+     */
+    private long appendCopy(final Segment source, final int position, final int length) {
+        ensureRoom(length);
+        final ByteBuffer from = source.buffer.duplicate();
+        from.position(position + 1);
+        from.limit(position + length);
+        final ByteBuffer to = active.buffer.duplicate();
+        to.position(active.position + 1);
+        to.put(from);
+        active.buffer.put(active.position, LIVE);
+
+        final long location = location(active, active.position);
+        active.position += length;
+        active.liveBytes += length;
+        active.liveRecords++;
+        source.liveBytes -= length;
+        source.liveRecords--;
+        return location;
+    }
+
+    /**
+     * Roll to a new segment if the active one has no room for the record.
+     *
+     * @param length the record length
+     */
+    private void ensureRoom(final int length) {
+        if (length > segmentSize - SEGMENT_HEADER) {
+            throw new IllegalArgumentException("Record of " + length + " bytes does not fit in a segment");
+        }
+        if (active.position + length > active.capacity) {
+            roll();
+        }
+    }
+
+    /**
+     * Add the record at the location to the indexes.
+     *
+     * @param location the location
+     */
+    private void index(final long location) {
+        final Segment segment = segmentAt(location);
+        final int position = (int) location;
+        final byte type = segment.buffer.get(position + 1);
+        ids.put(segment.buffer.getLong(position + 8), location);
+        if (type != AUTHENTICATION_HOLDER) {
+            hashes.put(segment.buffer.getLong(position + 32), location);
+        }
+        final long expiration = segment.buffer.getLong(position + 16);
+        if (expiration != 0) {
+            final long minute = expiration / EXPIRY_BUCKET;
+            expirations.put(minute, location);
+            if (minute < lowestExpiryMinute) {
+                lowestExpiryMinute = minute;
+            }
+        }
+        final String clientId = clientIdAt(segment, position);
+        if (clientId != null) {
+            clients.put(clientKey(clientId), location);
+        }
+        for (final long linked : linksAt(segment, position)) {
+            links.put(linked, location);
+        }
+    }
+
+    /**
+     * Remove the record at the location from the indexes.
+     *
+     * @param location the location
+     */
+    private void unindex(final long location) {
+        final Segment segment = segmentAt(location);
+        final int position = (int) location;
+        final byte type = segment.buffer.get(position + 1);
+        ids.remove(segment.buffer.getLong(position + 8), location);
+        if (type != AUTHENTICATION_HOLDER) {
+            hashes.remove(segment.buffer.getLong(position + 32), location);
+        }
+        final long expiration = segment.buffer.getLong(position + 16);
+        if (expiration != 0) {
+            expirations.remove(expiration / EXPIRY_BUCKET, location);
+        }
+        final String clientId = clientIdAt(segment, position);
+        if (clientId != null) {
+            clients.remove(clientKey(clientId), location);
+        }
+        for (final long linked : linksAt(segment, position)) {
+            links.remove(linked, location);
+        }
+    }
+
+    /**
+     * Mark the record at the location dead.
+     *
+     * @param location the location
+     */
+    private void markDead(final long location) {
+        final Segment segment = segmentAt(location);
+        final int position = (int) location;
+        segment.buffer.put(position, DEAD);
+        segment.liveBytes -= segment.buffer.getInt(position + 4);
+        segment.liveRecords--;
+    }
+
+    /**
+     * Read the record at the location.
+     *
+     * @param location the location
+     * @return the record
+     */
+    private Record read(final long location) {
+        final Segment segment = segmentAt(location);
+        final int position = (int) location;
+        final ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(position + 1);
+        final byte type = buffer.get();
+        final long[] linked = new long[buffer.getShort()];
+        buffer.getInt();
+        final long id = buffer.getLong();
+        final long expiration = buffer.getLong();
+        final long holder = buffer.getLong();
+        final byte[] hash = new byte[HASH_SIZE];
+        buffer.get(hash);
+        for (int i = 0; i < linked.length; i++) {
+            linked[i] = buffer.getLong();
+        }
+        final byte[] client = new byte[buffer.getShort()];
+        buffer.get(client);
+        final byte[] body = new byte[buffer.getInt()];
+        buffer.get(body);
+        return new Record(type, id, expiration, holder, type != AUTHENTICATION_HOLDER ? hash : null,
+                client.length > 0 ? new String(client, StandardCharsets.UTF_8) : null, linked, body);
+    }
+
+    /**
+     * Gets the type of the record at the location.
+     *
+     * @param location the location
+     * @return the type
+     */
+    private byte typeAt(final long location) {
+        return segmentAt(location).buffer.get((int) location + 1);
+    }
+
+    /**
+     * Gets the expiration of the record at the location.
+     *
+     * @param location the location
+     * @return the expiration, or zero
+     */
+    private long expirationAt(final long location) {
+        return segmentAt(location).buffer.getLong((int) location + 16);
+    }
+
+    /**
+     * Gets the authentication holder id of the record at the location.
+     *
+     * @param location the location
+     * @return the holder id, or zero
+     */
+    private long holderAt(final long location) {
+        return segmentAt(location).buffer.getLong((int) location + 24);
+    }
+
+    /**
+     * Whether the value hash of the record at the location equals the given hash.
+     *
+     * @param location the location
+     * @param hash     the hash
+     * @return true if equal
+     */
+    private boolean hashEquals(final long location, final byte[] hash) {
+        final ByteBuffer buffer = segmentAt(location).buffer;
+        final int position = (int) location + 32;
+        for (int i = 0; i < HASH_SIZE; i++) {
+            if (buffer.get(position + i) != hash[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the client id of the record at the position.
+     *
+     * @param segment  the segment
+     * @param position the position
+     * @return the client id, or null
+     */
+    private static String clientIdAt(final Segment segment, final int position) {
+        final int offset = position + RECORD_HEADER + 8 * segment.buffer.getShort(position + 2);
+        final int length = segment.buffer.getShort(offset);
+        if (length == 0) {
+            return null;
+        }
+        final byte[] client = new byte[length];
+        final ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(offset + 2);
+        buffer.get(client);
+        return new String(client, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gets the ids the record at the position refers to: its holder and its links.
+     *
+     * @param segment  the segment
+     * @param position the position
+     * @return the non-zero ids
+     */
+    private static long[] linksAt(final Segment segment, final int position) {
+        final int count = segment.buffer.getShort(position + 2);
+        final long[] linked = new long[count + 1];
+        int found = 0;
+        final long holder = segment.buffer.getLong(position + 24);
+        if (holder != 0) {
+            linked[found++] = holder;
+        }
+        for (int i = 0; i < count; i++) {
+            final long link = segment.buffer.getLong(position + RECORD_HEADER + 8 * i);
+            if (link != 0) {
+                linked[found++] = link;
+            }
+        }
+        return found == linked.length ? linked : Arrays.copyOf(linked, found);
+    }
+
+    /**
+     * Gets the segment of the location.
+     *
+     * @param location the location
+     * @return the segment
+     */
+    private Segment segmentAt(final long location) {
+        return segments.get((int) (location >>> 32));
+    }
+
+    /**
+     * Gets the location of the position in the segment.
+     *
+     * @param segment  the segment
+     * @param position the position
+     * @return the location
+     */
+    private static long location(final Segment segment, final int position) {
+        return ((long) segment.number << 32) | position;
+    }
+
+    /**
+     * Gets the index key of the client id.
+     *
+     * @param clientId the client id
+     * @return the key
+     */
+    private static long clientKey(final String clientId) {
+        return Hashing.murmur3_128().hashString(clientId, StandardCharsets.UTF_8).asLong();
+    }
+
+    /**
+     * Round the length up to a multiple of eight.
+     *
+     * @param length the length
+     * @return the aligned length
+     */
+    private static int align(final int length) {
+        return (length + 7) & ~7;
+    }
+
+    /**
+     * A record of the store. The meaning of the links and the body depends on the type.
+     */
+    static final class Record {
+
+        /**
+         * The Type.
+         */
+        private final byte type;
+
+        /**
+         * The Id.
+         */
+        private final long id;
+
+        /**
+         * The expiration in milliseconds, or zero.
+         */
+        private final long expiration;
+
+        /**
+         * The authentication holder id, or zero.
+         */
+        private final long holder;
+
+        /**
+         * The value hash, or null.
+         */
+        private final byte[] hash;
+
+        /**
+         * The client id, or null.
+         */
+        private final String clientId;
+
+        /**
+         * The ids of linked records, zero where there is none.
+         */
+        private final long[] links;
+
+        /**
+         * The body.
+         */
+        private final byte[] body;
+
+        /**
+         * Instantiates a new record.
+         *
+         * @param recordType       the type
+         * @param recordId         the id
+         * @param recordExpiration the expiration in milliseconds, or zero
+         * @param holderId         the authentication holder id, or zero
+         * @param valueHash        the value hash, or null
+         * @param client           the client id, or null
+         * @param linked           the ids of linked records
+         * @param content          the body
+         */
+        Record(final byte recordType, final long recordId, final long recordExpiration, final long holderId,
+               final byte[] valueHash, final String client, final long[] linked, final byte[] content) {
+            this.type = recordType;
+            this.id = recordId;
+            this.expiration = recordExpiration;
+            this.holder = holderId;
+            this.hash = valueHash;
+            this.clientId = client;
+            this.links = linked;
+            this.body = content;
+        }
+
+        /**
+         * Gets type.
+         *
+         * @return the type
+         */
+        byte getType() {
+            return type;
+        }
+
+        /**
+         * Gets id.
+         *
+         * @return the id
+         */
+        long getId() {
+            return id;
+        }
+
+        /**
+         * Gets expiration.
+         *
+         * @return the expiration in milliseconds, or zero
+         */
+        long getExpiration() {
+            return expiration;
+        }
+
+        /**
+         * Gets holder.
+         *
+         * @return the authentication holder id, or zero
+         */
+        long getHolder() {
+            return holder;
+        }
+
+        /**
+         * Gets hash.
+         *
+         * @return the value hash, or null
+         */
+        byte[] getHash() {
+            return hash;
+        }
+
+        /**
+         * Gets client id.
+         *
+         * @return the client id, or null
+         */
+        String getClientId() {
+            return clientId;
+        }
+
+        /**
+         * Gets links.
+         *
+         * @return the ids of linked records
+         */
+        long[] getLinks() {
+            return links;
+        }
+
+        /**
+         * Gets body.
+         *
+         * @return the body
+         */
+        byte[] getBody() {
+            return body;
+        }
+    }
+
+    /**
+     * A memory-mapped segment file.
+     */
+    private static final class Segment {
+
+        /**
+         * The Number.
+         */
+        private final int number;
+
+        /**
+         * The File.
+         */
+        private final File file;
+
+        /**
+         * The open file.
+         */
+        private final RandomAccessFile randomAccessFile;
+
+        /**
+         * The mapped contents.
+         */
+        private final MappedByteBuffer buffer;
+
+        /**
+         * Size of the mapping.
+         */
+        private final int capacity;
+
+        /**
+         * Where the next record is written.
+         */
+        private int position;
+
+        /**
+         * Bytes taken by live records.
+         */
+        private long liveBytes;
+
+        /**
+         * Number of live records.
+         */
+        private int liveRecords;
+
+        /**
+         * Instantiates a new segment.
+         *
+         * @param segmentNumber the number
+         * @param segmentFile   the file
+         * @param raf           the open file
+         * @param mapped        the mapped contents
+         */
+        private Segment(final int segmentNumber, final File segmentFile, final RandomAccessFile raf,
+                        final MappedByteBuffer mapped) {
+            this.number = segmentNumber;
+            this.file = segmentFile;
+            this.randomAccessFile = raf;
+            this.buffer = mapped;
+            this.capacity = mapped.capacity();
+        }
+
+        /**
+         * Open and map a segment file, creating it if needed.
+         *
+         * @param number the number
+         * @param file   the file
+         * @param size   the size of the file
+         * @return the segment
+         * @throws IOException if the file cannot be mapped
+         */
+        static Segment open(final int number, final File file, final int size) throws IOException {
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                if (raf.length() < size) {
+                    raf.setLength(size);
+                }
+                final MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                return new Segment(number, file, raf, mapped);
+            } catch (final IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Write the contents out and close the file. The mapping stays
+         * valid until the buffer is collected.
+         */
+        void close() {
+            buffer.force();
+            try {
+                randomAccessFile.close();
+            } catch (final IOException e) {
+                LoggerFactory.getLogger(MappedTokenStore.class).warn("Unable to close token store segment {}",
+                        file, e);
+            }
+        }
+    }
+}
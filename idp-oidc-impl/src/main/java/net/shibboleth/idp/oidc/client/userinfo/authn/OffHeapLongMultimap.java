@@ -0,0 +1,299 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Multimap of long keys to long values held in a direct buffer, so that
+ * its entries are invisible to the garbage collector. Entries live in an
+ * open-addressed table with linear probing; a key may map to several
+ * values, which then occupy consecutive slots of the probe sequence.
+ * Zero is not a valid value, as it marks an empty slot.
+ * <p>
+ * Not thread-safe; callers serialize writes against reads.
+ */
+final class OffHeapLongMultimap {
+
+    /**
+     * Bytes per slot: the key followed by the value.
+     */
+    private static final int SLOT_SIZE = 16;
+
+    /**
+     * Largest number of slots a single direct buffer can hold.
+     */
+    private static final int MAX_CAPACITY = 1 << 26;
+
+    /**
+     * The slots.
+     */
+    private ByteBuffer table;
+
+    /**
+     * Number of slots, a power of two.
+     */
+    private int capacity;
+
+    /**
+     * Number of entries.
+     */
+    private int size;
+
+    /**
+     * Instantiates a new multimap.
+     *
+     * @param initialCapacity the initial number of slots, rounded up to a power of two
+     */
+    OffHeapLongMultimap(final int initialCapacity) {
+        int slots = 16;
+        while (slots < initialCapacity && slots < MAX_CAPACITY) {
+            slots <<= 1;
+        }
+        this.capacity = slots;
+        this.table = ByteBuffer.allocateDirect(slots * SLOT_SIZE);
+    }
+
+    /**
+     * Number of entries.
+     *
+     * @return the size
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Bytes held off-heap.
+     *
+     * @return the bytes
+     */
+    long getAllocatedBytes() {
+        return (long) capacity * SLOT_SIZE;
+    }
+
+    /**
+     * Add an entry.
+     *
+     * @param key   the key
+     * @param value the value, not zero
+     */
+    void put(final long key, final long value) {
+        if (value == 0) {
+            throw new IllegalArgumentException("Zero is not a valid value");
+        }
+        if ((size + 1) * 4L > capacity * 3L) {
+            resize();
+        }
+        int slot = home(key);
+        while (valueAt(slot) != 0) {
+            slot = next(slot);
+        }
+        table.putLong(slot * SLOT_SIZE, key);
+        table.putLong(slot * SLOT_SIZE + 8, value);
+        size++;
+    }
+
+    /**
+     * Remove an entry. Entries further along the probe sequence are shifted
+     * back into the freed slot where needed, so that no tombstones are left.
+     *
+     * @param key   the key
+     * @param value the value
+     * @return true if the entry was present
+     */
+    boolean remove(final long key, final long value) {
+        int slot = home(key);
+        long current = valueAt(slot);
+        while (current != 0 && (current != value || keyAt(slot) != key)) {
+            slot = next(slot);
+            current = valueAt(slot);
+        }
+        if (current == 0) {
+            return false;
+        }
+
+        int hole = slot;
+        int probe = slot;
+        while (true) {
+            probe = next(probe);
+            if (valueAt(probe) == 0) {
+                break;
+            }
+            final int probeHome = home(keyAt(probe));
+            final boolean stays = probe > hole
+                    ? probeHome > hole && probeHome <= probe
+                    : probeHome > hole || probeHome <= probe;
+            if (!stays) {
+                table.putLong(hole * SLOT_SIZE, keyAt(probe));
+                table.putLong(hole * SLOT_SIZE + 8, valueAt(probe));
+                hole = probe;
+            }
+        }
+        table.putLong(hole * SLOT_SIZE, 0);
+        table.putLong(hole * SLOT_SIZE + 8, 0);
+        size--;
+        return true;
+    }
+
+    /**
+     * Gets the first value of the key.
+     *
+     * @param key the key
+     * @return the value, or zero if the key has none
+     */
+    long getFirst(final long key) {
+        int slot = home(key);
+        long value = valueAt(slot);
+        while (value != 0) {
+            if (keyAt(slot) == key) {
+                return value;
+            }
+            slot = next(slot);
+            value = valueAt(slot);
+        }
+        return 0;
+    }
+
+    /**
+     * Gets all values of the key.
+     *
+     * @param key the key
+     * @return the values, possibly empty
+     */
+    long[] get(final long key) {
+        long[] values = new long[1];
+        int count = 0;
+        int slot = home(key);
+        long value = valueAt(slot);
+        while (value != 0) {
+            if (keyAt(slot) == key) {
+                if (count == values.length) {
+                    values = Arrays.copyOf(values, count * 2);
+                }
+                values[count++] = value;
+            }
+            slot = next(slot);
+            value = valueAt(slot);
+        }
+        return count == values.length ? values : Arrays.copyOf(values, count);
+    }
+
+    /**
+     * Whether the key has any value.
+     *
+     * @param key the key
+     * @return true if present
+     */
+    boolean containsKey(final long key) {
+        return getFirst(key) != 0;
+    }
+
+    /**
+     * Gets all values, in slot order.
+     *
+     * @return the values
+     */
+    long[] values() {
+        final long[] values = new long[size];
+        int count = 0;
+        for (int slot = 0; slot < capacity && count < size; slot++) {
+            final long value = valueAt(slot);
+            if (value != 0) {
+                values[count++] = value;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Remove all entries.
+     */
+    void clear() {
+        for (int i = 0; i < capacity * SLOT_SIZE; i += 8) {
+            table.putLong(i, 0);
+        }
+        size = 0;
+    }
+
+    /**
+     * Double the table, placing every entry again.
+     */
+    private void resize() {
+        if (capacity >= MAX_CAPACITY) {
+            throw new IllegalStateException("Off-heap index cannot grow beyond " + MAX_CAPACITY + " entries");
+        }
+        final ByteBuffer old = table;
+        final int oldCapacity = capacity;
+        this.capacity = oldCapacity << 1;
+        this.table = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+        this.size = 0;
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            final long value = old.getLong(slot * SLOT_SIZE + 8);
+            if (value != 0) {
+                put(old.getLong(slot * SLOT_SIZE), value);
+            }
+        }
+    }
+
+    /**
+     * Gets the key in the slot.
+     *
+     * @param slot the slot
+     * @return the key
+     */
+    private long keyAt(final int slot) {
+        return table.getLong(slot * SLOT_SIZE);
+    }
+
+    /**
+     * Gets the value in the slot.
+     *
+     * @param slot the slot
+     * @return the value, or zero if the slot is empty
+     */
+    private long valueAt(final int slot) {
+        return table.getLong(slot * SLOT_SIZE + 8);
+    }
+
+    /**
+     * Gets the slot following the given one.
+     *
+     * @param slot the slot
+     * @return the next slot
+     */
+    private int next(final int slot) {
+        return (slot + 1) & (capacity - 1);
+    }
+
+    /**
+     * Gets the first slot probed for the key.
+     *
+     * @param key the key
+     * @return the slot
+     */
+    private int home(final long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h & (capacity - 1);
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes and reads the bodies of {@link MappedTokenStore} records: strings
+ * as a length followed by their UTF-8 bytes, collections and maps as a
+ * count followed by their elements. A length or count of -1 stands for null.
+ */
+final class RecordCodec {
+
+    /**
+     * Instantiates a new record codec.
+     */
+    private RecordCodec() {
+    }
+
+    /**
+     * Writer of a record body.
+     */
+    static final class Writer {
+
+        /**
+         * The bytes written.
+         */
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+
+        /**
+         * The output.
+         */
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        /**
+         * Write a boolean.
+         *
+         * @param value the value
+         * @return this writer
+         */
+        Writer writeBoolean(final boolean value) {
+            try {
+                out.writeBoolean(value);
+            } catch (final IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return this;
+        }
+
+        /**
+         * Write a string.
+         *
+         * @param value the value, or null
+         * @return this writer
+         */
+        Writer writeString(final String value) {
+            try {
+                if (value == null) {
+                    out.writeInt(-1);
+                } else {
+                    final byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(encoded.length);
+                    out.write(encoded);
+                }
+            } catch (final IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return this;
+        }
+
+        /**
+         * Write a collection of strings.
+         *
+         * @param values the values, or null
+         * @return this writer
+         */
+        Writer writeStrings(final Collection<String> values) {
+            writeCount(values != null ? values.size() : -1);
+            if (values != null) {
+                for (final String value : values) {
+                    writeString(value);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Write a map of strings.
+         *
+         * @param values the values, or null
+         * @return this writer
+         */
+        Writer writeMap(final Map<String, String> values) {
+            writeCount(values != null ? values.size() : -1);
+            if (values != null) {
+                for (final Map.Entry<String, String> entry : values.entrySet()) {
+                    writeString(entry.getKey());
+                    writeString(entry.getValue());
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Gets the bytes written.
+         *
+         * @return the bytes
+         */
+        byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+
+        /**
+         * Write a count.
+         *
+         * @param count the count
+         */
+        private void writeCount(final int count) {
+            try {
+                out.writeInt(count);
+            } catch (final IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Reader of a record body.
+     */
+    static final class Reader {
+
+        /**
+         * The input.
+         */
+        private final DataInputStream in;
+
+        /**
+         * Instantiates a new reader.
+         *
+         * @param body the body
+         */
+        Reader(final byte[] body) {
+            this.in = new DataInputStream(new ByteArrayInputStream(body));
+        }
+
+        /**
+         * Read a boolean.
+         *
+         * @return the value
+         */
+        boolean readBoolean() {
+            try {
+                return in.readBoolean();
+            } catch (final IOException e) {
+                throw new IllegalStateException("Malformed token store record", e);
+            }
+        }
+
+        /**
+         * Read a string.
+         *
+         * @return the value, or null
+         */
+        String readString() {
+            final int length = readCount();
+            if (length < 0) {
+                return null;
+            }
+            final byte[] encoded = new byte[length];
+            try {
+                in.readFully(encoded);
+            } catch (final IOException e) {
+                throw new IllegalStateException("Malformed token store record", e);
+            }
+            return new String(encoded, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Read a set of strings. Null reads as an empty set.
+         *
+         * @return the values
+         */
+        Set<String> readStrings() {
+            final int count = readCount();
+            final Set<String> values = new LinkedHashSet<>(Math.max(count, 0) * 2);
+            for (int i = 0; i < count; i++) {
+                values.add(readString());
+            }
+            return values;
+        }
+
+        /**
+         * Read a map of strings. Null reads as an empty map.
+         *
+         * @return the values
+         */
+        Map<String, String> readMap() {
+            final int count = readCount();
+            final Map<String, String> values = new LinkedHashMap<>(Math.max(count, 0) * 2);
+            for (int i = 0; i < count; i++) {
+                values.put(readString(), readString());
+            }
+            return values;
+        }
+
+        /**
+         * Read a count.
+         *
+         * @return the count
+         */
+        private int readCount() {
+            try {
+                return in.readInt();
+            } catch (final IOException e) {
+                throw new IllegalStateException("Malformed token store record", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import com.google.common.hash.HashCode;
+import com.google.common.primitives.Longs;
+import org.mitre.oauth2.model.OAuth2AccessTokenEntity;
+import org.mitre.oauth2.model.OAuth2RefreshTokenEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-memory set of revoked tokens, fronted by a Bloom filter so that
+ * asking about a token that was not revoked, the common case, costs a
+ * few bit probes rather than a lookup. Access and refresh tokens are
+ * added by the hash of their value as the token service revokes them.
+ * Entries are dropped once their token expires, at which point the
+ * filter is rebuilt from the remaining entries.
+ */
+@Component("revokedTokenFilter")
+public class RevokedTokenFilter implements TokenRevocationListener {
+
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(RevokedTokenFilter.class);
+
+    /**
+     * Expected number of revoked tokens the filter is sized for.
+     */
+    @Value("%{oidc.revocation.filter.expected:100000}")
+    private int expectedRevocations;
+
+    /**
+     * How long a revoked token without an expiration is kept, in seconds.
+     */
+    @Value("%{oidc.revocation.filter.retention:86400}")
+    private long retention;
+
+    /**
+     * How often expired entries are dropped, in seconds.
+     */
+    @Value("%{oidc.revocation.filter.purge.interval:300}")
+    private long purgeInterval;
+
+    /**
+     * Expiration of the revoked tokens, keyed by token hash.
+     */
+    private final ConcurrentMap<HashCode, Long> revokedTokens = new ConcurrentHashMap<>();
+
+    /**
+     * The filter over the revoked token hashes.
+     */
+    private volatile BloomFilter filter;
+
+    /**
+     * When expired entries are next dropped, in milliseconds.
+     */
+    private volatile long nextPurgeAt;
+
+    /**
+     * Initialize the filter.
+     */
+    @PostConstruct
+    public void initialize() {
+        this.filter = new BloomFilter(expectedRevocations);
+        this.nextPurgeAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(purgeInterval);
+    }
+
+    /**
+     * Sets the expected number of revoked tokens.
+     *
+     * @param count the count
+     */
+    public void setExpectedRevocations(final int count) {
+        this.expectedRevocations = count;
+    }
+
+    /**
+     * Sets how long a revoked token without an expiration is kept, in seconds.
+     *
+     * @param seconds the seconds
+     */
+    public void setRetention(final long seconds) {
+        this.retention = seconds;
+    }
+
+    /**
+     * Sets how often expired entries are dropped, in seconds.
+     *
+     * @param seconds the seconds
+     */
+    public void setPurgeInterval(final long seconds) {
+        this.purgeInterval = seconds;
+    }
+
+    /**
+     * Whether the token was revoked.
+     *
+     * @param tokenHash the token hash
+     * @return true if the token was revoked
+     */
+    public boolean isRevoked(final HashCode tokenHash) {
+        purgeIfDue();
+        return filter.mightContain(tokenHash) && revokedTokens.containsKey(tokenHash);
+    }
+
+    /**
+     * Number of revoked tokens tracked.
+     *
+     * @return the size
+     */
+    public int getSize() {
+        return revokedTokens.size();
+    }
+
+    @Override
+    public void accessTokenRevoked(final OAuth2AccessTokenEntity token) {
+        add(TokenHashing.hash(token.getValue()), token.getExpiration());
+    }
+
+    @Override
+    public void accessTokensRevoked(final OAuth2RefreshTokenEntity refreshToken) {
+        // the access tokens are not known by value; their cached checks are dropped by their holders
+    }
+
+    @Override
+    public void refreshTokenRevoked(final OAuth2RefreshTokenEntity refreshToken) {
+        add(TokenHashing.hash(refreshToken.getValue()), refreshToken.getExpiration());
+    }
+
+    /**
+     * Add the revoked token.
+     *
+     * @param tokenHash  the token hash
+     * @param expiration the token expiration, or null
+     */
+    private void add(final HashCode tokenHash, final Date expiration) {
+        purgeIfDue();
+        revokedTokens.put(tokenHash, expiresAt(expiration));
+        synchronized (this) {
+            if (revokedTokens.size() > filter.getCapacity()) {
+                rebuild();
+            } else {
+                filter.put(tokenHash);
+            }
+        }
+    }
+
+    /**
+     * Calculate until when a revoked token is kept.
+     *
+     * @param expiration the token expiration, or null
+     * @return the instant, in milliseconds
+     */
+    private long expiresAt(final Date expiration) {
+        return expiration != null ? expiration.getTime()
+                : System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(retention);
+    }
+
+    /**
+     * Drop expired entries and rebuild the filter, if it is time to.
+     */
+    private void purgeIfDue() {
+        final long now = System.currentTimeMillis();
+        if (now < nextPurgeAt) {
+            return;
+        }
+        synchronized (this) {
+            if (now < nextPurgeAt) {
+                return;
+            }
+            final Iterator<Map.Entry<HashCode, Long>> it = revokedTokens.entrySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().getValue() <= now) {
+                    it.remove();
+                }
+            }
+            rebuild();
+            nextPurgeAt = now + TimeUnit.SECONDS.toMillis(purgeInterval);
+        }
+    }
+
+    /**
+     * Rebuild the filter from the revoked tokens. The new filter is
+     * published only once it holds every entry.
+     */
+    private void rebuild() {
+        final BloomFilter rebuilt = new BloomFilter(Math.max(expectedRevocations, revokedTokens.size() * 2));
+        for (final HashCode tokenHash : revokedTokens.keySet()) {
+            rebuilt.put(tokenHash);
+        }
+        this.filter = rebuilt;
+        log.debug("Rebuilt revoked token filter over {} tokens", revokedTokens.size());
+    }
+
+    /**
+     * A Bloom filter over token hashes with a false positive rate of about
+     * one percent at capacity. The hashes are already uniform, so the probe
+     * positions are derived from them by double hashing.
+     */
+    private static final class BloomFilter {
+        /**
+         * Number of probes per hash.
+         */
+        private static final int PROBES = 7;
+
+        /**
+         * Bits per expected entry.
+         */
+        private static final int BITS_PER_ENTRY = 10;
+
+        /**
+         * The bits.
+         */
+        private final AtomicLongArray bits;
+
+        /**
+         * Number of bits.
+         */
+        private final long bitCount;
+
+        /**
+         * Number of entries the filter is sized for.
+         */
+        private final int capacity;
+
+        /**
+         * Instantiates a new bloom filter.
+         *
+         * @param expected the expected number of entries
+         */
+        BloomFilter(final int expected) {
+            this.capacity = Math.max(expected, 64);
+            this.bits = new AtomicLongArray((int) ((long) capacity * BITS_PER_ENTRY / Long.SIZE) + 1);
+            this.bitCount = (long) bits.length() * Long.SIZE;
+        }
+
+        /**
+         * Gets the number of entries the filter is sized for.
+         *
+         * @return the capacity
+         */
+        int getCapacity() {
+            return capacity;
+        }
+
+        /**
+         * Add the hash.
+         *
+         * @param hash the hash
+         */
+        void put(final HashCode hash) {
+            final byte[] bytes = hash.asBytes();
+            final long h1 = word(bytes, 0);
+            final long h2 = word(bytes, Longs.BYTES);
+            for (int i = 0; i < PROBES; i++) {
+                final long index = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+                final int word = (int) (index >>> 6);
+                final long mask = 1L << index;
+                long current = bits.get(word);
+                while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask)) {
+                    current = bits.get(word);
+                }
+            }
+        }
+
+        /**
+         * Whether the hash might have been added.
+         *
+         * @param hash the hash
+         * @return false if the hash was certainly not added
+         */
+        boolean mightContain(final HashCode hash) {
+            final byte[] bytes = hash.asBytes();
+            final long h1 = word(bytes, 0);
+            final long h2 = word(bytes, Longs.BYTES);
+            for (int i = 0; i < PROBES; i++) {
+                final long index = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+                if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Read eight bytes of the hash as a long.
+         *
+         * @param bytes  the hash bytes
+         * @param offset the offset
+         * @return the long
+         */
+        private static long word(final byte[] bytes, final int offset) {
+            return Longs.fromBytes(bytes[offset], bytes[offset + 1], bytes[offset + 2], bytes[offset + 3],
+                    bytes[offset + 4], bytes[offset + 5], bytes[offset + 6], bytes[offset + 7]);
+        }
+    }
+}
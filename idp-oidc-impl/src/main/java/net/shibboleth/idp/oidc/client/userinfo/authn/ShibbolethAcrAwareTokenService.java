@@ -19,7 +19,6 @@ package net.shibboleth.idp.oidc.client.userinfo.authn;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.nimbusds.jose.Algorithm;
 import com.nimbusds.jose.JWEHeader;
@@ -36,7 +35,6 @@ import org.mitre.jwt.encryption.service.JWTEncryptionAndDecryptionService;
 import org.mitre.jwt.signer.service.JWTSigningAndValidationService;
 import org.mitre.jwt.signer.service.impl.ClientKeyCacheService;
 import org.mitre.jwt.signer.service.impl.SymmetricKeyJWTValidatorCacheService;
-import org.mitre.oauth2.model.AuthenticationHolderEntity;
 import org.mitre.oauth2.model.ClientDetailsEntity;
 import org.mitre.oauth2.model.OAuth2AccessTokenEntity;
 import org.mitre.oauth2.repository.AuthenticationHolderRepository;
@@ -50,15 +48,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Primary;
-import org.springframework.security.core.GrantedAuthority;
-import org.springframework.security.core.authority.SimpleGrantedAuthority;
-import org.springframework.security.oauth2.provider.OAuth2Authentication;
 import org.springframework.security.oauth2.provider.OAuth2Request;
 import org.springframework.stereotype.Component;
 
-import java.util.Collection;
 import java.util.Date;
-import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
@@ -109,6 +102,24 @@ public class ShibbolethAcrAwareTokenService implements OIDCTokenService {
     @Autowired
     private OAuth2TokenEntityService tokenService;
 
+    /**
+     * Cached signers and header templates.
+     */
+    @Autowired
+    private JWSSignerCache signerCache;
+
+    /**
+     * Shared authentication holders of client-level tokens.
+     */
+    @Autowired
+    private ClientAuthenticationHolderCache clientHolderCache;
+
+    /**
+     * The acr and amr values of authentication holders.
+     */
+    @Autowired
+    private AuthenticationRefCache authenticationRefCache;
+
     @Override
     public OAuth2AccessTokenEntity createIdToken(final ClientDetailsEntity client, final OAuth2Request request,
                                                  final Date issueTime, final String sub,
@@ -223,20 +234,23 @@ public class ShibbolethAcrAwareTokenService implements OIDCTokenService {
      */
     private JWT signIdTokenForHs256Hs384Hs512(final ClientDetailsEntity client,
                                               final JWSAlgorithm signingAlg, final JWTClaimsSet.Builder idClaims) {
-        final JWT idToken;
         log.debug("Client {} required a signed idToken with signing alg of {}",
                 client.getClientId(), signingAlg);
-        final JWSHeader header = new JWSHeader(signingAlg, null, null,
-                null, null, null, null, null, null, null,
-                jwtService.getDefaultSignerKeyId(),
-                null, null);
-        idToken = new SignedJWT(header, idClaims.build());
-
-        final JWTSigningAndValidationService signer = symmetricCacheService.getSymmetricValidtor(client);
+        final JWTClaimsSet claims = idClaims.build();
 
         // sign it with the client's secret
-        signer.signJwt((SignedJWT) idToken);
-        return idToken;
+        final SignedJWT idToken = signerCache.signWithClientSecret(client, jwtService.getDefaultSignerKeyId(),
+                signingAlg, claims);
+        if (idToken != null) {
+            return idToken;
+        }
+
+        log.debug("No cached signer can sign with the secret of client {}; using the validator cache",
+                client.getClientId());
+        final SignedJWT signed = new SignedJWT(buildHeader(signingAlg), claims);
+        final JWTSigningAndValidationService signer = symmetricCacheService.getSymmetricValidtor(client);
+        signer.signJwt(signed);
+        return signed;
     }
 
     /**
@@ -346,108 +360,110 @@ public class ShibbolethAcrAwareTokenService implements OIDCTokenService {
     private JWT signIdTokenWithDefaultService(final ClientDetailsEntity client,
                                               final JWSAlgorithm signingAlg,
                                               final JWTClaimsSet.Builder idClaims) {
-        final JWT idToken;
-        idClaims.claim(OIDCConstants.KID, jwtService.getDefaultSignerKeyId());
+        final String keyId = jwtService.getDefaultSignerKeyId();
+        idClaims.claim(OIDCConstants.KID, keyId);
         log.debug("Client {} required a signed idToken with signing alg of {} and kid {}",
-                client.getClientId(), signingAlg, jwtService.getDefaultSignerKeyId());
+                client.getClientId(), signingAlg, keyId);
 
-        final JWSHeader header = new JWSHeader(signingAlg, null,
-                null, null, null, null, null, null, null, null,
-                jwtService.getDefaultSignerKeyId(),
-                null, null);
+        // sign it with the server's key
+        return signWithServerKey(signingAlg, idClaims.build());
+    }
 
-        idToken = new SignedJWT(header, idClaims.build());
+    /**
+     * Sign the claims with the default server key, using a cached signer
+     * when the key supports the algorithm and the signing service otherwise.
+     *
+     * @param signingAlg the signing alg
+     * @param claims     the claims
+     * @return the signed jwt
+     */
+    private SignedJWT signWithServerKey(final JWSAlgorithm signingAlg, final JWTClaimsSet claims) {
+        final SignedJWT cached = signerCache.signWithServerKey(jwtService.getDefaultSignerKeyId(), signingAlg, claims);
+        if (cached != null) {
+            return cached;
+        }
 
-        log.debug("Using the default signer service to sign the idToken. Default signing alg is {}",
+        log.debug("Using the default signer service to sign the token. Default signing alg is {}",
                 jwtService.getDefaultSigningAlgorithm());
+        final SignedJWT signed = new SignedJWT(buildHeader(signingAlg), claims);
+        jwtService.signJwt(signed);
+        return signed;
+    }
 
-        // sign it with the server's key
-        jwtService.signJwt((SignedJWT) idToken);
-        return idToken;
+    /**
+     * Build a header for the default signer key.
+     *
+     * @param signingAlg the signing alg
+     * @return the header
+     */
+    private JWSHeader buildHeader(final JWSAlgorithm signingAlg) {
+        return new JWSHeader.Builder(signingAlg).keyID(jwtService.getDefaultSignerKeyId()).build();
     }
 
     /**
-     * Calculate amr and acr claims.
+     * Calculate amr and acr claims. The values are kept per authentication
+     * holder, so they are read out of its authorities only once.
      *
      * @param accessToken the access token
      * @param idClaims    the id claims
      */
     private void calculateAmrAndAcrClaims(final OAuth2AccessTokenEntity accessToken,
                                           final JWTClaimsSet.Builder idClaims) {
-        final OAuth2Authentication authN = accessToken.getAuthenticationHolder().getAuthentication();
-        final Collection<GrantedAuthority> authorities = authN.getAuthorities();
-        for (final GrantedAuthority authority : authorities) {
-            log.debug("Evaluating authority {} of the authentication", authority);
-            final AuthenticationClassRefAuthority acr =
-                    AuthenticationClassRefAuthority.getAuthenticationClassRefAuthority(authority);
-            if (acr != null) {
-                idClaims.claim(OIDCConstants.ACR, acr.getAuthority());
-                log.debug("Added {} claim as {}", OIDCConstants.ACR, acr.getAuthority());
-            }
-            final AuthenticationMethodRefAuthority amr =
-                    AuthenticationMethodRefAuthority.getAuthenticationClassRefAuthority(authority);
-            if (amr != null) {
-                idClaims.claim(OIDCConstants.AMR, amr.getAuthority());
-                log.debug("Added {} claim as {}", OIDCConstants.AMR, amr.getAuthority());
-            }
+        final AuthenticationRefCache.AuthenticationRefs refs =
+                authenticationRefCache.get(accessToken.getAuthenticationHolder());
+        if (refs.getAcr() != null) {
+            idClaims.claim(OIDCConstants.ACR, refs.getAcr());
+            log.debug("Added {} claim as {}", OIDCConstants.ACR, refs.getAcr());
+        }
+        if (refs.getAmr() != null) {
+            idClaims.claim(OIDCConstants.AMR, refs.getAmr());
+            log.debug("Added {} claim as {}", OIDCConstants.AMR, refs.getAmr());
         }
     }
 
 
     @Override
     public OAuth2AccessTokenEntity createRegistrationAccessToken(final ClientDetailsEntity client) {
-        return createAssociatedToken(client, Sets.newHashSet(SystemScopeService.REGISTRATION_TOKEN_SCOPE));
+        return createAssociatedToken(client, Sets.newHashSet(SystemScopeService.REGISTRATION_TOKEN_SCOPE),
+                tokenService.getRegistrationAccessTokenForClient(client));
     }
 
     @Override
     public OAuth2AccessTokenEntity createResourceAccessToken(final ClientDetailsEntity client) {
-        return createAssociatedToken(client, Sets.newHashSet(SystemScopeService.RESOURCE_TOKEN_SCOPE));
+        return createAssociatedToken(client, Sets.newHashSet(SystemScopeService.RESOURCE_TOKEN_SCOPE),
+                tokenService.getRegistrationAccessTokenForClient(client));
     }
 
     @Override
     public OAuth2AccessTokenEntity rotateRegistrationAccessTokenForClient(final ClientDetailsEntity client) {
-        // revoke any previous tokens
         final OAuth2AccessTokenEntity oldToken = tokenService.getRegistrationAccessTokenForClient(client);
         if (oldToken != null) {
-            final Set<String> scope = oldToken.getScope();
-            tokenService.revokeAccessToken(oldToken);
-            return createAssociatedToken(client, scope);
+            return createAssociatedToken(client, oldToken.getScope(), oldToken);
         } else {
             return null;
         }
     }
 
     /**
-     * Create associated token o auth 2 access token entity.
+     * Create a token for the client itself. The previous registration token,
+     * looked up once by the caller, is revoked first. The token shares the
+     * authentication holder of the client's other tokens with the same scope.
      *
-     * @param client the client
-     * @param scope  the scope
+     * @param client   the client
+     * @param scope    the scope
+     * @param oldToken the previous registration token, or null
      * @return the o auth 2 access token entity
      */
-    private OAuth2AccessTokenEntity createAssociatedToken(final ClientDetailsEntity client, final Set<String> scope) {
-
-        // revoke any previous tokens that might exist, just to be sure
-        final OAuth2AccessTokenEntity oldToken = tokenService.getRegistrationAccessTokenForClient(client);
+    private OAuth2AccessTokenEntity createAssociatedToken(final ClientDetailsEntity client, final Set<String> scope,
+                                                          final OAuth2AccessTokenEntity oldToken) {
         if (oldToken != null) {
             tokenService.revokeAccessToken(oldToken);
         }
 
-        // create a new token
-
-        final Map<String, String> authorizationParameters = Maps.newHashMap();
-        final OAuth2Request clientAuth = new OAuth2Request(authorizationParameters, client.getClientId(),
-                Sets.newHashSet(new SimpleGrantedAuthority(OIDCConstants.ROLE_CLIENT)), true,
-                scope, null, null, null, null);
-        final OAuth2Authentication authentication = new OAuth2Authentication(clientAuth, null);
-
         final OAuth2AccessTokenEntity token = new OAuth2AccessTokenEntity();
         token.setClient(client);
         token.setScope(scope);
-
-        AuthenticationHolderEntity authHolder = new AuthenticationHolderEntity();
-        authHolder.setAuthentication(authentication);
-        authHolder = authenticationHolderRepository.save(authHolder);
-        token.setAuthenticationHolder(authHolder);
+        token.setAuthenticationHolder(clientHolderCache.getHolder(client, scope));
 
         final JWTClaimsSet claims = new JWTClaimsSet.Builder()
                 .audience(Lists.newArrayList(client.getClientId()))
@@ -457,14 +473,7 @@ public class ShibbolethAcrAwareTokenService implements OIDCTokenService {
                 .jwtID(UUID.randomUUID().toString())
                 .build();
 
-        final JWSAlgorithm signingAlg = jwtService.getDefaultSigningAlgorithm();
-        final JWSHeader header = new JWSHeader(signingAlg, null, null, null, null, null, null, null, null, null,
-                jwtService.getDefaultSignerKeyId(),
-                null, null);
-        final SignedJWT signed = new SignedJWT(header, claims);
-
-        jwtService.signJwt(signed);
-
+        final SignedJWT signed = signWithServerKey(jwtService.getDefaultSigningAlgorithm(), claims);
         token.setJwt(signed);
 
         return token;
@@ -525,4 +534,58 @@ public class ShibbolethAcrAwareTokenService implements OIDCTokenService {
         this.authenticationHolderRepository = repo;
     }
 
+    /**
+     * Sets encrypters.
+     *
+     * @param svc the svc
+     */
+    public void setEncrypters(final ClientKeyCacheService svc) {
+        this.encrypters = svc;
+    }
+
+    /**
+     * Sets symmetric cache service.
+     *
+     * @param svc the svc
+     */
+    public void setSymmetricCacheService(final SymmetricKeyJWTValidatorCacheService svc) {
+        this.symmetricCacheService = svc;
+    }
+
+    /**
+     * Sets token service.
+     *
+     * @param svc the svc
+     */
+    public void setTokenService(final OAuth2TokenEntityService svc) {
+        this.tokenService = svc;
+    }
+
+    /**
+     * Sets signer cache.
+     *
+     * @param cache the cache
+     */
+    public void setSignerCache(final JWSSignerCache cache) {
+        this.signerCache = cache;
+    }
+
+    /**
+     * Sets client holder cache.
+     *
+     * @param cache the cache
+     */
+    public void setClientHolderCache(final ClientAuthenticationHolderCache cache) {
+        this.clientHolderCache = cache;
+    }
+
+    /**
+     * Sets authentication ref cache.
+     *
+     * @param cache the cache
+     */
+    public void setAuthenticationRefCache(final AuthenticationRefCache cache) {
+        this.authenticationRefCache = cache;
+    }
+
 }
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import net.shibboleth.idp.oidc.client.userinfo.ShibbolethUserInfoRepository;
+import org.mitre.oauth2.model.AuthenticationHolderEntity;
+import org.mitre.oauth2.model.AuthorizationCodeEntity;
+import org.mitre.oauth2.service.impl.DefaultOAuth2AuthorizationCodeService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.oauth2.common.exceptions.InvalidGrantException;
+import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.code.AuthorizationCodeServices;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.util.Date;
+
+/**
+ * Authorization code service that redeems codes kept in memory by the
+ * {@link SingleUseAuthorizationCodeRepository} in one atomic step. The
+ * authentication holder of such a code lives only as long as the code
+ * and is never saved, since tokens issued for the code get a holder of
+ * their own. When codes are not kept in memory, everything is left to
+ * the default code service. Either way, the user info released at the
+ * login is kept for the endpoints that answer for the code later on.
+ */
+@Service("shibbolethAuthorizationCodeService")
+public class ShibbolethAuthorizationCodeService implements AuthorizationCodeServices {
+
+    /**
+     * The default code service.
+     */
+    @Resource(name = "defaultOAuth2AuthorizationCodeService")
+    private DefaultOAuth2AuthorizationCodeService authorizationCodeService;
+
+    /**
+     * The repository.
+     */
+    @Autowired
+    private SingleUseAuthorizationCodeRepository repository;
+
+    /**
+     * The user info repository.
+     */
+    @Autowired
+    private ShibbolethUserInfoRepository userInfoRepository;
+
+    /**
+     * Generates code values the same way the default code service does.
+     */
+    private final RandomValueStringGenerator generator = new RandomValueStringGenerator();
+
+    /**
+     * Sets authorization code service.
+     *
+     * @param service the service
+     */
+    public void setAuthorizationCodeService(final DefaultOAuth2AuthorizationCodeService service) {
+        this.authorizationCodeService = service;
+    }
+
+    /**
+     * Sets repository.
+     *
+     * @param codeRepository the repository
+     */
+    public void setRepository(final SingleUseAuthorizationCodeRepository codeRepository) {
+        this.repository = codeRepository;
+    }
+
+    /**
+     * Sets user info repository.
+     *
+     * @param userInfo the user info repository
+     */
+    public void setUserInfoRepository(final ShibbolethUserInfoRepository userInfo) {
+        this.userInfoRepository = userInfo;
+    }
+
+    @Override
+    public String createAuthorizationCode(final OAuth2Authentication authentication) {
+        final String code;
+        if (!repository.isEnabled()) {
+            code = authorizationCodeService.createAuthorizationCode(authentication);
+        } else {
+            final AuthenticationHolderEntity holder = new AuthenticationHolderEntity();
+            holder.setAuthentication(authentication);
+            final Date expiration = new Date(System.currentTimeMillis()
+                    + authorizationCodeService.getAuthCodeExpirationSeconds() * 1000L);
+            code = generator.generate();
+            repository.save(new AuthorizationCodeEntity(code, holder, expiration));
+        }
+        userInfoRepository.rememberIssued(authentication);
+        return code;
+    }
+
+    @Override
+    public OAuth2Authentication consumeAuthorizationCode(final String code) throws InvalidGrantException {
+        if (!repository.isEnabled()) {
+            return authorizationCodeService.consumeAuthorizationCode(code);
+        }
+        final AuthorizationCodeEntity entity = repository.consume(code);
+        if (entity == null) {
+            throw new InvalidGrantException("No authorization code found for value " + code);
+        }
+        return entity.getAuthenticationHolder().getAuthentication();
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import net.shibboleth.idp.oidc.client.userinfo.ShibbolethUserInfoRepository;
+import org.mitre.oauth2.model.OAuth2AccessTokenEntity;
+import org.mitre.oauth2.model.OAuth2RefreshTokenEntity;
+import org.mitre.oauth2.service.impl.DefaultOAuth2ProviderTokenService;
+import org.mitre.openid.connect.request.ConnectRequestParameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Primary;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.security.oauth2.provider.TokenRequest;
+import org.springframework.stereotype.Service;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Token service that tells the registered {@link TokenRevocationListener}s
+ * about revoked tokens. The access tokens cleared along with a refresh token,
+ * on revocation or on refresh, are reported by the
+ * {@link WriteBehindTokenRepository} that clears them. Tokens are issued
+ * within a deferral of that repository, so that they may be persisted after
+ * the response is sent. Tokens issued at the end of a login, as in the
+ * implicit flow, have the user info released at the login kept for the
+ * endpoints that answer for them later on.
+ * <p>
+ * Tokens kept in the {@link MappedTokenStore}, or written behind, are not
+ * added to the approved site of the request, as saving the site would persist
+ * them to the database; the store, or the write, records the site instead.
+ */
+@Primary
+@Service("shibbolethOAuth2TokenService")
+public class ShibbolethOAuth2TokenService extends DefaultOAuth2ProviderTokenService {
+
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(ShibbolethOAuth2TokenService.class);
+
+    /**
+     * The revocation listeners.
+     */
+    @Autowired(required = false)
+    private List<TokenRevocationListener> revocationListeners = Collections.emptyList();
+
+    /**
+     * The token repository.
+     */
+    @Autowired
+    private WriteBehindTokenRepository writeBehindTokenRepository;
+
+    /**
+     * The repository that keeps tokens in the mapped token store.
+     */
+    @Autowired
+    private MappedTokenRepository mappedTokenRepository;
+
+    /**
+     * The user info repository.
+     */
+    @Autowired
+    private ShibbolethUserInfoRepository userInfoRepository;
+
+    /**
+     * Sets revocation listeners.
+     *
+     * @param listeners the listeners
+     */
+    public void setRevocationListeners(final List<TokenRevocationListener> listeners) {
+        this.revocationListeners = listeners;
+    }
+
+    /**
+     * Sets write behind token repository.
+     *
+     * @param repository the repository
+     */
+    public void setWriteBehindTokenRepository(final WriteBehindTokenRepository repository) {
+        this.writeBehindTokenRepository = repository;
+    }
+
+    /**
+     * Sets mapped token repository.
+     *
+     * @param repository the repository
+     */
+    public void setMappedTokenRepository(final MappedTokenRepository repository) {
+        this.mappedTokenRepository = repository;
+    }
+
+    /**
+     * Sets user info repository.
+     *
+     * @param repository the repository
+     */
+    public void setUserInfoRepository(final ShibbolethUserInfoRepository repository) {
+        this.userInfoRepository = repository;
+    }
+
+    @Override
+    public OAuth2AccessTokenEntity createAccessToken(final OAuth2Authentication authentication)
+            throws AuthenticationException {
+        final OAuth2AccessTokenEntity token = createDeferredAccessToken(authentication);
+        userInfoRepository.rememberIssued(authentication);
+        return token;
+    }
+
+    /**
+     * Create the access token within a deferral of the write-behind repository.
+     *
+     * @param authentication the authentication
+     * @return the access token
+     */
+    private OAuth2AccessTokenEntity createDeferredAccessToken(final OAuth2Authentication authentication) {
+        final boolean deferred = writeBehindTokenRepository.beginDeferredWrites(authentication.getOAuth2Request());
+        try {
+            if (writeBehindTokenRepository.isMapped()) {
+                final OAuth2AccessTokenEntity token = super.createAccessToken(withoutApprovedSite(authentication));
+                final Serializable site = authentication.getOAuth2Request().getExtensions()
+                        .get(ConnectRequestParameters.APPROVED_SITE);
+                if (site != null) {
+                    mappedTokenRepository.linkApprovedSite(token, Long.parseLong(site.toString()));
+                }
+                return token;
+            }
+            if (deferred) {
+                return super.createAccessToken(withoutApprovedSite(authentication));
+            }
+            return super.createAccessToken(authentication);
+        } finally {
+            if (deferred) {
+                writeBehindTokenRepository.endDeferredWrites();
+            }
+        }
+    }
+
+    @Override
+    public void revokeAccessToken(final OAuth2AccessTokenEntity accessToken) {
+        super.revokeAccessToken(accessToken);
+        for (final TokenRevocationListener listener : revocationListeners) {
+            try {
+                listener.accessTokenRevoked(accessToken);
+            } catch (final RuntimeException e) {
+                log.warn("Revocation listener {} failed for access token {}", listener, accessToken.getId(), e);
+            }
+        }
+    }
+
+    @Override
+    public void revokeRefreshToken(final OAuth2RefreshTokenEntity refreshToken) {
+        super.revokeRefreshToken(refreshToken);
+        for (final TokenRevocationListener listener : revocationListeners) {
+            try {
+                listener.refreshTokenRevoked(refreshToken);
+            } catch (final RuntimeException e) {
+                log.warn("Revocation listener {} failed for refresh token {}", listener, refreshToken.getId(), e);
+            }
+        }
+    }
+
+    @Override
+    public OAuth2AccessTokenEntity refreshAccessToken(final String refreshTokenValue, final TokenRequest authRequest)
+            throws AuthenticationException {
+        final boolean deferred = writeBehindTokenRepository.beginDeferredWrites(null);
+        try {
+            return super.refreshAccessToken(refreshTokenValue, authRequest);
+        } finally {
+            if (deferred) {
+                writeBehindTokenRepository.endDeferredWrites();
+            }
+        }
+    }
+
+    /**
+     * Gets the authentication without the approved site extension of its request.
+     *
+     * @param authentication the authentication
+     * @return the authentication, or a copy without the extension
+     */
+    private static OAuth2Authentication withoutApprovedSite(final OAuth2Authentication authentication) {
+        final OAuth2Request request = authentication.getOAuth2Request();
+        if (!request.getExtensions().containsKey(ConnectRequestParameters.APPROVED_SITE)) {
+            return authentication;
+        }
+        final Map<String, Serializable> extensions = new HashMap<>(request.getExtensions());
+        extensions.remove(ConnectRequestParameters.APPROVED_SITE);
+        final OAuth2Request copy = new OAuth2Request(request.getRequestParameters(), request.getClientId(),
+                request.getAuthorities(), request.isApproved(), request.getScope(), request.getResourceIds(),
+                request.getRedirectUri(), request.getResponseTypes(), extensions);
+        final OAuth2Authentication result = new OAuth2Authentication(copy, authentication.getUserAuthentication());
+        result.setDetails(authentication.getDetails());
+        return result;
+    }
+}
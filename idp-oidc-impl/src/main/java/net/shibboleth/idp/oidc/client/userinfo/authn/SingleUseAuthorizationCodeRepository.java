@@ -0,0 +1,370 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import org.mitre.oauth2.model.AuthorizationCodeEntity;
+import org.mitre.oauth2.repository.AuthorizationCodeRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Authorization code repository that keeps codes in memory when enabled,
+ * and hands them to the {@link MappedAuthorizationCodeRepository} otherwise.
+ * A code is redeemed with {@link #consume(String)}, which removes it in a
+ * single atomic step, so that it can be redeemed only once without any
+ * locking or database round-trip. Codes that are never redeemed are
+ * dropped by a {@link TimingWheel} when they expire.
+ * <p>
+ * A clustered deployment registers an {@link AuthorizationCodeReplicator}
+ * bean, which is told about every code issued here and has the final say
+ * on every redemption.
+ * </p>
+ */
+@Component("singleUseAuthorizationCodeRepository")
+@Primary
+public class SingleUseAuthorizationCodeRepository implements AuthorizationCodeRepository {
+
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(SingleUseAuthorizationCodeRepository.class);
+
+    /**
+     * The repository used when codes are not kept in memory.
+     */
+    @Resource(name = "mappedAuthorizationCodeRepository")
+    private AuthorizationCodeRepository authorizationCodeRepository;
+
+    /**
+     * The replicator, if any.
+     */
+    @Autowired(required = false)
+    private AuthorizationCodeReplicator replicator;
+
+    /**
+     * Whether codes are kept in memory.
+     */
+    @Value("%{oidc.authz.code.memory.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * Length of a tick of the expiry wheel, in milliseconds.
+     */
+    @Value("%{oidc.authz.code.memory.wheel.tick:1000}")
+    private long tick;
+
+    /**
+     * Number of ticks per rotation of the expiry wheel.
+     */
+    @Value("%{oidc.authz.code.memory.wheel.size:512}")
+    private int ticks;
+
+    /**
+     * Codes keyed by value.
+     */
+    private final ConcurrentMap<String, AuthorizationCodeEntity> codes = new ConcurrentHashMap<>();
+
+    /**
+     * The ids handed out.
+     */
+    private final AtomicLong ids = new AtomicLong();
+
+    /**
+     * Codes redeemed.
+     */
+    private final AtomicLong consumedCount = new AtomicLong();
+
+    /**
+     * Codes dropped unredeemed.
+     */
+    private final AtomicLong expiredCount = new AtomicLong();
+
+    /**
+     * The expiry wheel.
+     */
+    private TimingWheel<AuthorizationCodeEntity> wheel;
+
+    /**
+     * Advances the wheel.
+     */
+    private ScheduledExecutorService ticker;
+
+    /**
+     * Start the expiry wheel, if codes are kept in memory.
+     */
+    @PostConstruct
+    public void initialize() {
+        if (!enabled) {
+            return;
+        }
+        final long period = Math.max(1, tick);
+        this.wheel = new TimingWheel<>(period, ticks, System.currentTimeMillis());
+        this.ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "oidc-authz-code-expiry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.ticker.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    expire(System.currentTimeMillis());
+                } catch (final RuntimeException e) {
+                    log.error("Unable to expire authorization codes", e);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+        log.info("Keeping authorization codes in memory{}", replicator != null
+                ? ", replicated through " + replicator.getClass().getSimpleName() : "");
+    }
+
+    /**
+     * Stop the expiry wheel.
+     */
+    @PreDestroy
+    public void destroy() {
+        if (ticker != null) {
+            ticker.shutdownNow();
+        }
+    }
+
+    /**
+     * Sets authorization code repository.
+     *
+     * @param repository the repository
+     */
+    public void setAuthorizationCodeRepository(final AuthorizationCodeRepository repository) {
+        this.authorizationCodeRepository = repository;
+    }
+
+    /**
+     * Sets replicator.
+     *
+     * @param codeReplicator the replicator
+     */
+    public void setReplicator(final AuthorizationCodeReplicator codeReplicator) {
+        this.replicator = codeReplicator;
+    }
+
+    /**
+     * Sets whether codes are kept in memory.
+     *
+     * @param flag the flag
+     */
+    public void setEnabled(final boolean flag) {
+        this.enabled = flag;
+    }
+
+    /**
+     * Sets the length of a tick of the expiry wheel, in milliseconds.
+     *
+     * @param millis the tick
+     */
+    public void setTick(final long millis) {
+        this.tick = millis;
+    }
+
+    /**
+     * Sets the number of ticks per rotation of the expiry wheel.
+     *
+     * @param count the ticks
+     */
+    public void setTicks(final int count) {
+        this.ticks = count;
+    }
+
+    /**
+     * Whether codes are kept in memory.
+     *
+     * @return true if enabled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public AuthorizationCodeEntity save(final AuthorizationCodeEntity authorizationCode) {
+        if (!enabled) {
+            return authorizationCodeRepository.save(authorizationCode);
+        }
+        if (authorizationCode.getId() == null) {
+            authorizationCode.setId(ids.incrementAndGet());
+        }
+        codes.put(authorizationCode.getCode(), authorizationCode);
+        wheel.schedule(authorizationCode, authorizationCode.getExpiration() != null
+                ? authorizationCode.getExpiration().getTime() : Long.MAX_VALUE);
+        if (replicator != null) {
+            replicator.replicate(authorizationCode);
+        }
+        return authorizationCode;
+    }
+
+    /**
+     * Redeem the code. The code is removed in the same step it is found in,
+     * so concurrent requests with the same code see it only once. With a
+     * replicator, the code is taken from the cluster as well, and only that
+     * decides whether it can be redeemed. When codes
+     * are not kept in memory, the code is looked up and removed in two steps.
+     *
+     * @param code the code value
+     * @return the code, or null if it is unknown, was redeemed already or has expired
+     */
+    public AuthorizationCodeEntity consume(final String code) {
+        if (code == null) {
+            return null;
+        }
+        if (!enabled) {
+            final AuthorizationCodeEntity entity = authorizationCodeRepository.getByCode(code);
+            if (entity != null) {
+                authorizationCodeRepository.remove(entity);
+            }
+            return entity;
+        }
+        AuthorizationCodeEntity entity = codes.remove(code);
+        if (replicator != null) {
+            entity = replicator.take(code);
+        }
+        if (entity == null) {
+            return null;
+        }
+        if (isExpired(entity, System.currentTimeMillis())) {
+            log.debug("Authorization code {} has expired", entity.getId());
+            expiredCount.incrementAndGet();
+            return null;
+        }
+        consumedCount.incrementAndGet();
+        return entity;
+    }
+
+    @Override
+    public AuthorizationCodeEntity getByCode(final String code) {
+        if (!enabled) {
+            return authorizationCodeRepository.getByCode(code);
+        }
+        final AuthorizationCodeEntity entity = code != null ? codes.get(code) : null;
+        return entity != null && !isExpired(entity, System.currentTimeMillis()) ? entity : null;
+    }
+
+    @Override
+    public void remove(final AuthorizationCodeEntity authorizationCode) {
+        if (!enabled) {
+            authorizationCodeRepository.remove(authorizationCode);
+            return;
+        }
+        codes.remove(authorizationCode.getCode(), authorizationCode);
+        if (replicator != null) {
+            replicator.take(authorizationCode.getCode());
+        }
+    }
+
+    @Override
+    public Collection<AuthorizationCodeEntity> getExpiredCodes() {
+        if (!enabled) {
+            return authorizationCodeRepository.getExpiredCodes();
+        }
+        final long now = System.currentTimeMillis();
+        final List<AuthorizationCodeEntity> expired = new ArrayList<>();
+        for (final AuthorizationCodeEntity entity : codes.values()) {
+            if (isExpired(entity, now)) {
+                expired.add(entity);
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Drop the codes the wheel reports due, unless they were redeemed already.
+     *
+     * @param now the current time
+     * @return the number of codes dropped
+     */
+    int expire(final long now) {
+        final int[] dropped = new int[1];
+        wheel.advance(now, new TimingWheel.Expiry<AuthorizationCodeEntity>() {
+            @Override
+            public void expired(final AuthorizationCodeEntity entity) {
+                if (codes.remove(entity.getCode(), entity)) {
+                    dropped[0]++;
+                }
+            }
+        });
+        if (dropped[0] > 0) {
+            expiredCount.addAndGet(dropped[0]);
+            log.debug("Dropped {} expired authorization codes", dropped[0]);
+        }
+        return dropped[0];
+    }
+
+    /**
+     * Whether the code has expired.
+     *
+     * @param entity the code
+     * @param now    the current time
+     * @return true if expired
+     */
+    private static boolean isExpired(final AuthorizationCodeEntity entity, final long now) {
+        return entity.getExpiration() != null && entity.getExpiration().getTime() <= now;
+    }
+
+    /**
+     * Gets the number of codes held.
+     *
+     * @return the count
+     */
+    public int getCodeCount() {
+        return codes.size();
+    }
+
+    /**
+     * Gets the number of codes redeemed.
+     *
+     * @return the count
+     */
+    public long getConsumedCount() {
+        return consumedCount.get();
+    }
+
+    /**
+     * Gets the number of codes dropped unredeemed.
+     *
+     * @return the count
+     */
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+}
@@ -86,13 +86,13 @@ public final class SpringSecurityAuthenticationTokenFactory {
                         principalContext.getMatchingPrincipal().getName());
 
                 LOG.debug("Adding authority {}", authority.getAuthority());
-                authorities.add(new SimpleGrantedAuthority(authority.toString()));
+                authorities.add(authority.toSimpleGrantedAuthority());
             }
             if (authCtx.getAuthenticationResult() != null) {
                 final AuthenticationMethodRefAuthority authority = new AuthenticationMethodRefAuthority(
                         authCtx.getAuthenticationResult().getAuthenticationFlowId());
                 LOG.debug("Adding authority {}", authority.getAuthority());
-                authorities.add(new SimpleGrantedAuthority(authority.toString()));
+                authorities.add(authority.toSimpleGrantedAuthority());
             }
         }
 
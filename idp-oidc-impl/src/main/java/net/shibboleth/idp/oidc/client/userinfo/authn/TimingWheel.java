@@ -0,0 +1,163 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hashed timing wheel. Each value is put in the bucket of the tick its
+ * deadline falls in, so advancing the wheel only looks at the buckets of
+ * the ticks that have passed, no matter how many values are scheduled.
+ * Values more than one rotation away stay in their bucket until the
+ * rotation in which they are due.
+ * <p>
+ * Scheduling never blocks. A value scheduled while its bucket is being
+ * advanced may only be reported one rotation later, so callers must not
+ * rely on the wheel alone to reject expired values.
+ * </p>
+ *
+ * @param <T> the type of value scheduled
+ */
+final class TimingWheel<T> {
+
+    /**
+     * Receives the values that are due.
+     *
+     * @param <T> the type of value
+     */
+    interface Expiry<T> {
+
+        /**
+         * The value is due.
+         *
+         * @param value the value
+         */
+        void expired(T value);
+    }
+
+    /**
+     * Length of a tick in milliseconds.
+     */
+    private final long tickMillis;
+
+    /**
+     * Mask selecting the bucket of a tick.
+     */
+    private final int mask;
+
+    /**
+     * The buckets.
+     */
+    private final List<Queue<Timeout<T>>> buckets;
+
+    /**
+     * The last tick advanced to.
+     */
+    private volatile long cursor;
+
+    /**
+     * Instantiates a new timing wheel.
+     *
+     * @param tick  length of a tick in milliseconds
+     * @param ticks number of ticks per rotation, rounded up to a power of two
+     * @param now   the current time
+     */
+    TimingWheel(final long tick, final int ticks, final long now) {
+        this.tickMillis = Math.max(1, tick);
+        final int size = Integer.highestOneBit(Math.max(2, ticks) * 2 - 1);
+        this.mask = size - 1;
+        this.buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            this.buckets.add(new ConcurrentLinkedQueue<Timeout<T>>());
+        }
+        this.cursor = now / tickMillis;
+    }
+
+    /**
+     * Schedule the value for the given deadline.
+     *
+     * @param value    the value
+     * @param deadline the deadline in milliseconds
+     */
+    void schedule(final T value, final long deadline) {
+        final long tick = Math.max(deadline / tickMillis, cursor + 1);
+        buckets.get((int) (tick & mask)).add(new Timeout<>(value, deadline));
+    }
+
+    /**
+     * Advance the wheel to the given time, reporting the values that are due.
+     * Must not be called concurrently.
+     *
+     * @param now    the current time
+     * @param expiry receives the due values
+     * @return the number of values reported
+     */
+    int advance(final long now, final Expiry<T> expiry) {
+        final long target = now / tickMillis;
+        final long from = Math.max(cursor + 1, target - mask);
+        int count = 0;
+        for (long tick = from; tick <= target; tick++) {
+            cursor = tick;
+            final Queue<Timeout<T>> bucket = buckets.get((int) (tick & mask));
+            final List<Timeout<T>> pending = new ArrayList<>();
+            Timeout<T> timeout = bucket.poll();
+            while (timeout != null) {
+                if (timeout.deadline <= now) {
+                    expiry.expired(timeout.value);
+                    count++;
+                } else {
+                    pending.add(timeout);
+                }
+                timeout = bucket.poll();
+            }
+            bucket.addAll(pending);
+        }
+        return count;
+    }
+
+    /**
+     * A scheduled value.
+     *
+     * @param <T> the type of value
+     */
+    private static final class Timeout<T> {
+
+        /**
+         * The Value.
+         */
+        private final T value;
+
+        /**
+         * The Deadline.
+         */
+        private final long deadline;
+
+        /**
+         * Instantiates a new timeout.
+         *
+         * @param scheduled the value
+         * @param due       the deadline
+         */
+        Timeout(final T scheduled, final long due) {
+            this.value = scheduled;
+            this.deadline = due;
+        }
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import org.mitre.oauth2.model.OAuth2AccessTokenEntity;
+import org.mitre.oauth2.model.OAuth2RefreshTokenEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.sql.DataSource;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Looks tokens up by the SHA-256 hash of their value, kept in the fixed-length
+ * {@code token_hash} column of the token tables, instead of by the serialized
+ * token itself. The hash is written in the transaction that inserts the token.
+ * <p>
+ * Rows written before the column existed are hashed by a backfill that walks
+ * the tables by primary key in chunks, each committed on its own. Until the
+ * backfill is done, a token the hash does not find is looked up by value.
+ */
+@Component("tokenHashIndex")
+public class TokenHashIndex {
+
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(TokenHashIndex.class);
+
+    /**
+     * The entity manager.
+     */
+    @PersistenceContext(unitName = "defaultPersistenceUnit")
+    private EntityManager entityManager;
+
+    /**
+     * The data source.
+     */
+    @Resource(name = "dataSource")
+    private DataSource dataSource;
+
+    /**
+     * Whether rows without a hash are hashed on startup.
+     */
+    @Value("%{oidc.tokens.hash.backfill:true}")
+    private boolean backfill;
+
+    /**
+     * Maximum number of rows hashed per transaction.
+     */
+    @Value("%{oidc.tokens.hash.backfill.chunk.size:500}")
+    private int chunkSize;
+
+    /**
+     * Pause between chunks, in milliseconds.
+     */
+    @Value("%{oidc.tokens.hash.backfill.chunk.pause:100}")
+    private long chunkPause;
+
+    /**
+     * Whether every row has been hashed.
+     */
+    private volatile boolean backfilled;
+
+    /**
+     * The backfill thread.
+     */
+    private Thread backfillThread;
+
+    /**
+     * Start the backfill, if enabled.
+     */
+    @PostConstruct
+    public void initialize() {
+        if (!backfill) {
+            return;
+        }
+        this.backfillThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                backfill();
+            }
+        }, "oidc-token-hash-backfill");
+        this.backfillThread.setDaemon(true);
+        this.backfillThread.setPriority(Thread.MIN_PRIORITY);
+        this.backfillThread.start();
+    }
+
+    /**
+     * Stop the backfill.
+     */
+    @PreDestroy
+    public void destroy() {
+        if (backfillThread != null) {
+            backfillThread.interrupt();
+        }
+    }
+
+    /**
+     * Sets entity manager.
+     *
+     * @param manager the manager
+     */
+    public void setEntityManager(final EntityManager manager) {
+        this.entityManager = manager;
+    }
+
+    /**
+     * Sets data source.
+     *
+     * @param source the source
+     */
+    public void setDataSource(final DataSource source) {
+        this.dataSource = source;
+    }
+
+    /**
+     * Sets whether rows without a hash are hashed on startup.
+     *
+     * @param hashRows the hash rows
+     */
+    public void setBackfill(final boolean hashRows) {
+        this.backfill = hashRows;
+    }
+
+    /**
+     * Sets the maximum number of rows hashed per transaction.
+     *
+     * @param size the size
+     */
+    public void setChunkSize(final int size) {
+        this.chunkSize = size;
+    }
+
+    /**
+     * Sets the pause between chunks, in milliseconds.
+     *
+     * @param millis the millis
+     */
+    public void setChunkPause(final long millis) {
+        this.chunkPause = millis;
+    }
+
+    /**
+     * Whether every row has been hashed, so that a token the hash
+     * does not find does not exist.
+     *
+     * @return true if backfilled
+     */
+    public boolean isBackfilled() {
+        return backfilled;
+    }
+
+    /**
+     * Find the id of the access token with the value.
+     *
+     * @param tokenValue the token value
+     * @return the id, or null
+     */
+    public Long findAccessTokenId(final String tokenValue) {
+        return findId("SELECT id FROM access_token WHERE token_hash = ?", tokenValue);
+    }
+
+    /**
+     * Find the id of the refresh token with the value.
+     *
+     * @param tokenValue the token value
+     * @return the id, or null
+     */
+    public Long findRefreshTokenId(final String tokenValue) {
+        return findId("SELECT id FROM refresh_token WHERE token_hash = ?", tokenValue);
+    }
+
+    /**
+     * Store the hash of an access token that was just inserted, along with
+     * that of its id token. Must be called in the inserting transaction.
+     *
+     * @param token the token
+     */
+    public void index(final OAuth2AccessTokenEntity token) {
+        update("UPDATE access_token SET token_hash = ? WHERE id = ?", token.getId(), token.getValue());
+        final OAuth2AccessTokenEntity idToken = token.getIdToken();
+        if (idToken != null && idToken.getId() != null) {
+            update("UPDATE access_token SET token_hash = ? WHERE id = ?", idToken.getId(), idToken.getValue());
+        }
+    }
+
+    /**
+     * Store the hash of a refresh token that was just inserted.
+     * Must be called in the inserting transaction.
+     *
+     * @param token the token
+     */
+    public void index(final OAuth2RefreshTokenEntity token) {
+        update("UPDATE refresh_token SET token_hash = ? WHERE id = ?", token.getId(), token.getValue());
+    }
+
+    /**
+     * Select the id of the row with the hash of the token value.
+     *
+     * @param sql        the sql
+     * @param tokenValue the token value
+     * @return the id, or null
+     */
+    private Long findId(final String sql, final String tokenValue) {
+        final List<?> ids = entityManager.createNativeQuery(sql)
+                .setParameter(1, TokenHashing.hash(tokenValue).toString())
+                .getResultList();
+        return ids.isEmpty() ? null : ((Number) ids.get(0)).longValue();
+    }
+
+    /**
+     * Store the hash of the token value in the row.
+     *
+     * @param sql        the sql
+     * @param id         the row id
+     * @param tokenValue the token value
+     */
+    private void update(final String sql, final Long id, final String tokenValue) {
+        entityManager.createNativeQuery(sql)
+                .setParameter(1, TokenHashing.hash(tokenValue).toString())
+                .setParameter(2, id)
+                .executeUpdate();
+    }
+
+    /**
+     * Hash the rows of both token tables that have no hash yet.
+     */
+    private void backfill() {
+        try {
+            final long start = System.currentTimeMillis();
+            final long rows = backfill("access_token") + backfill("refresh_token");
+            this.backfilled = true;
+            log.info("Token hashes are complete; {} rows were hashed in {} ms",
+                    rows, System.currentTimeMillis() - start);
+        } catch (final InterruptedException e) {
+            log.debug("Token hash backfill was interrupted");
+        } catch (final SQLException e) {
+            log.warn("Unable to hash stored tokens; tokens will also be looked up by value", e);
+        }
+    }
+
+    /**
+     * Hash the rows of the table that have no hash yet, chunk by chunk.
+     *
+     * @param table the table
+     * @return the number of rows hashed
+     * @throws SQLException         the sql exception
+     * @throws InterruptedException if interrupted
+     */
+    private long backfill(final String table) throws SQLException, InterruptedException {
+        long lastId = 0;
+        long hashed = 0;
+        while (true) {
+            final List<Object[]> rows = new ArrayList<>(chunkSize);
+            try (final Connection connection = dataSource.getConnection()) {
+                final boolean autoCommit = connection.getAutoCommit();
+                connection.setAutoCommit(false);
+                try {
+                    try (final PreparedStatement select = connection.prepareStatement("SELECT id, token_value FROM "
+                            + table + " WHERE id > ? AND token_hash IS NULL AND token_value IS NOT NULL"
+                            + " ORDER BY id")) {
+                        select.setMaxRows(chunkSize);
+                        select.setLong(1, lastId);
+                        try (final ResultSet rs = select.executeQuery()) {
+                            while (rs.next()) {
+                                rows.add(new Object[] {rs.getLong(1), rs.getString(2)});
+                            }
+                        }
+                    }
+                    hashed += update(connection, table, rows);
+                    connection.commit();
+                } catch (final SQLException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(autoCommit);
+                }
+            }
+            if (rows.size() < chunkSize) {
+                return hashed;
+            }
+            lastId = (Long) rows.get(rows.size() - 1)[0];
+            Thread.sleep(chunkPause);
+        }
+    }
+
+    /**
+     * Store the hashes of the rows in one batch. Should the batch fail, the
+     * rows are updated one at a time, skipping those that fail; a row whose
+     * value duplicates another's cannot take the same hash.
+     *
+     * @param connection the connection
+     * @param table      the table
+     * @param rows       the ids and values
+     * @return the number of rows hashed
+     * @throws SQLException the sql exception
+     */
+    private int update(final Connection connection, final String table, final List<Object[]> rows)
+            throws SQLException {
+        if (rows.isEmpty()) {
+            return 0;
+        }
+        final String sql = "UPDATE " + table + " SET token_hash = ? WHERE id = ? AND token_hash IS NULL";
+        try (final PreparedStatement update = connection.prepareStatement(sql)) {
+            for (final Object[] row : rows) {
+                update.setString(1, TokenHashing.hash((String) row[1]).toString());
+                update.setLong(2, (Long) row[0]);
+                update.addBatch();
+            }
+            update.executeBatch();
+            return rows.size();
+        } catch (final BatchUpdateException e) {
+            connection.rollback();
+        }
+        int hashed = 0;
+        for (final Object[] row : rows) {
+            try (final PreparedStatement update = connection.prepareStatement(sql)) {
+                update.setString(1, TokenHashing.hash((String) row[1]).toString());
+                update.setLong(2, (Long) row[0]);
+                hashed += update.executeUpdate();
+                connection.commit();
+            } catch (final SQLException e) {
+                connection.rollback();
+                log.warn("Unable to hash {} row {}, which likely duplicates another token", table, row[0]);
+            }
+        }
+        return hashed;
+    }
+}
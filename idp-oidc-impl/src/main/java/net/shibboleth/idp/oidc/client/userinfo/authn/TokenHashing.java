@@ -0,0 +1,46 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Hashes token values and authorization codes, so that they can be stored,
+ * indexed and looked up without keeping the values themselves. Every store
+ * and cache keyed by a token uses this SHA-256 hash of its UTF-8 value.
+ */
+public final class TokenHashing {
+
+    /**
+     * Instantiates a new token hashing.
+     */
+    private TokenHashing() {
+    }
+
+    /**
+     * Hash the token value.
+     *
+     * @param tokenValue the token value
+     * @return the hash
+     */
+    public static HashCode hash(final String tokenValue) {
+        return Hashing.sha256().hashString(tokenValue, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import org.mitre.oauth2.model.OAuth2AccessTokenEntity;
+import org.mitre.oauth2.model.OAuth2RefreshTokenEntity;
+
+/**
+ * Receives notice of tokens that the token service has revoked, so that
+ * anything derived from those tokens can be dropped. Listeners are
+ * called after the revocation took place and must not throw.
+ */
+public interface TokenRevocationListener {
+
+    /**
+     * The access token was revoked.
+     *
+     * @param token the access token
+     */
+    void accessTokenRevoked(OAuth2AccessTokenEntity token);
+
+    /**
+     * All access tokens issued from the refresh token were revoked. The
+     * refresh token itself may have been revoked as well.
+     *
+     * @param refreshToken the refresh token
+     */
+    void accessTokensRevoked(OAuth2RefreshTokenEntity refreshToken);
+
+    /**
+     * The refresh token was revoked. The access tokens issued from it
+     * are reported revoked separately.
+     *
+     * @param refreshToken the refresh token
+     */
+    void refreshTokenRevoked(OAuth2RefreshTokenEntity refreshToken);
+}
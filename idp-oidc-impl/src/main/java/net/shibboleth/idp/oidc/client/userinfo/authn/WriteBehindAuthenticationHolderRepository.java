@@ -0,0 +1,125 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import org.mitre.oauth2.model.AuthenticationHolderEntity;
+import org.mitre.oauth2.repository.AuthenticationHolderRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.List;
+
+/**
+ * Authentication holder repository that leaves the holders of tokens being
+ * written behind to the {@link WriteBehindTokenRepository}, which persists
+ * them in the same transaction as the first token that refers to them.
+ * Everything else is passed through, after queued writes are flushed.
+ * When the {@link MappedTokenStore} is enabled, holders are kept there instead.
+ */
+@Component("writeBehindAuthenticationHolderRepository")
+@Primary
+public class WriteBehindAuthenticationHolderRepository implements AuthenticationHolderRepository {
+
+    /**
+     * The repository that persists the authentication holders.
+     */
+    @Resource(name = "jpaAuthenticationHolderRepository")
+    private AuthenticationHolderRepository authenticationHolderRepository;
+
+    /**
+     * The token repository.
+     */
+    @Autowired
+    private WriteBehindTokenRepository tokenRepository;
+
+    /**
+     * The repository that keeps holders in the mapped token store.
+     */
+    @Autowired
+    private MappedAuthenticationHolderRepository mappedAuthenticationHolderRepository;
+
+    /**
+     * Pass holders to the mapped repository if the mapped token store is enabled.
+     */
+    @PostConstruct
+    public void initialize() {
+        if (mappedAuthenticationHolderRepository != null && mappedAuthenticationHolderRepository.isEnabled()) {
+            this.authenticationHolderRepository = mappedAuthenticationHolderRepository;
+        }
+    }
+
+    /**
+     * Sets authentication holder repository.
+     *
+     * @param repository the repository
+     */
+    public void setAuthenticationHolderRepository(final AuthenticationHolderRepository repository) {
+        this.authenticationHolderRepository = repository;
+    }
+
+    /**
+     * Sets token repository.
+     *
+     * @param repository the repository
+     */
+    public void setTokenRepository(final WriteBehindTokenRepository repository) {
+        this.tokenRepository = repository;
+    }
+
+    /**
+     * Sets mapped authentication holder repository.
+     *
+     * @param repository the repository
+     */
+    public void setMappedAuthenticationHolderRepository(final MappedAuthenticationHolderRepository repository) {
+        this.mappedAuthenticationHolderRepository = repository;
+    }
+
+    @Override
+    public AuthenticationHolderEntity save(final AuthenticationHolderEntity holder) {
+        if (holder.getId() == null && tokenRepository.isDeferring()) {
+            return holder;
+        }
+        return authenticationHolderRepository.save(holder);
+    }
+
+    @Override
+    public AuthenticationHolderEntity getById(final Long id) {
+        return authenticationHolderRepository.getById(id);
+    }
+
+    @Override
+    public void remove(final AuthenticationHolderEntity holder) {
+        tokenRepository.flush();
+        authenticationHolderRepository.remove(holder);
+    }
+
+    @Override
+    public List<AuthenticationHolderEntity> getAll() {
+        tokenRepository.flush();
+        return authenticationHolderRepository.getAll();
+    }
+
+    @Override
+    public List<AuthenticationHolderEntity> getOrphanedAuthenticationHolders() {
+        tokenRepository.flush();
+        return authenticationHolderRepository.getOrphanedAuthenticationHolders();
+    }
+}
@@ -0,0 +1,1269 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import org.mitre.oauth2.model.AuthenticationHolderEntity;
+import org.mitre.oauth2.model.ClientDetailsEntity;
+import org.mitre.oauth2.model.OAuth2AccessTokenEntity;
+import org.mitre.oauth2.model.OAuth2RefreshTokenEntity;
+import org.mitre.oauth2.model.SavedUserAuthentication;
+import org.mitre.oauth2.repository.AuthenticationHolderRepository;
+import org.mitre.oauth2.repository.OAuth2TokenRepository;
+import org.mitre.openid.connect.model.ApprovedSite;
+import org.mitre.openid.connect.request.ConnectRequestParameters;
+import org.mitre.uma.model.ResourceSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Primary;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token repository that can persist issued tokens behind the caller's back.
+ * While write-behind is enabled, the tokens and authentication holders created
+ * by the token service are kept in memory, where lookups by value find them,
+ * and queued for a single writer thread. The writer commits whatever has
+ * queued up since its last commit in one transaction, so that a burst of
+ * issuance costs a handful of commits rather than one per token.
+ * <p>
+ * The queue is bounded. A caller that cannot queue within the offer timeout
+ * flushes the queue itself and writes through. Every operation other than a
+ * save or a lookup by value first flushes the queue, so that queries, removals
+ * and clean-ups see all tokens issued before them. Pending writes are flushed
+ * when the context shuts down.
+ * <p>
+ * A token whose write fails, on its own as well as in its batch, is not
+ * dropped: it stays in memory, where lookups by value still find it, and its
+ * write is retried every retry interval and on shutdown, until it succeeds or
+ * the token expires. Removing or clearing such a token discards its write.
+ * <p>
+ * Whether written behind or through, inserted tokens are hashed into the
+ * {@link TokenHashIndex}, which lookups by value go through.
+ * <p>
+ * When the {@link MappedTokenStore} is enabled, tokens are kept there
+ * instead and every operation goes straight to the mapped repository.
+ * <p>
+ * Clearing the access tokens of a refresh token, which the token service does
+ * when the refresh token is revoked or, if the client asks for it, used, is
+ * reported to the {@link TokenRevocationListener}s.
+ * <p>
+ * Tokens issued under an approved site are written behind as well. The token
+ * service leaves the site out of the request it issues them for, so that it
+ * does not save the site along with a token that is not persisted yet, and the
+ * site is linked to the token in the transaction that writes it.
+ */
+@Component("writeBehindTokenRepository")
+@Primary
+public class WriteBehindTokenRepository implements OAuth2TokenRepository {
+
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(WriteBehindTokenRepository.class);
+
+    /**
+     * The repository that persists the tokens.
+     */
+    @Resource(name = "jpaOAuth2TokenRepository")
+    private OAuth2TokenRepository tokenRepository;
+
+    /**
+     * The entity manager.
+     */
+    @PersistenceContext(unitName = "defaultPersistenceUnit")
+    private EntityManager entityManager;
+
+    /**
+     * The repository that persists the authentication holders.
+     */
+    @Resource(name = "jpaAuthenticationHolderRepository")
+    private AuthenticationHolderRepository authenticationHolderRepository;
+
+    /**
+     * The token hash index.
+     */
+    @Autowired
+    private TokenHashIndex tokenHashIndex;
+
+    /**
+     * The repository that keeps tokens in the mapped token store.
+     */
+    @Autowired
+    private MappedTokenRepository mappedTokenRepository;
+
+    /**
+     * The revocation listeners.
+     */
+    @Autowired(required = false)
+    private List<TokenRevocationListener> revocationListeners = Collections.emptyList();
+
+    /**
+     * The transaction manager.
+     */
+    @Autowired
+    @Qualifier("defaultTransactionManager")
+    private PlatformTransactionManager transactionManager;
+
+    /**
+     * Whether issued tokens are written behind.
+     */
+    @Value("%{oidc.tokens.writebehind.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * Maximum number of queued writes.
+     */
+    @Value("%{oidc.tokens.writebehind.queue.size:10000}")
+    private int queueSize;
+
+    /**
+     * Maximum number of writes committed in one transaction.
+     */
+    @Value("%{oidc.tokens.writebehind.batch.size:200}")
+    private int batchSize;
+
+    /**
+     * How long a caller waits for room in the queue before writing through, in milliseconds.
+     */
+    @Value("%{oidc.tokens.writebehind.offer.timeout:100}")
+    private long offerTimeout;
+
+    /**
+     * How long to wait before retrying writes that failed, in seconds.
+     */
+    @Value("%{oidc.tokens.writebehind.retry.interval:30}")
+    private long retryInterval;
+
+    /**
+     * Queued access tokens, keyed by value.
+     */
+    private final ConcurrentMap<String, OAuth2AccessTokenEntity> pendingAccessTokens = new ConcurrentHashMap<>();
+
+    /**
+     * Queued refresh tokens, keyed by value.
+     */
+    private final ConcurrentMap<String, OAuth2RefreshTokenEntity> pendingRefreshTokens = new ConcurrentHashMap<>();
+
+    /**
+     * Whether the current thread is issuing tokens that may be written behind.
+     */
+    private final ThreadLocal<Boolean> deferring = new ThreadLocal<>();
+
+    /**
+     * The id of the approved site the current thread issues tokens under, if any.
+     */
+    private final ThreadLocal<Long> approvedSite = new ThreadLocal<>();
+
+    /**
+     * Writes that failed, kept for another attempt. Guarded by the flush lock.
+     */
+    private final List<PendingWrite> unwritten = new ArrayList<>();
+
+    /**
+     * When the writes that failed are next retried, in milliseconds. Guarded by the flush lock.
+     */
+    private long nextRetryAt;
+
+    /**
+     * Held while queued writes are taken off the queue and committed.
+     */
+    private final Object flushLock = new Object();
+
+    /**
+     * Released whenever a write is queued, to wake the writer.
+     */
+    private final Semaphore queued = new Semaphore(0);
+
+    /**
+     * Number of writes committed.
+     */
+    private final AtomicLong writeCount = new AtomicLong();
+
+    /**
+     * Number of transactions committed.
+     */
+    private final AtomicLong commitCount = new AtomicLong();
+
+    /**
+     * The write queue.
+     */
+    private BlockingQueue<PendingWrite> queue;
+
+    /**
+     * The writer thread.
+     */
+    private Thread writer;
+
+    /**
+     * Whether tokens are kept in the mapped token store.
+     */
+    private boolean mapped;
+
+    /**
+     * Whether the repository has been shut down.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Initialize the queue and start the writer, if write-behind is enabled.
+     */
+    @PostConstruct
+    public void initialize() {
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        if (mappedTokenRepository != null && mappedTokenRepository.isEnabled()) {
+            log.info("Keeping tokens in the mapped token store");
+            this.tokenRepository = mappedTokenRepository;
+            this.mapped = true;
+        }
+        if (!enabled || mapped) {
+            return;
+        }
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeBehind();
+            }
+        }, "oidc-token-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        log.info("Writing issued tokens behind, with up to {} queued and {} per commit", queueSize, batchSize);
+    }
+
+    /**
+     * Stop the writer and commit everything still queued.
+     */
+    @PreDestroy
+    public void destroy() {
+        this.closed = true;
+        if (writer != null) {
+            queued.release();
+            try {
+                writer.join(TimeUnit.SECONDS.toMillis(30));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (flushLock) {
+            nextRetryAt = 0;
+            flush();
+            if (!unwritten.isEmpty()) {
+                log.error("Unable to persist {} tokens before shutting down", unwritten.size());
+            }
+        }
+        log.info("Token writer stopped after {} writes in {} commits", writeCount.get(), commitCount.get());
+    }
+
+    /**
+     * Sets token repository.
+     *
+     * @param repository the repository
+     */
+    public void setTokenRepository(final OAuth2TokenRepository repository) {
+        this.tokenRepository = repository;
+    }
+
+    /**
+     * Sets entity manager.
+     *
+     * @param manager the manager
+     */
+    public void setEntityManager(final EntityManager manager) {
+        this.entityManager = manager;
+    }
+
+    /**
+     * Sets authentication holder repository.
+     *
+     * @param repository the repository
+     */
+    public void setAuthenticationHolderRepository(final AuthenticationHolderRepository repository) {
+        this.authenticationHolderRepository = repository;
+    }
+
+    /**
+     * Sets token hash index.
+     *
+     * @param index the index
+     */
+    public void setTokenHashIndex(final TokenHashIndex index) {
+        this.tokenHashIndex = index;
+    }
+
+    /**
+     * Sets revocation listeners.
+     *
+     * @param listeners the listeners
+     */
+    public void setRevocationListeners(final List<TokenRevocationListener> listeners) {
+        this.revocationListeners = listeners;
+    }
+
+    /**
+     * Sets mapped token repository.
+     *
+     * @param repository the repository
+     */
+    public void setMappedTokenRepository(final MappedTokenRepository repository) {
+        this.mappedTokenRepository = repository;
+    }
+
+    /**
+     * Whether tokens are kept in the mapped token store.
+     *
+     * @return true if mapped
+     */
+    public boolean isMapped() {
+        return mapped;
+    }
+
+    /**
+     * Sets transaction manager.
+     *
+     * @param manager the manager
+     */
+    public void setTransactionManager(final PlatformTransactionManager manager) {
+        this.transactionManager = manager;
+    }
+
+    /**
+     * Sets whether issued tokens are written behind.
+     *
+     * @param writeBehind the write behind
+     */
+    public void setEnabled(final boolean writeBehind) {
+        this.enabled = writeBehind;
+    }
+
+    /**
+     * Sets the maximum number of queued writes.
+     *
+     * @param size the size
+     */
+    public void setQueueSize(final int size) {
+        this.queueSize = size;
+    }
+
+    /**
+     * Sets the maximum number of writes committed in one transaction.
+     *
+     * @param size the size
+     */
+    public void setBatchSize(final int size) {
+        this.batchSize = size;
+    }
+
+    /**
+     * Sets how long a caller waits for room in the queue, in milliseconds.
+     *
+     * @param millis the millis
+     */
+    public void setOfferTimeout(final long millis) {
+        this.offerTimeout = millis;
+    }
+
+    /**
+     * Sets how long to wait before retrying writes that failed, in seconds.
+     *
+     * @param seconds the seconds
+     */
+    public void setRetryInterval(final long seconds) {
+        this.retryInterval = seconds;
+    }
+
+    /**
+     * Gets the number of queued writes.
+     *
+     * @return the pending count
+     */
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    /**
+     * Gets the number of writes that failed and wait to be retried.
+     *
+     * @return the unwritten count
+     */
+    public int getUnwrittenCount() {
+        synchronized (flushLock) {
+            return unwritten.size();
+        }
+    }
+
+    /**
+     * Gets the number of writes committed.
+     *
+     * @return the write count
+     */
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+
+    /**
+     * Gets the number of transactions committed.
+     *
+     * @return the commit count
+     */
+    public long getCommitCount() {
+        return commitCount.get();
+    }
+
+    /**
+     * Let the tokens the current thread issues for the request be written behind,
+     * until {@link #endDeferredWrites()}. The access tokens inserted meanwhile are
+     * linked to the approved site the request names, when they are written; the
+     * token service must then issue them for a request without the site.
+     *
+     * @param request the request tokens are issued for, or null
+     * @return true if writes are deferred and must be ended
+     */
+    public boolean beginDeferredWrites(final OAuth2Request request) {
+        if (!enabled || mapped || closed) {
+            return false;
+        }
+        final Object site = request != null
+                ? request.getExtensions().get(ConnectRequestParameters.APPROVED_SITE) : null;
+        if (site != null) {
+            approvedSite.set(Long.valueOf(site.toString()));
+        }
+        deferring.set(Boolean.TRUE);
+        return true;
+    }
+
+    /**
+     * Stop deferring the writes of the current thread.
+     */
+    public void endDeferredWrites() {
+        deferring.remove();
+        approvedSite.remove();
+    }
+
+    /**
+     * Whether the current thread's writes are deferred.
+     *
+     * @return true if deferred
+     */
+    boolean isDeferring() {
+        return deferring.get() != null;
+    }
+
+    @Override
+    public OAuth2AccessTokenEntity saveAccessToken(final OAuth2AccessTokenEntity token) {
+        if (mapped) {
+            return tokenRepository.saveAccessToken(token);
+        }
+        final String value = token.getValue();
+        if (pendingAccessTokens.get(value) == token) {
+            return token;
+        }
+        final Long site = token.getId() == null ? approvedSite.get() : null;
+        if (token.getId() == null && isDeferring()) {
+            if (pendingAccessTokens.putIfAbsent(value, token) == null) {
+                if (enqueue(new PendingWrite(value, token, null, site))) {
+                    return token;
+                }
+                pendingAccessTokens.remove(value, token);
+            }
+        }
+        flushIfPending(token.getRefreshToken(), token.getAuthenticationHolder());
+        final OAuth2AccessTokenEntity saved = newTransactionTemplate(TransactionDefinition.PROPAGATION_REQUIRED)
+                .execute(new TransactionCallback<OAuth2AccessTokenEntity>() {
+                    @Override
+                    public OAuth2AccessTokenEntity doInTransaction(final TransactionStatus status) {
+                        persistReferences(token);
+                        return store(token, site);
+                    }
+                });
+        evictApprovedSite(site);
+        return saved;
+    }
+
+    @Override
+    public OAuth2RefreshTokenEntity saveRefreshToken(final OAuth2RefreshTokenEntity refreshToken) {
+        if (mapped) {
+            return tokenRepository.saveRefreshToken(refreshToken);
+        }
+        final String value = refreshToken.getValue();
+        if (pendingRefreshTokens.get(value) == refreshToken) {
+            return refreshToken;
+        }
+        if (refreshToken.getId() == null && isDeferring()) {
+            if (pendingRefreshTokens.putIfAbsent(value, refreshToken) == null) {
+                if (enqueue(new PendingWrite(value, null, refreshToken, null))) {
+                    return refreshToken;
+                }
+                pendingRefreshTokens.remove(value, refreshToken);
+            }
+        }
+        flushIfPending(null, refreshToken.getAuthenticationHolder());
+        return newTransactionTemplate(TransactionDefinition.PROPAGATION_REQUIRED).execute(
+                new TransactionCallback<OAuth2RefreshTokenEntity>() {
+                    @Override
+                    public OAuth2RefreshTokenEntity doInTransaction(final TransactionStatus status) {
+                        return persistRefreshToken(null, new IdentityHashMap<Object, Object>(), refreshToken);
+                    }
+                });
+    }
+
+    @Override
+    public OAuth2AccessTokenEntity getAccessTokenByValue(final String accessTokenValue) {
+        if (mapped) {
+            return tokenRepository.getAccessTokenByValue(accessTokenValue);
+        }
+        final OAuth2AccessTokenEntity pending = pendingAccessTokens.get(accessTokenValue);
+        if (pending != null) {
+            return pending;
+        }
+        final Long id = tokenHashIndex.findAccessTokenId(accessTokenValue);
+        if (id != null) {
+            final OAuth2AccessTokenEntity token = tokenRepository.getAccessTokenById(id);
+            if (token != null && accessTokenValue.equals(token.getValue())) {
+                return token;
+            }
+        }
+        return tokenHashIndex.isBackfilled() ? null : tokenRepository.getAccessTokenByValue(accessTokenValue);
+    }
+
+    @Override
+    public OAuth2RefreshTokenEntity getRefreshTokenByValue(final String refreshTokenValue) {
+        if (mapped) {
+            return tokenRepository.getRefreshTokenByValue(refreshTokenValue);
+        }
+        final OAuth2RefreshTokenEntity pending = pendingRefreshTokens.get(refreshTokenValue);
+        if (pending != null) {
+            return pending;
+        }
+        final Long id = tokenHashIndex.findRefreshTokenId(refreshTokenValue);
+        if (id != null) {
+            final OAuth2RefreshTokenEntity token = tokenRepository.getRefreshTokenById(id);
+            if (token != null && refreshTokenValue.equals(token.getValue())) {
+                return token;
+            }
+        }
+        return tokenHashIndex.isBackfilled() ? null : tokenRepository.getRefreshTokenByValue(refreshTokenValue);
+    }
+
+    @Override
+    public OAuth2AccessTokenEntity getAccessTokenById(final Long id) {
+        return tokenRepository.getAccessTokenById(id);
+    }
+
+    @Override
+    public OAuth2RefreshTokenEntity getRefreshTokenById(final Long id) {
+        return tokenRepository.getRefreshTokenById(id);
+    }
+
+    @Override
+    public void clearAccessTokensForRefreshToken(final OAuth2RefreshTokenEntity refreshToken) {
+        flush();
+        discardUnwritten(null, refreshToken, null);
+        if (refreshToken.getId() != null) {
+            tokenRepository.clearAccessTokensForRefreshToken(refreshToken);
+        }
+        for (final TokenRevocationListener listener : revocationListeners) {
+            try {
+                listener.accessTokensRevoked(refreshToken);
+            } catch (final RuntimeException e) {
+                log.warn("Revocation listener {} failed for refresh token {}", listener, refreshToken.getId(), e);
+            }
+        }
+    }
+
+    @Override
+    public void removeRefreshToken(final OAuth2RefreshTokenEntity refreshToken) {
+        flush();
+        if (refreshToken.getId() == null && discardUnwritten(refreshToken, null, null)) {
+            return;
+        }
+        tokenRepository.removeRefreshToken(refreshToken);
+    }
+
+    @Override
+    public void removeAccessToken(final OAuth2AccessTokenEntity accessToken) {
+        flush();
+        if (accessToken.getId() == null && discardUnwritten(accessToken, null, null)) {
+            return;
+        }
+        tokenRepository.removeAccessToken(accessToken);
+    }
+
+    @Override
+    public void clearTokensForClient(final ClientDetailsEntity client) {
+        flush();
+        discardUnwritten(null, null, client.getClientId());
+        tokenRepository.clearTokensForClient(client);
+    }
+
+    @Override
+    public List<OAuth2AccessTokenEntity> getAccessTokensForClient(final ClientDetailsEntity client) {
+        flush();
+        return tokenRepository.getAccessTokensForClient(client);
+    }
+
+    @Override
+    public List<OAuth2RefreshTokenEntity> getRefreshTokensForClient(final ClientDetailsEntity client) {
+        flush();
+        return tokenRepository.getRefreshTokensForClient(client);
+    }
+
+    @Override
+    public OAuth2AccessTokenEntity getAccessTokenForIdToken(final OAuth2AccessTokenEntity idToken) {
+        flush();
+        return tokenRepository.getAccessTokenForIdToken(idToken);
+    }
+
+    @Override
+    public Set<OAuth2AccessTokenEntity> getAllAccessTokens() {
+        flush();
+        return tokenRepository.getAllAccessTokens();
+    }
+
+    @Override
+    public Set<OAuth2RefreshTokenEntity> getAllRefreshTokens() {
+        flush();
+        return tokenRepository.getAllRefreshTokens();
+    }
+
+    @Override
+    public Set<OAuth2AccessTokenEntity> getAllExpiredAccessTokens() {
+        flush();
+        return tokenRepository.getAllExpiredAccessTokens();
+    }
+
+    @Override
+    public Set<OAuth2RefreshTokenEntity> getAllExpiredRefreshTokens() {
+        flush();
+        return tokenRepository.getAllExpiredRefreshTokens();
+    }
+
+    @Override
+    public Set<OAuth2AccessTokenEntity> getAccessTokensForResourceSet(final ResourceSet rs) {
+        flush();
+        return tokenRepository.getAccessTokensForResourceSet(rs);
+    }
+
+    @Override
+    public void clearDuplicateAccessTokens() {
+        flush();
+        tokenRepository.clearDuplicateAccessTokens();
+    }
+
+    @Override
+    public void clearDuplicateRefreshTokens() {
+        flush();
+        tokenRepository.clearDuplicateRefreshTokens();
+    }
+
+    /**
+     * Remove the access tokens linked to the approved site, along with their
+     * refresh tokens, that were written after the site was loaded for removal
+     * and so are not among the tokens it lists.
+     *
+     * @param siteId the id of the approved site
+     */
+    public void removeTokensForApprovedSite(final long siteId) {
+        if (mapped || writer == null) {
+            return;
+        }
+        flush();
+        final List<?> ids = entityManager.createNativeQuery("SELECT id FROM access_token WHERE approved_site_id = ?")
+                .setParameter(1, siteId)
+                .getResultList();
+        for (final Object id : ids) {
+            final OAuth2AccessTokenEntity token = tokenRepository.getAccessTokenById(((Number) id).longValue());
+            if (token != null) {
+                if (token.getRefreshToken() != null) {
+                    tokenRepository.removeRefreshToken(token.getRefreshToken());
+                }
+                tokenRepository.removeAccessToken(token);
+            }
+        }
+    }
+
+    /**
+     * Commit every queued write in the calling thread, and retry the writes
+     * that failed if the retry interval has passed.
+     */
+    public void flush() {
+        if (writer == null) {
+            return;
+        }
+        synchronized (flushLock) {
+            retryUnwritten();
+            final List<PendingWrite> batch = new ArrayList<>();
+            while (queue.drainTo(batch, Math.max(1, batchSize)) > 0) {
+                write(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Queue the write, waiting up to the offer timeout for room. Once the
+     * repository is closed, writes are no longer queued.
+     *
+     * @param write the write
+     * @return true if the write was queued
+     */
+    private boolean enqueue(final PendingWrite write) {
+        if (closed) {
+            return false;
+        }
+        try {
+            if (!queue.offer(write) && !queue.offer(write, offerTimeout, TimeUnit.MILLISECONDS)) {
+                log.warn("Token write queue is full; writing through");
+                return false;
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        queued.release();
+        if (closed) {
+            flush();
+        }
+        return true;
+    }
+
+    /**
+     * Flush the queue if a token being written through refers to a refresh
+     * token or an authentication holder that has not been persisted, as it
+     * may still be queued.
+     *
+     * @param refreshToken the refresh token, or null
+     * @param holder       the authentication holder, or null
+     */
+    private void flushIfPending(final OAuth2RefreshTokenEntity refreshToken,
+                                final AuthenticationHolderEntity holder) {
+        if ((refreshToken != null && refreshToken.getId() == null) || (holder != null && holder.getId() == null)) {
+            flush();
+        }
+    }
+
+    /**
+     * Persist the refresh token and authentication holders a token being
+     * written through refers to, if they were deferred along with a write
+     * that could not be queued, and point the token at the saved copies.
+     *
+     * @param token the token
+     */
+    private void persistReferences(final OAuth2AccessTokenEntity token) {
+        final Map<Object, Object> managed = new IdentityHashMap<>();
+        token.setAuthenticationHolder(persistHolder(null, managed, token.getAuthenticationHolder()));
+        if (token.getRefreshToken() != null) {
+            token.setRefreshToken(persistRefreshToken(null, managed, token.getRefreshToken()));
+        }
+        final OAuth2AccessTokenEntity idToken = token.getIdToken();
+        if (idToken != null) {
+            idToken.setAuthenticationHolder(persistHolder(null, managed, idToken.getAuthenticationHolder()));
+        }
+    }
+
+    /**
+     * Save the access token, hashing it and linking it to its approved site if it is inserted.
+     * Must be called in a transaction.
+     *
+     * @param token  the token
+     * @param siteId the id of the approved site the token was issued under, or null
+     * @return the saved token
+     */
+    private OAuth2AccessTokenEntity store(final OAuth2AccessTokenEntity token, final Long siteId) {
+        final boolean inserted = token.getId() == null;
+        final OAuth2AccessTokenEntity saved = tokenRepository.saveAccessToken(token);
+        if (inserted) {
+            tokenHashIndex.index(saved);
+            if (siteId != null) {
+                entityManager.createNativeQuery("UPDATE access_token SET approved_site_id = ? WHERE id = ?")
+                        .setParameter(1, siteId)
+                        .setParameter(2, saved.getId())
+                        .executeUpdate();
+            }
+        }
+        return saved;
+    }
+
+    /**
+     * Evict the approved site a token was linked to from the shared cache,
+     * so that the next load lists the token.
+     *
+     * @param siteId the id of the approved site, or null
+     */
+    private void evictApprovedSite(final Long siteId) {
+        if (siteId != null) {
+            entityManager.getEntityManagerFactory().getCache().evict(ApprovedSite.class, siteId);
+        }
+    }
+
+    /**
+     * Save the refresh token, hashing it if it is inserted.
+     * Must be called in a transaction.
+     *
+     * @param refreshToken the refresh token
+     * @return the saved refresh token
+     */
+    private OAuth2RefreshTokenEntity store(final OAuth2RefreshTokenEntity refreshToken) {
+        final boolean inserted = refreshToken.getId() == null;
+        final OAuth2RefreshTokenEntity saved = tokenRepository.saveRefreshToken(refreshToken);
+        if (inserted) {
+            tokenHashIndex.index(saved);
+        }
+        return saved;
+    }
+
+    /**
+     * Create a transaction template.
+     *
+     * @param propagation the propagation behavior
+     * @return the template
+     */
+    private TransactionTemplate newTransactionTemplate(final int propagation) {
+        final TransactionTemplate template = new TransactionTemplate(transactionManager);
+        template.setPropagationBehavior(propagation);
+        return template;
+    }
+
+    /**
+     * Writer loop: wait for writes, then commit what has queued up.
+     */
+    private void writeBehind() {
+        final List<PendingWrite> batch = new ArrayList<>();
+        while (!closed) {
+            try {
+                if (queue.isEmpty()) {
+                    queued.tryAcquire(1, TimeUnit.SECONDS);
+                }
+            } catch (final InterruptedException e) {
+                break;
+            }
+            synchronized (flushLock) {
+                queued.drainPermits();
+                if (queue.drainTo(batch, Math.max(1, batchSize)) > 0) {
+                    write(batch);
+                    batch.clear();
+                }
+                retryUnwritten();
+            }
+        }
+    }
+
+    /**
+     * Commit the batch in one transaction. Should that fail, each write is
+     * retried in a transaction of its own so that one bad token does not
+     * take the others with it. Must be called holding the flush lock.
+     *
+     * @param batch the batch
+     */
+    private void write(final List<PendingWrite> batch) {
+        try {
+            commit(batch);
+        } catch (final RuntimeException e) {
+            log.warn("Unable to commit {} token writes at once; retrying one at a time", batch.size(), e);
+            for (final PendingWrite write : batch) {
+                write.rollBack();
+                writeAlone(write);
+            }
+            return;
+        }
+        for (final PendingWrite write : batch) {
+            forget(write);
+        }
+    }
+
+    /**
+     * Commit the write in a transaction of its own. Should that fail, the
+     * write is kept, and its token served from memory, until it is retried.
+     * Must be called holding the flush lock.
+     *
+     * @param write the write
+     */
+    private void writeAlone(final PendingWrite write) {
+        try {
+            commit(Collections.singletonList(write));
+            forget(write);
+        } catch (final RuntimeException e) {
+            write.rollBack();
+            if (unwritten.isEmpty()) {
+                nextRetryAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(retryInterval);
+            }
+            unwritten.add(write);
+            log.warn("Unable to persist token; keeping it for another attempt in {} seconds", retryInterval, e);
+        }
+    }
+
+    /**
+     * Retry the writes that failed, if the retry interval has passed. Those
+     * whose token has expired meanwhile are dropped, as nothing would accept
+     * it anymore. Must be called holding the flush lock.
+     */
+    private void retryUnwritten() {
+        final long now = System.currentTimeMillis();
+        if (unwritten.isEmpty() || now < nextRetryAt) {
+            return;
+        }
+        final List<PendingWrite> writes = new ArrayList<>(unwritten);
+        unwritten.clear();
+        for (final PendingWrite write : writes) {
+            if (write.isExpired(now)) {
+                log.info("Dropping the write of a token that expired before it could be persisted");
+                forget(write);
+            } else {
+                writeAlone(write);
+            }
+        }
+    }
+
+    /**
+     * Discard the failed writes of the tokens being removed: the token itself,
+     * the access tokens of the refresh token, or the tokens of the client.
+     *
+     * @param token        the access or refresh token, or null
+     * @param refreshToken the refresh token, or null
+     * @param clientId     the client id, or null
+     * @return true if a write was discarded
+     */
+    private boolean discardUnwritten(final Object token, final OAuth2RefreshTokenEntity refreshToken,
+                                     final String clientId) {
+        synchronized (flushLock) {
+            boolean discarded = false;
+            final Iterator<PendingWrite> it = unwritten.iterator();
+            while (it.hasNext()) {
+                final PendingWrite write = it.next();
+                if (token != null && (write.accessToken == token || write.refreshToken == token)
+                        || refreshToken != null && write.refresh == refreshToken
+                        || clientId != null && clientId.equals(write.getClientId())) {
+                    it.remove();
+                    forget(write);
+                    discarded = true;
+                }
+            }
+            return discarded;
+        }
+    }
+
+    /**
+     * Stop serving the token of the write from memory.
+     *
+     * @param write the write
+     */
+    private void forget(final PendingWrite write) {
+        if (write.accessToken != null) {
+            pendingAccessTokens.remove(write.value, write.accessToken);
+        } else {
+            pendingRefreshTokens.remove(write.value, write.refreshToken);
+        }
+    }
+
+    /**
+     * Persist the writes in a new transaction.
+     *
+     * @param writes the writes
+     */
+    private void commit(final List<PendingWrite> writes) {
+        newTransactionTemplate(TransactionDefinition.PROPAGATION_REQUIRES_NEW).execute(
+                new TransactionCallbackWithoutResult() {
+                    @Override
+                    protected void doInTransactionWithoutResult(final TransactionStatus status) {
+                        final Map<Object, Object> managed = new IdentityHashMap<>();
+                        for (final PendingWrite write : writes) {
+                            persist(write, managed);
+                        }
+                    }
+                });
+        for (final PendingWrite write : writes) {
+            evictApprovedSite(write.approvedSite);
+        }
+        writeCount.addAndGet(writes.size());
+        commitCount.incrementAndGet();
+    }
+
+    /**
+     * Persist the token of the write along with whatever it refers to that is not persisted yet.
+     * The repositories merge, so the token is pointed at the managed copies of the entities
+     * it refers to before it is saved, and the ids they were given are copied back to the
+     * queued entities, which callers may still hold.
+     *
+     * @param write   the write
+     * @param managed the managed copies of the entities the commit saved so far, by queued entity
+     */
+    private void persist(final PendingWrite write, final Map<Object, Object> managed) {
+        if (write.accessToken != null) {
+            final OAuth2AccessTokenEntity token = write.accessToken;
+            token.setAuthenticationHolder(persistHolder(write, managed, token.getAuthenticationHolder()));
+            if (token.getRefreshToken() != null) {
+                token.setRefreshToken(persistRefreshToken(write, managed, token.getRefreshToken()));
+            }
+            final OAuth2AccessTokenEntity idToken = token.getIdToken();
+            if (idToken != null) {
+                idToken.setAuthenticationHolder(persistHolder(write, managed, idToken.getAuthenticationHolder()));
+                write.created(idToken);
+            }
+            write.created(token);
+            final OAuth2AccessTokenEntity saved = store(token, write.approvedSite);
+            token.setId(saved.getId());
+            if (idToken != null && saved.getIdToken() != null) {
+                idToken.setId(saved.getIdToken().getId());
+            }
+        } else {
+            persistRefreshToken(write, managed, write.refreshToken);
+        }
+    }
+
+    /**
+     * Persist the refresh token and its authentication holder, if it is not persisted yet.
+     *
+     * @param write        the write, or null when writing through
+     * @param managed      the managed copies saved so far in the transaction
+     * @param refreshToken the refresh token
+     * @return the refresh token to refer to
+     */
+    private OAuth2RefreshTokenEntity persistRefreshToken(final PendingWrite write, final Map<Object, Object> managed,
+                                                         final OAuth2RefreshTokenEntity refreshToken) {
+        final Object saved = managed.get(refreshToken);
+        if (saved != null) {
+            return (OAuth2RefreshTokenEntity) saved;
+        }
+        if (refreshToken.getId() != null) {
+            return refreshToken;
+        }
+        refreshToken.setAuthenticationHolder(persistHolder(write, managed, refreshToken.getAuthenticationHolder()));
+        if (write != null) {
+            write.created(refreshToken);
+        }
+        final OAuth2RefreshTokenEntity copy = store(refreshToken);
+        refreshToken.setId(copy.getId());
+        managed.put(refreshToken, copy);
+        return copy;
+    }
+
+    /**
+     * Persist the authentication holder, if it is not persisted yet.
+     *
+     * @param write   the write, or null when writing through
+     * @param managed the managed copies saved so far in the transaction
+     * @param holder  the holder, or null
+     * @return the holder to refer to, or null
+     */
+    private AuthenticationHolderEntity persistHolder(final PendingWrite write, final Map<Object, Object> managed,
+                                                     final AuthenticationHolderEntity holder) {
+        if (holder == null) {
+            return null;
+        }
+        final Object saved = managed.get(holder);
+        if (saved != null) {
+            return (AuthenticationHolderEntity) saved;
+        }
+        if (holder.getId() != null) {
+            return holder;
+        }
+        if (write != null) {
+            write.created(holder);
+        }
+        final AuthenticationHolderEntity copy = authenticationHolderRepository.save(holder);
+        holder.setId(copy.getId());
+        if (holder.getUserAuth() != null && copy.getUserAuth() != null) {
+            holder.getUserAuth().setId(copy.getUserAuth().getId());
+        }
+        managed.put(holder, copy);
+        return copy;
+    }
+
+    /**
+     * A queued access or refresh token, along with the entities its commit
+     * gave an id to and the references it was queued with, so both can be
+     * reset if the commit fails.
+     */
+    private static final class PendingWrite {
+
+        /**
+         * The token value.
+         */
+        private final String value;
+
+        /**
+         * The access token, or null.
+         */
+        private final OAuth2AccessTokenEntity accessToken;
+
+        /**
+         * The refresh token, or null.
+         */
+        private final OAuth2RefreshTokenEntity refreshToken;
+
+        /**
+         * The authentication holder of the token as queued.
+         */
+        private final AuthenticationHolderEntity holder;
+
+        /**
+         * The refresh token of the access token as queued, or null.
+         */
+        private final OAuth2RefreshTokenEntity refresh;
+
+        /**
+         * The authentication holder of that refresh token as queued, or null.
+         */
+        private final AuthenticationHolderEntity refreshHolder;
+
+        /**
+         * The authentication holder of the id token as queued, or null.
+         */
+        private final AuthenticationHolderEntity idTokenHolder;
+
+        /**
+         * The id of the approved site the access token was issued under, or null.
+         */
+        private final Long approvedSite;
+
+        /**
+         * The entities the last commit created.
+         */
+        private final List<Object> created = new ArrayList<>(4);
+
+        /**
+         * Instantiates a new pending write.
+         *
+         * @param tokenValue the token value
+         * @param access     the access token
+         * @param refresh    the refresh token
+         * @param siteId     the id of the approved site, or null
+         */
+        PendingWrite(final String tokenValue, final OAuth2AccessTokenEntity access,
+                     final OAuth2RefreshTokenEntity refresh, final Long siteId) {
+            this.value = tokenValue;
+            this.accessToken = access;
+            this.refreshToken = refresh;
+            this.approvedSite = siteId;
+            if (access != null) {
+                this.holder = access.getAuthenticationHolder();
+                this.refresh = access.getRefreshToken();
+                this.idTokenHolder = access.getIdToken() != null
+                        ? access.getIdToken().getAuthenticationHolder() : null;
+            } else {
+                this.holder = refresh.getAuthenticationHolder();
+                this.refresh = null;
+                this.idTokenHolder = null;
+            }
+            this.refreshHolder = this.refresh != null ? this.refresh.getAuthenticationHolder() : null;
+        }
+
+        /**
+         * Whether the token has expired.
+         *
+         * @param now the current time, in milliseconds
+         * @return true if expired
+         */
+        boolean isExpired(final long now) {
+            final Date expiration = accessToken != null
+                    ? accessToken.getExpiration() : refreshToken.getExpiration();
+            return expiration != null && expiration.getTime() <= now;
+        }
+
+        /**
+         * Gets the id of the client the token was issued to.
+         *
+         * @return the client id, or null
+         */
+        String getClientId() {
+            final ClientDetailsEntity client = accessToken != null ? accessToken.getClient() : refreshToken.getClient();
+            return client != null ? client.getClientId() : null;
+        }
+
+        /**
+         * Remember an entity the commit persists, if it has no id yet.
+         *
+         * @param entity the entity
+         */
+        void created(final Object entity) {
+            if (entity instanceof AuthenticationHolderEntity) {
+                final AuthenticationHolderEntity holder = (AuthenticationHolderEntity) entity;
+                created.add(holder);
+                if (holder.getUserAuth() != null && holder.getUserAuth().getId() == null) {
+                    created.add(holder.getUserAuth());
+                }
+            } else if (entity instanceof OAuth2AccessTokenEntity) {
+                if (((OAuth2AccessTokenEntity) entity).getId() == null) {
+                    created.add(entity);
+                }
+            } else if (entity instanceof OAuth2RefreshTokenEntity) {
+                if (((OAuth2RefreshTokenEntity) entity).getId() == null) {
+                    created.add(entity);
+                }
+            }
+        }
+
+        /**
+         * Reset the ids given to the created entities by a commit that was rolled back,
+         * and point the tokens back at the entities they were queued with.
+         */
+        void rollBack() {
+            if (accessToken != null) {
+                accessToken.setAuthenticationHolder(holder);
+                accessToken.setRefreshToken(refresh);
+                if (accessToken.getIdToken() != null) {
+                    accessToken.getIdToken().setAuthenticationHolder(idTokenHolder);
+                }
+                if (refresh != null) {
+                    refresh.setAuthenticationHolder(refreshHolder);
+                }
+            } else {
+                refreshToken.setAuthenticationHolder(holder);
+            }
+            for (final Object entity : created) {
+                if (entity instanceof AuthenticationHolderEntity) {
+                    ((AuthenticationHolderEntity) entity).setId(null);
+                } else if (entity instanceof OAuth2AccessTokenEntity) {
+                    ((OAuth2AccessTokenEntity) entity).setId(null);
+                } else if (entity instanceof OAuth2RefreshTokenEntity) {
+                    ((OAuth2RefreshTokenEntity) entity).setId(null);
+                } else if (entity instanceof SavedUserAuthentication) {
+                    ((SavedUserAuthentication) entity).setId(null);
+                }
+            }
+            created.clear();
+        }
+    }
+}
@@ -22,21 +22,22 @@ import org.springframework.context.annotation.Primary;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
-import java.util.HashSet;
 import java.util.Set;
 
 /**
  * Repository to define system scopes statically.
+ * Scopes are kept in an immutable index that is rebuilt
+ * and republished whenever a scope is saved or removed,
+ * so lookups never need to lock.
  */
 @Component("shibbolethSystemScopeRepository")
 @Primary
 public class ShibbolethSystemScopeRepository implements SystemScopeRepository {
 
     /**
-     * The Scopes.
+     * The currently published scope index.
      */
-    @Resource(name="supportedSystemScopes")
-    private Set<SystemScope> scopes = new HashSet<>();
+    private volatile SystemScopeIndex index = SystemScopeIndex.EMPTY;
 
     /**
      * Instantiates a new Shibboleth system scope repository.
@@ -49,51 +50,54 @@ public class ShibbolethSystemScopeRepository implements SystemScopeRepository {
      * @param scs the scs
      */
     public ShibbolethSystemScopeRepository(final Set<SystemScope> scs) {
-        this.scopes = scs;
+        setScopes(scs);
+    }
+
+    /**
+     * Sets the supported scopes. Their iteration order becomes the display order.
+     *
+     * @param scs the scopes
+     */
+    @Resource(name="supportedSystemScopes")
+    public synchronized void setScopes(final Set<SystemScope> scs) {
+        this.index = SystemScopeIndex.of(scs);
     }
 
     @Override
     public Set<SystemScope> getAll() {
-        return this.scopes;
+        return index.getAll();
     }
 
     @Override
     public SystemScope getById(final Long aLong) {
-        for (final SystemScope scope : scopes) {
-            if (scope.getId().equals(aLong)) {
-                return scope;
-            }
-        }
-        return null;
+        return index.getById(aLong);
     }
 
     @Override
     public SystemScope getByValue(final String s) {
-        for (final SystemScope scope : scopes) {
-            if (scope.getValue().equals(s)) {
-                return scope;
-            }
-        }
-        return null;
+        return index.getByValue(s);
     }
 
     @Override
-    public void remove(final SystemScope systemScope) {
-        this.scopes.remove(systemScope);
+    public synchronized void remove(final SystemScope systemScope) {
+        this.index = index.without(systemScope);
     }
 
     @Override
-    public SystemScope save(final SystemScope systemScope) {
-        this.scopes.add(systemScope);
+    public synchronized SystemScope save(final SystemScope systemScope) {
+        this.index = index.with(systemScope);
         return systemScope;
     }
 
     /**
-     * The entry point of application.
+     * Sorts scopes for display, based on the order of the supported system scopes.
+     * Scopes that are not supported system scopes are placed at the end,
+     * in their original order.
      *
-     * @param args the input arguments
+     * @param scopes the scopes
+     * @return the sorted scopes
      */
-    public static void main(String[] args) {
-        System.out.println(Math.random());
+    public Set<SystemScope> sortForDisplay(final Set<SystemScope> scopes) {
+        return index.sortForDisplay(scopes);
     }
 }
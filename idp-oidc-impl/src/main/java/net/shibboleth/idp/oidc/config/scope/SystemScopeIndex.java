@@ -0,0 +1,217 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.config.scope;
+
+import org.mitre.oauth2.model.SystemScope;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable index of the supported system scopes, keyed by value and id,
+ * along with the display order of each scope. A new index is built whenever
+ * the set of supported scopes changes.
+ */
+final class SystemScopeIndex {
+
+    /**
+     * The empty index.
+     */
+    static final SystemScopeIndex EMPTY = new SystemScopeIndex(new ArrayList<SystemScope>());
+
+    /**
+     * Scopes in display order.
+     */
+    private final Set<SystemScope> scopes;
+
+    /**
+     * Scopes keyed by value.
+     */
+    private final Map<String, SystemScope> byValue;
+
+    /**
+     * Scopes keyed by id.
+     */
+    private final Map<Long, SystemScope> byId;
+
+    /**
+     * Display position of each scope.
+     */
+    private final Map<SystemScope, Integer> positions;
+
+    /**
+     * Compares scopes by display position. Scopes that are not
+     * part of the index sort after all known scopes.
+     */
+    private final Comparator<SystemScope> displayOrder = new Comparator<SystemScope>() {
+        @Override
+        public int compare(final SystemScope o1, final SystemScope o2) {
+            return Integer.compare(positionOf(o1), positionOf(o2));
+        }
+    };
+
+    /**
+     * Instantiates a new index. The list is owned by the index from now on.
+     *
+     * @param entries the scopes in display order
+     */
+    private SystemScopeIndex(final List<SystemScope> entries) {
+        final Map<String, SystemScope> values = new HashMap<>(entries.size() * 2);
+        final Map<Long, SystemScope> ids = new HashMap<>(entries.size() * 2);
+        final Map<SystemScope, Integer> order = new HashMap<>(entries.size() * 2);
+        for (int i = 0; i < entries.size(); i++) {
+            final SystemScope scope = entries.get(i);
+            if (scope.getValue() != null) {
+                values.put(scope.getValue(), scope);
+            }
+            if (scope.getId() != null) {
+                ids.put(scope.getId(), scope);
+            }
+            if (!order.containsKey(scope)) {
+                order.put(scope, i);
+            }
+        }
+        this.scopes = Collections.unmodifiableSet(new LinkedHashSet<>(entries));
+        this.byValue = values;
+        this.byId = ids;
+        this.positions = order;
+    }
+
+    /**
+     * Builds an index from the given scopes, keeping their iteration order as the display order.
+     *
+     * @param entries the scopes
+     * @return the index
+     */
+    static SystemScopeIndex of(final Collection<SystemScope> entries) {
+        if (entries == null || entries.isEmpty()) {
+            return EMPTY;
+        }
+        return new SystemScopeIndex(new ArrayList<>(entries));
+    }
+
+    /**
+     * Gets all scopes in display order.
+     *
+     * @return the unmodifiable set of scopes
+     */
+    Set<SystemScope> getAll() {
+        return scopes;
+    }
+
+    /**
+     * Gets scope by value.
+     *
+     * @param value the value
+     * @return the scope, or null
+     */
+    SystemScope getByValue(final String value) {
+        return value != null ? byValue.get(value) : null;
+    }
+
+    /**
+     * Gets scope by id.
+     *
+     * @param id the id
+     * @return the scope, or null
+     */
+    SystemScope getById(final Long id) {
+        return id != null ? byId.get(id) : null;
+    }
+
+    /**
+     * Sorts the given scopes for display. Known scopes come first, in the order
+     * of the supported scopes; any other scope follows in its original order.
+     *
+     * @param requested the requested scopes
+     * @return the sorted scopes
+     */
+    Set<SystemScope> sortForDisplay(final Set<SystemScope> requested) {
+        final SystemScope[] sorted = requested.toArray(new SystemScope[requested.size()]);
+        Arrays.sort(sorted, displayOrder);
+        final Set<SystemScope> result = new LinkedHashSet<>(sorted.length * 2);
+        Collections.addAll(result, sorted);
+        return result;
+    }
+
+    /**
+     * Returns a new index that contains the given scope, replacing any
+     * scope registered under the same value or id.
+     *
+     * @param scope the scope
+     * @return the new index
+     */
+    SystemScopeIndex with(final SystemScope scope) {
+        final SystemScope sameValue = getByValue(scope.getValue());
+        final SystemScope sameId = getById(scope.getId());
+
+        final List<SystemScope> list = new ArrayList<>(scopes.size() + 1);
+        boolean replaced = false;
+        for (final SystemScope existing : scopes) {
+            if (existing == sameValue || existing == sameId || existing.equals(scope)) {
+                if (!replaced) {
+                    list.add(scope);
+                    replaced = true;
+                }
+            } else {
+                list.add(existing);
+            }
+        }
+        if (!replaced) {
+            list.add(scope);
+        }
+        return new SystemScopeIndex(list);
+    }
+
+    /**
+     * Returns a new index without the given scope.
+     *
+     * @param scope the scope
+     * @return the new index
+     */
+    SystemScopeIndex without(final SystemScope scope) {
+        if (!positions.containsKey(scope)) {
+            return this;
+        }
+        final List<SystemScope> list = new ArrayList<>(scopes.size());
+        for (final SystemScope existing : scopes) {
+            if (!existing.equals(scope)) {
+                list.add(existing);
+            }
+        }
+        return new SystemScopeIndex(list);
+    }
+
+    /**
+     * Display position of the scope.
+     *
+     * @param scope the scope
+     * @return the position, or {@link Integer#MAX_VALUE} if unknown
+     */
+    private int positionOf(final SystemScope scope) {
+        final Integer pos = positions.get(scope);
+        return pos != null ? pos : Integer.MAX_VALUE;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.endpoints;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import net.shibboleth.idp.oidc.config.scope.ShibbolethSystemScopeRepository;
+import net.shibboleth.idp.oidc.util.OIDCUtils;
+import net.shibboleth.idp.oidc.view.PreRenderedDocument;
+import net.shibboleth.idp.oidc.view.PreRenderedDocumentView;
+import org.mitre.oauth2.model.SystemScope;
+import org.mitre.openid.connect.config.ConfigurationPropertiesBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.ui.ExtendedModelMap;
+import org.springframework.ui.Model;
+
+import javax.annotation.PostConstruct;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Base class for endpoints that publish the provider configuration.
+ * The configuration is built and serialized once, at startup, and
+ * served from memory until the issuer or the set of system scopes
+ * changes. Responses carry a strong entity tag and are cacheable
+ * for a configurable max age.
+ */
+public abstract class AbstractDiscoveryEndpoint extends org.mitre.discovery.web.DiscoveryEndpoint {
+
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(AbstractDiscoveryEndpoint.class);
+
+    /**
+     * Serializer matching the one used by {@link org.mitre.openid.connect.view.JsonEntityView}.
+     */
+    private final Gson gson = new GsonBuilder()
+            .serializeNulls()
+            .setDateFormat("yyyy-MM-dd'T'HH:mm:ssZ")
+            .create();
+
+    /**
+     * The configuration properties.
+     */
+    @Autowired
+    private ConfigurationPropertiesBean configBean;
+
+    /**
+     * The system scope repository.
+     */
+    @Autowired
+    private ShibbolethSystemScopeRepository scopeRepository;
+
+    /**
+     * Max age of the published configuration, in seconds.
+     */
+    @Value("%{oidc.discovery.cache.maxage:3600}")
+    private int maxAge;
+
+    /**
+     * The issuer the published document was rendered for.
+     */
+    private volatile String publishedIssuer;
+
+    /**
+     * The scope snapshot the published document was rendered from.
+     */
+    private volatile Set<SystemScope> publishedScopes;
+
+    /**
+     * The published document.
+     */
+    private volatile PreRenderedDocument document;
+
+    /**
+     * Renders the document ahead of the first request.
+     */
+    @PostConstruct
+    public void initialize() {
+        try {
+            getDocument();
+        } catch (final RuntimeException e) {
+            log.warn("Unable to render the provider configuration at startup; will retry on request", e);
+        }
+    }
+
+    /**
+     * Puts the published document into the model.
+     *
+     * @param model the model
+     * @return the view name
+     */
+    protected String publishDocument(final Model model) {
+        model.addAttribute(PreRenderedDocumentView.DOCUMENT, getDocument());
+        model.addAttribute(PreRenderedDocumentView.MAX_AGE, maxAge);
+        return PreRenderedDocumentView.VIEWNAME;
+    }
+
+    /**
+     * Gets the published document, rendering it again if the issuer
+     * or the system scopes have changed.
+     *
+     * @return the document
+     */
+    private PreRenderedDocument getDocument() {
+        final PreRenderedDocument current = this.document;
+        if (current != null && isCurrent()) {
+            return current;
+        }
+        synchronized (this) {
+            if (this.document == null || !isCurrent()) {
+                final String issuer = configBean.getIssuer();
+                final Set<SystemScope> scopes = scopeRepository.getAll();
+                final PreRenderedDocument rendered = render();
+                if (!rendered.hasSameContent(this.document)) {
+                    log.debug("Publishing provider configuration for {} with etag {}", issuer, rendered.getEtag());
+                    this.document = rendered;
+                }
+                this.publishedIssuer = issuer;
+                this.publishedScopes = scopes;
+            }
+            return this.document;
+        }
+    }
+
+    /**
+     * Whether the published document was rendered from the current issuer and scopes.
+     *
+     * @return true if the document is current
+     */
+    private boolean isCurrent() {
+        return scopeRepository.getAll() == publishedScopes
+                && Objects.equals(configBean.getIssuer(), publishedIssuer);
+    }
+
+    /**
+     * Builds the provider configuration and serializes it.
+     *
+     * @return the document
+     */
+    private PreRenderedDocument render() {
+        final Model model = new ExtendedModelMap();
+        super.providerConfiguration(model);
+        final Map<String, Object> configuration = OIDCUtils.buildOidcServerConfigurationModelForDiscovery(model);
+        return PreRenderedDocument.of(gson.toJson(configuration), MediaType.APPLICATION_JSON_VALUE);
+    }
+}
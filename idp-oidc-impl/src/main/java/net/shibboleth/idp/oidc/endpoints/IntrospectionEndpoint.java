@@ -16,15 +16,195 @@
  */
 package net.shibboleth.idp.oidc.endpoints;
 
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import net.shibboleth.idp.oidc.client.userinfo.authn.IntrospectionResultCache;
+import net.shibboleth.idp.oidc.client.userinfo.authn.RevokedTokenFilter;
+import net.shibboleth.idp.oidc.client.userinfo.authn.TokenHashing;
+import org.mitre.oauth2.model.ClientDetailsEntity;
+import org.mitre.oauth2.model.OAuth2AccessTokenEntity;
+import org.mitre.oauth2.model.OAuth2RefreshTokenEntity;
+import org.mitre.oauth2.service.ClientDetailsEntityService;
+import org.mitre.oauth2.service.IntrospectionResultAssembler;
+import org.mitre.oauth2.service.OAuth2TokenEntityService;
+import org.mitre.oauth2.web.AuthenticationUtilities;
+import org.mitre.openid.connect.model.UserInfo;
+import org.mitre.openid.connect.service.UserInfoService;
+import org.mitre.openid.connect.view.HttpCodeView;
+import org.mitre.openid.connect.view.JsonEntityView;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.stereotype.Controller;
+import org.springframework.ui.Model;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
 /**
- * Represents the introspection endpoint.
+ * Represents the introspection endpoint. Clients that authenticate
+ * and are allowed to introspect get the result assembled by MITREid;
+ * results are served from the {@link IntrospectionResultCache}
+ * while it holds them.
  */
-public final class IntrospectionEndpoint {
+@Controller("oidcIntrospectionEndpoint")
+public class IntrospectionEndpoint {
     /** URL endpoint for issuing tokens used to map requests. */
     public static final String URL = "/oidc/introspect";
 
     /**
-     * Instantiates a new token endpoint.
+     * The result of an inactive or unknown token.
+     */
+    private static final Map<String, Object> INACTIVE =
+            ImmutableMap.<String, Object>of(IntrospectionResultAssembler.ACTIVE, Boolean.FALSE);
+
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(IntrospectionEndpoint.class);
+
+    /**
+     * The token service.
+     */
+    @Autowired
+    private OAuth2TokenEntityService tokenService;
+
+    /**
+     * The client service.
+     */
+    @Autowired
+    private ClientDetailsEntityService clientService;
+
+    /**
+     * The introspection result assembler.
+     */
+    @Autowired
+    private IntrospectionResultAssembler introspectionResultAssembler;
+
+    /**
+     * The user info service.
+     */
+    @Autowired
+    private UserInfoService userInfoService;
+
+    /**
+     * The result cache.
+     */
+    @Autowired
+    private IntrospectionResultCache resultCache;
+
+    /**
+     * The revoked token filter.
+     */
+    @Autowired
+    private RevokedTokenFilter revokedTokenFilter;
+
+    /**
+     * Introspect the token.
+     *
+     * @param tokenValue    the token value
+     * @param tokenTypeHint the token type hint
+     * @param auth          the authentication of the client asking
+     * @param model         the model
+     * @return the view name
+     */
+    @RequestMapping(URL)
+    public String verify(@RequestParam("token") final String tokenValue,
+                         @RequestParam(value = "token_type_hint", required = false) final String tokenTypeHint,
+                         final Authentication auth, final Model model) {
+
+        final ClientDetailsEntity authClient = auth != null ? clientService.loadClientByClientId(auth.getName()) : null;
+        if (authClient == null || !AuthenticationUtilities.hasRole(auth, "ROLE_CLIENT")
+                || !authClient.isAllowIntrospection()) {
+            log.error("Client {} is not allowed to call introspection endpoint", auth != null ? auth.getName() : null);
+            model.addAttribute(HttpCodeView.CODE, HttpStatus.FORBIDDEN);
+            return HttpCodeView.VIEWNAME;
+        }
+
+        if (Strings.isNullOrEmpty(tokenValue)) {
+            log.error("Verify failed; token value is null");
+            model.addAttribute(JsonEntityView.ENTITY, INACTIVE);
+            return JsonEntityView.VIEWNAME;
+        }
+
+        final IntrospectionResultCache.CacheKey key = resultCache.isEnabled()
+                ? resultCache.newKey(tokenValue, authClient.getClientId()) : null;
+        if (key != null) {
+            final Map<String, Object> cached = resultCache.get(key);
+            if (cached != null) {
+                log.debug("Serving introspection result from cache");
+                model.addAttribute(JsonEntityView.ENTITY, cached);
+                return JsonEntityView.VIEWNAME;
+            }
+        }
+
+        model.addAttribute(JsonEntityView.ENTITY, introspect(tokenValue, authClient, key));
+        return JsonEntityView.VIEWNAME;
+    }
+
+    /**
+     * Introspect the token as an access token, or else as a refresh token,
+     * and cache the result. Revoked tokens are known to be inactive without
+     * looking them up.
+     *
+     * @param tokenValue the token value
+     * @param authClient the client asking
+     * @param key        the cache key, or null if results are not cached
+     * @return the result
+     */
+    private Map<String, Object> introspect(final String tokenValue, final ClientDetailsEntity authClient,
+                                           final IntrospectionResultCache.CacheKey key) {
+        if (revokedTokenFilter.isRevoked(TokenHashing.hash(tokenValue))) {
+            log.debug("Token was revoked");
+            return INACTIVE;
+        }
+
+        final Set<String> authScopes = new HashSet<>(authClient.getScope());
+        try {
+            final OAuth2AccessTokenEntity accessToken = tokenService.readAccessToken(tokenValue);
+            final UserInfo user = getUserInfo(accessToken.getAuthenticationHolder().getAuthentication().getName(),
+                    accessToken.getClient());
+            final Map<String, Object> result = introspectionResultAssembler.assembleFrom(accessToken, user, authScopes);
+            if (key != null) {
+                resultCache.putActive(key, accessToken, result);
+            }
+            return result;
+        } catch (final InvalidTokenException e) {
+            log.info("Invalid access token. Checking refresh token.");
+        }
+        try {
+            final OAuth2RefreshTokenEntity refreshToken = tokenService.getRefreshToken(tokenValue);
+            final UserInfo user = getUserInfo(refreshToken.getAuthenticationHolder().getAuthentication().getName(),
+                    refreshToken.getClient());
+            final Map<String, Object> result =
+                    introspectionResultAssembler.assembleFrom(refreshToken, user, authScopes);
+            if (key != null) {
+                resultCache.putActive(key, refreshToken, result);
+            }
+            return result;
+        } catch (final InvalidTokenException e) {
+            log.error("Verify failed; Invalid access/refresh token");
+        }
+        if (key != null) {
+            resultCache.putInactive(key, INACTIVE);
+        }
+        return INACTIVE;
+    }
+
+    /**
+     * Gets the user info of the token.
+     *
+     * @param userName the user name
+     * @param client   the client the token was issued to
+     * @return the user info, or null
      */
-    private IntrospectionEndpoint() {}
+    private UserInfo getUserInfo(final String userName, final ClientDetailsEntity client) {
+        return userInfoService.getByUsernameAndClientId(userName, client.getClientId());
+    }
 }
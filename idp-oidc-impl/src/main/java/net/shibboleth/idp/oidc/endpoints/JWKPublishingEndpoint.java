@@ -17,19 +17,29 @@
 package net.shibboleth.idp.oidc.endpoints;
 
 import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
+import net.shibboleth.idp.oidc.view.PreRenderedDocument;
+import net.shibboleth.idp.oidc.view.PreRenderedDocumentView;
+import org.mitre.jose.keystore.JWKSetKeyStore;
 import org.mitre.jwt.signer.service.JWTSigningAndValidationService;
-import org.mitre.openid.connect.view.JWKSetView;
 import org.mitre.openid.connect.web.JWKSetPublishingEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.RequestMapping;
 
+import java.util.ArrayList;
 import java.util.Map;
 
 /**
  * A JWK endpoint that remaps the controller.
+ * The public key set is serialized once and served from memory
+ * until the key store publishes a different key set. Responses carry
+ * a strong entity tag and are cacheable for a configurable max age.
  */
 @Controller("jwkPublishingEndpoint")
 public class JWKPublishingEndpoint extends JWKSetPublishingEndpoint {
@@ -39,19 +49,71 @@ public class JWKPublishingEndpoint extends JWKSetPublishingEndpoint {
      */
     public static final String URL = "/oidc/jwk";
 
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(JWKPublishingEndpoint.class);
+
     /**
      * The Jwt service.
      */
     @Autowired
     private JWTSigningAndValidationService jwtService;
 
+    /**
+     * The key store backing the jwt service.
+     */
+    @Autowired
+    private JWKSetKeyStore keyStore;
+
+    /**
+     * Max age of the published key set, in seconds.
+     */
+    @Value("%{oidc.jwk.cache.maxage:3600}")
+    private int maxAge;
+
+    /**
+     * The key set the published document was rendered from.
+     */
+    private volatile JWKSet publishedKeySet;
+
+    /**
+     * The published document.
+     */
+    private volatile PreRenderedDocument document;
+
     @RequestMapping(value = URL, produces = MediaType.APPLICATION_JSON_VALUE)
     @Override
     public String getJwk(final Model m) {
-        final Map<String, JWK> keys = jwtService.getAllPublicKeys();
-        m.addAttribute("keys", keys);
-        return JWKSetView.VIEWNAME;
+        m.addAttribute(PreRenderedDocumentView.DOCUMENT, getDocument());
+        m.addAttribute(PreRenderedDocumentView.MAX_AGE, maxAge);
+        return PreRenderedDocumentView.VIEWNAME;
     }
 
-
+    /**
+     * Gets the published document, rendering it again
+     * if the key store has loaded a different key set.
+     *
+     * @return the document
+     */
+    private PreRenderedDocument getDocument() {
+        final PreRenderedDocument current = this.document;
+        if (current != null && keyStore.getJwkSet() == publishedKeySet) {
+            return current;
+        }
+        synchronized (this) {
+            final JWKSet keySet = keyStore.getJwkSet();
+            if (this.document == null || keySet != publishedKeySet) {
+                final Map<String, JWK> keys = jwtService.getAllPublicKeys();
+                final PreRenderedDocument rendered = PreRenderedDocument.of(
+                        new JWKSet(new ArrayList<>(keys.values())).toString(), MediaType.APPLICATION_JSON_VALUE);
+                if (!rendered.hasSameContent(this.document)) {
+                    log.debug("Publishing JWK set with {} keys and etag {}", keys.size(), rendered.getEtag());
+                    this.document = rendered;
+                }
+                this.publishedKeySet = keySet;
+            }
+            return this.document;
+        }
+    }
 }
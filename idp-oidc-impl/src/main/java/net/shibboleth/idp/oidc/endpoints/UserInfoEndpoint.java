@@ -16,17 +16,93 @@
  */
 package net.shibboleth.idp.oidc.endpoints;
 
+import net.shibboleth.idp.oidc.client.userinfo.UserInfoResponseCache;
+import net.shibboleth.idp.oidc.view.CachingUserInfoView;
+import org.mitre.oauth2.model.OAuth2AccessTokenEntity;
+import org.mitre.oauth2.service.OAuth2TokenEntityService;
+import org.mitre.oauth2.service.SystemScopeService;
+import org.mitre.openid.connect.view.UserInfoJWTView;
+import org.mitre.openid.connect.view.UserInfoView;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.authentication.OAuth2AuthenticationDetails;
 import org.springframework.stereotype.Controller;
+import org.springframework.ui.Model;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 
 /**
  * A userinfo endpoint for openid connect
  * that remaps the {@link org.mitre.openid.connect.web.UserInfoEndpoint}.
+ * When the {@link UserInfoResponseCache} is enabled, rendered responses
+ * are served from the cache for as long as they are cached.
  */
 @Controller("oidcUserInfoEndpoint")
 @RequestMapping("/oidc/" + org.mitre.openid.connect.web.UserInfoEndpoint.URL)
 public class UserInfoEndpoint extends org.mitre.openid.connect.web.UserInfoEndpoint {
     /** URL endpoint for userinfo used to map requests. */
     public static final String URL = "/oidc/" + org.mitre.openid.connect.web.UserInfoEndpoint.URL;
-}
 
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(UserInfoEndpoint.class);
+
+    /**
+     * The response cache.
+     */
+    @Autowired
+    private UserInfoResponseCache responseCache;
+
+    /**
+     * The token service.
+     */
+    @Autowired
+    private OAuth2TokenEntityService tokenService;
+
+    @Override
+    @PreAuthorize("hasRole('ROLE_USER') and #oauth2.hasScope('" + SystemScopeService.OPENID_SCOPE + "')")
+    @RequestMapping(method = {RequestMethod.GET, RequestMethod.POST},
+            produces = {MediaType.APPLICATION_JSON_VALUE, UserInfoJWTView.JOSE_MEDIA_TYPE_VALUE})
+    public String getInfo(@RequestParam(value = "claims", required = false) final String claimsRequestJsonString,
+                          @RequestHeader(value = HttpHeaders.ACCEPT, required = false) final String acceptHeader,
+                          final OAuth2Authentication auth, final Model model) {
+        if (!responseCache.isEnabled() || auth == null
+                || !(auth.getDetails() instanceof OAuth2AuthenticationDetails)) {
+            return super.getInfo(claimsRequestJsonString, acceptHeader, auth, model);
+        }
+
+        final String tokenValue = ((OAuth2AuthenticationDetails) auth.getDetails()).getTokenValue();
+        final UserInfoResponseCache.CacheKey key = responseCache.newKey(tokenValue, acceptHeader,
+                claimsRequestJsonString);
+        final UserInfoResponseCache.CachedResponse cached = responseCache.get(key);
+        if (cached != null) {
+            log.debug("Serving userinfo response from cache");
+            model.addAttribute(CachingUserInfoView.CACHED_RESPONSE, cached);
+            return CachingUserInfoView.VIEWNAME;
+        }
+
+        final String view = super.getInfo(claimsRequestJsonString, acceptHeader, auth, model);
+        if (!UserInfoView.VIEWNAME.equals(view) && !UserInfoJWTView.VIEWNAME.equals(view)) {
+            return view;
+        }
+        try {
+            final OAuth2AccessTokenEntity token = tokenService.readAccessToken(tokenValue);
+            model.addAttribute(CachingUserInfoView.ACCESS_TOKEN, token);
+            model.addAttribute(CachingUserInfoView.CACHE_KEY, key);
+            model.addAttribute(CachingUserInfoView.DELEGATE_VIEW, view);
+            return CachingUserInfoView.VIEWNAME;
+        } catch (final InvalidTokenException e) {
+            log.debug("Access token is no longer valid; userinfo response will not be cached", e);
+            return view;
+        }
+    }
+}
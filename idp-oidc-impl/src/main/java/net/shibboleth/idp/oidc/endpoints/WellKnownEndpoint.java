@@ -16,7 +16,6 @@
  */
 package net.shibboleth.idp.oidc.endpoints;
 
-import net.shibboleth.idp.oidc.util.OIDCUtils;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -27,7 +26,7 @@ import org.springframework.web.bind.annotation.RequestMethod;
  */
 @Controller("oidcWellknownEndpoint")
 @RequestMapping('/' + org.mitre.discovery.web.DiscoveryEndpoint.WELL_KNOWN_URL)
-public final class WellKnownEndpoint extends org.mitre.discovery.web.DiscoveryEndpoint {
+public final class WellKnownEndpoint extends AbstractDiscoveryEndpoint {
     /**
      * URL endpoint.
      */
@@ -41,9 +40,7 @@ public final class WellKnownEndpoint extends org.mitre.discovery.web.DiscoveryEn
      */
     @RequestMapping(method= RequestMethod.GET)
     public String defaultEndpoint(final Model model) {
-        final String view = super.providerConfiguration(model);
-        model.mergeAttributes(OIDCUtils.buildOidcServerConfigurationModelForDiscovery(model));
-        return view;
+        return publishDocument(model);
     }
 }
 
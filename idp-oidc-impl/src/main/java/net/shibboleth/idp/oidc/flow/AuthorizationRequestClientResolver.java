@@ -0,0 +1,99 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.flow;
+
+import org.mitre.oauth2.model.ClientDetailsEntity;
+import org.mitre.oauth2.service.ClientDetailsEntityService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves the client of an authorization request once per request.
+ * The first action that needs the client loads it from the client service
+ * and attaches it to the {@link OIDCAuthorizationRequestContext}; actions
+ * that run later in the same login flow reuse the attached client.
+ */
+@Service("authorizationRequestClientResolver")
+public class AuthorizationRequestClientResolver {
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(AuthorizationRequestClientResolver.class);
+
+    /**
+     * Number of lookups delegated to the client service.
+     */
+    private final AtomicLong lookups = new AtomicLong();
+
+    /**
+     * Number of lookups answered by the authorization request context.
+     */
+    private final AtomicLong avoidedLookups = new AtomicLong();
+
+    /**
+     * The Client service.
+     */
+    @Autowired
+    private ClientDetailsEntityService clientService;
+
+    /**
+     * Resolve the client of the authorization request.
+     *
+     * @param authZContext the authorization request context
+     * @return the client, or null if none is registered under the requested client id
+     */
+    public ClientDetailsEntity resolve(@Nonnull final OIDCAuthorizationRequestContext authZContext) {
+        final String clientId = authZContext.getClientId();
+        final ClientDetailsEntity cached = authZContext.getClient();
+        if (cached != null && cached.getClientId() != null && cached.getClientId().equals(clientId)) {
+            final long avoided = avoidedLookups.incrementAndGet();
+            log.trace("Reusing client {} resolved earlier in the request. {} lookups avoided so far", 
+                    clientId, avoided);
+            return cached;
+        }
+
+        log.debug("Loading client by id {}", clientId);
+        lookups.incrementAndGet();
+        final ClientDetailsEntity client = clientService.loadClientByClientId(clientId);
+        authZContext.setClient(client);
+        return client;
+    }
+
+    /**
+     * Gets the number of lookups delegated to the client service.
+     *
+     * @return the lookup count
+     */
+    public long getLookupCount() {
+        return lookups.get();
+    }
+
+    /**
+     * Gets the number of lookups avoided by reusing a client
+     * attached to the authorization request context.
+     *
+     * @return the avoided lookup count
+     */
+    public long getAvoidedLookupCount() {
+        return avoidedLookups.get();
+    }
+}
@@ -25,7 +25,6 @@ import net.shibboleth.idp.profile.AbstractProfileAction;
 import net.shibboleth.utilities.java.support.collection.Pair;
 import org.apache.http.client.utils.URIBuilder;
 import org.mitre.oauth2.model.ClientDetailsEntity;
-import org.mitre.oauth2.service.ClientDetailsEntityService;
 import org.mitre.openid.connect.request.ConnectRequestParameters;
 import org.opensaml.profile.context.ProfileRequestContext;
 import org.slf4j.Logger;
@@ -64,10 +63,10 @@ public class BuildAuthorizationRequestContextAction extends AbstractProfileActio
     private OAuth2RequestFactory authRequestFactory;
 
     /**
-     * The Client service.
+     * The Client resolver.
      */
     @Autowired
-    private ClientDetailsEntityService clientService;
+    private AuthorizationRequestClientResolver clientResolver;
 
     /**
      * The Redirect resolver.
@@ -214,8 +213,7 @@ public class BuildAuthorizationRequestContextAction extends AbstractProfileActio
      * @return the client details entity
      */
     private ClientDetailsEntity loadClientObject(final OIDCAuthorizationRequestContext authorizationRequest) {
-        log.debug("Loading client by id {}", authorizationRequest.getClientId());
-        return clientService.loadClientByClientId(authorizationRequest.getClientId());
+        return clientResolver.resolve(authorizationRequest);
     }
 
     /**
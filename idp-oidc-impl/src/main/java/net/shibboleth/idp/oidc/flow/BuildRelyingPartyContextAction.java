@@ -22,7 +22,6 @@ import net.shibboleth.idp.profile.AbstractProfileAction;
 import net.shibboleth.idp.profile.config.ProfileConfiguration;
 import net.shibboleth.idp.profile.context.RelyingPartyContext;
 import org.mitre.oauth2.model.ClientDetailsEntity;
-import org.mitre.oauth2.service.ClientDetailsEntityService;
 import org.opensaml.profile.context.ProfileRequestContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,10 +47,10 @@ public class BuildRelyingPartyContextAction extends AbstractProfileAction {
     private ProfileConfiguration profileConfiguration;
 
     /**
-     * The Client service.
+     * The Client resolver.
      */
     @Autowired
-    private ClientDetailsEntityService clientService;
+    private AuthorizationRequestClientResolver clientResolver;
 
     /**
      * Sets profile configuration.
@@ -80,7 +79,7 @@ public class BuildRelyingPartyContextAction extends AbstractProfileAction {
             return Events.Failure.event(this);
         }
 
-        final ClientDetailsEntity client = this.clientService.loadClientByClientId(authRequest.getClientId());
+        final ClientDetailsEntity client = this.clientResolver.resolve(authZContext);
 
         if (client == null) {
             log.warn("Client configuration could not be loaded from session");
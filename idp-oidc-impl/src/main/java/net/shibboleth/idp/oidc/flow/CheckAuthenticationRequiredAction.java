@@ -23,7 +23,6 @@ import net.shibboleth.idp.session.SessionException;
 import net.shibboleth.idp.session.context.SessionContext;
 import org.joda.time.DateTime;
 import org.mitre.oauth2.model.ClientDetailsEntity;
-import org.mitre.oauth2.service.ClientDetailsEntityService;
 import org.mitre.openid.connect.request.ConnectRequestParameters;
 import org.opensaml.messaging.context.navigate.ChildContextLookup;
 import org.opensaml.profile.context.ProfileRequestContext;
@@ -57,10 +56,10 @@ public class CheckAuthenticationRequiredAction extends AbstractProfileAction {
             new ChildContextLookup(SessionContext.class, false);
 
     /**
-     * The Client service.
+     * The Client resolver.
      */
     @Autowired
-    private ClientDetailsEntityService clientService;
+    private AuthorizationRequestClientResolver clientResolver;
 
     /**
      * Gets session bound to the idp.
@@ -100,8 +99,7 @@ public class CheckAuthenticationRequiredAction extends AbstractProfileAction {
                     return Events.Failure.event(this);
                 }
 
-                final ClientDetailsEntity client = clientService.loadClientByClientId(
-                        authZContext.getAuthorizationRequest().getClientId());
+                final ClientDetailsEntity client = clientResolver.resolve(authZContext);
                 if (client == null) {
                     log.warn("No client could be located based on the authorization request");
                     return Events.Failure.event(this);
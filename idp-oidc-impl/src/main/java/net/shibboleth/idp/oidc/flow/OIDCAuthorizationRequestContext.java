@@ -18,6 +18,7 @@ package net.shibboleth.idp.oidc.flow;
 
 import com.google.common.base.MoreObjects;
 import net.shibboleth.idp.oidc.config.OIDCConstants;
+import org.mitre.oauth2.model.ClientDetailsEntity;
 import org.mitre.openid.connect.request.ConnectRequestParameters;
 import org.opensaml.messaging.context.BaseContext;
 import org.springframework.security.oauth2.provider.AuthorizationRequest;
@@ -40,6 +41,11 @@ public class OIDCAuthorizationRequestContext extends BaseContext {
     @Nonnull
     private AuthorizationRequest authorizationRequest;
 
+    /**
+     * The client resolved for the authorization request.
+     */
+    private ClientDetailsEntity client;
+
     /**
      * Gets authorization request.
      *
@@ -58,6 +64,24 @@ public class OIDCAuthorizationRequestContext extends BaseContext {
         this.authorizationRequest = req;
     }
 
+    /**
+     * Gets the client resolved for the authorization request.
+     *
+     * @return the client, or null if not yet resolved
+     */
+    public ClientDetailsEntity getClient() {
+        return client;
+    }
+
+    /**
+     * Sets the client resolved for the authorization request.
+     *
+     * @param c the client
+     */
+    public void setClient(final ClientDetailsEntity c) {
+        this.client = c;
+    }
+
     /**
      * Gets client id.
      *
@@ -17,23 +17,19 @@
 package net.shibboleth.idp.oidc.flow;
 
 import com.google.common.base.Strings;
-import com.google.common.collect.Sets;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import net.shibboleth.idp.authn.context.SubjectContext;
 import net.shibboleth.idp.oidc.OIDCException;
+import net.shibboleth.idp.oidc.client.userinfo.ScopeClaimProjectionService;
 import net.shibboleth.idp.oidc.client.userinfo.ShibbolethUserInfoService;
 import net.shibboleth.idp.oidc.client.userinfo.authn.SpringSecurityAuthenticationToken;
 import net.shibboleth.idp.oidc.client.userinfo.authn.SpringSecurityAuthenticationTokenFactory;
 import net.shibboleth.idp.oidc.config.OIDCConstants;
+import net.shibboleth.idp.oidc.config.scope.ShibbolethSystemScopeRepository;
 import net.shibboleth.idp.oidc.util.OIDCUtils;
 import net.shibboleth.idp.profile.AbstractProfileAction;
 import org.mitre.oauth2.model.ClientDetailsEntity;
 import org.mitre.oauth2.model.SystemScope;
-import org.mitre.oauth2.service.ClientDetailsEntityService;
 import org.mitre.oauth2.service.SystemScopeService;
 import org.mitre.openid.connect.model.UserInfo;
-import org.mitre.openid.connect.service.ScopeClaimTranslationService;
 import org.mitre.openid.connect.service.StatsService;
 import org.opensaml.profile.context.ProfileRequestContext;
 import org.slf4j.Logger;
@@ -53,7 +49,6 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -67,10 +62,10 @@ public class PreAuthorizeUserApprovalAction extends AbstractProfileAction {
     private final Logger log = LoggerFactory.getLogger(PreAuthorizeUserApprovalAction.class);
 
     /**
-     * The Client service.
+     * The Client resolver.
      */
     @Autowired
-    private ClientDetailsEntityService clientService;
+    private AuthorizationRequestClientResolver clientResolver;
 
     /**
      * The Scope service.
@@ -79,10 +74,16 @@ public class PreAuthorizeUserApprovalAction extends AbstractProfileAction {
     private SystemScopeService scopeService;
 
     /**
-     * The Scope claim translation service.
+     * The Scope repository.
      */
     @Autowired
-    private ScopeClaimTranslationService scopeClaimTranslationService;
+    private ShibbolethSystemScopeRepository scopeRepository;
+
+    /**
+     * The Scope claim projection service.
+     */
+    @Autowired
+    private ScopeClaimProjectionService scopeClaimProjectionService;
 
     /**
      * The User info service.
@@ -114,8 +115,6 @@ public class PreAuthorizeUserApprovalAction extends AbstractProfileAction {
     protected Event doExecute(@Nonnull final RequestContext springRequestContext,
                               @Nonnull final ProfileRequestContext profileRequestContext) {
 
-        this.userInfoService.initialize(profileRequestContext);
-
         final OIDCAuthorizationRequestContext authZContext =
                 profileRequestContext.getSubcontext(OIDCAuthorizationRequestContext.class);
         if (authZContext == null) {
@@ -138,7 +137,7 @@ public class PreAuthorizeUserApprovalAction extends AbstractProfileAction {
         final ClientDetailsEntity client;
 
         try {
-            client = clientService.loadClientByClientId(authRequest.getClientId());
+            client = clientResolver.resolve(authZContext);
             if (client == null) {
                 log.error("Could not find client {}", authRequest.getClientId());
                 return Events.ClientNotFound.event(this);
@@ -159,7 +158,7 @@ public class PreAuthorizeUserApprovalAction extends AbstractProfileAction {
                 SpringSecurityAuthenticationTokenFactory.buildAuthentication(profileRequestContext);
         storeSpringSecurityAuthenticationContext(profileRequestContext, springRequestContext, authentication);
         storeAuthenticationTimeIntoAuthorizationRequest(authentication, authRequest);
-        final OIDCResponse response = buildOpenIdConnectResponse(authRequest, client);
+        final OIDCResponse response = buildOpenIdConnectResponse(profileRequestContext, authRequest, client);
         final OIDCAuthorizationResponseContext responseContext = new OIDCAuthorizationResponseContext();
         responseContext.setOidcResponse(response);
         profileRequestContext.addSubcontext(responseContext);
@@ -205,11 +204,13 @@ public class PreAuthorizeUserApprovalAction extends AbstractProfileAction {
     /**
      * Build open id connect response.
      *
-     * @param authRequest the auth request
-     * @param client      the client
+     * @param profileRequestContext the profile request context
+     * @param authRequest           the auth request
+     * @param client                the client
      * @return the open id connect response
      */
-    private OIDCResponse buildOpenIdConnectResponse(final AuthorizationRequest authRequest,
+    private OIDCResponse buildOpenIdConnectResponse(final ProfileRequestContext profileRequestContext,
+                                                    final AuthorizationRequest authRequest,
                                                     final ClientDetailsEntity client) {
         final OIDCResponse response = new OIDCResponse();
         response.setAuthorizationRequest(authRequest);
@@ -228,7 +229,7 @@ public class PreAuthorizeUserApprovalAction extends AbstractProfileAction {
         response.setScopes(sortedScopes);
         log.debug("Response will contain the following scopes {}", sortedScopes);
 
-        final Map<String, Map<String, String>> claimsForScopes = getUserInfoClaimsForScopes(sortedScopes);
+        final Map<String, Map<String, String>> claimsForScopes = getUserInfoClaimsForScopes(profileRequestContext, sortedScopes);
         response.setClaims(claimsForScopes);
         log.debug("Response will contain the following claims for scopes {}", claimsForScopes.keySet());
 
@@ -250,39 +251,22 @@ public class PreAuthorizeUserApprovalAction extends AbstractProfileAction {
     /**
      * Gets user info claims for scopes.
      *
-     * @param sortedScopes the sorted scopes
+     * @param profileRequestContext the profile request context
+     * @param sortedScopes          the sorted scopes
      * @return the user info claims for scopes
      */
-    private Map<String, Map<String, String>> getUserInfoClaimsForScopes(final Set<SystemScope> sortedScopes) {
+    private Map<String, Map<String, String>> getUserInfoClaimsForScopes(
+            final ProfileRequestContext profileRequestContext, final Set<SystemScope> sortedScopes) {
 
-        final SecurityContext securityContext = SecurityContextHolder.getContext();
-        final Authentication authentication = securityContext.getAuthentication();
-        final SubjectContext context = (SubjectContext) authentication.getPrincipal();
-
-        final UserInfo user = userInfoService.getByUsername(context.getPrincipalName());
-        log.debug("Located UserInfo object from principal name {}", context.getPrincipalName());
-
-        final Map<String, Map<String, String>> claimsForScopes = new HashMap<>();
-        if (user != null) {
-            final JsonObject userJson = user.toJson();
-            log.debug("UserInfo translated to JSON is:\n{}", userJson);
-
-            for (final SystemScope systemScope : sortedScopes) {
-                final Map<String, String> claimValues = new HashMap<>();
-
-                final Set<String> claims = scopeClaimTranslationService.getClaimsForScope(systemScope.getValue());
-                log.debug("Processing system scope {} for the following claims: {}", systemScope.getValue(), claims);
-                for (final String claim : claims) {
-                    final JsonElement element = userJson.get(claim);
-                    if (userJson.has(claim) && element.isJsonPrimitive()) {
-                        claimValues.put(claim, element.getAsString());
-                        log.debug("Added claim {} with value {}", claim, element.getAsString());
-                    }
-                }
-                log.debug("Final claims for system scope {} are {}", systemScope.getValue(), claimValues);
-                claimsForScopes.put(systemScope.getValue(), claimValues);
-            }
+        final UserInfo user = userInfoService.getByProfileRequestContext(profileRequestContext);
+        log.debug("Located UserInfo object from the profile request context");
+
+        if (user == null) {
+            return new HashMap<>();
         }
+        final Map<String, Map<String, String>> claimsForScopes =
+                scopeClaimProjectionService.getClaimsForScopes(user, sortedScopes);
+        log.debug("Final claims for system scopes are {}", claimsForScopes);
         return claimsForScopes;
     }
 
@@ -293,18 +277,7 @@ public class PreAuthorizeUserApprovalAction extends AbstractProfileAction {
      * @return the system scopes
      */
     private Set<SystemScope> getSystemScopes(final Set<SystemScope> scopes) {
-        final Set<SystemScope> sortedScopes = new LinkedHashSet<>(scopes.size());
-        final Set<SystemScope> systemScopes = scopeService.getAll();
-
-        // sort scopes for display based on the inherent order of system scopes
-        for (final SystemScope systemScope : systemScopes) {
-            if (scopes.contains(systemScope)) {
-                sortedScopes.add(systemScope);
-            }
-        }
-        // add in any scopes that aren't system scopes to the end of the list
-        sortedScopes.addAll(Sets.difference(scopes, systemScopes));
-        return sortedScopes;
+        return scopeRepository.sortForDisplay(scopes);
     }
 
 
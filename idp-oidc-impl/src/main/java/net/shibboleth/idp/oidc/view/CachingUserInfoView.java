@@ -0,0 +1,93 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.view;
+
+import net.shibboleth.idp.oidc.client.userinfo.UserInfoResponseCache;
+import org.mitre.oauth2.model.OAuth2AccessTokenEntity;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.View;
+import org.springframework.web.servlet.view.AbstractView;
+import org.springframework.web.util.ContentCachingResponseWrapper;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Map;
+
+/**
+ * Writes a userinfo response from the {@link UserInfoResponseCache}.
+ * When no response is cached, the userinfo view named in the model
+ * renders it, and a successful response is cached for the token.
+ */
+@Component(CachingUserInfoView.VIEWNAME)
+public class CachingUserInfoView extends AbstractView {
+    /**
+     * The view name.
+     */
+    public static final String VIEWNAME = "cachingUserInfoView";
+
+    /**
+     * Model attribute that carries the cached response.
+     */
+    public static final String CACHED_RESPONSE = "cachedResponse";
+
+    /**
+     * Model attribute that carries the name of the view that renders the response.
+     */
+    public static final String DELEGATE_VIEW = "delegateView";
+
+    /**
+     * Model attribute that carries the cache key.
+     */
+    public static final String CACHE_KEY = "cacheKey";
+
+    /**
+     * Model attribute that carries the access token.
+     */
+    public static final String ACCESS_TOKEN = "accessToken";
+
+    /**
+     * The response cache.
+     */
+    @Autowired
+    private UserInfoResponseCache responseCache;
+
+    @Override
+    protected void renderMergedOutputModel(final Map<String, Object> model,
+                                           final HttpServletRequest request,
+                                           final HttpServletResponse response) throws Exception {
+        final UserInfoResponseCache.CachedResponse cached =
+                (UserInfoResponseCache.CachedResponse) model.get(CACHED_RESPONSE);
+        if (cached != null) {
+            final byte[] content = cached.getContent();
+            response.setContentType(cached.getContentType());
+            response.setContentLength(content.length);
+            response.getOutputStream().write(content);
+            return;
+        }
+
+        final View delegate = getApplicationContext().getBean((String) model.get(DELEGATE_VIEW), View.class);
+        final ContentCachingResponseWrapper wrapper = new ContentCachingResponseWrapper(response);
+        delegate.render(model, request, wrapper);
+        if (wrapper.getStatusCode() == HttpServletResponse.SC_OK) {
+            responseCache.put((UserInfoResponseCache.CacheKey) model.get(CACHE_KEY),
+                    (OAuth2AccessTokenEntity) model.get(ACCESS_TOKEN),
+                    wrapper.getContentAsByteArray(), wrapper.getContentType());
+        }
+        wrapper.copyBodyToResponse();
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.view;
+
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An immutable document rendered ahead of time, along with the
+ * validators used to answer conditional requests for it.
+ */
+public final class PreRenderedDocument {
+
+    /**
+     * The Content.
+     */
+    private final byte[] content;
+
+    /**
+     * The Content type.
+     */
+    private final String contentType;
+
+    /**
+     * The strong entity tag, quoted.
+     */
+    private final String etag;
+
+    /**
+     * The last modified instant, in milliseconds truncated to seconds.
+     */
+    private final long lastModified;
+
+    /**
+     * Instantiates a new pre-rendered document.
+     *
+     * @param body     the body
+     * @param type     the content type
+     * @param modified the last modified instant
+     */
+    private PreRenderedDocument(final byte[] body, final String type, final long modified) {
+        this.content = body;
+        this.contentType = type;
+        this.etag = '"' + Hashing.sha256().hashBytes(body).toString() + '"';
+        this.lastModified = modified / 1000 * 1000;
+    }
+
+    /**
+     * Renders the given text as a UTF-8 document, last modified now.
+     *
+     * @param text the text
+     * @param type the content type
+     * @return the document
+     */
+    public static PreRenderedDocument of(final String text, final String type) {
+        return new PreRenderedDocument(text.getBytes(StandardCharsets.UTF_8), type, System.currentTimeMillis());
+    }
+
+    /**
+     * Gets the content. The returned array must not be modified.
+     *
+     * @return the content
+     */
+    public byte[] getContent() {
+        return content;
+    }
+
+    /**
+     * Gets content type.
+     *
+     * @return the content type
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Gets the quoted strong entity tag.
+     *
+     * @return the etag
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    /**
+     * Gets last modified.
+     *
+     * @return the last modified instant in milliseconds
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Whether the given document has the same content as this one.
+     *
+     * @param other the other document
+     * @return true if both documents carry the same entity tag
+     */
+    public boolean hasSameContent(final PreRenderedDocument other) {
+        return other != null && etag.equals(other.etag);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.view;
+
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.servlet.view.AbstractView;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Map;
+
+/**
+ * Writes a {@link PreRenderedDocument} to the response as is.
+ * Conditional requests are answered with <code>304 Not Modified</code>
+ * based on the document's entity tag and last modified instant,
+ * and the response is marked cacheable for the configured max age.
+ */
+@Component(PreRenderedDocumentView.VIEWNAME)
+public class PreRenderedDocumentView extends AbstractView {
+    /**
+     * The view name.
+     */
+    public static final String VIEWNAME = "preRenderedDocumentView";
+
+    /**
+     * Model attribute that carries the document.
+     */
+    public static final String DOCUMENT = "document";
+
+    /**
+     * Model attribute that carries the max age, in seconds.
+     */
+    public static final String MAX_AGE = "maxAge";
+
+    @Override
+    protected void renderMergedOutputModel(final Map<String, Object> model,
+                                           final HttpServletRequest request,
+                                           final HttpServletResponse response) throws Exception {
+        final PreRenderedDocument document = (PreRenderedDocument) model.get(DOCUMENT);
+        final Object maxAge = model.get(MAX_AGE);
+        if (maxAge != null) {
+            response.setHeader("Cache-Control", "public, max-age=" + maxAge);
+        }
+
+        final ServletWebRequest webRequest = new ServletWebRequest(request, response);
+        if (webRequest.checkNotModified(document.getEtag(), document.getLastModified())) {
+            return;
+        }
+
+        final byte[] content = document.getContent();
+        response.setContentType(document.getContentType());
+        response.setContentLength(content.length);
+        response.getOutputStream().write(content);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client;
+
+import org.mitre.oauth2.model.ClientDetailsEntity;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests that the {@link ClientIndex} finds clients to remove by id rather than by instance,
+ * and keeps count of the file clients behind the registered ones.
+ */
+public class ClientIndexTest {
+
+    /**
+     * A copy of a registered client removes the registered one.
+     */
+    @Test
+    public void copyOfClientIsRemoved() {
+        final ClientDetailsEntity client = newClient(1L, "client");
+        final ClientDetailsEntity other = newClient(2L, "other");
+        final ClientIndex index = ClientIndex.of(Arrays.asList(client, other));
+
+        final ClientIndex removed = index.without(newClient(1L, "client"));
+        Assert.assertNull(removed.getById(1L));
+        Assert.assertNull(removed.getByClientId("client"));
+        Assert.assertSame(removed.getById(2L), other);
+        Assert.assertEquals(removed.size(), 1);
+    }
+
+    /**
+     * A client without a numeric id removes the one registered under its client id.
+     */
+    @Test
+    public void clientIsRemovedByClientId() {
+        final ClientIndex index = ClientIndex.of(Arrays.asList(newClient(1L, "client")));
+
+        final ClientIndex removed = index.without(newClient(null, "client"));
+        Assert.assertNull(removed.getByClientId("client"));
+        Assert.assertEquals(removed.size(), 0);
+    }
+
+    /**
+     * Removing a client that is not registered leaves the index as it is.
+     */
+    @Test
+    public void unknownClientLeavesIndex() {
+        final ClientIndex index = ClientIndex.of(Arrays.asList(newClient(1L, "client")));
+        Assert.assertSame(index.without(newClient(2L, "other")), index);
+    }
+
+    /**
+     * The count of a file-backed index follows updates without materializing
+     * the file clients, and matches what listing all clients returns.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    @Test
+    public void fileClientsAreCountedAcrossUpdates() throws IOException {
+        final File registrations = File.createTempFile("clients", ".json");
+        registrations.deleteOnExit();
+        Files.write(registrations.toPath(), Arrays.asList("{\"client_id\": \"a\", \"id\": \"1\"}",
+                "{\"client_id\": \"b\", \"id\": \"2\"}", "{\"client_id\": \"c\", \"id\": \"3\"}"),
+                StandardCharsets.UTF_8);
+        final ClientRegistrationFile file = new ClientRegistrationFile(registrations, true);
+
+        ClientIndex index = ClientIndex.of(Arrays.asList(newClient(10L, "registered"), newClient(11L, "b")), file);
+        Assert.assertEquals(index.size(), 4);
+        Assert.assertEquals(index.getAll().size(), 4);
+        Assert.assertEquals(file.getMaterializedCount(), 0);
+        Assert.assertEquals(clientIds(index), Arrays.asList("registered", "b", "a", "c"));
+        Assert.assertEquals(file.getMaterializedCount(), 2);
+
+        index = index.with(newClient(1L, "renamed"));
+        Assert.assertEquals(index.size(), 4);
+        Assert.assertEquals(clientIds(index), Arrays.asList("registered", "b", "renamed", "c"));
+
+        index = index.without(index.getByClientId("c"));
+        Assert.assertEquals(index.size(), 3);
+        Assert.assertEquals(clientIds(index), Arrays.asList("registered", "b", "renamed"));
+
+        index = index.without(newClient(11L, "b"));
+        Assert.assertEquals(index.size(), 3);
+        Assert.assertEquals(clientIds(index), Arrays.asList("registered", "renamed", "b"));
+    }
+
+    /**
+     * List the client ids of all clients of the index.
+     *
+     * @param index the index
+     * @return the client ids, in iteration order
+     */
+    private static List<String> clientIds(final ClientIndex index) {
+        final List<String> ids = new ArrayList<>();
+        for (final ClientDetailsEntity client : index.getAll()) {
+            ids.add(client.getClientId());
+        }
+        return ids;
+    }
+
+    /**
+     * Create a client.
+     *
+     * @param id       the numeric id
+     * @param clientId the client id
+     * @return the client
+     */
+    private static ClientDetailsEntity newClient(final Long id, final String clientId) {
+        final ClientDetailsEntity client = new ClientDetailsEntity();
+        client.setId(id);
+        client.setClientId(clientId);
+        return client;
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo;
+
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.StringAttributeValue;
+import net.shibboleth.idp.authn.context.SubjectContext;
+import net.shibboleth.idp.consent.context.impl.AttributeReleaseContext;
+import net.shibboleth.idp.oidc.client.userinfo.authn.SpringSecurityAuthenticationTokenFactory;
+import net.shibboleth.idp.profile.context.RelyingPartyContext;
+import org.mitre.oauth2.model.AuthenticationHolderEntity;
+import org.mitre.openid.connect.model.UserInfo;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that user info released at login is found by the endpoints that run outside the login flow.
+ */
+public class ShibbolethUserInfoRepositoryTest {
+
+    /**
+     * Number of users logging in concurrently.
+     */
+    private static final int USERS = 16;
+
+    /**
+     * Number of clients they log in to.
+     */
+    private static final int CLIENTS = 4;
+
+    /**
+     * The repository under test.
+     */
+    private ShibbolethUserInfoRepository repository;
+
+    /**
+     * Create the repository.
+     */
+    @BeforeMethod
+    public void setUp() {
+        repository = new ShibbolethUserInfoRepository();
+        repository.setClaimMapper(new UserInfoClaimMapper());
+        repository.setReleasedCacheSize(100);
+        repository.setReleasedCacheTtl(60);
+        repository.initialize();
+    }
+
+    /**
+     * Clear the security context.
+     */
+    @AfterMethod
+    public void tearDown() {
+        SecurityContextHolder.clearContext();
+    }
+
+    /**
+     * A token issued after login carries the user's name and client; the token
+     * endpoint, authenticated as the client, finds the user info released at login.
+     */
+    @Test
+    public void userInfoIsFoundForTokenIssuedAfterLogin() {
+        final AuthenticationHolderEntity holder = login("jdoe", "client");
+
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("client",
+                null, Collections.<GrantedAuthority>emptySet()));
+        final OAuth2Authentication authentication = holder.getAuthentication();
+        final UserInfo userInfo = repository.getByUsernameAndClientId(authentication.getName(),
+                authentication.getOAuth2Request().getClientId());
+        Assert.assertNotNull(userInfo);
+        Assert.assertEquals(userInfo.getSub(), "jdoe");
+        Assert.assertEquals(userInfo.getEmail(), email("jdoe", "client"));
+
+        Assert.assertNull(repository.getByUsernameAndClientId("jdoe", "other"));
+        Assert.assertNull(repository.getByUsernameAndClientId("alice", "client"));
+    }
+
+    /**
+     * Lookups outside the login flow that name no relying party get nothing,
+     * rather than the user info released to some relying party.
+     */
+    @Test
+    public void userInfoIsNotFoundWithoutRelyingParty() {
+        login("jdoe", "client");
+        SecurityContextHolder.clearContext();
+
+        Assert.assertNull(repository.getByUsername("jdoe"));
+        Assert.assertNull(repository.getByUsernameAndClientId("jdoe", null));
+    }
+
+    /**
+     * User info built for the consent page, before any code or token is issued, is not kept.
+     */
+    @Test
+    public void userInfoIsNotKeptBeforeIssuance() {
+        final ProfileRequestContext prc = newProfileRequestContext("jdoe", "client");
+        SecurityContextHolder.getContext().setAuthentication(
+                SpringSecurityAuthenticationTokenFactory.buildAuthentication(prc));
+        Assert.assertEquals(repository.getByProfileRequestContext(prc).getEmail(), email("jdoe", "client"));
+        SecurityContextHolder.clearContext();
+
+        Assert.assertNull(repository.getByUsernameAndClientId("jdoe", "client"));
+    }
+
+    /**
+     * Changing the user info handed out does not change what is kept.
+     */
+    @Test
+    public void userInfoKeptIsNotChangedByCallers() {
+        login("jdoe", "client");
+        SecurityContextHolder.clearContext();
+
+        repository.getByUsernameAndClientId("jdoe", "client").setSub("pairwise");
+        Assert.assertEquals(repository.getByUsernameAndClientId("jdoe", "client").getSub(), "jdoe");
+    }
+
+    /**
+     * The user info of one relying party is not handed to another.
+     */
+    @Test
+    public void userInfoIsKeptPerRelyingParty() {
+        login("jdoe", "client");
+        final ProfileRequestContext other = newProfileRequestContext("jdoe", "other");
+        other.getSubcontext(AttributeReleaseContext.class).getConsentableAttributes().remove("email");
+        repository.rememberIssued(newAuthentication(other, "other"));
+        SecurityContextHolder.clearContext();
+
+        Assert.assertEquals(repository.getByUsernameAndClientId("jdoe", "client").getEmail(), email("jdoe", "client"));
+        Assert.assertNull(repository.getByUsernameAndClientId("jdoe", "other").getEmail());
+    }
+
+    /**
+     * Logins of several users to several clients, interleaved across threads, each see only
+     * their own claims, both while the login is bound to the thread and afterwards.
+     *
+     * @throws Exception if a thread fails
+     */
+    @Test
+    public void concurrentLoginsSeeOnlyTheirOwnClaims() throws Exception {
+        final int threads = 8;
+        final int iterations = 2000;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<Void>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    final Random random = new Random(seed);
+                    start.await();
+                    try {
+                        for (int i = 0; i < iterations; i++) {
+                            loginConcurrently("user" + random.nextInt(USERS), "client" + random.nextInt(CLIENTS),
+                                    "user" + random.nextInt(USERS), "client" + random.nextInt(CLIENTS));
+                        }
+                    } finally {
+                        SecurityContextHolder.clearContext();
+                    }
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+        for (final Future<Void> result : results) {
+            result.get();
+        }
+    }
+
+    /**
+     * Log a user in to a client on the current thread and check every lookup
+     * on the way, then look up another user and client after the login.
+     *
+     * @param username      the username
+     * @param clientId      the client id
+     * @param otherUsername another username
+     * @param otherClientId another client id
+     */
+    private void loginConcurrently(final String username, final String clientId,
+                                   final String otherUsername, final String otherClientId) {
+        final ProfileRequestContext prc = newProfileRequestContext(username, clientId);
+        final OAuth2Authentication authentication = newAuthentication(prc, clientId);
+        SecurityContextHolder.getContext().setAuthentication(authentication.getUserAuthentication());
+        Assert.assertEquals(repository.getByProfileRequestContext(prc).getEmail(), email(username, clientId));
+        Assert.assertEquals(repository.getByUsername(username).getEmail(), email(username, clientId));
+        Assert.assertNull(repository.getByUsername(otherUsername.equals(username) ? "nobody" : otherUsername));
+        repository.rememberIssued(authentication);
+        SecurityContextHolder.clearContext();
+
+        Assert.assertEquals(repository.getByUsernameAndClientId(username, clientId).getEmail(),
+                email(username, clientId));
+        Assert.assertNull(repository.getByUsername(username));
+        final UserInfo other = repository.getByUsernameAndClientId(otherUsername, otherClientId);
+        if (other != null) {
+            Assert.assertEquals(other.getSub(), otherUsername);
+            Assert.assertEquals(other.getEmail(), email(otherUsername, otherClientId));
+        }
+    }
+
+    /**
+     * The email released to a client, different for every user and client.
+     *
+     * @param username the username
+     * @param clientId the client id
+     * @return the email
+     */
+    private static String email(final String username, final String clientId) {
+        return username + "@" + clientId + ".example.org";
+    }
+
+    /**
+     * Log a user in to a client the way the login flow does, and issue a token for it.
+     *
+     * @param username the username
+     * @param clientId the client id
+     * @return the authentication holder of the token
+     */
+    private AuthenticationHolderEntity login(final String username, final String clientId) {
+        final ProfileRequestContext prc = newProfileRequestContext(username, clientId);
+        final OAuth2Authentication authentication = newAuthentication(prc, clientId);
+        SecurityContextHolder.getContext().setAuthentication(authentication.getUserAuthentication());
+        Assert.assertEquals(repository.getByProfileRequestContext(prc).getEmail(), email(username, clientId));
+        Assert.assertEquals(repository.getByUsername(username).getSub(), username);
+
+        repository.rememberIssued(authentication);
+        final AuthenticationHolderEntity holder = new AuthenticationHolderEntity();
+        holder.setAuthentication(authentication);
+        return holder;
+    }
+
+    /**
+     * Create the authentication a code or token is issued for at the end of a login.
+     *
+     * @param prc      the profile request context of the login
+     * @param clientId the client id
+     * @return the authentication
+     */
+    static OAuth2Authentication newAuthentication(final ProfileRequestContext prc, final String clientId) {
+        final Authentication user = SpringSecurityAuthenticationTokenFactory.buildAuthentication(prc);
+        final OAuth2Request request = new OAuth2Request(Collections.<String, String>emptyMap(), clientId,
+                Collections.<GrantedAuthority>emptySet(), true, Collections.singleton("openid"),
+                Collections.<String>emptySet(), "https://rp.example.org/callback",
+                Collections.<String>emptySet(), Collections.<String, Serializable>emptyMap());
+        return new OAuth2Authentication(request, user);
+    }
+
+    /**
+     * Create the profile request context of a login with an email attribute released.
+     *
+     * @param username the username
+     * @param clientId the client id
+     * @return the profile request context
+     */
+    static ProfileRequestContext newProfileRequestContext(final String username, final String clientId) {
+        final ProfileRequestContext prc = new ProfileRequestContext();
+        prc.getSubcontext(SubjectContext.class, true).setPrincipalName(username);
+        prc.getSubcontext(RelyingPartyContext.class, true).setRelyingPartyId(clientId);
+        final IdPAttribute email = new IdPAttribute("email");
+        email.setValues(Collections.singletonList(new StringAttributeValue(email(username, clientId))));
+        prc.getSubcontext(AttributeReleaseContext.class, true).getConsentableAttributes().put("email", email);
+        return prc;
+    }
+}
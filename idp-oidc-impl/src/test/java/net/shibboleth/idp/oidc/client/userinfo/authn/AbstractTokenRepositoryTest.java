@@ -0,0 +1,411 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import org.mitre.oauth2.model.AuthenticationHolderEntity;
+import org.mitre.oauth2.model.AuthorizationCodeEntity;
+import org.mitre.oauth2.model.ClientDetailsEntity;
+import org.mitre.oauth2.model.OAuth2AccessTokenEntity;
+import org.mitre.oauth2.model.OAuth2RefreshTokenEntity;
+import org.mitre.oauth2.repository.AuthenticationHolderRepository;
+import org.mitre.oauth2.repository.AuthorizationCodeRepository;
+import org.mitre.oauth2.repository.OAuth2ClientRepository;
+import org.mitre.oauth2.repository.OAuth2TokenRepository;
+import org.springframework.context.support.GenericXmlApplicationContext;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Tests that a token repository, and the authentication holder and
+ * authorization code repositories that go with it, behave the way the MITREid
+ * services expect of the JPA ones. Each storage is tested by a subclass that
+ * starts the token storage context.
+ */
+public abstract class AbstractTokenRepositoryTest {
+
+    /**
+     * The context.
+     */
+    private GenericXmlApplicationContext context;
+
+    /**
+     * The token repository under test.
+     */
+    private OAuth2TokenRepository tokenRepository;
+
+    /**
+     * The authentication holder repository under test.
+     */
+    private AuthenticationHolderRepository holderRepository;
+
+    /**
+     * The authorization code repository under test.
+     */
+    private AuthorizationCodeRepository codeRepository;
+
+    /**
+     * Start the context and look up the repositories under test.
+     */
+    @BeforeClass
+    public void setUp() {
+        context = startContext();
+        tokenRepository = getTokenRepository(context);
+        holderRepository = getHolderRepository(context);
+        codeRepository = getCodeRepository(context);
+    }
+
+    /**
+     * Close the context.
+     */
+    @AfterClass
+    public void tearDown() {
+        context.close();
+    }
+
+    /**
+     * Start the token storage context.
+     *
+     * @return the context
+     */
+    protected abstract GenericXmlApplicationContext startContext();
+
+    /**
+     * Gets the token repository under test.
+     *
+     * @param ctx the context
+     * @return the repository
+     */
+    protected abstract OAuth2TokenRepository getTokenRepository(GenericXmlApplicationContext ctx);
+
+    /**
+     * Gets the authentication holder repository under test.
+     *
+     * @param ctx the context
+     * @return the repository
+     */
+    protected abstract AuthenticationHolderRepository getHolderRepository(GenericXmlApplicationContext ctx);
+
+    /**
+     * Gets the authorization code repository under test.
+     *
+     * @param ctx the context
+     * @return the repository
+     */
+    protected abstract AuthorizationCodeRepository getCodeRepository(GenericXmlApplicationContext ctx);
+
+    /**
+     * Gets the context.
+     *
+     * @return the context
+     */
+    protected GenericXmlApplicationContext getContext() {
+        return context;
+    }
+
+    /**
+     * Gets the token repository under test.
+     *
+     * @return the repository
+     */
+    protected OAuth2TokenRepository getTokenRepository() {
+        return tokenRepository;
+    }
+
+    /**
+     * A saved access token is found by its value and id, with its client,
+     * scope, authentication holder and refresh token.
+     */
+    @Test
+    public void savedAccessTokenIsFound() {
+        final ClientDetailsEntity client = newClient();
+        final AuthenticationHolderEntity holder = holderRepository.save(WriteBehindTokenRepositoryTest.newHolder());
+        final OAuth2RefreshTokenEntity refreshToken = saveRefreshToken(client, holder);
+        final OAuth2AccessTokenEntity accessToken = saveAccessToken(client, holder, refreshToken, 60000);
+
+        final OAuth2AccessTokenEntity byValue = tokenRepository.getAccessTokenByValue(accessToken.getValue());
+        Assert.assertEquals(byValue.getId(), accessToken.getId());
+        Assert.assertEquals(byValue.getValue(), accessToken.getValue());
+        Assert.assertEquals(byValue.getScope(), Collections.singleton("openid"));
+        Assert.assertEquals(byValue.getClient().getClientId(), client.getClientId());
+        Assert.assertEquals(byValue.getAuthenticationHolder().getId(), holder.getId());
+        Assert.assertEquals(byValue.getAuthenticationHolder().getAuthentication().getName(), "jdoe");
+        Assert.assertEquals(byValue.getRefreshToken().getId(), refreshToken.getId());
+        Assert.assertEquals(tokenRepository.getAccessTokenById(accessToken.getId()).getValue(),
+                accessToken.getValue());
+
+        final OAuth2RefreshTokenEntity refreshByValue = tokenRepository.getRefreshTokenByValue(
+                refreshToken.getValue());
+        Assert.assertEquals(refreshByValue.getId(), refreshToken.getId());
+        Assert.assertEquals(refreshByValue.getAuthenticationHolder().getId(), holder.getId());
+        Assert.assertEquals(tokenRepository.getRefreshTokenById(refreshToken.getId()).getValue(),
+                refreshToken.getValue());
+
+        Assert.assertNull(tokenRepository.getAccessTokenByValue(WriteBehindTokenRepositoryTest.newJwt().serialize()));
+        Assert.assertNull(tokenRepository.getRefreshTokenByValue(
+                WriteBehindTokenRepositoryTest.newJwt().serialize()));
+    }
+
+    /**
+     * Saving a token again keeps its id and its value.
+     */
+    @Test
+    public void savingAgainKeepsTheToken() {
+        final ClientDetailsEntity client = newClient();
+        final AuthenticationHolderEntity holder = holderRepository.save(WriteBehindTokenRepositoryTest.newHolder());
+        final OAuth2AccessTokenEntity accessToken = saveAccessToken(client, holder, null, 60000);
+        accessToken.setScope(new HashSet<>(Arrays.asList("openid", "email")));
+
+        final OAuth2AccessTokenEntity saved = tokenRepository.saveAccessToken(accessToken);
+        Assert.assertEquals(saved.getId(), accessToken.getId());
+        Assert.assertEquals(tokenRepository.getAccessTokensForClient(client).size(), 1);
+        Assert.assertEquals(tokenRepository.getAccessTokenByValue(accessToken.getValue()).getScope().size(), 2);
+    }
+
+    /**
+     * Clearing the access tokens of a refresh token leaves those of other refresh tokens.
+     */
+    @Test
+    public void accessTokensOfRefreshTokenAreCleared() {
+        final ClientDetailsEntity client = newClient();
+        final AuthenticationHolderEntity holder = holderRepository.save(WriteBehindTokenRepositoryTest.newHolder());
+        final OAuth2RefreshTokenEntity refreshToken = saveRefreshToken(client, holder);
+        final OAuth2RefreshTokenEntity otherRefreshToken = saveRefreshToken(client, holder);
+        final OAuth2AccessTokenEntity first = saveAccessToken(client, holder, refreshToken, 60000);
+        final OAuth2AccessTokenEntity second = saveAccessToken(client, holder, refreshToken, 60000);
+        final OAuth2AccessTokenEntity other = saveAccessToken(client, holder, otherRefreshToken, 60000);
+
+        tokenRepository.clearAccessTokensForRefreshToken(refreshToken);
+        Assert.assertNull(tokenRepository.getAccessTokenByValue(first.getValue()));
+        Assert.assertNull(tokenRepository.getAccessTokenByValue(second.getValue()));
+        Assert.assertNotNull(tokenRepository.getAccessTokenByValue(other.getValue()));
+        Assert.assertNotNull(tokenRepository.getRefreshTokenByValue(refreshToken.getValue()));
+    }
+
+    /**
+     * The access token of an id token is found, and removing it removes the id token.
+     */
+    @Test
+    public void idTokenGoesWithItsAccessToken() {
+        final ClientDetailsEntity client = newClient();
+        final AuthenticationHolderEntity holder = holderRepository.save(WriteBehindTokenRepositoryTest.newHolder());
+        final OAuth2AccessTokenEntity idToken = new OAuth2AccessTokenEntity();
+        idToken.setJwt(WriteBehindTokenRepositoryTest.newJwt());
+        idToken.setClient(client);
+        idToken.setAuthenticationHolder(holder);
+        idToken.setExpiration(new Date(System.currentTimeMillis() + 60000));
+        final OAuth2AccessTokenEntity savedIdToken = tokenRepository.saveAccessToken(idToken);
+
+        final OAuth2AccessTokenEntity accessToken = newAccessToken(client, holder, null, 60000);
+        accessToken.setIdToken(savedIdToken);
+        final OAuth2AccessTokenEntity saved = tokenRepository.saveAccessToken(accessToken);
+
+        Assert.assertEquals(tokenRepository.getAccessTokenForIdToken(savedIdToken).getId(), saved.getId());
+        Assert.assertEquals(tokenRepository.getAccessTokenById(saved.getId()).getIdToken().getId(),
+                savedIdToken.getId());
+
+        tokenRepository.removeAccessToken(saved);
+        Assert.assertNull(tokenRepository.getAccessTokenById(saved.getId()));
+        Assert.assertNull(tokenRepository.getAccessTokenById(savedIdToken.getId()));
+    }
+
+    /**
+     * The tokens of a client are listed and cleared without touching those of other clients.
+     */
+    @Test
+    public void tokensOfClientAreCleared() {
+        final ClientDetailsEntity client = newClient();
+        final ClientDetailsEntity otherClient = newClient();
+        final AuthenticationHolderEntity holder = holderRepository.save(WriteBehindTokenRepositoryTest.newHolder());
+        final OAuth2RefreshTokenEntity refreshToken = saveRefreshToken(client, holder);
+        saveAccessToken(client, holder, refreshToken, 60000);
+        saveAccessToken(client, holder, null, 60000);
+        final OAuth2AccessTokenEntity other = saveAccessToken(otherClient, holder, null, 60000);
+
+        Assert.assertEquals(tokenRepository.getAccessTokensForClient(client).size(), 2);
+        Assert.assertEquals(tokenRepository.getRefreshTokensForClient(client).size(), 1);
+
+        tokenRepository.clearTokensForClient(client);
+        Assert.assertTrue(tokenRepository.getAccessTokensForClient(client).isEmpty());
+        Assert.assertTrue(tokenRepository.getRefreshTokensForClient(client).isEmpty());
+        Assert.assertNotNull(tokenRepository.getAccessTokenByValue(other.getValue()));
+    }
+
+    /**
+     * Expired tokens are listed, and tokens that are still valid are not.
+     */
+    @Test
+    public void expiredTokensAreListed() {
+        final ClientDetailsEntity client = newClient();
+        final AuthenticationHolderEntity holder = holderRepository.save(WriteBehindTokenRepositoryTest.newHolder());
+        final OAuth2AccessTokenEntity expired = saveAccessToken(client, holder, null, -60000);
+        final OAuth2AccessTokenEntity valid = saveAccessToken(client, holder, null, 60000);
+
+        final Set<String> values = new HashSet<>();
+        for (final OAuth2AccessTokenEntity token : tokenRepository.getAllExpiredAccessTokens()) {
+            values.add(token.getValue());
+        }
+        Assert.assertTrue(values.contains(expired.getValue()));
+        Assert.assertFalse(values.contains(valid.getValue()));
+    }
+
+    /**
+     * A saved authentication holder is found by id until it is removed.
+     */
+    @Test
+    public void holderIsFoundUntilRemoved() {
+        final AuthenticationHolderEntity holder = holderRepository.save(WriteBehindTokenRepositoryTest.newHolder());
+        Assert.assertNotNull(holder.getId());
+
+        final AuthenticationHolderEntity found = holderRepository.getById(holder.getId());
+        Assert.assertEquals(found.getAuthentication().getName(), "jdoe");
+        Assert.assertEquals(found.getAuthentication().getOAuth2Request().getClientId(), "client");
+        Assert.assertEquals(found.getAuthentication().getOAuth2Request().getScope(), Collections.singleton("openid"));
+
+        holderRepository.remove(found);
+        Assert.assertNull(holderRepository.getById(holder.getId()));
+    }
+
+    /**
+     * A saved authorization code is found by its value, with its expiration and
+     * authentication holder, until it is removed.
+     */
+    @Test
+    public void savedCodeIsFoundUntilRemoved() {
+        final AuthenticationHolderEntity holder = holderRepository.save(WriteBehindTokenRepositoryTest.newHolder());
+        final AuthorizationCodeEntity code = newCode(holder, 60000);
+        final AuthorizationCodeEntity saved = codeRepository.save(code);
+        Assert.assertNotNull(saved.getId());
+
+        final AuthorizationCodeEntity found = codeRepository.getByCode(code.getCode());
+        Assert.assertEquals(found.getId(), saved.getId());
+        Assert.assertEquals(found.getCode(), code.getCode());
+        Assert.assertEquals(found.getExpiration().getTime(), code.getExpiration().getTime());
+        Assert.assertEquals(found.getAuthenticationHolder().getId(), holder.getId());
+        Assert.assertEquals(found.getAuthenticationHolder().getAuthentication().getName(), "jdoe");
+        Assert.assertNull(codeRepository.getByCode(UUID.randomUUID().toString()));
+
+        codeRepository.remove(found);
+        Assert.assertNull(codeRepository.getByCode(code.getCode()));
+    }
+
+    /**
+     * Expired authorization codes are listed, and codes that are still valid are not.
+     */
+    @Test
+    public void expiredCodesAreListed() {
+        final AuthenticationHolderEntity holder = holderRepository.save(WriteBehindTokenRepositoryTest.newHolder());
+        final AuthorizationCodeEntity expired = codeRepository.save(newCode(holder, -60000));
+        final AuthorizationCodeEntity valid = codeRepository.save(newCode(holder, 60000));
+
+        final Set<String> codes = new HashSet<>();
+        for (final AuthorizationCodeEntity code : codeRepository.getExpiredCodes()) {
+            codes.add(code.getCode());
+        }
+        Assert.assertTrue(codes.contains(expired.getCode()));
+        Assert.assertFalse(codes.contains(valid.getCode()));
+    }
+
+    /**
+     * Create an authorization code.
+     *
+     * @param holder   the authentication holder
+     * @param lifetime milliseconds until the code expires, negative if it already has
+     * @return the code
+     */
+    protected static AuthorizationCodeEntity newCode(final AuthenticationHolderEntity holder, final long lifetime) {
+        final AuthorizationCodeEntity code = new AuthorizationCodeEntity();
+        code.setCode(UUID.randomUUID().toString());
+        code.setAuthenticationHolder(holder);
+        code.setExpiration(new Date(System.currentTimeMillis() + lifetime));
+        return code;
+    }
+
+    /**
+     * Save a new client.
+     *
+     * @return the saved client
+     */
+    protected ClientDetailsEntity newClient() {
+        final ClientDetailsEntity entity = new ClientDetailsEntity();
+        entity.setClientId(UUID.randomUUID().toString());
+        return context.getBean("jpaOAuth2ClientRepository", OAuth2ClientRepository.class).saveClient(entity);
+    }
+
+    /**
+     * Save a new refresh token.
+     *
+     * @param client the client
+     * @param holder the authentication holder
+     * @return the saved token
+     */
+    protected OAuth2RefreshTokenEntity saveRefreshToken(final ClientDetailsEntity client,
+                                                        final AuthenticationHolderEntity holder) {
+        final OAuth2RefreshTokenEntity refreshToken = new OAuth2RefreshTokenEntity();
+        refreshToken.setJwt(WriteBehindTokenRepositoryTest.newJwt());
+        refreshToken.setClient(client);
+        refreshToken.setAuthenticationHolder(holder);
+        return tokenRepository.saveRefreshToken(refreshToken);
+    }
+
+    /**
+     * Save a new access token.
+     *
+     * @param client       the client
+     * @param holder       the authentication holder
+     * @param refreshToken the refresh token, or null
+     * @param lifetime     milliseconds until the token expires, negative if it already has
+     * @return the saved token
+     */
+    protected OAuth2AccessTokenEntity saveAccessToken(final ClientDetailsEntity client,
+                                                      final AuthenticationHolderEntity holder,
+                                                      final OAuth2RefreshTokenEntity refreshToken,
+                                                      final long lifetime) {
+        return tokenRepository.saveAccessToken(newAccessToken(client, holder, refreshToken, lifetime));
+    }
+
+    /**
+     * Create an access token.
+     *
+     * @param client       the client
+     * @param holder       the authentication holder
+     * @param refreshToken the refresh token, or null
+     * @param lifetime     milliseconds until the token expires, negative if it already has
+     * @return the token
+     */
+    private static OAuth2AccessTokenEntity newAccessToken(final ClientDetailsEntity client,
+                                                          final AuthenticationHolderEntity holder,
+                                                          final OAuth2RefreshTokenEntity refreshToken,
+                                                          final long lifetime) {
+        final OAuth2AccessTokenEntity accessToken = new OAuth2AccessTokenEntity();
+        accessToken.setJwt(WriteBehindTokenRepositoryTest.newJwt());
+        accessToken.setClient(client);
+        accessToken.setAuthenticationHolder(holder);
+        accessToken.setRefreshToken(refreshToken);
+        accessToken.setScope(Collections.singleton("openid"));
+        accessToken.setExpiration(new Date(System.currentTimeMillis() + lifetime));
+        return accessToken;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import org.mitre.oauth2.model.AuthenticationHolderEntity;
+import org.mitre.oauth2.model.SavedUserAuthentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+/**
+ * Tests that the {@link AuthenticationRefCache} reads the persisted acr and amr of a holder once.
+ */
+public class AuthenticationRefCacheTest {
+
+    /**
+     * The cache under test.
+     */
+    private AuthenticationRefCache cache;
+
+    /**
+     * Create the cache.
+     */
+    @BeforeMethod
+    public void setUp() {
+        cache = new AuthenticationRefCache();
+        cache.setCacheSize(10);
+        cache.initialize();
+    }
+
+    /**
+     * The values of a saved holder are read from its persisted authorities and then kept.
+     */
+    @Test
+    public void savedHolderIsReadOnce() {
+        final AuthenticationHolderEntity holder = newHolder(1L, "urn:example:mfa", "mfa");
+
+        final AuthenticationRefCache.AuthenticationRefs refs = cache.get(holder);
+        Assert.assertEquals(refs.getAcr(), "urn:example:mfa");
+        Assert.assertEquals(refs.getAmr(), "mfa");
+
+        holder.getUserAuth().setAuthorities(Collections.<GrantedAuthority>emptySet());
+        Assert.assertSame(cache.get(holder), refs);
+    }
+
+    /**
+     * A holder that is not saved is read every time, and one without refs has none.
+     */
+    @Test
+    public void unsavedHolderIsReadEachTime() {
+        final AuthenticationHolderEntity holder = newHolder(null, "urn:example:pwd", "pwd");
+        Assert.assertEquals(cache.get(holder).getAcr(), "urn:example:pwd");
+
+        holder.getUserAuth().setAuthorities(Collections.<GrantedAuthority>emptySet());
+        Assert.assertNull(cache.get(holder).getAcr());
+        Assert.assertNull(cache.get(holder).getAmr());
+    }
+
+    /**
+     * Create a holder whose user authentication carries the persisted acr and amr authorities.
+     *
+     * @param id  the holder id
+     * @param acr the authentication class ref
+     * @param amr the authentication method ref
+     * @return the holder
+     */
+    private static AuthenticationHolderEntity newHolder(final Long id, final String acr, final String amr) {
+        final AuthenticationHolderEntity holder = WriteBehindTokenRepositoryTest.newHolder();
+        holder.setId(id);
+        final SavedUserAuthentication userAuth = new SavedUserAuthentication();
+        userAuth.setAuthorities(new HashSet<GrantedAuthority>(Arrays.asList(
+                new SimpleGrantedAuthority("ROLE_USER"),
+                new AuthenticationClassRefAuthority(acr).toSimpleGrantedAuthority(),
+                new AuthenticationMethodRefAuthority(amr).toSimpleGrantedAuthority())));
+        holder.setUserAuth(userAuth);
+        return holder;
+    }
+}
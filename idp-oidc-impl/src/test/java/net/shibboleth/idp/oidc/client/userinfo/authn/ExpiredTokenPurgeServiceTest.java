@@ -0,0 +1,174 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import com.google.common.collect.ImmutableSet;
+import org.mitre.oauth2.model.AuthenticationHolderEntity;
+import org.mitre.oauth2.model.ClientDetailsEntity;
+import org.mitre.oauth2.repository.AuthenticationHolderRepository;
+import org.springframework.context.support.GenericXmlApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import javax.sql.DataSource;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests the {@link ExpiredTokenPurgeService} against the holders leased by the
+ * {@link ClientAuthenticationHolderCache} of other nodes sharing the database.
+ */
+public class ExpiredTokenPurgeServiceTest {
+
+    /**
+     * The scope of the client tokens.
+     */
+    private static final Set<String> SCOPE = ImmutableSet.of("registration-token");
+
+    /**
+     * The context.
+     */
+    private GenericXmlApplicationContext context;
+
+    /**
+     * The authentication holder repository.
+     */
+    private AuthenticationHolderRepository holderRepository;
+
+    /**
+     * The purge service under test, which has no holder cache of its own.
+     */
+    private ExpiredTokenPurgeService purgeService;
+
+    /**
+     * The client the holders are shared by.
+     */
+    private ClientDetailsEntity client;
+
+    /**
+     * Queries the database.
+     */
+    private JdbcTemplate jdbc;
+
+    /**
+     * Start the context.
+     */
+    @BeforeClass
+    public void setUp() {
+        final Map<String, Object> properties = new HashMap<>();
+        properties.put("test.db.name", "purge");
+        properties.put("idp.home", System.getProperty("java.io.tmpdir"));
+        context = WriteBehindTokenRepositoryTest.start(properties);
+        holderRepository = context.getBean("jpaAuthenticationHolderRepository", AuthenticationHolderRepository.class);
+        final DataSource dataSource = context.getBean("dataSource", DataSource.class);
+        jdbc = new JdbcTemplate(dataSource);
+
+        purgeService = new ExpiredTokenPurgeService();
+        purgeService.setDataSource(dataSource);
+        purgeService.setChunkPause(0);
+        purgeService.setChunkSize(500);
+
+        client = new ClientDetailsEntity();
+        client.setClientId("client");
+    }
+
+    /**
+     * Close the context.
+     */
+    @AfterClass
+    public void tearDown() {
+        context.close();
+    }
+
+    /**
+     * A holder leased by one node outlives the purges of another, unlike an
+     * orphaned holder, and is purged once its lease runs out.
+     */
+    @Test
+    public void leasedHoldersAreKeptUntilTheLeaseRunsOut() {
+        final ClientAuthenticationHolderCache node = newCache(86400);
+        final AuthenticationHolderEntity shared = node.getHolder(client, SCOPE);
+        final AuthenticationHolderEntity orphan = holderRepository.save(WriteBehindTokenRepositoryTest.newHolder());
+
+        purgeService.purge();
+        purgeService.purge();
+        Assert.assertNull(holderRepository.getById(orphan.getId()));
+        Assert.assertNotNull(holderRepository.getById(shared.getId()));
+
+        jdbc.update("UPDATE shared_authentication_holder SET leased_until = ? WHERE holder_id = ?",
+                new Timestamp(System.currentTimeMillis() - 1000), shared.getId());
+        purgeService.purge();
+        Assert.assertNull(holderRepository.getById(shared.getId()));
+        Assert.assertEquals(jdbc.queryForObject("SELECT COUNT(*) FROM shared_authentication_holder"
+                + " WHERE holder_id = ?", Integer.class, shared.getId()).intValue(), 0);
+
+        final AuthenticationHolderEntity replacement = node.getHolder(client, SCOPE);
+        Assert.assertNotEquals(replacement.getId(), shared.getId());
+        Assert.assertTrue(leasedUntil(replacement).getTime() > System.currentTimeMillis());
+    }
+
+    /**
+     * A holder still in use is leased again once half of its lease has passed.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void leasesAreRenewedWhileTheHolderIsUsed() throws Exception {
+        final ClientAuthenticationHolderCache node = newCache(1);
+        final AuthenticationHolderEntity holder = node.getHolder(client, ImmutableSet.of("resource-token"));
+        final Timestamp first = leasedUntil(holder);
+
+        Assert.assertEquals(node.getHolder(client, ImmutableSet.of("resource-token")).getId(), holder.getId());
+        Assert.assertEquals(leasedUntil(holder), first);
+
+        Thread.sleep(600);
+        Assert.assertEquals(node.getHolder(client, ImmutableSet.of("resource-token")).getId(), holder.getId());
+        Assert.assertTrue(leasedUntil(holder).after(first));
+    }
+
+    /**
+     * Create the holder cache of a node.
+     *
+     * @param lease the lease, in seconds
+     * @return the cache
+     */
+    private ClientAuthenticationHolderCache newCache(final long lease) {
+        final ClientAuthenticationHolderCache cache = new ClientAuthenticationHolderCache();
+        cache.setAuthenticationHolderRepository(holderRepository);
+        cache.setDataSource(context.getBean("dataSource", DataSource.class));
+        cache.setCacheSize(100);
+        cache.setLease(lease);
+        cache.initialize();
+        return cache;
+    }
+
+    /**
+     * Read when the lease of the holder runs out.
+     *
+     * @param holder the holder
+     * @return the time
+     */
+    private Timestamp leasedUntil(final AuthenticationHolderEntity holder) {
+        return jdbc.queryForObject("SELECT leased_until FROM shared_authentication_holder WHERE holder_id = ?",
+                Timestamp.class, holder.getId());
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import org.mitre.oauth2.model.OAuth2AccessTokenEntity;
+import org.mitre.oauth2.model.OAuth2RefreshTokenEntity;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Tests that the {@link IntrospectionResultCache} drops the results of revoked tokens.
+ */
+public class IntrospectionResultCacheTest {
+
+    /**
+     * The result cached for active tokens.
+     */
+    private static final Map<String, Object> ACTIVE = Collections.<String, Object>singletonMap("active", true);
+
+    /**
+     * The cache under test.
+     */
+    private IntrospectionResultCache cache;
+
+    /**
+     * Create the cache.
+     */
+    @BeforeMethod
+    public void setUp() {
+        cache = new IntrospectionResultCache();
+        cache.setEnabled(true);
+        cache.setTimeToLive(60);
+        cache.setInactiveTimeToLive(5);
+        cache.setCacheSize(100);
+        cache.initialize();
+    }
+
+    /**
+     * Revoking an access token drops its results for every client, and only those.
+     */
+    @Test
+    public void resultsOfRevokedTokenAreDropped() {
+        final OAuth2AccessTokenEntity token = newAccessToken(null);
+        final OAuth2AccessTokenEntity other = newAccessToken(null);
+        cache.putActive(cache.newKey(token.getValue(), "client"), token, ACTIVE);
+        cache.putActive(cache.newKey(token.getValue(), "rs"), token, ACTIVE);
+        cache.putActive(cache.newKey(other.getValue(), "client"), other, ACTIVE);
+
+        cache.accessTokenRevoked(token);
+        Assert.assertNull(cache.get(cache.newKey(token.getValue(), "client")));
+        Assert.assertNull(cache.get(cache.newKey(token.getValue(), "rs")));
+        Assert.assertEquals(cache.get(cache.newKey(other.getValue(), "client")), ACTIVE);
+    }
+
+    /**
+     * Clearing the access tokens of a refresh token drops the results of those
+     * tokens and of the refresh token, and no others.
+     */
+    @Test
+    public void resultsOfClearedRefreshTokenAreDropped() {
+        final OAuth2RefreshTokenEntity refreshToken = newRefreshToken(1L);
+        final OAuth2AccessTokenEntity token = newAccessToken(refreshToken);
+        final OAuth2AccessTokenEntity other = newAccessToken(newRefreshToken(2L));
+        final OAuth2AccessTokenEntity unrelated = newAccessToken(null);
+        cache.putActive(cache.newKey(refreshToken.getValue(), "client"), refreshToken, ACTIVE);
+        cache.putActive(cache.newKey(token.getValue(), "client"), token, ACTIVE);
+        cache.putActive(cache.newKey(other.getValue(), "client"), other, ACTIVE);
+        cache.putActive(cache.newKey(unrelated.getValue(), "client"), unrelated, ACTIVE);
+
+        cache.accessTokensRevoked(refreshToken);
+        Assert.assertNull(cache.get(cache.newKey(refreshToken.getValue(), "client")));
+        Assert.assertNull(cache.get(cache.newKey(token.getValue(), "client")));
+        Assert.assertEquals(cache.get(cache.newKey(other.getValue(), "client")), ACTIVE);
+        Assert.assertEquals(cache.get(cache.newKey(unrelated.getValue(), "client")), ACTIVE);
+
+        cache.accessTokensRevoked(newRefreshToken(null));
+        Assert.assertEquals(cache.get(cache.newKey(unrelated.getValue(), "client")), ACTIVE);
+    }
+
+    /**
+     * Create an access token.
+     *
+     * @param refreshToken the refresh token it was issued from, or null
+     * @return the token
+     */
+    private static OAuth2AccessTokenEntity newAccessToken(final OAuth2RefreshTokenEntity refreshToken) {
+        final OAuth2AccessTokenEntity token = new OAuth2AccessTokenEntity();
+        token.setJwt(WriteBehindTokenRepositoryTest.newJwt());
+        token.setRefreshToken(refreshToken);
+        token.setExpiration(new Date(System.currentTimeMillis() + 60000));
+        return token;
+    }
+
+    /**
+     * Create a refresh token.
+     *
+     * @param id the id, or null
+     * @return the token
+     */
+    private static OAuth2RefreshTokenEntity newRefreshToken(final Long id) {
+        final OAuth2RefreshTokenEntity token = new OAuth2RefreshTokenEntity();
+        token.setId(id);
+        token.setJwt(WriteBehindTokenRepositoryTest.newJwt());
+        return token;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import org.mitre.oauth2.repository.AuthenticationHolderRepository;
+import org.mitre.oauth2.repository.AuthorizationCodeRepository;
+import org.mitre.oauth2.repository.OAuth2TokenRepository;
+import org.springframework.context.support.GenericXmlApplicationContext;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs the token repository tests against the MITREid JPA repositories, the
+ * behavior the other storages are held to.
+ */
+public class JpaTokenRepositoryTest extends AbstractTokenRepositoryTest {
+
+    @Override
+    protected GenericXmlApplicationContext startContext() {
+        final Map<String, Object> properties = new HashMap<>();
+        properties.put("test.db.name", "jpatokens");
+        properties.put("idp.home", System.getProperty("java.io.tmpdir"));
+        return WriteBehindTokenRepositoryTest.start(properties);
+    }
+
+    @Override
+    protected OAuth2TokenRepository getTokenRepository(final GenericXmlApplicationContext ctx) {
+        return ctx.getBean("jpaOAuth2TokenRepository", OAuth2TokenRepository.class);
+    }
+
+    @Override
+    protected AuthenticationHolderRepository getHolderRepository(final GenericXmlApplicationContext ctx) {
+        return ctx.getBean("jpaAuthenticationHolderRepository", AuthenticationHolderRepository.class);
+    }
+
+    @Override
+    protected AuthorizationCodeRepository getCodeRepository(final GenericXmlApplicationContext ctx) {
+        return ctx.getBean("jpaAuthorizationCodeRepository", AuthorizationCodeRepository.class);
+    }
+}
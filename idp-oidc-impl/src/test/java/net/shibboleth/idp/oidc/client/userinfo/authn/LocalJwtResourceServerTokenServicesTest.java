@@ -0,0 +1,296 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.RSAKey;
+import org.mitre.jwt.signer.service.impl.DefaultJWTSigningAndValidationService;
+import org.mitre.oauth2.model.AuthenticationHolderEntity;
+import org.mitre.oauth2.model.ClientDetailsEntity;
+import org.mitre.oauth2.model.OAuth2AccessTokenEntity;
+import org.mitre.oauth2.service.ClientDetailsEntityService;
+import org.mitre.oauth2.service.impl.DefaultOAuth2ProviderTokenService;
+import org.mitre.openid.connect.config.ConfigurationPropertiesBean;
+import org.mitre.openid.connect.token.ConnectTokenEnhancer;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.Serializable;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests that tokens minted by the token enhancer pass local validation.
+ */
+public class LocalJwtResourceServerTokenServicesTest {
+
+    /**
+     * The issuer.
+     */
+    private static final String ISSUER = "https://idp.example.org/";
+
+    /**
+     * The resource server.
+     */
+    private static final String RESOURCE = "https://rs.example.org";
+
+    /**
+     * Signs the tokens.
+     */
+    private DefaultJWTSigningAndValidationService jwtService;
+
+    /**
+     * The issuer configuration.
+     */
+    private ConfigurationPropertiesBean configBean;
+
+    /**
+     * The token the token service finds.
+     */
+    private OAuth2AccessTokenEntity storedToken;
+
+    /**
+     * The token services under test.
+     */
+    private LocalJwtResourceServerTokenServices tokenServices;
+
+    /**
+     * Create the signing key and the token services.
+     *
+     * @throws Exception if the key cannot be created
+     */
+    @BeforeMethod
+    public void setUp() throws Exception {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        final KeyPair keyPair = generator.generateKeyPair();
+        final Map<String, JWK> keys = new HashMap<>();
+        keys.put("rsa1", new RSAKey.Builder((RSAPublicKey) keyPair.getPublic())
+                .privateKey((RSAPrivateKey) keyPair.getPrivate()).keyID("rsa1").build());
+        jwtService = new DefaultJWTSigningAndValidationService(keys);
+        jwtService.setDefaultSignerKeyId("rsa1");
+        jwtService.setDefaultSigningAlgorithmName("RS256");
+
+        configBean = new ConfigurationPropertiesBean();
+        configBean.setIssuer(ISSUER);
+
+        final RevokedTokenFilter revokedTokenFilter = new RevokedTokenFilter();
+        revokedTokenFilter.setExpectedRevocations(100);
+        revokedTokenFilter.initialize();
+
+        tokenServices = new LocalJwtResourceServerTokenServices();
+        tokenServices.setTokenService(new DefaultOAuth2ProviderTokenService() {
+            @Override
+            public OAuth2AccessTokenEntity readAccessToken(final String accessTokenValue) {
+                if (storedToken == null || !storedToken.getValue().equals(accessTokenValue)) {
+                    throw new InvalidTokenException("Access token not found");
+                }
+                return storedToken;
+            }
+        });
+        tokenServices.setJwtService(jwtService);
+        tokenServices.setConfigBean(configBean);
+        tokenServices.setRevokedTokenFilter(revokedTokenFilter);
+        tokenServices.setLocalValidation(true);
+        tokenServices.setRevocationCheckTimeToLive(30);
+        tokenServices.setCacheSize(100);
+        tokenServices.initialize();
+    }
+
+    /**
+     * A token for a request without an audience is refused unless that is allowed.
+     */
+    @Test(expectedExceptions = InvalidTokenException.class)
+    public void tokenWithoutAudienceIsRefused() {
+        storedToken = issue("client", Collections.<String, Serializable>emptyMap());
+        tokenServices.loadAuthentication(storedToken.getValue());
+    }
+
+    /**
+     * A token for a request without an audience is accepted when that is allowed.
+     */
+    @Test
+    public void tokenWithoutAudienceIsAcceptedWhenOptional() {
+        tokenServices.setAudienceOptional(true);
+        storedToken = issue("client", Collections.<String, Serializable>emptyMap());
+        final OAuth2Authentication authentication = tokenServices.loadAuthentication(storedToken.getValue());
+        Assert.assertEquals(authentication.getOAuth2Request().getClientId(), "client");
+        Assert.assertEquals(authentication.getName(), "jdoe");
+    }
+
+    /**
+     * A token for a request that names this resource server as its audience is accepted.
+     */
+    @Test
+    public void tokenWithResourceAudienceIsAccepted() {
+        tokenServices.setResourceId(RESOURCE);
+        storedToken = issue("client", Collections.<String, Serializable>singletonMap("aud", RESOURCE));
+        Assert.assertEquals(tokenServices.loadAuthentication(storedToken.getValue())
+                .getOAuth2Request().getClientId(), "client");
+    }
+
+    /**
+     * A token for a request that names the issuer as its audience is accepted by default.
+     */
+    @Test
+    public void tokenWithIssuerAudienceIsAccepted() {
+        storedToken = issue("client", Collections.<String, Serializable>singletonMap("aud", ISSUER));
+        Assert.assertEquals(tokenServices.loadAuthentication(storedToken.getValue())
+                .getOAuth2Request().getClientId(), "client");
+    }
+
+    /**
+     * A token for a request that names another resource server is refused, even when the audience is optional.
+     */
+    @Test(expectedExceptions = InvalidTokenException.class)
+    public void tokenWithOtherAudienceIsRefused() {
+        tokenServices.setResourceId(RESOURCE);
+        tokenServices.setAudienceOptional(true);
+        storedToken = issue("client", Collections.<String, Serializable>singletonMap("aud",
+                "https://other-rs.example.org"));
+        tokenServices.loadAuthentication(storedToken.getValue());
+    }
+
+    /**
+     * A token whose authorized party is not the client it is stored for is refused.
+     */
+    @Test(expectedExceptions = InvalidTokenException.class)
+    public void tokenOfAnotherClientIsRefused() {
+        tokenServices.setAudienceOptional(true);
+        final OAuth2AccessTokenEntity minted = issue("client", Collections.<String, Serializable>emptyMap());
+        storedToken = issue("other", Collections.<String, Serializable>emptyMap());
+        storedToken.setJwt(minted.getJwt());
+        tokenServices.loadAuthentication(minted.getValue());
+    }
+
+    /**
+     * A token signed by another issuer is refused.
+     */
+    @Test(expectedExceptions = InvalidTokenException.class)
+    public void tokenOfAnotherIssuerIsRefused() {
+        tokenServices.setAudienceOptional(true);
+        storedToken = issue("client", Collections.<String, Serializable>emptyMap());
+        configBean.setIssuer("https://other.example.org/");
+        tokenServices.loadAuthentication(storedToken.getValue());
+    }
+
+    /**
+     * Issue a token to a client for a user, signed by the token enhancer.
+     *
+     * @param clientId   the client id
+     * @param extensions the request extensions
+     * @return the token
+     */
+    private OAuth2AccessTokenEntity issue(final String clientId, final Map<String, Serializable> extensions) {
+        final ClientDetailsEntity client = new ClientDetailsEntity();
+        client.setClientId(clientId);
+        final OAuth2Request request = new OAuth2Request(Collections.<String, String>emptyMap(), clientId,
+                Collections.<GrantedAuthority>emptySet(), true, Collections.singleton("profile"),
+                Collections.<String>emptySet(), "https://rp.example.org/callback",
+                Collections.<String>emptySet(), extensions);
+        final OAuth2Authentication authentication = new OAuth2Authentication(request,
+                new UsernamePasswordAuthenticationToken("jdoe", null, Collections.<GrantedAuthority>emptySet()));
+        final AuthenticationHolderEntity holder = new AuthenticationHolderEntity();
+        holder.setAuthentication(authentication);
+
+        final OAuth2AccessTokenEntity token = new OAuth2AccessTokenEntity();
+        token.setClient(client);
+        token.setAuthenticationHolder(holder);
+        token.setScope(request.getScope());
+        token.setExpiration(new Date(System.currentTimeMillis() + 60000));
+
+        final ConnectTokenEnhancer enhancer = new ConnectTokenEnhancer();
+        enhancer.setConfigBean(configBean);
+        enhancer.setJwtService(jwtService);
+        enhancer.setClientService(new SingleClientService(client));
+        return (OAuth2AccessTokenEntity) enhancer.enhance(token, authentication);
+    }
+
+    /**
+     * Client service that knows one client.
+     */
+    private static final class SingleClientService implements ClientDetailsEntityService {
+
+        /**
+         * The client.
+         */
+        private final ClientDetailsEntity client;
+
+        /**
+         * Instantiates a new client service.
+         *
+         * @param entity the client
+         */
+        SingleClientService(final ClientDetailsEntity entity) {
+            this.client = entity;
+        }
+
+        @Override
+        public ClientDetailsEntity loadClientByClientId(final String clientId) {
+            return client.getClientId().equals(clientId) ? client : null;
+        }
+
+        @Override
+        public ClientDetailsEntity saveNewClient(final ClientDetailsEntity entity) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ClientDetailsEntity getClientById(final Long id) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void deleteClient(final ClientDetailsEntity entity) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ClientDetailsEntity updateClient(final ClientDetailsEntity oldClient,
+                                                final ClientDetailsEntity newClient) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Collection<ClientDetailsEntity> getAllClients() {
+            return Collections.singleton(client);
+        }
+
+        @Override
+        public ClientDetailsEntity generateClientId(final ClientDetailsEntity entity) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ClientDetailsEntity generateClientSecret(final ClientDetailsEntity entity) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import net.shibboleth.idp.oidc.client.site.CachingApprovedSiteRepository;
+import org.mitre.oauth2.model.AuthenticationHolderEntity;
+import org.mitre.oauth2.model.AuthorizationCodeEntity;
+import org.mitre.oauth2.model.ClientDetailsEntity;
+import org.mitre.oauth2.model.OAuth2AccessTokenEntity;
+import org.mitre.oauth2.model.OAuth2RefreshTokenEntity;
+import org.mitre.oauth2.repository.AuthenticationHolderRepository;
+import org.mitre.oauth2.repository.AuthorizationCodeRepository;
+import org.mitre.oauth2.repository.OAuth2TokenRepository;
+import org.mitre.openid.connect.model.ApprovedSite;
+import org.springframework.context.support.GenericXmlApplicationContext;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs the token repository tests against the repositories backed by the
+ * {@link MappedTokenStore}, along with what only that store does.
+ */
+public class MappedTokenRepositoryTest extends AbstractTokenRepositoryTest {
+
+    /**
+     * The directory of the segment files.
+     */
+    private File directory;
+
+    @Override
+    protected GenericXmlApplicationContext startContext() {
+        try {
+            directory = Files.createTempDirectory("oidc-tokens").toFile();
+        } catch (final IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return start("mappedtokens", directory);
+    }
+
+    @Override
+    protected OAuth2TokenRepository getTokenRepository(final GenericXmlApplicationContext ctx) {
+        return ctx.getBean("mappedTokenRepository", OAuth2TokenRepository.class);
+    }
+
+    @Override
+    protected AuthenticationHolderRepository getHolderRepository(final GenericXmlApplicationContext ctx) {
+        return ctx.getBean("mappedAuthenticationHolderRepository", AuthenticationHolderRepository.class);
+    }
+
+    @Override
+    protected AuthorizationCodeRepository getCodeRepository(final GenericXmlApplicationContext ctx) {
+        return ctx.getBean("mappedAuthorizationCodeRepository", AuthorizationCodeRepository.class);
+    }
+
+    /**
+     * Create and open a store.
+     *
+     * @param segments the directory of the segment files
+     * @return the store
+     * @throws IOException if the segment files cannot be read
+     */
+    private static MappedTokenStore newStore(final File segments) throws IOException {
+        final MappedTokenStore store = new MappedTokenStore();
+        store.setEnabled(true);
+        store.setDirectory(segments.getAbsolutePath());
+        store.setSegmentSize(65536);
+        store.setIndexCapacity(1024);
+        store.setSweepInterval(3600);
+        store.setChunkSize(500);
+        store.setCompactThreshold(0.25);
+        store.initialize();
+        return store;
+    }
+
+    /**
+     * Start a context on the segment files.
+     *
+     * @param database the name of the database
+     * @param segments the directory of the segment files
+     * @return the context
+     */
+    private static GenericXmlApplicationContext start(final String database, final File segments) {
+        final Map<String, Object> properties = new HashMap<>();
+        properties.put("test.db.name", database);
+        properties.put("idp.home", System.getProperty("java.io.tmpdir"));
+        properties.put("oidc.tokens.mapped.enabled", "true");
+        properties.put("oidc.tokens.mapped.directory", segments.getAbsolutePath());
+        properties.put("oidc.tokens.mapped.segment.size", "65536");
+        return WriteBehindTokenRepositoryTest.start(properties);
+    }
+
+    /**
+     * Records are recovered from the segment files when the store is opened again,
+     * and records removed before are not.
+     *
+     * @throws IOException if the segment files cannot be written
+     */
+    @Test
+    public void recordsAreRecoveredFromTheSegments() throws IOException {
+        final File segments = Files.createTempDirectory("oidc-tokens").toFile();
+        final byte[] body = new RecordCodec.Writer().writeString("value").writeStrings(null).toByteArray();
+        final long expiration = System.currentTimeMillis() + 60000;
+
+        MappedTokenStore store = newStore(segments);
+        final long id = store.nextId();
+        final long removedId = store.nextId();
+        try {
+            store.put(new MappedTokenStore.Record(MappedTokenStore.ACCESS_TOKEN, id, expiration, 7,
+                    TokenHashing.hash("value").asBytes(), "client", new long[] {3, 0, -5}, body));
+            store.put(new MappedTokenStore.Record(MappedTokenStore.ACCESS_TOKEN, removedId, expiration, 7,
+                    TokenHashing.hash("removed").asBytes(), "client", new long[] {3, 0}, body));
+            store.remove(removedId);
+        } finally {
+            store.destroy();
+        }
+
+        store = newStore(segments);
+        try {
+            final MappedTokenStore.Record record = store.findByHash(MappedTokenStore.ACCESS_TOKEN,
+                    TokenHashing.hash("value").asBytes());
+            Assert.assertNotNull(record);
+            Assert.assertEquals(record.getId(), id);
+            Assert.assertEquals(record.getExpiration(), expiration);
+            Assert.assertEquals(record.getHolder(), 7);
+            Assert.assertEquals(record.getClientId(), "client");
+            Assert.assertEquals(record.getLinks(), new long[] {3, 0, -5});
+            final RecordCodec.Reader reader = new RecordCodec.Reader(record.getBody());
+            Assert.assertEquals(reader.readString(), "value");
+            Assert.assertTrue(reader.readStrings().isEmpty());
+
+            Assert.assertNull(store.get(MappedTokenStore.ACCESS_TOKEN, removedId));
+            Assert.assertEquals(store.findByLink(MappedTokenStore.ACCESS_TOKEN, -5).size(), 1);
+            Assert.assertEquals(store.findByClient(MappedTokenStore.ACCESS_TOKEN, "client").size(), 1);
+        } finally {
+            store.destroy();
+        }
+    }
+
+    /**
+     * Authorization codes, and their authentication holders, are recovered when
+     * the store is started again, and codes removed before are not.
+     *
+     * @throws IOException if the segment files cannot be written
+     */
+    @Test
+    public void codesAreRecoveredAfterRestart() throws IOException {
+        final File segments = Files.createTempDirectory("oidc-codes").toFile();
+        final AuthorizationCodeEntity code;
+        final AuthorizationCodeEntity removed;
+        GenericXmlApplicationContext ctx = start("mappedcodes", segments);
+        try {
+            final AuthenticationHolderEntity holder = getHolderRepository(ctx).save(
+                    WriteBehindTokenRepositoryTest.newHolder());
+            code = getCodeRepository(ctx).save(newCode(holder, 60000));
+            removed = getCodeRepository(ctx).save(newCode(holder, 60000));
+            getCodeRepository(ctx).remove(removed);
+        } finally {
+            ctx.close();
+        }
+
+        ctx = start("mappedcodes", segments);
+        try {
+            final AuthorizationCodeRepository codeRepository = getCodeRepository(ctx);
+            final AuthorizationCodeEntity found = codeRepository.getByCode(code.getCode());
+            Assert.assertNotNull(found);
+            Assert.assertEquals(found.getId(), code.getId());
+            Assert.assertEquals(found.getExpiration().getTime(), code.getExpiration().getTime());
+            Assert.assertEquals(found.getAuthenticationHolder().getId(), code.getAuthenticationHolder().getId());
+            Assert.assertEquals(found.getAuthenticationHolder().getAuthentication().getName(), "jdoe");
+            Assert.assertNull(codeRepository.getByCode(removed.getCode()));
+        } finally {
+            ctx.close();
+        }
+    }
+
+    /**
+     * Removing an approved site removes the access and refresh tokens issued under it,
+     * even after the tokens were saved again.
+     */
+    @Test
+    public void tokensOfApprovedSiteAreRemovedWithTheSite() {
+        final MappedTokenRepository tokenRepository = (MappedTokenRepository) getTokenRepository();
+        final ClientDetailsEntity client = newClient();
+        final AuthenticationHolderEntity holder = getContext().getBean("mappedAuthenticationHolderRepository",
+                AuthenticationHolderRepository.class).save(WriteBehindTokenRepositoryTest.newHolder());
+
+        final CachingApprovedSiteRepository siteRepository = getContext().getBean("cachingApprovedSiteRepository",
+                CachingApprovedSiteRepository.class);
+        final ApprovedSite site = new ApprovedSite();
+        site.setClientId(client.getClientId());
+        site.setUserId("jdoe");
+        site.setCreationDate(new Date());
+        final ApprovedSite savedSite = siteRepository.save(site);
+
+        final OAuth2RefreshTokenEntity refreshToken = saveRefreshToken(client, holder);
+        final OAuth2AccessTokenEntity accessToken = saveAccessToken(client, holder, refreshToken, 60000);
+        tokenRepository.linkApprovedSite(accessToken, savedSite.getId());
+        tokenRepository.saveAccessToken(accessToken);
+        final OAuth2AccessTokenEntity otherToken = saveAccessToken(client, holder, null, 60000);
+
+        siteRepository.remove(savedSite);
+        Assert.assertNull(tokenRepository.getAccessTokenByValue(accessToken.getValue()));
+        Assert.assertNull(tokenRepository.getRefreshTokenByValue(refreshToken.getValue()));
+        Assert.assertNotNull(tokenRepository.getAccessTokenByValue(otherToken.getValue()));
+        Assert.assertNull(siteRepository.getById(savedSite.getId()));
+    }
+}
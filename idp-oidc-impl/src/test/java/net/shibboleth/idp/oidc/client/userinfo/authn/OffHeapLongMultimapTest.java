@@ -0,0 +1,90 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+
+/**
+ * Tests the {@link OffHeapLongMultimap}.
+ */
+public class OffHeapLongMultimapTest {
+
+    /**
+     * Several values of a key are all found, and removing one leaves the others.
+     */
+    @Test
+    public void valuesOfKeyAreFound() {
+        final OffHeapLongMultimap map = new OffHeapLongMultimap(16);
+        map.put(1, 10);
+        map.put(1, 11);
+        map.put(-1, 12);
+
+        final long[] values = map.get(1);
+        Arrays.sort(values);
+        Assert.assertEquals(values, new long[] {10, 11});
+        Assert.assertEquals(map.get(-1), new long[] {12});
+        Assert.assertEquals(map.get(2), new long[0]);
+        Assert.assertEquals(map.getFirst(2), 0);
+
+        Assert.assertTrue(map.remove(1, 10));
+        Assert.assertFalse(map.remove(1, 10));
+        Assert.assertEquals(map.get(1), new long[] {11});
+        Assert.assertTrue(map.containsKey(-1));
+        Assert.assertEquals(map.size(), 2);
+    }
+
+    /**
+     * Entries are kept when the table grows, and removing entries does not
+     * hide those further along their probe sequence.
+     */
+    @Test
+    public void entriesSurviveGrowthAndRemoval() {
+        final OffHeapLongMultimap map = new OffHeapLongMultimap(16);
+        for (long key = 1; key <= 1000; key++) {
+            map.put(key, key * 2);
+            map.put(key, key * 2 + 1);
+        }
+        Assert.assertEquals(map.size(), 2000);
+        Assert.assertTrue(map.getAllocatedBytes() >= 2000 * 16);
+
+        for (long key = 1; key <= 1000; key += 2) {
+            Assert.assertTrue(map.remove(key, key * 2));
+        }
+        for (long key = 1; key <= 1000; key++) {
+            final long[] values = map.get(key);
+            Arrays.sort(values);
+            Assert.assertEquals(values, key % 2 == 1 ? new long[] {key * 2 + 1} : new long[] {key * 2, key * 2 + 1},
+                    "values of " + key);
+        }
+        Assert.assertEquals(map.values().length, 1500);
+
+        map.clear();
+        Assert.assertEquals(map.size(), 0);
+        Assert.assertFalse(map.containsKey(2));
+    }
+
+    /**
+     * Zero marks an empty slot and is not accepted as a value.
+     */
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void zeroValueIsRefused() {
+        new OffHeapLongMultimap(16).put(1, 0);
+    }
+}
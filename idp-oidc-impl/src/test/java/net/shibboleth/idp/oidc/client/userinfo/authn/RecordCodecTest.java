@@ -0,0 +1,69 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Tests the {@link RecordCodec}.
+ */
+public class RecordCodecTest {
+
+    /**
+     * Values read back are those written, in order.
+     */
+    @Test
+    public void valuesAreReadBack() {
+        final Map<String, String> map = new LinkedHashMap<>();
+        map.put("acr", "urn:example:password");
+        map.put("nonce", null);
+        final byte[] body = new RecordCodec.Writer()
+                .writeBoolean(true)
+                .writeString("caf\u00e9")
+                .writeString(null)
+                .writeStrings(new LinkedHashSet<>(Arrays.asList("openid", "email")))
+                .writeStrings(null)
+                .writeMap(map)
+                .writeMap(null)
+                .toByteArray();
+
+        final RecordCodec.Reader reader = new RecordCodec.Reader(body);
+        Assert.assertTrue(reader.readBoolean());
+        Assert.assertEquals(reader.readString(), "caf\u00e9");
+        Assert.assertNull(reader.readString());
+        Assert.assertEquals(reader.readStrings(), new LinkedHashSet<>(Arrays.asList("openid", "email")));
+        Assert.assertEquals(reader.readStrings(), Collections.emptySet());
+        Assert.assertEquals(reader.readMap(), map);
+        Assert.assertEquals(reader.readMap(), Collections.emptyMap());
+    }
+
+    /**
+     * A body cut short is reported as malformed.
+     */
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void truncatedBodyIsRefused() {
+        final byte[] body = new RecordCodec.Writer().writeString("value").toByteArray();
+        new RecordCodec.Reader(Arrays.copyOf(body, body.length - 1)).readString();
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import org.mitre.oauth2.model.AuthorizationCodeEntity;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Tests that the {@link SingleUseAuthorizationCodeRepository} redeems a code
+ * once, drops codes that are never redeemed, and defers to its replicator.
+ */
+public class SingleUseAuthorizationCodeRepositoryTest {
+
+    /**
+     * Length of a tick of the expiry wheel, long enough for the ticker not to run during a test.
+     */
+    private static final long TICK = 60000;
+
+    /**
+     * The repositories created by the test.
+     */
+    private final List<SingleUseAuthorizationCodeRepository> repositories = new ArrayList<>();
+
+    /**
+     * The repository under test.
+     */
+    private SingleUseAuthorizationCodeRepository repository;
+
+    /**
+     * Create the repository.
+     */
+    @BeforeMethod
+    public void setUp() {
+        repository = newRepository(null);
+    }
+
+    /**
+     * Stop the repositories.
+     */
+    @AfterMethod
+    public void tearDown() {
+        for (final SingleUseAuthorizationCodeRepository created : repositories) {
+            created.destroy();
+        }
+        repositories.clear();
+    }
+
+    /**
+     * A code is redeemed once, and not found afterwards.
+     */
+    @Test
+    public void codeIsRedeemedOnce() {
+        final AuthorizationCodeEntity code = repository.save(newCode(TICK));
+        Assert.assertSame(repository.getByCode(code.getCode()), code);
+        Assert.assertSame(repository.consume(code.getCode()), code);
+        Assert.assertNull(repository.consume(code.getCode()));
+        Assert.assertNull(repository.getByCode(code.getCode()));
+        Assert.assertEquals(repository.getConsumedCount(), 1);
+    }
+
+    /**
+     * Threads racing to redeem the same codes get each code exactly once between them.
+     *
+     * @throws Exception if a thread fails
+     */
+    @Test
+    public void concurrentConsumesRedeemEachCodeOnce() throws Exception {
+        final int threads = 8;
+        final int count = 5000;
+        final List<String> codes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            codes.add(repository.save(newCode(TICK)).getCode());
+        }
+        final AtomicIntegerArray redeemed = redeemConcurrently(threads, codes,
+                new SingleUseAuthorizationCodeRepository[] {repository});
+        for (int i = 0; i < count; i++) {
+            Assert.assertEquals(redeemed.get(i), 1, "Redemptions of code " + i);
+        }
+        Assert.assertEquals(repository.getConsumedCount(), count);
+        Assert.assertEquals(repository.getCodeCount(), 0);
+    }
+
+    /**
+     * Nodes sharing a replicator, racing to redeem the codes one of them issued,
+     * get each code exactly once between them.
+     *
+     * @throws Exception if a thread fails
+     */
+    @Test
+    public void concurrentConsumesAcrossNodesRedeemEachCodeOnce() throws Exception {
+        final LocalAuthorizationCodeReplicator replicator = new LocalAuthorizationCodeReplicator();
+        final SingleUseAuthorizationCodeRepository issuer = newRepository(replicator);
+        final SingleUseAuthorizationCodeRepository other = newRepository(replicator);
+        final int count = 5000;
+        final List<String> codes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            codes.add(issuer.save(newCode(TICK)).getCode());
+        }
+        final AtomicIntegerArray redeemed = redeemConcurrently(8, codes,
+                new SingleUseAuthorizationCodeRepository[] {issuer, other});
+        for (int i = 0; i < count; i++) {
+            Assert.assertEquals(redeemed.get(i), 1, "Redemptions of code " + i);
+        }
+        Assert.assertEquals(issuer.getConsumedCount() + other.getConsumedCount(), count);
+        Assert.assertEquals(replicator.size(), 0);
+    }
+
+    /**
+     * Codes that are never redeemed are dropped once their tick has passed,
+     * and only those are counted as expired.
+     */
+    @Test
+    public void unredeemedCodesAreDroppedAtExpiry() {
+        final long now = System.currentTimeMillis();
+        final AuthorizationCodeEntity unredeemed = repository.save(newCode(1000));
+        final AuthorizationCodeEntity redeemed = repository.save(newCode(1000));
+        final AuthorizationCodeEntity later = repository.save(newCode(10 * TICK));
+        Assert.assertSame(repository.consume(redeemed.getCode()), redeemed);
+
+        Assert.assertEquals(repository.expire(now), 0);
+        Assert.assertEquals(repository.getCodeCount(), 2);
+
+        Assert.assertEquals(repository.expire(now + 2 * TICK), 1);
+        Assert.assertEquals(repository.getExpiredCount(), 1);
+        Assert.assertEquals(repository.getConsumedCount(), 1);
+        Assert.assertEquals(repository.getCodeCount(), 1);
+        Assert.assertNull(repository.consume(unredeemed.getCode()));
+        Assert.assertSame(repository.getByCode(later.getCode()), later);
+    }
+
+    /**
+     * A code that expires before the wheel reaches it is refused, and counted as expired.
+     */
+    @Test
+    public void expiredCodeIsRefusedBeforeItsTick() {
+        final AuthorizationCodeEntity code = repository.save(newCode(-1));
+        Assert.assertNull(repository.getByCode(code.getCode()));
+        Assert.assertNull(repository.consume(code.getCode()));
+        Assert.assertEquals(repository.getExpiredCount(), 1);
+        Assert.assertEquals(repository.getConsumedCount(), 0);
+    }
+
+    /**
+     * The replicator decides every redemption: a code issued by one node is
+     * redeemed at another, after which the local copy of the issuer is refused.
+     */
+    @Test
+    public void replicatorDecidesRedemption() {
+        final LocalAuthorizationCodeReplicator replicator = new LocalAuthorizationCodeReplicator();
+        final SingleUseAuthorizationCodeRepository issuer = newRepository(replicator);
+        final SingleUseAuthorizationCodeRepository other = newRepository(replicator);
+        final AuthorizationCodeEntity code = issuer.save(newCode(TICK));
+
+        Assert.assertNull(other.getByCode(code.getCode()));
+        Assert.assertSame(other.consume(code.getCode()), code);
+        Assert.assertNotNull(issuer.getByCode(code.getCode()));
+        Assert.assertNull(issuer.consume(code.getCode()));
+        Assert.assertNull(other.consume(code.getCode()));
+    }
+
+    /**
+     * A code the replicator no longer has is refused, even by the node that keeps a copy.
+     */
+    @Test
+    public void localCopyAloneIsRefused() {
+        final LocalAuthorizationCodeReplicator replicator = new LocalAuthorizationCodeReplicator();
+        final SingleUseAuthorizationCodeRepository issuer = newRepository(replicator);
+        final AuthorizationCodeEntity code = issuer.save(newCode(TICK));
+        Assert.assertSame(replicator.take(code.getCode()), code);
+
+        Assert.assertNull(issuer.consume(code.getCode()));
+        Assert.assertEquals(issuer.getConsumedCount(), 0);
+    }
+
+    /**
+     * Redeem every code from several threads at once, each thread going through
+     * the codes in its own order and through the repositories in turn.
+     *
+     * @param threads      the number of threads
+     * @param codes        the code values
+     * @param repositories the repositories to redeem at
+     * @return the number of successful redemptions of each code
+     * @throws Exception if a thread fails
+     */
+    private static AtomicIntegerArray redeemConcurrently(final int threads, final List<String> codes,
+                                                         final SingleUseAuthorizationCodeRepository[] repositories)
+            throws Exception {
+        final AtomicIntegerArray redeemed = new AtomicIntegerArray(codes.size());
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<Void>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    for (int i = 0; i < codes.size(); i++) {
+                        final int index = (i + offset * 7) % codes.size();
+                        final SingleUseAuthorizationCodeRepository node = repositories[(i + offset)
+                                % repositories.length];
+                        if (node.consume(codes.get(index)) != null) {
+                            redeemed.incrementAndGet(index);
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+        for (final Future<Void> result : results) {
+            result.get();
+        }
+        return redeemed;
+    }
+
+    /**
+     * Create and start a repository that keeps codes in memory.
+     *
+     * @param replicator the replicator, or null
+     * @return the repository
+     */
+    private SingleUseAuthorizationCodeRepository newRepository(final AuthorizationCodeReplicator replicator) {
+        final SingleUseAuthorizationCodeRepository created = new SingleUseAuthorizationCodeRepository();
+        created.setEnabled(true);
+        created.setTick(TICK);
+        created.setTicks(64);
+        created.setReplicator(replicator);
+        created.initialize();
+        repositories.add(created);
+        return created;
+    }
+
+    /**
+     * Create an authorization code.
+     *
+     * @param lifetime milliseconds until the code expires, negative if it already has
+     * @return the code
+     */
+    private static AuthorizationCodeEntity newCode(final long lifetime) {
+        final AuthorizationCodeEntity code = new AuthorizationCodeEntity();
+        code.setCode(UUID.randomUUID().toString());
+        code.setExpiration(new Date(System.currentTimeMillis() + lifetime));
+        return code;
+    }
+}
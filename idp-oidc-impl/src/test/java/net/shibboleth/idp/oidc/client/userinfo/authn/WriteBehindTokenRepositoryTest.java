@@ -0,0 +1,332 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.PlainJWT;
+import net.shibboleth.idp.oidc.client.site.CachingApprovedSiteRepository;
+import org.mitre.oauth2.model.AuthenticationHolderEntity;
+import org.mitre.oauth2.model.ClientDetailsEntity;
+import org.mitre.oauth2.model.OAuth2AccessTokenEntity;
+import org.mitre.oauth2.model.OAuth2RefreshTokenEntity;
+import org.mitre.oauth2.repository.AuthenticationHolderRepository;
+import org.mitre.oauth2.repository.OAuth2ClientRepository;
+import org.mitre.openid.connect.model.ApprovedSite;
+import org.mitre.openid.connect.request.ConnectRequestParameters;
+import org.springframework.context.support.GenericXmlApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import javax.sql.DataSource;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Tests the {@link WriteBehindTokenRepository} against an in-memory HSQLDB.
+ */
+public class WriteBehindTokenRepositoryTest {
+
+    /**
+     * The context.
+     */
+    private GenericXmlApplicationContext context;
+
+    /**
+     * The repository under test.
+     */
+    private WriteBehindTokenRepository tokenRepository;
+
+    /**
+     * The authentication holder repository the token service uses.
+     */
+    private AuthenticationHolderRepository holderRepository;
+
+    /**
+     * The client the tokens are issued to.
+     */
+    private ClientDetailsEntity client;
+
+    /**
+     * Queries the database.
+     */
+    private JdbcTemplate jdbc;
+
+    /**
+     * Start the context, with write-behind enabled.
+     */
+    @BeforeClass
+    public void setUp() {
+        final Map<String, Object> properties = new HashMap<>();
+        properties.put("test.db.name", "writebehind");
+        properties.put("idp.home", System.getProperty("java.io.tmpdir"));
+        properties.put("oidc.tokens.writebehind.enabled", "true");
+        context = start(properties);
+        tokenRepository = context.getBean("writeBehindTokenRepository", WriteBehindTokenRepository.class);
+        holderRepository = context.getBean("writeBehindAuthenticationHolderRepository",
+                AuthenticationHolderRepository.class);
+        jdbc = new JdbcTemplate(context.getBean("dataSource", DataSource.class));
+
+        final ClientDetailsEntity entity = new ClientDetailsEntity();
+        entity.setClientId("client");
+        client = context.getBean("jpaOAuth2ClientRepository", OAuth2ClientRepository.class).saveClient(entity);
+    }
+
+    /**
+     * Close the context.
+     */
+    @AfterClass
+    public void tearDown() {
+        context.close();
+    }
+
+    /**
+     * Start the token storage context.
+     *
+     * @param properties the properties
+     * @return the context
+     */
+    static GenericXmlApplicationContext start(final Map<String, Object> properties) {
+        final GenericXmlApplicationContext context = new GenericXmlApplicationContext();
+        context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("test", properties));
+        context.load("classpath:net/shibboleth/idp/oidc/client/userinfo/authn/token-storage-test.xml");
+        context.refresh();
+        return context;
+    }
+
+    /**
+     * An access token, refresh token and authentication holder issued while
+     * deferring are written once each and refer to each other by id.
+     */
+    @Test
+    public void deferredTokensAreWrittenWithTheirReferences() {
+        final int holders = count("authentication_holder");
+        final int accessTokens = count("access_token");
+        Assert.assertTrue(tokenRepository.beginDeferredWrites(null));
+        final AuthenticationHolderEntity holder;
+        final OAuth2RefreshTokenEntity refreshToken;
+        final OAuth2AccessTokenEntity accessToken;
+        try {
+            holder = holderRepository.save(newHolder());
+            refreshToken = new OAuth2RefreshTokenEntity();
+            refreshToken.setJwt(newJwt());
+            refreshToken.setClient(client);
+            refreshToken.setAuthenticationHolder(holder);
+            Assert.assertSame(tokenRepository.saveRefreshToken(refreshToken), refreshToken);
+
+            accessToken = new OAuth2AccessTokenEntity();
+            accessToken.setJwt(newJwt());
+            accessToken.setClient(client);
+            accessToken.setAuthenticationHolder(holder);
+            accessToken.setRefreshToken(refreshToken);
+            accessToken.setScope(Collections.singleton("openid"));
+            accessToken.setExpiration(new Date(System.currentTimeMillis() + 60000));
+            Assert.assertSame(tokenRepository.saveAccessToken(accessToken), accessToken);
+            Assert.assertSame(tokenRepository.getAccessTokenByValue(accessToken.getValue()), accessToken);
+        } finally {
+            tokenRepository.endDeferredWrites();
+        }
+        tokenRepository.flush();
+
+        Assert.assertNotNull(holder.getId());
+        Assert.assertNotNull(refreshToken.getId());
+        Assert.assertNotNull(accessToken.getId());
+        Assert.assertEquals(count("authentication_holder"), holders + 1);
+        Assert.assertEquals(jdbc.queryForObject("SELECT auth_holder_id FROM refresh_token WHERE id = ?",
+                Long.class, refreshToken.getId()), holder.getId());
+        final Map<String, Object> row = jdbc.queryForMap(
+                "SELECT auth_holder_id, refresh_token_id FROM access_token WHERE id = ?", accessToken.getId());
+        Assert.assertEquals(((Number) row.get("auth_holder_id")).longValue(), holder.getId().longValue());
+        Assert.assertEquals(((Number) row.get("refresh_token_id")).longValue(), refreshToken.getId().longValue());
+
+        final OAuth2AccessTokenEntity loaded = tokenRepository.getAccessTokenByValue(accessToken.getValue());
+        Assert.assertEquals(loaded.getId(), accessToken.getId());
+        Assert.assertEquals(loaded.getAuthenticationHolder().getId(), holder.getId());
+        Assert.assertEquals(loaded.getAuthenticationHolder().getUserAuth().getName(), "jdoe");
+        Assert.assertEquals(loaded.getRefreshToken().getId(), refreshToken.getId());
+
+        Assert.assertEquals(tokenRepository.saveAccessToken(accessToken).getId(), accessToken.getId());
+        Assert.assertEquals(count("access_token"), accessTokens + 1);
+    }
+
+    /**
+     * A token whose write fails is kept and served from memory, and written once the database accepts it.
+     */
+    @Test
+    public void failedWritesAreKeptUntilTheySucceed() {
+        tokenRepository.setRetryInterval(0);
+        final OAuth2AccessTokenEntity accessToken = new OAuth2AccessTokenEntity();
+        accessToken.setJwt(newJwt());
+        accessToken.setClient(client);
+        accessToken.setScope(Collections.singleton("openid"));
+        accessToken.setExpiration(new Date(System.currentTimeMillis() + 60000));
+        jdbc.execute("ALTER TABLE access_token ADD CONSTRAINT refuse_token CHECK (token_value <> '"
+                + accessToken.getValue() + "')");
+        try {
+            Assert.assertTrue(tokenRepository.beginDeferredWrites(null));
+            try {
+                accessToken.setAuthenticationHolder(holderRepository.save(newHolder()));
+                tokenRepository.saveAccessToken(accessToken);
+            } finally {
+                tokenRepository.endDeferredWrites();
+            }
+            tokenRepository.flush();
+
+            Assert.assertEquals(tokenRepository.getUnwrittenCount(), 1);
+            Assert.assertNull(accessToken.getId());
+            Assert.assertSame(tokenRepository.getAccessTokenByValue(accessToken.getValue()), accessToken);
+        } finally {
+            jdbc.execute("ALTER TABLE access_token DROP CONSTRAINT refuse_token");
+        }
+        try {
+            tokenRepository.flush();
+            Assert.assertEquals(tokenRepository.getUnwrittenCount(), 0);
+            Assert.assertNotNull(accessToken.getId());
+            Assert.assertEquals(jdbc.queryForObject("SELECT COUNT(*) FROM access_token WHERE id = ?",
+                    Integer.class, accessToken.getId()).intValue(), 1);
+            Assert.assertEquals(tokenRepository.getAccessTokenByValue(accessToken.getValue()).getId(),
+                    accessToken.getId());
+        } finally {
+            tokenRepository.setRetryInterval(30);
+        }
+    }
+
+    /**
+     * A token issued under an approved site is written behind, linked to the site,
+     * and removed along with the site.
+     */
+    @Test
+    public void deferredTokensAreLinkedToTheirApprovedSite() {
+        final CachingApprovedSiteRepository siteRepository = context.getBean("cachingApprovedSiteRepository",
+                CachingApprovedSiteRepository.class);
+        final ApprovedSite site = new ApprovedSite();
+        site.setClientId(client.getClientId());
+        site.setUserId("jdoe");
+        site.setCreationDate(new Date());
+        final ApprovedSite savedSite = siteRepository.save(site);
+
+        final OAuth2Request request = new OAuth2Request(Collections.<String, String>emptyMap(), "client",
+                Collections.<GrantedAuthority>emptySet(), true, Collections.singleton("openid"),
+                Collections.<String>emptySet(), "https://rp.example.org/callback", Collections.<String>emptySet(),
+                Collections.<String, Serializable>singletonMap(ConnectRequestParameters.APPROVED_SITE,
+                        savedSite.getId().toString()));
+        final OAuth2AccessTokenEntity accessToken = new OAuth2AccessTokenEntity();
+        Assert.assertTrue(tokenRepository.beginDeferredWrites(request));
+        try {
+            accessToken.setJwt(newJwt());
+            accessToken.setClient(client);
+            accessToken.setAuthenticationHolder(holderRepository.save(newHolder()));
+            accessToken.setScope(Collections.singleton("openid"));
+            accessToken.setExpiration(new Date(System.currentTimeMillis() + 60000));
+            tokenRepository.saveAccessToken(accessToken);
+            Assert.assertNull(accessToken.getId());
+        } finally {
+            tokenRepository.endDeferredWrites();
+        }
+        tokenRepository.flush();
+
+        Assert.assertEquals(jdbc.queryForObject("SELECT approved_site_id FROM access_token WHERE id = ?",
+                Long.class, accessToken.getId()), savedSite.getId());
+        siteRepository.remove(siteRepository.getById(savedSite.getId()));
+        Assert.assertNull(tokenRepository.getAccessTokenByValue(accessToken.getValue()));
+    }
+
+    /**
+     * Clearing the access tokens of a refresh token is reported to the revocation listeners.
+     */
+    @Test
+    public void clearedAccessTokensAreReported() {
+        final List<OAuth2RefreshTokenEntity> reported = new ArrayList<>();
+        tokenRepository.setRevocationListeners(Collections.<TokenRevocationListener>singletonList(
+                new TokenRevocationListener() {
+                    @Override
+                    public void accessTokenRevoked(final OAuth2AccessTokenEntity token) {
+                        throw new UnsupportedOperationException();
+                    }
+
+                    @Override
+                    public void accessTokensRevoked(final OAuth2RefreshTokenEntity refreshToken) {
+                        reported.add(refreshToken);
+                    }
+
+                    @Override
+                    public void refreshTokenRevoked(final OAuth2RefreshTokenEntity refreshToken) {
+                        throw new UnsupportedOperationException();
+                    }
+                }));
+        try {
+            final OAuth2RefreshTokenEntity refreshToken = new OAuth2RefreshTokenEntity();
+            refreshToken.setJwt(newJwt());
+            refreshToken.setClient(client);
+            refreshToken.setAuthenticationHolder(holderRepository.save(newHolder()));
+            final OAuth2RefreshTokenEntity saved = tokenRepository.saveRefreshToken(refreshToken);
+
+            tokenRepository.clearAccessTokensForRefreshToken(saved);
+            Assert.assertEquals(reported, Collections.singletonList(saved));
+        } finally {
+            tokenRepository.setRevocationListeners(Collections.<TokenRevocationListener>emptyList());
+        }
+    }
+
+    /**
+     * Count the rows of a table.
+     *
+     * @param table the table
+     * @return the count
+     */
+    private int count(final String table) {
+        return jdbc.queryForObject("SELECT COUNT(*) FROM " + table, Integer.class);
+    }
+
+    /**
+     * Create an authentication holder for a user.
+     *
+     * @return the holder
+     */
+    static AuthenticationHolderEntity newHolder() {
+        final OAuth2Request request = new OAuth2Request(Collections.<String, String>emptyMap(), "client",
+                Collections.<GrantedAuthority>emptySet(), true, Collections.singleton("openid"),
+                Collections.<String>emptySet(), "https://rp.example.org/callback",
+                Collections.<String>emptySet(), Collections.<String, Serializable>emptyMap());
+        final AuthenticationHolderEntity holder = new AuthenticationHolderEntity();
+        holder.setAuthentication(new OAuth2Authentication(request, new UsernamePasswordAuthenticationToken("jdoe",
+                null, Collections.<GrantedAuthority>emptySet())));
+        return holder;
+    }
+
+    /**
+     * Create a token value.
+     *
+     * @return the token value
+     */
+    static PlainJWT newJwt() {
+        return new PlainJWT(new JWTClaimsSet.Builder().jwtID(UUID.randomUUID().toString()).build());
+    }
+}
@@ -22,6 +22,7 @@
 CREATE TABLE IF NOT EXISTS access_token (
   id BIGINT GENERATED BY DEFAULT AS IDENTITY(START WITH 1) PRIMARY KEY,
   token_value VARCHAR(4096),
+  token_hash CHAR(64) UNIQUE,
   expiration TIMESTAMP,
   token_type VARCHAR(256),
   refresh_token_id BIGINT,
@@ -101,6 +102,11 @@ CREATE TABLE IF NOT EXISTS authentication_holder_request_parameter (
   val VARCHAR(2048)
 );
 
+CREATE TABLE IF NOT EXISTS shared_authentication_holder (
+  holder_id BIGINT PRIMARY KEY,
+  leased_until TIMESTAMP
+);
+
 CREATE TABLE IF NOT EXISTS saved_user_auth (
   id BIGINT GENERATED BY DEFAULT AS IDENTITY(START WITH 1) PRIMARY KEY,
   name VARCHAR(1024),
@@ -222,6 +228,7 @@ CREATE TABLE IF NOT EXISTS client_claims_redirect_uri (
 CREATE TABLE IF NOT EXISTS refresh_token (
   id BIGINT GENERATED BY DEFAULT AS IDENTITY(START WITH 1) PRIMARY KEY,
   token_value VARCHAR(4096),
+  token_hash CHAR(64) UNIQUE,
   expiration TIMESTAMP,
   auth_holder_id BIGINT,
   client_id BIGINT
@@ -0,0 +1,26 @@
+--
+-- Licensed to the University Corporation for Advanced Internet Development,
+-- Inc. (UCAID) under one or more contributor license agreements.  See the
+-- NOTICE file distributed with this work for additional information regarding
+-- copyright ownership. The UCAID licenses this file to You under the Apache
+-- License, Version 2.0 (the "License"); you may not use this file except in
+-- compliance with the License.  You may obtain a copy of the License at
+--
+--    http://www.apache.org/licenses/LICENSE-2.0
+--
+-- Unless required by applicable law or agreed to in writing, software
+-- distributed under the License is distributed on an "AS IS" BASIS,
+-- WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+-- See the License for the specific language governing permissions and
+-- limitations under the License.
+--
+
+--
+-- Adds the table of leased client authentication holders to an existing HSQL database.
+-- Orphaned authentication holders are not purged until it exists.
+--
+
+CREATE TABLE IF NOT EXISTS shared_authentication_holder (
+  holder_id BIGINT PRIMARY KEY,
+  leased_until TIMESTAMP
+);
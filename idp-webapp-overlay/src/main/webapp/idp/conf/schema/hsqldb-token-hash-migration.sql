@@ -0,0 +1,26 @@
+--
+-- Licensed to the University Corporation for Advanced Internet Development,
+-- Inc. (UCAID) under one or more contributor license agreements.  See the
+-- NOTICE file distributed with this work for additional information regarding
+-- copyright ownership. The UCAID licenses this file to You under the Apache
+-- License, Version 2.0 (the "License"); you may not use this file except in
+-- compliance with the License.  You may obtain a copy of the License at
+--
+--    http://www.apache.org/licenses/LICENSE-2.0
+--
+-- Unless required by applicable law or agreed to in writing, software
+-- distributed under the License is distributed on an "AS IS" BASIS,
+-- WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+-- See the License for the specific language governing permissions and
+-- limitations under the License.
+--
+
+--
+-- Adds the token hash lookup column to an existing HSQL database.
+-- Tokens already stored are hashed by the identity provider once it starts.
+--
+
+ALTER TABLE access_token ADD COLUMN token_hash CHAR(64);
+ALTER TABLE refresh_token ADD COLUMN token_hash CHAR(64);
+ALTER TABLE access_token ADD CONSTRAINT at_th_unq UNIQUE (token_hash);
+ALTER TABLE refresh_token ADD CONSTRAINT rt_th_unq UNIQUE (token_hash);
@@ -5,6 +5,7 @@
 CREATE TABLE IF NOT EXISTS access_token (
 	id BIGINT AUTO_INCREMENT PRIMARY KEY,
 	token_value VARCHAR(4096),
+	token_hash CHAR(64),
 	expiration TIMESTAMP NULL,
 	token_type VARCHAR(256),
 	refresh_token_id BIGINT,
@@ -84,6 +85,11 @@ CREATE TABLE IF NOT EXISTS authentication_holder_request_parameter (
 	val VARCHAR(2048)
 );
 
+CREATE TABLE IF NOT EXISTS shared_authentication_holder (
+	holder_id BIGINT PRIMARY KEY,
+	leased_until TIMESTAMP NULL
+);
+
 CREATE TABLE IF NOT EXISTS saved_user_auth (
 	id BIGINT AUTO_INCREMENT PRIMARY KEY,
 	name VARCHAR(1024),
@@ -205,6 +211,7 @@ CREATE TABLE IF NOT EXISTS client_claims_redirect_uri (
 CREATE TABLE IF NOT EXISTS refresh_token (
 	id BIGINT AUTO_INCREMENT PRIMARY KEY,
 	token_value VARCHAR(4096),
+	token_hash CHAR(64),
 	expiration TIMESTAMP NULL,
 	auth_holder_id BIGINT,
 	client_id BIGINT
@@ -359,7 +366,19 @@ CREATE TABLE IF NOT EXISTS saved_registered_client (
 
 
 CREATE INDEX at_tv_idx ON access_token(token_value(767));
+CREATE UNIQUE INDEX at_th_idx ON access_token(token_hash);
+CREATE UNIQUE INDEX rt_th_idx ON refresh_token(token_hash);
 CREATE INDEX ts_oi_idx ON token_scope(owner_id);
 CREATE INDEX at_exp_idx ON access_token(expiration);
 CREATE INDEX rf_ahi_idx ON refresh_token(auth_holder_id);
 CREATE INDEX cd_ci_idx ON client_details(client_id);
+CREATE INDEX at_ahi_idx ON access_token(auth_holder_id);
+CREATE INDEX ac_ahi_idx ON authorization_code(auth_holder_id);
+CREATE INDEX atp_ati_idx ON access_token_permissions(access_token_id);
+CREATE INDEX aha_oi_idx ON authentication_holder_authority(owner_id);
+CREATE INDEX ahri_oi_idx ON authentication_holder_resource_id(owner_id);
+CREATE INDEX ahrt_oi_idx ON authentication_holder_response_type(owner_id);
+CREATE INDEX ahe_oi_idx ON authentication_holder_extension(owner_id);
+CREATE INDEX ahs_oi_idx ON authentication_holder_scope(owner_id);
+CREATE INDEX ahrp_oi_idx ON authentication_holder_request_parameter(owner_id);
+CREATE INDEX suaa_oi_idx ON saved_user_auth_authority(owner_id);